@@ -0,0 +1,134 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.Compression;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailPgp;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.EncryptSmime;
+import com.github.estegp.secure.mail.mimemultipart.PgpCipher;
+import com.github.estegp.secure.mail.mimemultipart.SmimeCipher;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the ciphers of 'PGP' and 'SMIME', with the BouncyCastle provider and with the
+ * providers of the JCA. The compression of 'PGP' is disabled, so only the cipher is measured.
+ *
+ * <p>Besides the messages per second, the {@code bytes} counter reports the bytes of content
+ * encrypted per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class CipherBenchmark {
+
+  /** The provider of the ciphers, the BouncyCastle one or the ones of the JCA (e.g. 'SunJCE'). */
+  @State(Scope.Benchmark)
+  public static class Provider {
+    @Param({"BC", "JCA"})
+    public String provider;
+
+    String name() {
+      return "JCA".equals(this.provider) ? null : this.provider;
+    }
+  }
+
+  /** A binary attachment of 1 MB, so the cipher dominates the cost. */
+  @State(Scope.Thread)
+  public static class Content {
+    @Param({"1048576"})
+    public int size;
+
+    public MimeBodyPart part;
+    public MimeMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      this.part = MailBuilder.buildAttachment(this.size);
+      this.message = MailBuilder.setGeneralData();
+    }
+  }
+
+  /** Counts the bytes of content encrypted. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Throughput {
+    public long bytes;
+  }
+
+  /**
+   * The 'PGP' encryptor. CAST5 is only in BouncyCastle, so it's taken from BouncyCastle with both
+   * providers.
+   */
+  @State(Scope.Thread)
+  public static class Pgp {
+    @Param({"CAST5", "AES_128", "AES_256"})
+    public PgpCipher cipher;
+
+    public EncryptMailPgp encryptor;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys, Provider provider) {
+      this.encryptor =
+          new EncryptMailPgp(
+              keys.pgp.publicKey(),
+              EncryptOptions.builder()
+                  .pgpCipher(this.cipher)
+                  .integrityProtection(this.cipher != PgpCipher.CAST5)
+                  .compression(Compression.NONE)
+                  .provider(provider.name())
+                  .build());
+    }
+  }
+
+  /** The 'SMIME' encryptor. */
+  @State(Scope.Thread)
+  public static class Smime {
+    @Param({"RC2_CBC", "AES128_CBC", "AES256_CBC", "AES128_GCM", "AES256_GCM"})
+    public SmimeCipher cipher;
+
+    public EncryptSmime encryptor;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys, Provider provider) {
+      this.encryptor =
+          new EncryptSmime(
+              keys.smime.certificate(),
+              EncryptOptions.builder().smimeCipher(this.cipher).provider(provider.name()).build());
+    }
+  }
+
+  @Benchmark
+  public MimeBodyPart pgp(Pgp pgp, Content content, Throughput throughput) throws Exception {
+    MimeBodyPart part = pgp.encryptor.encryptData(content.part, content.message);
+    throughput.bytes += content.size;
+    return part;
+  }
+
+  @Benchmark
+  public MimeBodyPart smime(Smime smime, Content content, Throughput throughput)
+      throws Exception {
+    MimeBodyPart part = smime.encryptor.encryptData(content.part, content.message);
+    // The content is encrypted while the part is written
+    part.writeTo(OutputStream.nullOutputStream());
+    throughput.bytes += content.size;
+    return part;
+  }
+}
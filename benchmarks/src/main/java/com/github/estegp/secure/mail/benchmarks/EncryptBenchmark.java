@@ -0,0 +1,91 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.BufferStrategy;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailPgp;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.EncryptSmime;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the encryption of a message with 'PGP' and 'SMIME'.
+ *
+ * <p>The 'SMIME' body part is encrypted by BouncyCastle while it is written, so every benchmark
+ * writes the encrypted part to a null stream, as the transport would do.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class EncryptBenchmark {
+
+  /**
+   * The buffer strategy of the 'PGP' encryptor: chunks on the heap, or pooled direct chunks shared
+   * by all the threads.
+   */
+  @State(Scope.Benchmark)
+  public static class Buffers {
+    @Param({"heap", "pooledDirect"})
+    public String buffers;
+
+    public BufferStrategy strategy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      this.strategy =
+          "heap".equals(this.buffers)
+              ? BufferStrategy.heap()
+              : BufferStrategy.pooledDirect(BufferStrategy.DEFAULT_CHUNK_SIZE, 4096);
+    }
+  }
+
+  /** The encryptors and the message that will contain the data. */
+  @State(Scope.Thread)
+  public static class Encryptors {
+    public EncryptMailPgp pgp;
+    public EncryptSmime smime;
+    public MimeMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys, Buffers buffers) throws Exception {
+      this.pgp =
+          new EncryptMailPgp(
+              keys.pgp.publicKey(),
+              EncryptOptions.builder().bufferStrategy(buffers.strategy).build());
+      this.smime = new EncryptSmime(keys.smime.certificate());
+      this.message = MailBuilder.setGeneralData();
+    }
+  }
+
+  @Benchmark
+  public MimeBodyPart pgpEncryptMultiPart(Encryptors encryptors, Fixtures.Message message)
+      throws Exception {
+    MimeBodyPart part = encryptors.pgp.encryptMultiPart(message.content, encryptors.message);
+    part.writeTo(OutputStream.nullOutputStream());
+    return part;
+  }
+
+  @Benchmark
+  public MimeBodyPart smimeEncryptData(Encryptors encryptors, Fixtures.Message message)
+      throws Exception {
+    MimeBodyPart part = encryptors.smime.encryptData(message.part, encryptors.message);
+    part.writeTo(OutputStream.nullOutputStream());
+    return part;
+  }
+}
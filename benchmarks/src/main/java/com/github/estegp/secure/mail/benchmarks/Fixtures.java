@@ -0,0 +1,77 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.nio.charset.StandardCharsets;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Keys and messages used by the benchmarks, generated locally with the test helpers. */
+public final class Fixtures {
+
+  private Fixtures() {}
+
+  /** Throw-away keys, generated once per benchmark. */
+  @State(Scope.Benchmark)
+  public static class Keys {
+    public KeyBuilder.PgpKeys pgp;
+    public KeyBuilder.SmimeKeys smime;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      this.pgp = KeyBuilder.pgp("to <to@mail.com>");
+      this.smime = KeyBuilder.smime("to@mail.com");
+    }
+  }
+
+  /** The content of the message, from 1 KB to 50 MB, as html text or as a binary attachment. */
+  @State(Scope.Thread)
+  public static class Message {
+    @Param({"1024", "65536", "1048576", "10485760", "52428800"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean attachment;
+
+    public MimeMultipart content;
+    public MimeBodyPart part;
+
+    @Setup(Level.Trial)
+    public void setUp() throws MessagingException {
+      if (this.attachment) {
+        this.content = MailBuilder.buildContent(this.size);
+        this.part = MailBuilder.buildAttachment(this.size);
+      } else {
+        this.part = html(this.size);
+        this.content = new MimeMultipart("related");
+        this.content.addBodyPart(html(this.size));
+      }
+    }
+  }
+
+  /**
+   * Builds an html body part of the given size.
+   *
+   * @param size the size of the html text in bytes.
+   * @return the body part.
+   */
+  static MimeBodyPart html(int size) throws MessagingException {
+    byte[] text = new byte[size];
+    byte[] line =
+        "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < size; i += line.length) {
+      System.arraycopy(line, 0, text, i, Math.min(line.length, size - i));
+    }
+
+    MimeBodyPart part = new MimeBodyPart();
+    part.setContent(new String(text, StandardCharsets.US_ASCII), "text/html");
+    return part;
+  }
+}
@@ -0,0 +1,65 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.EncryptMail;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailFactory;
+import com.github.estegp.secure.mail.mimemultipart.KeyLoadManager;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the loading of the keys and the detection of their type in the factory. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyLoadBenchmark {
+
+  /** Whether the parsed keys are taken from the cache or parsed on every call. */
+  @State(Scope.Benchmark)
+  public static class Cache {
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      Duration ttl = this.cached ? Duration.ofHours(1) : Duration.ZERO;
+      KeyLoadManager.INSTANCE.getPgpKeyCache().setTimeToLive(ttl);
+      KeyLoadManager.INSTANCE.getCertificateCache().setTimeToLive(ttl);
+    }
+  }
+
+  @Benchmark
+  public PGPPublicKey loadPgpKey(Fixtures.Keys keys, Cache cache) throws Exception {
+    return KeyLoadManager.INSTANCE.loadPgpKey(keys.pgp.publicKey());
+  }
+
+  @Benchmark
+  public JceKeyTransRecipientInfoGenerator loadMimeEncKey(Fixtures.Keys keys, Cache cache)
+      throws Exception {
+    return KeyLoadManager.INSTANCE.loadMimeEncKey(keys.smime.certificate());
+  }
+
+  @Benchmark
+  public EncryptMail factoryDetectPgp(Fixtures.Keys keys) {
+    return new EncryptMailFactory(keys.pgp.publicKey()).getEncryptor();
+  }
+
+  @Benchmark
+  public EncryptMail factoryDetectSmime(Fixtures.Keys keys) {
+    return new EncryptMailFactory(keys.smime.certificate()).getEncryptor();
+  }
+}
@@ -0,0 +1,92 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailPgp;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.EncryptSmime;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the encryption of a message with many attachments, with the body parts encoded by the
+ * calling thread or in parallel on the common pool. The speedup depends on the cores left to the
+ * pool while the calling thread encrypts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ParallelBenchmark {
+
+  /** The encryptors, with the body parts encoded serially or in parallel. */
+  @State(Scope.Benchmark)
+  public static class Encryptors {
+    @Param({"serial", "parallel"})
+    public String encoding;
+
+    @Param({"2097152"})
+    public int size;
+
+    public EncryptMailPgp pgp;
+    public EncryptSmime smime;
+    public MimeMultipart content;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys) throws Exception {
+      EncryptOptions options =
+          EncryptOptions.builder()
+              .parallelEncoding("parallel".equals(this.encoding) ? ForkJoinPool.commonPool() : null)
+              .build();
+      this.pgp = new EncryptMailPgp(keys.pgp.publicKey(), options);
+      this.smime = new EncryptSmime(keys.smime.certificate(), options);
+      this.content = MailBuilder.buildContent();
+      for (int i = 0; i < 8; i++) {
+        this.content.addBodyPart(MailBuilder.buildAttachment(this.size + i));
+      }
+    }
+  }
+
+  /** The message that will contain the data, one per thread. */
+  @State(Scope.Thread)
+  public static class Message {
+    public MimeMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      this.message = MailBuilder.setGeneralData();
+    }
+  }
+
+  @Benchmark
+  public MimeBodyPart pgpEncryptMultiPart(Encryptors encryptors, Message message)
+      throws Exception {
+    MimeBodyPart part = encryptors.pgp.encryptMultiPart(encryptors.content, message.message);
+    part.writeTo(OutputStream.nullOutputStream());
+    return part;
+  }
+
+  @Benchmark
+  public MimeBodyPart smimeEncryptMultiPart(Encryptors encryptors, Message message)
+      throws Exception {
+    MimeBodyPart part = encryptors.smime.encryptMultiPart(encryptors.content, message.message);
+    part.writeTo(OutputStream.nullOutputStream());
+    return part;
+  }
+}
@@ -0,0 +1,129 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailPgp;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.KeyLoadManager;
+import com.github.estegp.secure.mail.mimemultipart.PgpCipher;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.io.OutputStream;
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.operator.OutputEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the contention on the provider list of the JCA with 64 threads. The ciphers of every
+ * message are created through a provider given by its name, looked up in the synchronized provider
+ * list every time, or through the {@link java.security.Provider} instance the encryptors use.
+ *
+ * <p>The {@code pgpSessionKey} and {@code smimeContentKey} benchmarks only create the ciphers of a
+ * message, where the lookup dominates; {@code pgpEncrypt} encrypts a small message end to end.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class ProviderBenchmark {
+
+  /** The builders of the ciphers, with the provider given by its name or as an instance. */
+  @State(Scope.Benchmark)
+  public static class Lookup {
+    @Param({"name", "instance"})
+    public String lookup;
+
+    public JcePGPDataEncryptorBuilder dataEncryptor;
+    public JcePublicKeyKeyEncryptionMethodGenerator method;
+    public JceCMSContentEncryptorBuilder contentEncryptor;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys) throws Exception {
+      PGPPublicKey key = KeyLoadManager.INSTANCE.loadPgpKey(keys.pgp.publicKey());
+      this.dataEncryptor =
+          new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_128).setWithIntegrityPacket(true);
+      this.method = new JcePublicKeyKeyEncryptionMethodGenerator(key);
+      this.contentEncryptor = new JceCMSContentEncryptorBuilder(CMSAlgorithm.AES128_CBC);
+      if ("name".equals(this.lookup)) {
+        this.dataEncryptor.setProvider(EncryptOptions.BOUNCY_CASTLE);
+        this.method.setProvider(EncryptOptions.BOUNCY_CASTLE);
+        this.contentEncryptor.setProvider(EncryptOptions.BOUNCY_CASTLE);
+      } else {
+        Provider provider = Security.getProvider(EncryptOptions.BOUNCY_CASTLE);
+        this.dataEncryptor.setProvider(provider);
+        this.method.setProvider(provider);
+        this.contentEncryptor.setProvider(provider);
+      }
+    }
+  }
+
+  /** The encryptor of the library, which always uses the provider instance. */
+  @State(Scope.Benchmark)
+  public static class Library {
+    public EncryptMailPgp encryptor;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys) {
+      this.encryptor =
+          new EncryptMailPgp(
+              keys.pgp.publicKey(),
+              EncryptOptions.builder()
+                  .pgpCipher(PgpCipher.AES_128)
+                  .integrityProtection(true)
+                  .build());
+    }
+  }
+
+  /** A small message, so the cost of the ciphers isn't hidden by the content. */
+  @State(Scope.Thread)
+  public static class Content {
+    public MimeMultipart content;
+    public byte[] data = new byte[1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      this.content = MailBuilder.buildContent();
+    }
+  }
+
+  @Benchmark
+  public void pgpSessionKey(Lookup lookup, Content content) throws Exception {
+    PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(lookup.dataEncryptor);
+    encGen.addMethod(lookup.method);
+    try (OutputStream out = encGen.open(OutputStream.nullOutputStream(), new byte[4096])) {
+      out.write(content.data);
+    }
+  }
+
+  @Benchmark
+  public OutputEncryptor smimeContentKey(Lookup lookup) throws Exception {
+    return lookup.contentEncryptor.build();
+  }
+
+  @Benchmark
+  public MimeBodyPart pgpEncrypt(Library library, Content content) throws Exception {
+    return library.encryptor.encryptMultiPart(content.content, MailBuilder.setGeneralData());
+  }
+}
@@ -0,0 +1,120 @@
+package com.github.estegp.secure.mail.benchmarks;
+
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.KeyLoadManager;
+import com.github.estegp.secure.mail.mimemultipart.RandomStrategy;
+import java.io.OutputStream;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.operator.OutputEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the generation of the session keys of the messages by 16 threads, with every {@link
+ * RandomStrategy} and with a new {@link SecureRandom} seeded for every message ({@code new}).
+ *
+ * <p>{@code sessionKey} only draws a 'AES-256' key and its initialization vector, {@code
+ * pgpSessionKey} creates the 'PGP' encrypted data of a message, including the encryption of the
+ * session key with the public key of the recipient, and {@code smimeContentKey} creates the content
+ * encryptor of a 'SMIME' message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class RandomBenchmark {
+
+  /** The source of randomness of the messages. */
+  @State(Scope.Benchmark)
+  public static class Strategy {
+    @Param({"new", "SHARED", "SHARED_DRBG", "PER_THREAD_DRBG"})
+    public String strategy;
+
+    public Provider provider;
+    public PGPPublicKey key;
+
+    private SecureRandom shared;
+
+    @Setup(Level.Trial)
+    public void setUp(Fixtures.Keys keys) throws Exception {
+      // Loading the key installs BouncyCastle
+      this.key = KeyLoadManager.INSTANCE.loadPgpKey(keys.pgp.publicKey());
+      this.provider = Security.getProvider(EncryptOptions.BOUNCY_CASTLE);
+      if (!"new".equals(this.strategy)) {
+        this.shared = RandomStrategy.valueOf(this.strategy).getSecureRandom();
+      }
+    }
+
+    /**
+     * Gets the source of randomness of a message.
+     *
+     * @return the shared source, or a new one.
+     */
+    public SecureRandom random() {
+      return (this.shared != null) ? this.shared : new SecureRandom();
+    }
+  }
+
+  /** The content of a message. */
+  @State(Scope.Thread)
+  public static class Content {
+    public byte[] data = new byte[1024];
+  }
+
+  @Benchmark
+  public byte[] sessionKey(Strategy strategy) {
+    SecureRandom random = strategy.random();
+    byte[] key = new byte[48];
+    random.nextBytes(key);
+    return key;
+  }
+
+  @Benchmark
+  public void pgpSessionKey(Strategy strategy, Content content) throws Exception {
+    SecureRandom random = strategy.random();
+    PGPEncryptedDataGenerator encGen =
+        new PGPEncryptedDataGenerator(
+            new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
+                .setWithIntegrityPacket(true)
+                .setSecureRandom(random)
+                .setProvider(strategy.provider));
+    encGen.addMethod(
+        new JcePublicKeyKeyEncryptionMethodGenerator(strategy.key)
+            .setSecureRandom(random)
+            .setProvider(strategy.provider));
+    try (OutputStream out = encGen.open(OutputStream.nullOutputStream(), new byte[4096])) {
+      out.write(content.data);
+    }
+  }
+
+  @Benchmark
+  public OutputEncryptor smimeContentKey(Strategy strategy) throws Exception {
+    return new JceCMSContentEncryptorBuilder(CMSAlgorithm.AES256_CBC)
+        .setSecureRandom(strategy.random())
+        .setProvider(strategy.provider)
+        .build();
+  }
+}
@@ -0,0 +1,325 @@
+package com.github.estegp.secure.mail.batch;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMail;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailFactory;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.KeyCache;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * Encrypts batches of messages in parallel. The jobs are run on the configured executor, and the
+ * number of jobs in flight is bounded, so the jobs are only read from the source as fast as they
+ * are encrypted.
+ *
+ * <p>A failing job doesn't stop the batch: its {@link EncryptResult} holds the error instead of the
+ * encrypted part. The results are given to the consumer on the calling thread, in the order of the
+ * jobs or as soon as they complete. The parts of the results already hold the encrypted data, with
+ * 'PGP' and 'SMIME' alike, so writing them doesn't do any cipher work on the consumer's thread.
+ *
+ * <p>The encryptors are kept for the sets of recipients seen in the batches, so the keys of the
+ * recipients are prepared once for all their messages.
+ */
+public final class BatchEncryptor implements AutoCloseable {
+  /** Default maximum number of jobs in flight. */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+  /** The number of sets of recipients whose encryptors are kept. */
+  private static final int ENCRYPTOR_CACHE_SIZE = 1024;
+
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int maxInFlight;
+  private final boolean ordered;
+  private final EncryptOptions options;
+
+  /** The encryptors of the sets of recipients, with the options of the batch. */
+  private final KeyCache<EncryptMail> encryptors =
+      new KeyCache<>(ENCRYPTOR_CACHE_SIZE, KeyCache.DEFAULT_TIME_TO_LIVE);
+
+  /**
+   * Constructor.
+   *
+   * @param builder the builder with the configuration.
+   */
+  private BatchEncryptor(Builder builder) {
+    this.ownedExecutor = (builder.executor == null) ? builder.ownedExecutor.get() : null;
+    this.executor = (builder.executor != null) ? builder.executor : this.ownedExecutor;
+    this.maxInFlight = builder.maxInFlight;
+    this.ordered = builder.ordered;
+    this.options = builder.options;
+  }
+
+  /**
+   * Gets a builder to configure the batch encryptor.
+   *
+   * @return the builder.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Encrypts all the given jobs, blocking until the last one has completed.
+   *
+   * @param jobs the jobs to encrypt, read as the jobs in flight complete.
+   * @param results the consumer of the results, called on the calling thread.
+   * @return the number of jobs encrypted, including the failed ones.
+   * @throws InterruptedException if the thread is interrupted while waiting for the jobs.
+   */
+  public long encryptAll(Stream<EncryptJob> jobs, Consumer<EncryptResult> results)
+      throws InterruptedException {
+    return new Run(results).execute(jobs.iterator());
+  }
+
+  /**
+   * Encrypts a single job.
+   *
+   * @param job the job to encrypt.
+   * @param sequence the position of the job in the batch.
+   * @return the result of the job.
+   */
+  private EncryptResult encrypt(EncryptJob job, long sequence) {
+    try {
+      MimeBodyPart part =
+          this.getEncryptor(job).encryptMultiPart(job.getContent(), job.getMessage());
+      return new EncryptResult(job, sequence, part, null);
+    } catch (EncryptMailException ex) {
+      return new EncryptResult(job, sequence, null, ex);
+    } catch (RuntimeException ex) {
+      // e.g. invalid keys, the error belongs to this job only
+      return new EncryptResult(job, sequence, null, new EncryptMailException(ex));
+    }
+  }
+
+  /**
+   * Gets the encryptor of the recipients of a job, created by the first job sent to them.
+   *
+   * @param job the job.
+   * @return the encryptor of the recipients.
+   */
+  private EncryptMail getEncryptor(EncryptJob job) {
+    String id = job.recipientsId();
+    EncryptMail encryptor = this.encryptors.get(id);
+    if (encryptor == null) {
+      // Two jobs may create the encryptor at the same time, both are equivalent
+      encryptor = new EncryptMailFactory(job.keys(), this.options).getEncryptor();
+      this.encryptors.put(id, encryptor);
+    }
+    return encryptor;
+  }
+
+  /** Shuts down the executor, if it was created by the builder. */
+  @Override
+  public void close() {
+    if (this.ownedExecutor != null) {
+      this.ownedExecutor.close();
+    }
+  }
+
+  /** The state of a single call to {@link #encryptAll}. */
+  private final class Run {
+    private final BlockingQueue<EncryptResult> completed = new LinkedBlockingQueue<>();
+    private final Map<Long, EncryptResult> reorder = new HashMap<>();
+    private final Consumer<EncryptResult> results;
+    private long submitted;
+    private long delivered;
+
+    Run(Consumer<EncryptResult> results) {
+      this.results = results;
+    }
+
+    long execute(Iterator<EncryptJob> jobs) throws InterruptedException {
+      while (jobs.hasNext()) {
+        // Backpressure: no more jobs are read until one of the jobs in flight is delivered
+        while (this.submitted - this.delivered >= BatchEncryptor.this.maxInFlight) {
+          this.receive(this.completed.take());
+        }
+        this.submit(jobs.next(), this.submitted++);
+
+        EncryptResult result;
+        while ((result = this.completed.poll()) != null) {
+          this.receive(result);
+        }
+      }
+
+      while (this.delivered < this.submitted) {
+        this.receive(this.completed.take());
+      }
+      return this.submitted;
+    }
+
+    private void submit(EncryptJob job, long sequence) {
+      try {
+        BatchEncryptor.this.executor.execute(() -> this.run(job, sequence));
+      } catch (RejectedExecutionException ex) {
+        this.completed.add(new EncryptResult(job, sequence, null, new EncryptMailException(ex)));
+      }
+    }
+
+    private void run(EncryptJob job, long sequence) {
+      EncryptResult result = null;
+      try {
+        result = BatchEncryptor.this.encrypt(job, sequence);
+      } finally {
+        // Even on errors (e.g. out of memory) the job is completed, or the batch would never end
+        this.completed.add(
+            (result != null)
+                ? result
+                : new EncryptResult(
+                    job, sequence, null, new EncryptMailException("The job was aborted.")));
+      }
+    }
+
+    private void receive(EncryptResult result) {
+      if (!BatchEncryptor.this.ordered) {
+        this.deliver(result);
+        return;
+      }
+
+      // Keeps the results completed ahead of their turn until the previous ones are delivered
+      this.reorder.put(result.getSequence(), result);
+      EncryptResult next;
+      while ((next = this.reorder.remove(this.delivered)) != null) {
+        this.deliver(next);
+      }
+    }
+
+    private void deliver(EncryptResult result) {
+      this.delivered++;
+      this.results.accept(result);
+    }
+  }
+
+  /** Builder of the batch encryptor. */
+  public static final class Builder {
+    private Executor executor;
+    private Supplier<ExecutorService> ownedExecutor = Executors::newVirtualThreadPerTaskExecutor;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private boolean ordered = true;
+    private EncryptOptions options = EncryptOptions.defaults();
+
+    private Builder() {}
+
+    /**
+     * Runs the jobs on a pool with a fixed number of threads, shut down when the batch encryptor is
+     * closed.
+     *
+     * @param threads the number of threads, must be positive.
+     * @return this builder.
+     */
+    public Builder fixedPool(int threads) {
+      if (threads <= 0) {
+        throw new IllegalArgumentException("The number of threads must be positive.");
+      }
+      return this.owned(() -> Executors.newFixedThreadPool(threads));
+    }
+
+    /**
+     * Runs the jobs on a fork-join pool, shut down when the batch encryptor is closed.
+     *
+     * @param parallelism the parallelism of the pool, must be positive.
+     * @return this builder.
+     */
+    public Builder forkJoinPool(int parallelism) {
+      if (parallelism <= 0) {
+        throw new IllegalArgumentException("The parallelism must be positive.");
+      }
+      return this.owned(() -> new ForkJoinPool(parallelism));
+    }
+
+    /**
+     * Runs every job on its own virtual thread.
+     *
+     * @return this builder.
+     */
+    public Builder virtualThreads() {
+      return this.owned(Executors::newVirtualThreadPerTaskExecutor);
+    }
+
+    /**
+     * Runs the jobs on the given executor, which is not shut down when the batch encryptor is
+     * closed.
+     *
+     * @param executor the executor.
+     * @return this builder.
+     */
+    public Builder executor(Executor executor) {
+      if (executor == null) {
+        throw new IllegalArgumentException("The executor can't be null.");
+      }
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of jobs in flight, i.e. read from the source but not delivered yet.
+     *
+     * @param maxInFlight the maximum number of jobs in flight, must be positive.
+     * @return this builder.
+     */
+    public Builder maxInFlight(int maxInFlight) {
+      if (maxInFlight <= 0) {
+        throw new IllegalArgumentException("The maximum number of jobs must be positive.");
+      }
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /**
+     * Sets whether the results are delivered in the order of the jobs, or as soon as they complete.
+     * The results are ordered by default.
+     *
+     * @param ordered true to deliver the results in the order of the jobs.
+     * @return this builder.
+     */
+    public Builder ordered(boolean ordered) {
+      this.ordered = ordered;
+      return this;
+    }
+
+    /**
+     * Sets the options of the encryptors.
+     *
+     * @param options the encryption options.
+     * @return this builder.
+     */
+    public Builder options(EncryptOptions options) {
+      this.options = options;
+      return this;
+    }
+
+    /**
+     * Builds the batch encryptor, creating its executor. If no executor was configured the jobs run
+     * on virtual threads.
+     *
+     * @return the batch encryptor.
+     */
+    public BatchEncryptor build() {
+      return new BatchEncryptor(this);
+    }
+
+    /**
+     * Sets the executor created by the batch encryptor when it's built, so the builder never owns
+     * any threads.
+     */
+    private Builder owned(Supplier<ExecutorService> executor) {
+      this.executor = null;
+      this.ownedExecutor = executor;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.github.estegp.secure.mail.batch;
+
+import com.github.estegp.secure.mail.mimemultipart.KeyCache;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/** A message to be encrypted by the {@link BatchEncryptor}, together with its recipients. */
+public final class EncryptJob {
+  private final MimeMultipart content;
+  private final MimeMessage message;
+  private final List<byte[]> keys;
+
+  /**
+   * Constructor.
+   *
+   * @param content the multipart message with the data to encrypt.
+   * @param message the message that will contain the data.
+   * @param key the public key / certificate of the recipient.
+   */
+  public EncryptJob(MimeMultipart content, MimeMessage message, byte[] key) {
+    this(content, message, List.of(key));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param content the multipart message with the data to encrypt.
+   * @param message the message that will contain the data.
+   * @param keys the public keys / certificates of the recipients, all of the same type.
+   */
+  public EncryptJob(MimeMultipart content, MimeMessage message, Collection<byte[]> keys) {
+    this.content = content;
+    this.message = message;
+    this.keys = keys.stream().map(byte[]::clone).toList();
+  }
+
+  /**
+   * Gets the multipart message with the data to encrypt.
+   *
+   * @return the data to encrypt.
+   */
+  public MimeMultipart getContent() {
+    return this.content;
+  }
+
+  /**
+   * Gets the message that will contain the data.
+   *
+   * @return the message.
+   */
+  public MimeMessage getMessage() {
+    return this.message;
+  }
+
+  /**
+   * Gets the public keys / certificates of the recipients.
+   *
+   * @return the keys of the recipients.
+   */
+  public List<byte[]> getKeys() {
+    return this.keys.stream().map(byte[]::clone).toList();
+  }
+
+  /**
+   * Gets the keys of the recipients without copying them, for the encryptors of the batch.
+   *
+   * @return the keys of the recipients, not to be modified.
+   */
+  List<byte[]> keys() {
+    return this.keys;
+  }
+
+  /**
+   * Gets the identifier of the set of recipients, the same for the jobs with the same keys.
+   *
+   * @return the content ids of the keys, in order.
+   */
+  String recipientsId() {
+    return this.keys.stream().map(KeyCache::contentId).collect(Collectors.joining(","));
+  }
+}
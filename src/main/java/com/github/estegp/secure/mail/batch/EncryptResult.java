@@ -0,0 +1,73 @@
+package com.github.estegp.secure.mail.batch;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import javax.mail.internet.MimeBodyPart;
+
+/** The result of an {@link EncryptJob}: either the encrypted body part or the error. */
+public final class EncryptResult {
+  private final EncryptJob job;
+  private final long sequence;
+  private final MimeBodyPart part;
+  private final EncryptMailException error;
+
+  /**
+   * Constructor.
+   *
+   * @param job the job that was encrypted.
+   * @param sequence the position of the job in the batch, starting at 0.
+   * @param part the encrypted body part, or null if the job failed.
+   * @param error the error, or null if the job succeeded.
+   */
+  EncryptResult(EncryptJob job, long sequence, MimeBodyPart part, EncryptMailException error) {
+    this.job = job;
+    this.sequence = sequence;
+    this.part = part;
+    this.error = error;
+  }
+
+  /**
+   * Gets the job that was encrypted.
+   *
+   * @return the job.
+   */
+  public EncryptJob getJob() {
+    return this.job;
+  }
+
+  /**
+   * Gets the position of the job in the batch.
+   *
+   * @return the position, starting at 0.
+   */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Whether the job was encrypted.
+   *
+   * @return true if the job succeeded.
+   */
+  public boolean isSuccess() {
+    return this.error == null;
+  }
+
+  /**
+   * Gets the encrypted body part. Once it's sent, its buffers can be given back with {@link
+   * com.github.estegp.secure.mail.mimemultipart.EncryptMail#release}.
+   *
+   * @return the encrypted body part, or null if the job failed.
+   */
+  public MimeBodyPart getPart() {
+    return this.part;
+  }
+
+  /**
+   * Gets the error that made the job fail.
+   *
+   * @return the error, or null if the job succeeded.
+   */
+  public EncryptMailException getError() {
+    return this.error;
+  }
+}
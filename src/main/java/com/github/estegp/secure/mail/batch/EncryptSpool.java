@@ -0,0 +1,703 @@
+package com.github.estegp.secure.mail.batch;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMail;
+import com.github.estegp.secure.mail.mimemultipart.EncryptMailFactory;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.KeyCache;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Spools the messages to be encrypted on the disk, so a burst of messages doesn't have to be held
+ * in memory until it's encrypted. The submitted messages are appended to a log of memory mapped
+ * segments, and encrypted by background workers into segments of encrypted emails, which are
+ * drained by the caller, e.g. to send them. The memory used doesn't depend on the size of the
+ * backlog: the messages are read from the mapped log when they are encrypted, and the encrypted
+ * emails from their segments when they are drained.
+ *
+ * <p>Every record is forced to the disk before it's visible, and a message is only marked as done
+ * once its encrypted email is on the disk. When the spool is opened again, e.g. after a crash, the
+ * records cut by the crash are dropped and the messages not done yet are encrypted again. The
+ * encrypted emails are delivered at least once: a segment is deleted once it's drained, so the
+ * emails of a segment whose drain was interrupted are delivered again.
+ *
+ * <p>A message that can't be encrypted, e.g. for an invalid key, is completed with its error. A
+ * message whose encrypted email can't be written, e.g. on a full disk, is reported to the listener
+ * of the options and tried again; after a few attempts it stays in the log until the spool is
+ * opened again. The spool is thread safe.
+ */
+public final class EncryptSpool implements AutoCloseable {
+  /** The default size of the segments of the log. */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+  /** The number of times a message whose encrypted email can't be written is tried. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /** The session of the spooled messages, they are sent by the caller. */
+  private static final Session SESSION = Session.getInstance(new Properties());
+
+  /** The number of sets of recipients whose encryptors are kept. */
+  private static final int ENCRYPTOR_CACHE_SIZE = 1024;
+
+  private static final String PENDING_PREFIX = "pending-";
+  private static final String ENCRYPTED_PREFIX = "encrypted-";
+  private static final String SUFFIX = ".log";
+
+  private final Path directory;
+  private final EncryptOptions options;
+  private final int segmentSize;
+  private final ExecutorService workers;
+
+  /** The encryptors of the sets of recipients, with the options of the spool. */
+  private final KeyCache<EncryptMail> encryptors =
+      new KeyCache<>(ENCRYPTOR_CACHE_SIZE, KeyCache.DEFAULT_TIME_TO_LIVE);
+
+  private final List<Worker> outputs = new ArrayList<>();
+
+  /** Guards the segments, the cursor of the workers and the state of the records. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition submitted = this.lock.newCondition();
+  private final Condition completed = this.lock.newCondition();
+
+  /** Serializes the writers of the log, so a record is written at a time. */
+  private final ReentrantLock appendLock = new ReentrantLock();
+
+  /** The segments of the log with messages not done yet, by number. */
+  private final TreeMap<Long, SpoolSegment> segments = new TreeMap<>();
+
+  /** The segments of encrypted emails ready to be drained, by number. */
+  private final ConcurrentSkipListMap<Long, ResultSegment> results = new ConcurrentSkipListMap<>();
+
+  /** Serializes the drains. A drain may wait for a worker, a worker never waits for a drain. */
+  private final ReentrantLock drainLock = new ReentrantLock();
+
+  /** The number of the next segment of encrypted emails. */
+  private final AtomicLong nextResult = new AtomicLong();
+
+  /** The messages to be tried again, whose encrypted email couldn't be written. */
+  private final Queue<Claim> retries = new ArrayDeque<>();
+
+  /** The failed attempts of the messages being tried again, by id. */
+  private final Map<Long, Integer> attempts = new HashMap<>();
+
+  private SpoolSegment active;
+  private long nextSegment;
+  private long deferred;
+  private long cursorSegment;
+  private int cursorOffset;
+  private boolean closed;
+
+  /**
+   * Constructor. Opens the segments left by a previous run, and starts the workers.
+   *
+   * @param builder the builder with the configuration.
+   */
+  private EncryptSpool(Builder builder) throws IOException {
+    this.directory = builder.directory;
+    this.options = builder.options;
+    this.segmentSize = builder.segmentSize;
+    Files.createDirectories(this.directory);
+    this.recover();
+
+    this.workers = Executors.newFixedThreadPool(builder.workers);
+    for (int i = 0; i < builder.workers; i++) {
+      Worker worker = new Worker();
+      this.outputs.add(worker);
+      this.workers.execute(worker::run);
+    }
+  }
+
+  /**
+   * Gets a builder to configure the spool.
+   *
+   * @return the builder.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Opens the segments left by a previous run. The messages of the encrypted emails not drained yet
+   * are marked as done, in case the run stopped before marking them.
+   */
+  private void recover() throws IOException {
+    for (Path file : this.list(PENDING_PREFIX)) {
+      long number = number(file, PENDING_PREFIX);
+      this.segments.put(number, SpoolSegment.open(number, file));
+      this.nextSegment = Math.max(this.nextSegment, number + 1);
+    }
+    for (Path file : this.list(ENCRYPTED_PREFIX)) {
+      long number = number(file, ENCRYPTED_PREFIX);
+      ResultSegment segment = ResultSegment.open(number, file);
+      this.results.put(number, segment);
+      this.nextResult.accumulateAndGet(number + 1, Math::max);
+      for (long id : segment.ids()) {
+        // The segments of the undrained emails may be deleted, their numbers can't be given again
+        this.nextSegment = Math.max(this.nextSegment, (id >>> 32) + 1);
+        SpoolSegment pending = this.segments.get(id >>> 32);
+        if (pending != null) {
+          pending.markDone((int) id);
+        }
+      }
+    }
+    for (SpoolSegment segment : new ArrayList<>(this.segments.values())) {
+      this.deleteIfFinished(segment);
+    }
+  }
+
+  private List<Path> list(String prefix) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(this.directory, prefix + "*" + SUFFIX)) {
+      stream.forEach(files::add);
+    }
+    return files;
+  }
+
+  private static long number(Path file, String prefix) {
+    String name = String.valueOf(file.getFileName());
+    return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+  }
+
+  private Path file(String prefix, long number) {
+    return this.directory.resolve(String.format("%s%019d%s", prefix, number, SUFFIX));
+  }
+
+  /**
+   * Submits a message to be encrypted. The message is appended to the log and forced to the disk
+   * before this method returns, so it's encrypted even if the process stops. The content is set as
+   * the content of the message, which is serialized with it.
+   *
+   * @param job the message and its recipients.
+   * @return the id of the message, given back with its encrypted email.
+   */
+  public long submit(EncryptJob job) throws IOException, MessagingException {
+    MimeMessage message = job.getMessage();
+    message.setContent(job.getContent());
+    message.saveChanges();
+    List<byte[]> keys = job.getKeys();
+    SpoolSegment.Payload payload =
+        out -> {
+          DataOutputStream data = new DataOutputStream(out);
+          data.writeInt(keys.size());
+          for (byte[] key : keys) {
+            data.writeInt(key.length);
+            data.write(key);
+          }
+          data.flush();
+          message.writeTo(out);
+        };
+
+    this.appendLock.lock();
+    try {
+      SpoolSegment segment = this.active;
+      int offset = (segment != null) ? segment.write(payload) : -1;
+      if (offset < 0) {
+        // The message doesn't fit in the active segment: a new one is created, big enough
+        segment = this.roll(payload);
+        offset = segment.write(payload);
+        if (offset < 0) {
+          throw new IOException("The message changed while it was spooled.");
+        }
+      }
+      this.lock.lock();
+      try {
+        segment.commit(offset);
+        this.submitted.signal();
+      } finally {
+        this.lock.unlock();
+      }
+      return (segment.getNumber() << 32) | offset;
+    } finally {
+      this.appendLock.unlock();
+    }
+  }
+
+  /**
+   * Seals the active segment and creates the next one, with room for the given record.
+   *
+   * @param payload the record that didn't fit in the active segment.
+   * @return the new active segment.
+   */
+  private SpoolSegment roll(SpoolSegment.Payload payload) throws IOException, MessagingException {
+    CountingOutputStream counter = new CountingOutputStream();
+    payload.writeTo(counter);
+    long size = Math.max(this.segmentSize, counter.count + SpoolSegment.HEADER);
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("The message is too big for the spool.");
+    }
+
+    long number = this.nextSegment++;
+    SpoolSegment segment =
+        SpoolSegment.create(number, this.file(PENDING_PREFIX, number), (int) size);
+    this.lock.lock();
+    try {
+      SpoolSegment previous = this.active;
+      this.segments.put(number, segment);
+      this.active = segment;
+      if (previous != null) {
+        previous.seal();
+        this.deleteIfFinished(previous);
+      }
+    } finally {
+      this.lock.unlock();
+    }
+    return segment;
+  }
+
+  /**
+   * Gives the encrypted emails to the consumer, and deletes them from the spool once it has taken
+   * them. The emails of the messages encrypted so far are drained; the ones being encrypted are
+   * left for the next drain. The workers go on encrypting while the consumer runs.
+   *
+   * @param consumer the consumer of the encrypted emails, called on the calling thread.
+   * @return the number of encrypted emails given to the consumer, including the failed ones.
+   */
+  public long drain(Consumer<SpooledMail> consumer) throws IOException {
+    this.drainLock.lock();
+    try {
+      for (Worker worker : this.outputs) {
+        worker.requestSeal();
+      }
+      long count = 0;
+      for (ResultSegment segment : new ArrayList<>(this.results.values())) {
+        long[] drained = {0};
+        segment.forEach(
+            (id, encrypted, data) -> {
+              consumer.accept(new SpooledMail(id, encrypted, data));
+              drained[0]++;
+            });
+        count += drained[0];
+        this.results.remove(segment.getNumber());
+        segment.close();
+        delete(segment.getFile());
+      }
+      return count;
+    } finally {
+      this.drainLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of messages not encrypted yet, including the ones being encrypted. The messages
+   * whose encrypted email couldn't be written after several attempts aren't counted, they are
+   * encrypted when the spool is opened again.
+   *
+   * @return the number of pending messages.
+   */
+  public long getPendingCount() {
+    this.lock.lock();
+    try {
+      long pending = -this.deferred;
+      for (SpoolSegment segment : this.segments.values()) {
+        pending += segment.getPendingCount();
+      }
+      return pending;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until all the submitted messages are encrypted, or failed.
+   *
+   * @param timeout the maximum time to wait.
+   * @return true if there are no pending messages, false if the time ran out.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public boolean awaitCompletion(Duration timeout) throws InterruptedException {
+    long nanos = timeout.toNanos();
+    this.lock.lock();
+    try {
+      while (this.getPendingCount() > 0) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = this.completed.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the next pending message of the log, waiting until one is submitted.
+   *
+   * @return the segment and the offset of the message, or null if the spool is closed.
+   */
+  private Claim take() throws InterruptedException {
+    this.lock.lock();
+    try {
+      while (!this.closed) {
+        Claim retry = this.retries.poll();
+        if (retry != null) {
+          return retry;
+        }
+        for (SpoolSegment segment : this.segments.tailMap(this.cursorSegment).values()) {
+          if (segment.getNumber() != this.cursorSegment) {
+            this.cursorSegment = segment.getNumber();
+            this.cursorOffset = 0;
+          }
+          while (this.cursorOffset < segment.getEnd()) {
+            int offset = this.cursorOffset;
+            this.cursorOffset = segment.next(offset);
+            if (segment.state(offset) == SpoolSegment.PENDING) {
+              return new Claim(segment, offset);
+            }
+          }
+        }
+        this.submitted.await();
+      }
+      return null;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Marks a message as done, and deletes its segment once all its messages are done.
+   *
+   * @param claim the message.
+   */
+  private void complete(Claim claim) {
+    this.lock.lock();
+    try {
+      this.attempts.remove(claim.id());
+      claim.segment.markDone(claim.offset);
+      this.deleteIfFinished(claim.segment);
+      this.completed.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Tries a message again, once its encrypted email couldn't be written. After the last attempt the
+   * message is deferred: it stays pending in the log, and is encrypted when the spool is opened
+   * again.
+   *
+   * @param claim the message.
+   */
+  private void retry(Claim claim) {
+    this.lock.lock();
+    try {
+      int failures = this.attempts.merge(claim.id(), 1, Integer::sum);
+      if (failures < MAX_ATTEMPTS) {
+        this.retries.add(claim);
+        this.submitted.signal();
+      } else {
+        this.attempts.remove(claim.id());
+        this.deferred++;
+        this.completed.signalAll();
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void deleteIfFinished(SpoolSegment segment) {
+    if (segment.isFinished()) {
+      this.segments.remove(segment.getNumber());
+      delete(segment.getFile());
+    }
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ex) {
+      // The file may still be mapped, try again when the JVM exits
+      file.toFile().deleteOnExit();
+    }
+  }
+
+  /**
+   * Encrypts a spooled message into the whole email to be sent.
+   *
+   * @param payload the record of the message: the keys of the recipients and the message.
+   * @param out the stream where the encrypted email is written.
+   */
+  private void encrypt(ByteBuffer payload, OutputStream out)
+      throws IOException, MessagingException, EncryptMailException {
+    ByteBuffer record = payload.duplicate();
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = record.getInt(); i > 0; i--) {
+      byte[] key = new byte[record.getInt()];
+      record.get(key);
+      keys.add(key);
+    }
+
+    // The message is parsed from the mapped log, its parts are read when they are encrypted
+    MimeMessage message = new MimeMessage(SESSION, SpoolSegment.stream(record));
+    if (!(message.getContent() instanceof MimeMultipart content)) {
+      throw new MessagingException("The spooled message isn't a multipart message.");
+    }
+    this.getEncryptor(keys).writeMultiPart(content, message, out);
+  }
+
+  /**
+   * Gets the encryptor of a set of recipients, created by the first message spooled to them.
+   *
+   * @param keys the keys of the recipients.
+   * @return the encryptor of the recipients.
+   */
+  private EncryptMail getEncryptor(List<byte[]> keys) {
+    String id = keys.stream().map(KeyCache::contentId).collect(Collectors.joining(","));
+    EncryptMail encryptor = this.encryptors.get(id);
+    if (encryptor == null) {
+      // Two workers may create the encryptor at the same time, both are equivalent
+      encryptor = new EncryptMailFactory(keys, this.options).getEncryptor();
+      this.encryptors.put(id, encryptor);
+    }
+    return encryptor;
+  }
+
+  /**
+   * Stops the workers once they finish the messages being encrypted. The messages not encrypted yet
+   * stay in the log, and are encrypted when the spool is opened again.
+   */
+  @Override
+  public void close() throws IOException {
+    this.lock.lock();
+    try {
+      this.closed = true;
+      this.submitted.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+    this.workers.close();
+    this.drainLock.lock();
+    try {
+      for (Worker worker : this.outputs) {
+        worker.requestSeal();
+      }
+      for (ResultSegment segment : this.results.values()) {
+        segment.close();
+      }
+    } finally {
+      this.drainLock.unlock();
+    }
+  }
+
+  /** A pending message taken by a worker. */
+  private record Claim(SpoolSegment segment, int offset) {
+    long id() {
+      return (this.segment.getNumber() << 32) | this.offset;
+    }
+  }
+
+  /**
+   * A worker, which encrypts the pending messages into its own segment of encrypted emails. The
+   * segment is handed over to be drained by the worker itself, between two messages.
+   */
+  private final class Worker {
+    /** Guards the output, held while a message is written. */
+    private final ReentrantLock outputLock = new ReentrantLock();
+
+    private ResultSegment output;
+
+    /** Whether a drain asked for the output while a message was being written. */
+    private volatile boolean sealRequested;
+
+    void run() {
+      try {
+        Claim claim;
+        while ((claim = EncryptSpool.this.take()) != null) {
+          if (this.process(claim)) {
+            EncryptSpool.this.complete(claim);
+          } else {
+            EncryptSpool.this.retry(claim);
+          }
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Encrypts a message into the output of the worker.
+     *
+     * @param claim the message.
+     * @return true if the encrypted email, or the error, was written.
+     */
+    private boolean process(Claim claim) {
+      this.outputLock.lock();
+      try {
+        ResultSegment segment = this.output();
+        try {
+          segment.append(
+              claim.id(),
+              true,
+              out -> EncryptSpool.this.encrypt(claim.segment.payload(claim.offset), out));
+        } catch (EncryptMailException | MessagingException | RuntimeException ex) {
+          String error = ex.toString();
+          segment.append(
+              claim.id(), false, out -> out.write(error.getBytes(StandardCharsets.UTF_8)));
+        }
+        if (this.sealRequested || segment.size() >= EncryptSpool.this.segmentSize) {
+          this.seal();
+        }
+        return true;
+      } catch (IOException | MessagingException | EncryptMailException | RuntimeException ex) {
+        EncryptSpool.this.options.getListener().onError(ex);
+        // The message is tried again in a new segment
+        this.seal();
+        return false;
+      } finally {
+        this.outputLock.unlock();
+      }
+    }
+
+    private ResultSegment output() throws IOException {
+      if (this.output == null) {
+        long number = EncryptSpool.this.nextResult.getAndIncrement();
+        this.output =
+            ResultSegment.create(number, EncryptSpool.this.file(ENCRYPTED_PREFIX, number));
+      }
+      return this.output;
+    }
+
+    /**
+     * Hands the output over to be drained, or asks the worker to do it once it writes the message
+     * it's encrypting.
+     */
+    void requestSeal() {
+      if (this.outputLock.tryLock()) {
+        try {
+          this.seal();
+        } finally {
+          this.outputLock.unlock();
+        }
+      } else {
+        this.sealRequested = true;
+      }
+    }
+
+    /** Hands the output over to be drained, the next message starts a new one. */
+    private void seal() {
+      this.sealRequested = false;
+      if (this.output != null) {
+        EncryptSpool.this.results.put(this.output.getNumber(), this.output);
+        this.output = null;
+      }
+    }
+  }
+
+  /** Counts the size of a record that doesn't fit in the active segment. */
+  private static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      this.count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      this.count += len;
+    }
+  }
+
+  /** Builder of the spool. */
+  public static final class Builder {
+    private Path directory;
+    private EncryptOptions options = EncryptOptions.defaults();
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private Builder() {}
+
+    /**
+     * Sets the directory of the segments, created if it doesn't exist. A directory is used by a
+     * single spool at a time.
+     *
+     * @param directory the directory of the spool.
+     * @return this builder.
+     */
+    public Builder directory(Path directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    /**
+     * Sets the options of the encryptors.
+     *
+     * @param options the encryption options.
+     * @return this builder.
+     */
+    public Builder options(EncryptOptions options) {
+      this.options = options;
+      return this;
+    }
+
+    /**
+     * Sets the number of workers that encrypt the messages, by default one per processor.
+     *
+     * @param workers the number of workers, must be positive.
+     * @return this builder.
+     */
+    public Builder workers(int workers) {
+      if (workers <= 0) {
+        throw new IllegalArgumentException("The number of workers must be positive.");
+      }
+      this.workers = workers;
+      return this;
+    }
+
+    /**
+     * Sets the size of the segments of the log. A bigger message gets a segment of its own.
+     *
+     * @param segmentSize the size of the segments, in bytes, at least 64 KB.
+     * @return this builder.
+     */
+    public Builder segmentSize(int segmentSize) {
+      if (segmentSize < (64 << 10)) {
+        throw new IllegalArgumentException("The size of the segments must be at least 64 KB.");
+      }
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    /**
+     * Builds the spool, opening the segments left in the directory by a previous run.
+     *
+     * @return the spool, with its workers started.
+     */
+    public EncryptSpool build() throws IOException {
+      if (this.directory == null) {
+        throw new IllegalArgumentException("The directory of the spool is needed.");
+      }
+      return new EncryptSpool(this);
+    }
+  }
+}
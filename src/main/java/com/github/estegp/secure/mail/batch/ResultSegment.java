@@ -0,0 +1,266 @@
+package com.github.estegp.secure.mail.batch;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.mail.MessagingException;
+
+/**
+ * A segment of the log of the encrypted messages of the {@link EncryptSpool}, written by a single
+ * worker. A record is its length, the checksum of its payload and the payload: the id of the
+ * message in the pending log, whether it was encrypted, and the encrypted email or the error. The
+ * size of an encrypted email isn't known until it's written, so the records are written through the
+ * file channel instead of a mapped file; the length is written last, once the payload is on disk.
+ *
+ * <p>The segment isn't thread safe.
+ */
+final class ResultSegment implements Closeable {
+  /** The size of the header of a record: length and checksum. */
+  static final int HEADER = 8;
+
+  /** The size of the fixed fields of the payload: id and status. */
+  static final int FIELDS = 9;
+
+  /** The size of the buffer of the payload. */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final long number;
+  private final Path file;
+  private final FileChannel channel;
+  private long end;
+
+  /**
+   * Constructor.
+   *
+   * @param number the number of the segment, the order of the segments in the log.
+   * @param file the file of the segment.
+   * @param channel the channel of the file.
+   * @param end the end of the records.
+   */
+  private ResultSegment(long number, Path file, FileChannel channel, long end) {
+    this.number = number;
+    this.file = file;
+    this.channel = channel;
+    this.end = end;
+  }
+
+  /**
+   * Creates an empty segment.
+   *
+   * @param number the number of the segment.
+   * @param file the file of the segment, which must not exist.
+   * @return the segment.
+   */
+  static ResultSegment create(long number, Path file) throws IOException {
+    return new ResultSegment(
+        number,
+        file,
+        FileChannel.open(
+            file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE),
+        0);
+  }
+
+  /**
+   * Opens a segment written before, e.g. before a restart. A record cut by a crash is truncated.
+   *
+   * @param number the number of the segment.
+   * @param file the file of the segment.
+   * @return the segment.
+   */
+  static ResultSegment open(long number, Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      ResultSegment segment = new ResultSegment(number, file, channel, 0);
+      long offset = 0;
+      while (segment.isRecord(offset)) {
+        offset = segment.next(offset);
+      }
+      if (offset < channel.size()) {
+        channel.truncate(offset);
+        channel.force(true);
+      }
+      segment.end = offset;
+      return segment;
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  private boolean isRecord(long offset) throws IOException {
+    if (offset > this.channel.size() - HEADER) {
+      return false;
+    }
+    ByteBuffer header = this.read(offset, HEADER);
+    int length = header.getInt(0);
+    if (length < FIELDS || length > this.channel.size() - offset - HEADER) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(this.channel.map(FileChannel.MapMode.READ_ONLY, offset + HEADER, length));
+    return (int) crc.getValue() == header.getInt(4);
+  }
+
+  /**
+   * Appends a record at the end of the segment, and forces it to the disk.
+   *
+   * @param id the id of the message in the pending log.
+   * @param encrypted whether the message was encrypted.
+   * @param data writes the encrypted email, or the error.
+   */
+  void append(long id, boolean encrypted, Data data)
+      throws IOException, MessagingException, EncryptMailException {
+    ChannelOutputStream out = new ChannelOutputStream(this.channel, this.end + HEADER);
+    ByteBuffer fields = ByteBuffer.allocate(FIELDS).putLong(id).put((byte) (encrypted ? 1 : 0));
+    out.write(fields.array());
+    data.writeTo(out);
+    out.flush();
+    long length = out.position - this.end - HEADER;
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("The encrypted email is too big for the spool.");
+    }
+
+    // The payload is on disk before the header makes the record visible
+    this.channel.force(true);
+    ByteBuffer header = ByteBuffer.allocate(HEADER).putInt((int) length).putInt(out.crc());
+    this.write(header.flip(), this.end);
+    this.channel.force(true);
+    this.end = out.position;
+  }
+
+  /**
+   * Reads the ids of all the records, to find the messages already encrypted.
+   *
+   * @return the ids of the messages in the pending log.
+   */
+  List<Long> ids() throws IOException {
+    List<Long> ids = new ArrayList<>();
+    for (long offset = 0; offset < this.end; offset = this.next(offset)) {
+      ids.add(this.read(offset + HEADER, Long.BYTES).getLong(0));
+    }
+    return ids;
+  }
+
+  /**
+   * Reads all the records.
+   *
+   * @param records the consumer of the records.
+   */
+  void forEach(RecordConsumer records) throws IOException {
+    for (long offset = 0; offset < this.end; offset = this.next(offset)) {
+      int length = this.read(offset, Integer.BYTES).getInt(0);
+      ByteBuffer payload = this.channel.map(FileChannel.MapMode.READ_ONLY, offset + HEADER, length);
+      records.accept(payload.getLong(0), payload.get(Long.BYTES) == 1, payload.position(FIELDS));
+    }
+  }
+
+  private long next(long offset) throws IOException {
+    return offset + HEADER + this.read(offset, Integer.BYTES).getInt(0);
+  }
+
+  private ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of the segment.");
+      }
+    }
+    return buffer;
+  }
+
+  private void write(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer, offset + buffer.position());
+    }
+  }
+
+  long getNumber() {
+    return this.number;
+  }
+
+  Path getFile() {
+    return this.file;
+  }
+
+  /**
+   * Gets the size of the records of the segment.
+   *
+   * @return the size, in bytes.
+   */
+  long size() {
+    return this.end;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+
+  /** Writes the data of a record, the encrypted email or the error. */
+  @FunctionalInterface
+  interface Data {
+    void writeTo(OutputStream out) throws IOException, MessagingException, EncryptMailException;
+  }
+
+  /** Consumes the records of a segment. */
+  @FunctionalInterface
+  interface RecordConsumer {
+    void accept(long id, boolean encrypted, ByteBuffer data) throws IOException;
+  }
+
+  /** Writes the payload of a record to the channel from a position, computing its checksum. */
+  private static final class ChannelOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long position;
+
+    ChannelOutputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!this.buffer.hasRemaining()) {
+        this.flush();
+      }
+      this.buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int written = 0;
+      while (written < len) {
+        if (!this.buffer.hasRemaining()) {
+          this.flush();
+        }
+        int n = Math.min(len - written, this.buffer.remaining());
+        this.buffer.put(b, off + written, n);
+        written += n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      this.buffer.flip();
+      this.crc.update(this.buffer.duplicate());
+      while (this.buffer.hasRemaining()) {
+        this.position += this.channel.write(this.buffer, this.position);
+      }
+      this.buffer.clear();
+    }
+
+    int crc() {
+      return (int) this.crc.getValue();
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package com.github.estegp.secure.mail.batch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import javax.mail.MessagingException;
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * A segment of the log of the pending messages of the {@link EncryptSpool}: a file of a fixed size,
+ * memory mapped, where the records are appended one after another. A record is its length, the
+ * checksum of its payload, its state and the payload. The length is written last, once the payload
+ * is on disk, so a record cut by a crash has no length and ends the segment; the state is the only
+ * field changed afterwards, when the record is done.
+ *
+ * <p>A record is written by a single thread, past the end of the segment, and committed under the
+ * lock of the spool; the spool reads and completes the committed records under the same lock.
+ */
+final class SpoolSegment {
+  /** The size of the header of a record: length, checksum and state. */
+  static final int HEADER = 12;
+
+  /** The state of a record waiting to be encrypted. */
+  static final int PENDING = 0;
+
+  /** The state of a record already encrypted, or failed. */
+  static final int DONE = 1;
+
+  private final long number;
+  private final Path file;
+  private final MappedByteBuffer map;
+  private int end;
+  private int records;
+  private int done;
+  private boolean sealed;
+
+  /**
+   * Constructor.
+   *
+   * @param number the number of the segment, the order of the segments in the log.
+   * @param file the file of the segment.
+   * @param map the mapped file.
+   */
+  private SpoolSegment(long number, Path file, MappedByteBuffer map) {
+    this.number = number;
+    this.file = file;
+    this.map = map;
+  }
+
+  /**
+   * Creates an empty segment.
+   *
+   * @param number the number of the segment.
+   * @param file the file of the segment, which must not exist.
+   * @param size the size of the segment, the records must fit in it.
+   * @return the segment.
+   */
+  static SpoolSegment create(long number, Path file, int size) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      return new SpoolSegment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+  }
+
+  /**
+   * Opens a segment written before, e.g. before a restart. The segment ends at the first record
+   * without a length or with a wrong checksum; nothing else is appended to it.
+   *
+   * @param number the number of the segment.
+   * @param file the file of the segment.
+   * @return the segment.
+   */
+  static SpoolSegment open(long number, Path file) throws IOException {
+    MappedByteBuffer map;
+    try (FileChannel channel =
+        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+    SpoolSegment segment = new SpoolSegment(number, file, map);
+    int offset = 0;
+    while (segment.isRecord(offset)) {
+      segment.records++;
+      if (segment.state(offset) == DONE) {
+        segment.done++;
+      }
+      offset = segment.next(offset);
+    }
+    segment.end = offset;
+    segment.sealed = true;
+    return segment;
+  }
+
+  private boolean isRecord(int offset) {
+    if (offset > this.map.capacity() - HEADER) {
+      return false;
+    }
+    int length = this.map.getInt(offset);
+    if (length <= 0 || length > this.map.capacity() - offset - HEADER) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(this.map.slice(offset + HEADER, length));
+    return (int) crc.getValue() == this.map.getInt(offset + 4);
+  }
+
+  /**
+   * Writes a record at the end of the segment, and forces it to the disk. The record isn't part of
+   * the segment until it's committed.
+   *
+   * @param payload writes the payload of the record.
+   * @return the offset of the record, or -1 if it doesn't fit in the segment.
+   */
+  int write(Payload payload) throws IOException, MessagingException {
+    int offset = this.end;
+    if (this.sealed || offset > this.map.capacity() - HEADER) {
+      return -1;
+    }
+    MappedOutputStream out = new MappedOutputStream(this.map, offset + HEADER);
+    try {
+      payload.writeTo(out);
+    } catch (Overflow ex) {
+      return -1;
+    }
+    int length = out.position - offset - HEADER;
+    if (length == 0) {
+      throw new IOException("The record is empty.");
+    }
+
+    // The payload is on disk before the length makes the record visible
+    CRC32 crc = new CRC32();
+    crc.update(this.map.slice(offset + HEADER, length));
+    this.map.putInt(offset + 4, (int) crc.getValue());
+    this.map.putInt(offset + 8, PENDING);
+    this.map.force(offset + 4, length + HEADER - 4);
+    this.map.putInt(offset, length);
+    this.map.force(offset, 4);
+    return offset;
+  }
+
+  /**
+   * Commits the record written at the end of the segment.
+   *
+   * @param offset the offset of the record.
+   */
+  void commit(int offset) {
+    this.end = this.next(offset);
+    this.records++;
+  }
+
+  /**
+   * Gets the offset of the record that follows the given one.
+   *
+   * @param offset the offset of a record.
+   * @return the offset of the next record, or the end of the segment.
+   */
+  int next(int offset) {
+    return offset + HEADER + this.map.getInt(offset);
+  }
+
+  /**
+   * Gets the state of a record.
+   *
+   * @param offset the offset of the record.
+   * @return {@link #PENDING} or {@link #DONE}.
+   */
+  int state(int offset) {
+    return this.map.getInt(offset + 8);
+  }
+
+  /**
+   * Gets the payload of a record.
+   *
+   * @param offset the offset of the record.
+   * @return a view of the payload in the mapped file.
+   */
+  ByteBuffer payload(int offset) {
+    return this.map.slice(offset + HEADER, this.map.getInt(offset));
+  }
+
+  /**
+   * Marks a record as done, and forces its state to the disk.
+   *
+   * @param offset the offset of the record.
+   */
+  void markDone(int offset) {
+    if (this.state(offset) != DONE) {
+      this.map.putInt(offset + 8, DONE);
+      this.map.force(offset + 8, 4);
+      this.done++;
+    }
+  }
+
+  /** Seals the segment, nothing else is appended to it. */
+  void seal() {
+    this.sealed = true;
+  }
+
+  /**
+   * Whether the segment is sealed and all its records are done, so it can be deleted.
+   *
+   * @return true if the segment isn't needed anymore.
+   */
+  boolean isFinished() {
+    return this.sealed && this.done == this.records;
+  }
+
+  long getNumber() {
+    return this.number;
+  }
+
+  Path getFile() {
+    return this.file;
+  }
+
+  int getEnd() {
+    return this.end;
+  }
+
+  int getPendingCount() {
+    return this.records - this.done;
+  }
+
+  /**
+   * Gets a stream that reads a buffer, e.g. the payload of a record. The stream is shared: a
+   * message parsed from it reads its parts from the buffer when they are used, instead of copying
+   * them.
+   *
+   * @param buffer the buffer, read from its position to its limit.
+   * @return the stream.
+   */
+  static InputStream stream(ByteBuffer buffer) {
+    return new BufferInputStream(buffer.slice());
+  }
+
+  /** Writes the payload of a record. */
+  @FunctionalInterface
+  interface Payload {
+    void writeTo(OutputStream out) throws IOException, MessagingException;
+  }
+
+  /** The payload doesn't fit in the rest of the segment. */
+  private static final class Overflow extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    Overflow() {
+      super("The record doesn't fit in the segment.");
+    }
+  }
+
+  /** Writes into the mapped file from a position, up to its end. */
+  private static final class MappedOutputStream extends OutputStream {
+    private final MappedByteBuffer map;
+    private int position;
+
+    MappedOutputStream(MappedByteBuffer map, int position) {
+      this.map = map;
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (this.position >= this.map.capacity()) {
+        throw new Overflow();
+      }
+      this.map.put(this.position++, (byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > this.map.capacity() - this.position) {
+        throw new Overflow();
+      }
+      this.map.put(this.position, b, off, len);
+      this.position += len;
+    }
+  }
+
+  /** Reads a buffer, from its start. */
+  private static final class BufferInputStream extends InputStream implements SharedInputStream {
+    private final ByteBuffer buffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public long getPosition() {
+      return this.buffer.position();
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+      int limit = (end < 0) ? this.buffer.limit() : (int) end;
+      return new BufferInputStream(this.buffer.slice((int) start, limit - (int) start));
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+      this.buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+      this.buffer.reset();
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.min(Math.max(n, 0), this.buffer.remaining());
+      this.buffer.position(this.buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int read() {
+      return this.buffer.hasRemaining() ? (this.buffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, this.buffer.remaining());
+      this.buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return this.buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.estegp.secure.mail.batch;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message encrypted by the {@link EncryptSpool}: either the whole encrypted email, ready to be
+ * sent, or the error. The email is read from the log of the spool, so it's only valid while it's
+ * given to the consumer of {@link EncryptSpool#drain}.
+ */
+public final class SpooledMail {
+  private final long id;
+  private final boolean success;
+  private final ByteBuffer data;
+
+  /**
+   * Constructor.
+   *
+   * @param id the id given to the message when it was submitted.
+   * @param success whether the message was encrypted.
+   * @param data the encrypted email, or the error.
+   */
+  SpooledMail(long id, boolean success, ByteBuffer data) {
+    this.id = id;
+    this.success = success;
+    this.data = data;
+  }
+
+  /**
+   * Gets the id given to the message when it was submitted.
+   *
+   * @return the id of the message.
+   */
+  public long getId() {
+    return this.id;
+  }
+
+  /**
+   * Whether the message was encrypted.
+   *
+   * @return true if the message succeeded.
+   */
+  public boolean isSuccess() {
+    return this.success;
+  }
+
+  /**
+   * Gets the size of the encrypted email.
+   *
+   * @return the size in bytes, or 0 if the message failed.
+   */
+  public long getSize() {
+    return this.success ? this.data.remaining() : 0;
+  }
+
+  /**
+   * Gets the encrypted email, with its headers, as it's sent.
+   *
+   * @return the stream of the email, or null if the message failed.
+   */
+  public InputStream getInputStream() {
+    return this.success ? SpoolSegment.stream(this.data) : null;
+  }
+
+  /**
+   * Gets the error that made the message fail.
+   *
+   * @return the error, or null if the message succeeded.
+   */
+  public EncryptMailException getError() {
+    if (this.success) {
+      return null;
+    }
+    byte[] message = new byte[this.data.remaining()];
+    this.data.duplicate().get(message);
+    return new EncryptMailException(new String(message, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,33 @@
+package com.github.estegp.secure.mail.exceptions;
+
+/** Exception implementation for errors during the decryption of emails. */
+public class DecryptMailException extends Exception {
+
+  /**
+   * Constructor Exception for errors during the decryption of emails.
+   *
+   * @param message String message describing the error.
+   */
+  public DecryptMailException(final String message) {
+    super(message);
+  }
+
+  /**
+   * Constructor Exception for errors during the decryption of emails.
+   *
+   * @param cause the cause of the exception.
+   */
+  public DecryptMailException(final Throwable cause) {
+    super(cause);
+  }
+
+  /**
+   * Constructor Exception for errors during the decryption of emails.
+   *
+   * @param message String message describing the error.
+   * @param cause the cause of the exception.
+   */
+  public DecryptMailException(final String message, final Throwable cause) {
+    super(message, cause);
+  }
+}
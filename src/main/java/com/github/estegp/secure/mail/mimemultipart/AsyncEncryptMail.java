@@ -0,0 +1,38 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.util.concurrent.CompletableFuture;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Asynchronous version of {@link EncryptMail}, for callers that can't block, e.g. event loops. The
+ * messages are encrypted on an executor and the returned futures are completed with the encrypted
+ * part or, on failure, with an {@link com.github.estegp.secure.mail.exceptions.EncryptMailException
+ * EncryptMailException}.
+ *
+ * <p>The futures can be cancelled with {@link CompletableFuture#cancel(boolean)}: a message that
+ * hasn't started is never encrypted, and with {@code cancel(true)} the encryption of a running
+ * message is interrupted. The given message is modified by the encryption, so it must not be used
+ * until the future completes.
+ */
+public interface AsyncEncryptMail {
+
+  /**
+   * Encrypts a multipart email asynchronously.
+   *
+   * @param msg the multipart message with the data to encrypt
+   * @param message the message that will contain the data
+   * @return a future completed with a mimebody part with the encrypted data
+   */
+  CompletableFuture<MimeBodyPart> encryptMultiPart(MimeMultipart msg, MimeMessage message);
+
+  /**
+   * Encrypts the mime bodypart of an email asynchronously.
+   *
+   * @param msg the mime multipart with the data to encrypt
+   * @param message the message that will contain the data
+   * @return a future completed with a mimebody part with the encrypted data
+   */
+  CompletableFuture<MimeBodyPart> encryptData(MimeBodyPart msg, MimeMessage message);
+}
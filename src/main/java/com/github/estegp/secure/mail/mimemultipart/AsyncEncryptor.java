@@ -0,0 +1,138 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Runs a blocking encryptor on an executor. By default every message is encrypted on its own
+ * virtual thread, so a huge message doesn't hold back the small ones queued behind it; the 'PGP'
+ * encryption yields its carrier thread regularly while it writes a big message.
+ */
+final class AsyncEncryptor implements AsyncEncryptMail {
+  /** Starts every message on a new virtual thread. */
+  private static final ThreadFactory VIRTUAL_THREADS =
+      Thread.ofVirtual().name("secure-mail-encrypt-", 0).factory();
+
+  /** The default executor, a virtual thread per message. */
+  static final Executor VIRTUAL_THREAD_PER_MESSAGE =
+      command -> VIRTUAL_THREADS.newThread(command).start();
+
+  private final EncryptMail encryptor;
+  private final Executor executor;
+
+  /**
+   * Constructor.
+   *
+   * @param encryptor the blocking encryptor.
+   * @param executor the executor where the messages are encrypted.
+   */
+  AsyncEncryptor(EncryptMail encryptor, Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("The executor can't be null.");
+    }
+    this.encryptor = encryptor;
+    this.executor = executor;
+  }
+
+  @Override
+  public CompletableFuture<MimeBodyPart> encryptMultiPart(MimeMultipart msg, MimeMessage message) {
+    return this.submit(() -> this.encryptor.encryptMultiPart(msg, message));
+  }
+
+  @Override
+  public CompletableFuture<MimeBodyPart> encryptData(MimeBodyPart msg, MimeMessage message) {
+    return this.submit(() -> this.encryptor.encryptData(msg, message));
+  }
+
+  private CompletableFuture<MimeBodyPart> submit(Encryption encryption) {
+    Job job = new Job(encryption);
+    try {
+      this.executor.execute(job);
+    } catch (RejectedExecutionException ex) {
+      job.completeExceptionally(new EncryptMailException(ex));
+    }
+    return job;
+  }
+
+  /** A blocking encryption. */
+  @FunctionalInterface
+  private interface Encryption {
+    MimeBodyPart encrypt() throws EncryptMailException;
+  }
+
+  /**
+   * The future of an encryption, which is also the task run by the executor. Unlike other
+   * completable futures, cancelling it with interruption interrupts the thread running the
+   * encryption, if it has started.
+   */
+  private static final class Job extends CompletableFuture<MimeBodyPart> implements Runnable {
+    private final Object lock = new Object();
+    private final Encryption encryption;
+    private Thread runner;
+
+    Job(Encryption encryption) {
+      this.encryption = encryption;
+    }
+
+    @Override
+    public void run() {
+      if (!this.start()) {
+        // Cancelled before it started
+        return;
+      }
+      try {
+        this.complete(this.encryption.encrypt());
+      } catch (EncryptMailException ex) {
+        this.completeExceptionally(ex);
+      } catch (RuntimeException ex) {
+        // e.g. invalid keys
+        this.completeExceptionally(new EncryptMailException(ex));
+      } finally {
+        this.finish();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled && mayInterruptIfRunning) {
+        synchronized (this.lock) {
+          if (this.runner != null) {
+            this.runner.interrupt();
+          }
+        }
+      }
+      return cancelled;
+    }
+
+    private boolean start() {
+      synchronized (this.lock) {
+        if (this.isDone()) {
+          return false;
+        }
+        this.runner = Thread.currentThread();
+        return true;
+      }
+    }
+
+    private void finish() {
+      synchronized (this.lock) {
+        this.runner = null;
+        if (this.isCancelled()) {
+          // The interruption of a cancelled job mustn't leak to the next task of the thread
+          Thread.interrupted();
+        }
+      }
+      if (!this.isDone()) {
+        // e.g. out of memory, the future is completed anyway or it would never end
+        this.completeExceptionally(new EncryptMailException("The encryption was aborted."));
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import javax.activation.DataSource;
+
+/**
+ * Data source backed by a {@link ChunkedBuffer}. The buffer is closed, giving its chunks back to
+ * the pool, when it's released with {@link EncryptMail#release}, or at the latest when the data
+ * source is no longer referenced, i.e. when the body part that contains it has been discarded.
+ */
+final class BufferDataSource implements DataSource {
+  /** Closes the buffers of the unreachable data sources. */
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private final ChunkedBuffer buffer;
+  private final String contentType;
+  private final String name;
+  private final Cleaner.Cleanable cleanable;
+
+  /**
+   * Constructor.
+   *
+   * @param buffer the buffer with the data, owned by the data source from now on.
+   * @param contentType the content type of the data.
+   * @param name the name of the data.
+   */
+  BufferDataSource(ChunkedBuffer buffer, String contentType, String name) {
+    this.buffer = buffer;
+    this.contentType = contentType;
+    this.name = name;
+    this.cleanable = CLEANER.register(this, new Closer(buffer));
+  }
+
+  /** Closes the buffer right away, the data can't be read anymore. */
+  void release() {
+    this.cleanable.clean();
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return new SourceInputStream(this.buffer.getInputStream(), this);
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    throw new IOException("The encrypted data can't be modified.");
+  }
+
+  @Override
+  public String getContentType() {
+    return this.contentType;
+  }
+
+  @Override
+  public String getName() {
+    return this.name;
+  }
+
+  /** Keeps the data source reachable, so the buffer isn't closed while it's read. */
+  private static final class SourceInputStream extends FilterInputStream {
+    private final BufferDataSource source;
+
+    SourceInputStream(InputStream in, BufferDataSource source) {
+      super(in);
+      this.source = source;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      Reference.reachabilityFence(this.source);
+    }
+  }
+
+  /** Closes the buffer, it can't reference the data source or it would never become unreachable. */
+  private record Closer(ChunkedBuffer buffer) implements Runnable {
+    @Override
+    public void run() {
+      try {
+        this.buffer.close();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+  }
+}
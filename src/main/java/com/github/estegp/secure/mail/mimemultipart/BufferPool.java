@@ -0,0 +1,132 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of the working buffers of the 'PGP' streams, so the encryption of a message doesn't allocate
+ * new buffers. The pool is split in stripes, picked by the id of the thread, so the threads rarely
+ * compete for the same buffers; it works the same with platform and virtual threads. When the
+ * stripe of a thread is empty a new buffer is allocated, and when it's full the returned buffer is
+ * dropped, so the pool never holds more than a few buffers per processor.
+ *
+ * <p>The buffers are cleared when they are returned, as they may hold the plain text of a message.
+ * The pool is thread safe.
+ */
+public final class BufferPool {
+  /** The default size of the buffers. */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+  /** The smallest buffer, the first partial packet of 'PGP' has at least 512 bytes [rfc4880]. */
+  private static final int MIN_BUFFER_SIZE = 512;
+
+  /**
+   * The number of buffers of every stripe, enough for the literal, compressed and encrypted packets
+   * and the buffered streams of a message.
+   */
+  private static final int SLOTS_PER_STRIPE = 8;
+
+  private final int bufferSize;
+  private final int stripeMask;
+  private final AtomicReferenceArray<byte[]> slots;
+
+  private final LongAdder acquired = new LongAdder();
+  private final LongAdder allocated = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  /** Constructor with the default size of the buffers. */
+  public BufferPool() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param bufferSize the size of the buffers, at least 512 bytes. The 'PGP' partial packets are
+   *     sized to the largest power of two that fits in the buffer.
+   */
+  public BufferPool(int bufferSize) {
+    if (bufferSize < MIN_BUFFER_SIZE) {
+      throw new IllegalArgumentException("The size of the buffers must be at least 512 bytes.");
+    }
+    this.bufferSize = bufferSize;
+    int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+    this.stripeMask = stripes - 1;
+    this.slots = new AtomicReferenceArray<>(stripes * SLOTS_PER_STRIPE);
+  }
+
+  /**
+   * Takes a buffer from the pool, or allocates it if the stripe of the thread is empty.
+   *
+   * @return a buffer of the size of the pool.
+   */
+  byte[] acquire() {
+    this.acquired.increment();
+    int first = this.firstSlot();
+    for (int i = 0; i < SLOTS_PER_STRIPE; i++) {
+      byte[] buffer = this.slots.getAndSet(first + i, null);
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    this.allocated.increment();
+    return new byte[this.bufferSize];
+  }
+
+  /**
+   * Gives a buffer back to the pool, or drops it if the stripe of the thread is full.
+   *
+   * @param buffer the buffer, not used anymore.
+   */
+  void release(byte[] buffer) {
+    Arrays.fill(buffer, (byte) 0);
+    int first = this.firstSlot();
+    for (int i = 0; i < SLOTS_PER_STRIPE; i++) {
+      if (this.slots.compareAndSet(first + i, null, buffer)) {
+        return;
+      }
+    }
+    this.dropped.increment();
+  }
+
+  private int firstSlot() {
+    return ((int) Thread.currentThread().threadId() & this.stripeMask) * SLOTS_PER_STRIPE;
+  }
+
+  /**
+   * Gets the size of the buffers.
+   *
+   * @return the size of the buffers, in bytes.
+   */
+  public int getBufferSize() {
+    return this.bufferSize;
+  }
+
+  /**
+   * Gets the number of buffers taken from the pool.
+   *
+   * @return the number of buffers taken, allocated or reused.
+   */
+  public long getAcquireCount() {
+    return this.acquired.sum();
+  }
+
+  /**
+   * Gets the number of buffers allocated because the pool was empty.
+   *
+   * @return the number of allocations.
+   */
+  public long getAllocationCount() {
+    return this.allocated.sum();
+  }
+
+  /**
+   * Gets the number of buffers dropped because the pool was full.
+   *
+   * @return the number of dropped buffers.
+   */
+  public long getDropCount() {
+    return this.dropped.sum();
+  }
+}
@@ -0,0 +1,178 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How the encryptors buffer the encrypted messages: 'PGP' when the streaming mode is disabled, and
+ * 'SMIME' always, as its data is encrypted once, when the message is encrypted. The messages are
+ * kept in a list of chunks, so a growing message is never copied into a bigger array, and no array
+ * is bigger than a chunk.
+ *
+ * <ul>
+ *   <li>{@link #heap()}: chunks on the heap, growing from 4 KB to the chunk size. The default.
+ *   <li>{@link #pooledDirect(int, int)}: direct chunks taken from a bounded pool and given back
+ *       when the encrypted body part is released with {@link EncryptMail#release}, so every message
+ *       in flight reuses the same memory. The chunks of the body parts that aren't released only go
+ *       back once the garbage collector discards them. When the pool is exhausted, the chunks are
+ *       taken from the heap.
+ *   <li>{@link #mapAbove(long)}: the messages bigger than the threshold are moved to a temporary
+ *       file, which is read back memory mapped.
+ * </ul>
+ *
+ * <p>A strategy is thread safe; its pool is shared by all the encryptors that use it.
+ */
+public final class BufferStrategy {
+  /** The default size of the chunks. */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+  /** The size of the first heap chunk, the next ones double up to the chunk size. */
+  private static final int FIRST_HEAP_CHUNK = 1 << 12;
+
+  /** The default strategy. */
+  private static final BufferStrategy HEAP =
+      new BufferStrategy(DEFAULT_CHUNK_SIZE, 0, Long.MAX_VALUE);
+
+  private final int chunkSize;
+  private final int poolSize;
+  private final long mapThreshold;
+
+  /** The idle direct chunks, or null if the chunks aren't pooled. */
+  private final BlockingQueue<ByteBuffer> idle;
+
+  /** The number of direct chunks created, never more than the size of the pool. */
+  private final AtomicInteger created = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param chunkSize the size of the chunks.
+   * @param poolSize the maximum number of direct chunks, 0 to use heap chunks.
+   * @param mapThreshold the size above which a message is moved to a temporary file.
+   */
+  private BufferStrategy(int chunkSize, int poolSize, long mapThreshold) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("The size of the chunks must be positive.");
+    }
+    if (poolSize < 0) {
+      throw new IllegalArgumentException("The size of the pool can't be negative.");
+    }
+    if (mapThreshold < 0) {
+      throw new IllegalArgumentException("The threshold of the mapped files can't be negative.");
+    }
+    this.chunkSize = chunkSize;
+    this.poolSize = poolSize;
+    this.mapThreshold = mapThreshold;
+    this.idle = (poolSize > 0) ? new ArrayBlockingQueue<>(poolSize) : null;
+  }
+
+  /**
+   * Gets the default strategy, with chunks on the heap.
+   *
+   * @return the heap strategy.
+   */
+  public static BufferStrategy heap() {
+    return HEAP;
+  }
+
+  /**
+   * Gets a strategy with pooled direct chunks.
+   *
+   * @param chunkSize the size of the chunks.
+   * @param poolSize the maximum number of direct chunks, shared by all the messages in flight.
+   * @return the pooled strategy.
+   */
+  public static BufferStrategy pooledDirect(int chunkSize, int poolSize) {
+    if (poolSize <= 0) {
+      throw new IllegalArgumentException("The size of the pool must be positive.");
+    }
+    return new BufferStrategy(chunkSize, poolSize, Long.MAX_VALUE);
+  }
+
+  /**
+   * Gets a copy of this strategy that moves the messages bigger than the given size to a memory
+   * mapped temporary file. The copy has its own pool.
+   *
+   * @param threshold the size in bytes above which a message is moved to a file.
+   * @return the new strategy.
+   */
+  public BufferStrategy mapAbove(long threshold) {
+    return new BufferStrategy(this.chunkSize, this.poolSize, threshold);
+  }
+
+  /**
+   * Gets the size of the chunks.
+   *
+   * @return the size of the chunks, in bytes.
+   */
+  public int getChunkSize() {
+    return this.chunkSize;
+  }
+
+  /**
+   * Gets the maximum number of pooled direct chunks.
+   *
+   * @return the size of the pool, 0 if the chunks are on the heap.
+   */
+  public int getPoolSize() {
+    return this.poolSize;
+  }
+
+  /**
+   * Gets the size above which a message is moved to a temporary file.
+   *
+   * @return the threshold in bytes, {@link Long#MAX_VALUE} if the messages are never moved.
+   */
+  public long getMapThreshold() {
+    return this.mapThreshold;
+  }
+
+  /**
+   * Creates an empty buffer.
+   *
+   * @param directory the directory of the temporary files, or null for the default one.
+   * @return the buffer.
+   */
+  ChunkedBuffer newBuffer(Path directory) throws IOException {
+    return new ChunkedBuffer(this, directory);
+  }
+
+  /**
+   * Takes a chunk from the pool, or allocates it.
+   *
+   * @param index the position of the chunk in its buffer.
+   * @return an empty chunk.
+   */
+  ByteBuffer acquire(int index) {
+    if (this.idle == null) {
+      return ByteBuffer.allocate(Math.min(this.chunkSize, FIRST_HEAP_CHUNK << Math.min(index, 16)));
+    }
+    ByteBuffer chunk = this.idle.poll();
+    if (chunk != null) {
+      return chunk;
+    }
+    if (this.created.getAndIncrement() < this.poolSize) {
+      return ByteBuffer.allocateDirect(this.chunkSize);
+    }
+    this.created.decrementAndGet();
+    return ByteBuffer.allocate(this.chunkSize);
+  }
+
+  /**
+   * Gives a chunk back to the pool. The heap chunks are left to the garbage collector.
+   *
+   * @param chunk the chunk, not used anymore.
+   */
+  void release(ByteBuffer chunk) {
+    if (this.idle != null && chunk.isDirect()) {
+      chunk.clear();
+      if (!this.idle.offer(chunk)) {
+        this.created.decrementAndGet();
+      }
+    }
+  }
+}
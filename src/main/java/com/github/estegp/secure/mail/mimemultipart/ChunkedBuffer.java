@@ -0,0 +1,283 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffer of a message, kept in chunks given by a {@link BufferStrategy}. Once the message is bigger
+ * than the threshold of the strategy, it's moved to a temporary file and read back memory mapped.
+ * Closing the buffer gives the chunks back to the pool and deletes the file. A buffer isn't thread
+ * safe, it's written and then read by a single message.
+ */
+final class ChunkedBuffer implements Closeable {
+  /** The size of the mapped regions of the file. */
+  private static final long MAX_MAPPED_REGION = 1L << 30;
+
+  /** The size of the array used to copy the direct chunks to a stream. */
+  private static final int TRANSFER_SIZE = 1 << 13;
+
+  private final BufferStrategy strategy;
+  private final Path directory;
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private final OutputStream output = new Output();
+  private ByteBuffer current;
+  private long size;
+  private Path file;
+  private FileChannel channel;
+  private boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param strategy the strategy that gives the chunks.
+   * @param directory the directory of the temporary file, or null for the default one.
+   */
+  ChunkedBuffer(BufferStrategy strategy, Path directory) {
+    this.strategy = strategy;
+    this.directory = directory;
+  }
+
+  /**
+   * Gets the stream that writes into the buffer. Closing the stream doesn't close the buffer.
+   *
+   * @return the output stream.
+   */
+  OutputStream getOutputStream() {
+    return this.output;
+  }
+
+  /**
+   * Gets the number of bytes written.
+   *
+   * @return the size of the data.
+   */
+  long size() {
+    return this.size;
+  }
+
+  /**
+   * Writes the data of the buffer to the given stream. The heap chunks are written without copying
+   * them.
+   *
+   * @param out the stream where the data is written.
+   */
+  void writeTo(OutputStream out) throws IOException {
+    if (this.closed) {
+      throw new IOException("The buffer is closed.");
+    }
+    if (this.channel != null) {
+      try (InputStream in = this.getInputStream()) {
+        in.transferTo(out);
+      }
+      return;
+    }
+
+    byte[] transfer = null;
+    for (ByteBuffer chunk : this.chunks) {
+      ByteBuffer data = chunk.duplicate().flip();
+      if (data.hasArray()) {
+        out.write(data.array(), data.arrayOffset(), data.limit());
+        continue;
+      }
+      if (transfer == null) {
+        transfer = new byte[TRANSFER_SIZE];
+      }
+      while (data.hasRemaining()) {
+        int length = Math.min(data.remaining(), transfer.length);
+        data.get(transfer, 0, length);
+        out.write(transfer, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Gets a stream that reads the data of the buffer. The stream is only valid while the buffer is
+   * open.
+   *
+   * @return the input stream.
+   */
+  InputStream getInputStream() throws IOException {
+    if (this.closed) {
+      throw new IOException("The buffer is closed.");
+    }
+    List<ByteBuffer> data = new ArrayList<>();
+    if (this.channel != null) {
+      this.drain();
+      for (long position = 0; position < this.size; position += MAX_MAPPED_REGION) {
+        long length = Math.min(MAX_MAPPED_REGION, this.size - position);
+        data.add(this.channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+      }
+    } else {
+      for (ByteBuffer chunk : this.chunks) {
+        data.add(chunk.duplicate().flip());
+      }
+    }
+    return new ChunksInputStream(data);
+  }
+
+  /** Gives the chunks back to the pool and deletes the temporary file. */
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    for (ByteBuffer chunk : this.chunks) {
+      this.strategy.release(chunk);
+    }
+    this.chunks.clear();
+    this.current = null;
+    if (this.channel != null) {
+      this.channel.close();
+      try {
+        Files.deleteIfExists(this.file);
+      } catch (IOException ex) {
+        // The file may still be mapped, try again when the JVM exits
+        this.file.toFile().deleteOnExit();
+      }
+    }
+  }
+
+  private void write(int b) throws IOException {
+    boolean staged = this.channel != null || this.size < this.strategy.getMapThreshold();
+    if (!this.closed && staged && this.current != null && this.current.hasRemaining()) {
+      this.current.put((byte) b);
+      this.size++;
+    } else {
+      this.write(new byte[] {(byte) b}, 0, 1);
+    }
+  }
+
+  private void write(byte[] b, int off, int len) throws IOException {
+    if (this.closed) {
+      throw new IOException("The buffer is closed.");
+    }
+    if (this.channel == null && this.size + len > this.strategy.getMapThreshold()) {
+      this.spill();
+    }
+
+    int written = 0;
+    while (written < len) {
+      if (this.current == null || !this.current.hasRemaining()) {
+        this.next();
+      }
+      int length = Math.min(this.current.remaining(), len - written);
+      this.current.put(b, off + written, length);
+      written += length;
+    }
+    this.size += len;
+  }
+
+  /** Makes room for more data: a new chunk in memory, or the same chunk once it's in the file. */
+  private void next() throws IOException {
+    if (this.channel != null) {
+      this.drain();
+    } else {
+      this.current = this.strategy.acquire(this.chunks.size());
+      this.chunks.add(this.current);
+    }
+  }
+
+  /** Moves the data to a temporary file; the first chunk is kept to stage the next writes. */
+  private void spill() throws IOException {
+    this.file =
+        (this.directory != null)
+            ? Files.createTempFile(this.directory, "secure-mail", ".tmp")
+            : Files.createTempFile("secure-mail", ".tmp");
+    this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    for (ByteBuffer chunk : this.chunks) {
+      ByteBuffer data = chunk.duplicate().flip();
+      while (data.hasRemaining()) {
+        this.channel.write(data);
+      }
+    }
+
+    if (this.chunks.isEmpty()) {
+      this.chunks.add(this.strategy.acquire(0));
+    }
+    for (ByteBuffer chunk : this.chunks.subList(1, this.chunks.size())) {
+      this.strategy.release(chunk);
+    }
+    this.chunks.subList(1, this.chunks.size()).clear();
+    this.current = this.chunks.get(0).clear();
+  }
+
+  /** Writes the staged data to the temporary file. */
+  private void drain() throws IOException {
+    this.current.flip();
+    while (this.current.hasRemaining()) {
+      this.channel.write(this.current);
+    }
+    this.current.clear();
+  }
+
+  /** Writes into the buffer. */
+  private final class Output extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      ChunkedBuffer.this.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ChunkedBuffer.this.write(b, off, len);
+    }
+  }
+
+  /** Reads a list of byte buffers. */
+  private static final class ChunksInputStream extends InputStream {
+    private final List<ByteBuffer> data;
+    private int index;
+
+    ChunksInputStream(List<ByteBuffer> data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      ByteBuffer chunk = this.chunk();
+      return (chunk != null) ? chunk.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      ByteBuffer chunk = this.chunk();
+      if (chunk == null) {
+        return -1;
+      }
+      int length = Math.min(len, chunk.remaining());
+      chunk.get(b, off, length);
+      return length;
+    }
+
+    @Override
+    public int available() {
+      ByteBuffer chunk = this.chunk();
+      return (chunk != null) ? chunk.remaining() : 0;
+    }
+
+    /** Gets the chunk being read, or null at the end of the data. */
+    private ByteBuffer chunk() {
+      while (this.index < this.data.size()) {
+        ByteBuffer chunk = this.data.get(this.index);
+        if (chunk.hasRemaining()) {
+          return chunk;
+        }
+        this.index++;
+      }
+      return null;
+    }
+  }
+}
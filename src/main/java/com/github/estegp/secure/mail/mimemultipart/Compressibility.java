@@ -0,0 +1,142 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+
+/**
+ * Guesses whether compressing a message is worth it, for the adaptive compression. The text parts
+ * are always compressible, and they are usually small next to the binary parts, so the message is
+ * compressed unless all its binary parts are already compressed. A binary part is compressed if its
+ * content type says so (e.g. 'JPEG' or 'PDF') or, for the other types, if the first block of its
+ * content doesn't shrink with a fast deflate.
+ */
+final class Compressibility {
+  /** The size of the block of content sampled for the unknown types. */
+  static final int SAMPLE_SIZE = 1 << 13;
+
+  /** The sample must shrink at least to this ratio for the part to be compressible. */
+  private static final double MAX_RATIO = 0.9;
+
+  /** The content types whose data is already compressed. */
+  private static final List<String> COMPRESSED_TYPES =
+      List.of(
+          "image/jpeg",
+          "image/png",
+          "image/gif",
+          "image/webp",
+          "image/heic",
+          "image/avif",
+          "audio/*",
+          "video/*",
+          "application/pdf",
+          "application/zip",
+          "application/gzip",
+          "application/x-gzip",
+          "application/x-bzip2",
+          "application/x-xz",
+          "application/zstd",
+          "application/x-7z-compressed",
+          "application/x-rar-compressed",
+          "application/vnd.rar",
+          "application/epub+zip",
+          "application/java-archive");
+
+  /** The prefixes of the office documents, which are zip files. */
+  private static final List<String> COMPRESSED_PREFIXES =
+      List.of(
+          "application/vnd.openxmlformats-officedocument.", "application/vnd.oasis.opendocument.");
+
+  private Compressibility() {}
+
+  /**
+   * Checks whether the given message is worth compressing.
+   *
+   * @param message the message, or any part of it.
+   * @return false if all the binary parts of the message are already compressed.
+   */
+  static boolean isCompressible(Part message) throws MessagingException, IOException {
+    return check(message) != Verdict.INCOMPRESSIBLE;
+  }
+
+  private static Verdict check(Part part) throws MessagingException, IOException {
+    // The headers of the parts built in memory aren't set until the message is saved, so the type
+    // is taken from the data handler
+    ContentType type = new ContentType(part.getDataHandler().getContentType());
+
+    if (type.match("multipart/*")) {
+      Multipart multipart = (Multipart) part.getContent();
+      Verdict verdict = Verdict.TEXT_ONLY;
+      for (int i = 0; i < multipart.getCount(); i++) {
+        Verdict child = check(multipart.getBodyPart(i));
+        if (child == Verdict.COMPRESSIBLE) {
+          return child;
+        }
+        if (child == Verdict.INCOMPRESSIBLE) {
+          verdict = child;
+        }
+      }
+      return verdict;
+    }
+    if (type.match("text/*") || type.match("message/*")) {
+      return Verdict.TEXT_ONLY;
+    }
+    return isCompressedType(type) || !sampleShrinks(part)
+        ? Verdict.INCOMPRESSIBLE
+        : Verdict.COMPRESSIBLE;
+  }
+
+  private static boolean isCompressedType(ContentType type) {
+    for (String compressed : COMPRESSED_TYPES) {
+      if (type.match(compressed)) {
+        return true;
+      }
+    }
+    String baseType = type.getBaseType();
+    for (String prefix : COMPRESSED_PREFIXES) {
+      if (baseType.regionMatches(true, 0, prefix, 0, prefix.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean sampleShrinks(Part part) throws MessagingException, IOException {
+    byte[] sample;
+    try (InputStream in = part.getInputStream()) {
+      sample = in.readNBytes(SAMPLE_SIZE);
+    }
+    if (sample.length == 0) {
+      return false;
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    try {
+      deflater.setInput(sample);
+      deflater.finish();
+      byte[] buffer = new byte[sample.length];
+      int compressed = 0;
+      while (!deflater.finished() && compressed < sample.length) {
+        compressed += deflater.deflate(buffer);
+      }
+      return compressed < sample.length * MAX_RATIO;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** The result of checking a part. */
+  private enum Verdict {
+    /** Only text parts, compressible. */
+    TEXT_ONLY,
+    /** At least one compressible binary part. */
+    COMPRESSIBLE,
+    /** Binary parts, all of them already compressed. */
+    INCOMPRESSIBLE
+  }
+}
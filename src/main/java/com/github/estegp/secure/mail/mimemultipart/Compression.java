@@ -0,0 +1,30 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+
+/** The compression algorithms of the 'PGP' encrypted data [rfc4880]. */
+public enum Compression {
+  /** The data isn't compressed. */
+  NONE(PGPCompressedData.UNCOMPRESSED),
+  /** Raw deflate [rfc1951], the default. */
+  ZIP(PGPCompressedData.ZIP),
+  /** Deflate with the zlib header and checksum [rfc1950]. */
+  ZLIB(PGPCompressedData.ZLIB),
+  /** BZip2, usually smaller but much slower than deflate. It doesn't use the compression level. */
+  BZIP2(PGPCompressedData.BZIP2);
+
+  private final int algorithm;
+
+  Compression(int algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Gets the 'PGP' identifier of the algorithm.
+   *
+   * @return the identifier of the algorithm.
+   */
+  int getAlgorithm() {
+    return this.algorithm;
+  }
+}
@@ -0,0 +1,93 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the compression of the 'PGP' encrypted messages, per compression algorithm. The
+ * messages whose compression was skipped by the adaptive mode are counted as {@link
+ * Compression#NONE}. The statistics are thread safe. The encryptors that don't set their own
+ * statistics share the ones of {@link EncryptOptions#defaults()}.
+ */
+public final class CompressionStats {
+  private final Map<Compression, Counters> counters = new EnumMap<>(Compression.class);
+
+  /** Constructor. */
+  public CompressionStats() {
+    for (Compression compression : Compression.values()) {
+      this.counters.put(compression, new Counters());
+    }
+  }
+
+  /**
+   * Records a compressed message.
+   *
+   * @param compression the algorithm used to compress the message.
+   * @param bytesIn the size of the data before the compression.
+   * @param bytesOut the size of the data after the compression.
+   */
+  void record(Compression compression, long bytesIn, long bytesOut) {
+    Counters counter = this.counters.get(compression);
+    counter.messages.increment();
+    counter.bytesIn.add(bytesIn);
+    counter.bytesOut.add(bytesOut);
+  }
+
+  /**
+   * Gets the number of messages compressed with the given algorithm.
+   *
+   * @param compression the compression algorithm.
+   * @return the number of messages.
+   */
+  public long getMessageCount(Compression compression) {
+    return this.counters.get(compression).messages.sum();
+  }
+
+  /**
+   * Gets the number of bytes given to the given algorithm.
+   *
+   * @param compression the compression algorithm.
+   * @return the size of the data before the compression.
+   */
+  public long getBytesIn(Compression compression) {
+    return this.counters.get(compression).bytesIn.sum();
+  }
+
+  /**
+   * Gets the number of bytes written by the given algorithm.
+   *
+   * @param compression the compression algorithm.
+   * @return the size of the data after the compression.
+   */
+  public long getBytesOut(Compression compression) {
+    return this.counters.get(compression).bytesOut.sum();
+  }
+
+  /**
+   * Gets the number of bytes saved by the given algorithm. It's negative when the algorithm made
+   * the data bigger, e.g. when the data was already compressed.
+   *
+   * @param compression the compression algorithm.
+   * @return the number of bytes saved.
+   */
+  public long getBytesSaved(Compression compression) {
+    return this.getBytesIn(compression) - this.getBytesOut(compression);
+  }
+
+  /** Resets all the statistics. */
+  public void reset() {
+    for (Counters counter : this.counters.values()) {
+      counter.messages.reset();
+      counter.bytesIn.reset();
+      counter.bytesOut.reset();
+    }
+  }
+
+  /** The counters of a single algorithm. */
+  private static final class Counters {
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+  }
+}
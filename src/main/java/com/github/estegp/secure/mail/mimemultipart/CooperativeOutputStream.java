@@ -0,0 +1,64 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that lets the encryption of a big message be cancelled and share the CPU with other
+ * messages. The data is written in slices; before every slice the stream fails if the thread was
+ * interrupted, e.g. because the encryption was cancelled. On a virtual thread it also yields the
+ * carrier thread after every slice, so the virtual threads encrypting small messages aren't stuck
+ * behind it.
+ */
+final class CooperativeOutputStream extends FilterOutputStream {
+  /** The size of the slices written between the checks. */
+  static final int SLICE_SIZE = 1 << 20;
+
+  private final boolean virtual;
+  private long sinceYield;
+
+  /**
+   * Constructor.
+   *
+   * @param out the wrapped stream, not closed by this stream.
+   */
+  CooperativeOutputStream(OutputStream out) {
+    super(out);
+    this.virtual = Thread.currentThread().isVirtual();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    this.out.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int written = 0;
+    while (written < len) {
+      this.checkpoint();
+      int slice = Math.min(SLICE_SIZE, len - written);
+      this.out.write(b, off + written, slice);
+      this.sinceYield += slice;
+      written += slice;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The wrapped stream is closed by its owner
+    this.flush();
+  }
+
+  private void checkpoint() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("The encryption was interrupted.");
+    }
+    if (this.virtual && this.sinceYield >= SLICE_SIZE) {
+      this.sinceYield = 0;
+      Thread.yield();
+    }
+  }
+}
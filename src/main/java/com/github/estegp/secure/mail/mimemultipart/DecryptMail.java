@@ -0,0 +1,31 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import com.github.estegp.secure.mail.exceptions.DecryptMailException;
+import java.io.InputStream;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+
+/**
+ * This class generalizes the decryption of email, the counterpart of {@link EncryptMail}. The
+ * encrypted data is decrypted as a stream; in streaming mode the decrypted message is written to a
+ * temporary file and its parts are read from the file when they are used.
+ */
+public interface DecryptMail {
+
+  /**
+   * This method decrypts an email, or the body part built by {@link EncryptMail}.
+   *
+   * @param encrypted the received email, or the encrypted body part.
+   * @return the decrypted message.
+   */
+  MimeMessage decrypt(MimePart encrypted) throws DecryptMailException;
+
+  /**
+   * This method decrypts a raw email, as received from the mail server. In streaming mode the email
+   * is written to a temporary file first, so the encrypted data isn't kept in memory.
+   *
+   * @param message the raw email.
+   * @return the decrypted message.
+   */
+  MimeMessage decrypt(InputStream message) throws DecryptMailException;
+}
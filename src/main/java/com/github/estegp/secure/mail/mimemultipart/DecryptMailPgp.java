@@ -0,0 +1,374 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import com.github.estegp.secure.mail.exceptions.DecryptMailException;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPOnePassSignature;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+
+/**
+ * This class implements the decryption of emails with the 'PGP' format defined in rfc3156, i.e. the
+ * emails built by {@link EncryptMailPgp}. The secret key rings are parsed once, and every private
+ * key is decrypted the first time it's needed and cached by {@link KeyLoadManager}. The instances
+ * are thread safe.
+ *
+ * <p>The one-pass signature of a signed message is verified with the public key ring of the signer,
+ * if it's given: the messages that aren't signed by the signer are then rejected. Without it, the
+ * signature is ignored and the message is decrypted as if it wasn't signed.
+ */
+public final class DecryptMailPgp implements DecryptMail {
+  private final byte[] secretKeyRing;
+  private final char[] passphrase;
+  private final byte[] signerKeyRing;
+  private final EncryptOptions options;
+
+  /** The parsed secret key rings, parsed on the first message. */
+  private volatile PGPSecretKeyRingCollection secretKeys;
+
+  /** The parsed public key rings of the signer, parsed on the first signed message. */
+  private volatile PGPPublicKeyRingCollection signerKeys;
+
+  /**
+   * Constructor.
+   *
+   * @param secretKeyRing the armored or binary secret key rings of the recipient.
+   * @param passphrase the passphrase of the secret keys.
+   */
+  public DecryptMailPgp(byte[] secretKeyRing, char[] passphrase) {
+    this(secretKeyRing, passphrase, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor. The decryption uses the streaming mode, the temporary directory, the provider and
+   * the listener of the options.
+   *
+   * @param secretKeyRing the armored or binary secret key rings of the recipient.
+   * @param passphrase the passphrase of the secret keys.
+   * @param options the options.
+   */
+  public DecryptMailPgp(byte[] secretKeyRing, char[] passphrase, EncryptOptions options) {
+    this(secretKeyRing, passphrase, null, options);
+  }
+
+  /**
+   * Constructor. The messages must be signed by the signer, their one-pass signature is verified
+   * while they are decrypted.
+   *
+   * @param secretKeyRing the armored or binary secret key rings of the recipient.
+   * @param passphrase the passphrase of the secret keys.
+   * @param signerKeyRing the armored or binary public key rings of the signer, or null to ignore
+   *     the signatures.
+   * @param options the options.
+   */
+  public DecryptMailPgp(
+      byte[] secretKeyRing, char[] passphrase, byte[] signerKeyRing, EncryptOptions options) {
+    if (secretKeyRing == null || passphrase == null) {
+      throw new IllegalArgumentException("The secret key and its passphrase can't be null.");
+    }
+    this.secretKeyRing = secretKeyRing.clone();
+    this.passphrase = passphrase.clone();
+    this.signerKeyRing = (signerKeyRing != null) ? signerKeyRing.clone() : null;
+    this.options = options;
+  }
+
+  @Override
+  public MimeMessage decrypt(MimePart encrypted) throws DecryptMailException {
+    try {
+      // The content type of a built body part is only set when it's sent, so the type of the
+      // multipart is checked instead
+      Object content = encrypted.getContent();
+      if (!(content instanceof MimeMultipart multipart)
+          || !new ContentType(multipart.getContentType()).match("multipart/encrypted")) {
+        DecryptMailException ex =
+            new DecryptMailException("The message isn't a PGP/MIME encrypted message.");
+        this.options.getListener().onError(ex);
+        throw ex;
+      }
+
+      // The second part has the encrypted data [rfc3156], it's decoded while it's read
+      try (InputStream in = multipart.getBodyPart(1).getInputStream()) {
+        return this.decryptData(PGPUtil.getDecoderStream(in));
+      }
+
+    } catch (IOException | PGPException | MessagingException ex) {
+      this.options.getListener().onError(ex);
+      throw new DecryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
+    }
+  }
+
+  @Override
+  public MimeMessage decrypt(InputStream message) throws DecryptMailException {
+    MimeMessage received;
+    try {
+      received = MessageSpool.read(message, this.options);
+    } catch (IOException | MessagingException ex) {
+      this.options.getListener().onError(ex);
+      throw new DecryptMailException(ex);
+    }
+
+    // The received email is deleted either way, a failure to delete it doesn't hide the error
+    MimeMessage decrypted;
+    try {
+      decrypted = this.decrypt(received);
+    } catch (DecryptMailException | RuntimeException ex) {
+      MessageSpool.discard(received, ex);
+      throw ex;
+    }
+    try {
+      discard(received);
+    } catch (DecryptMailException ex) {
+      MessageSpool.discard(decrypted, ex);
+      throw ex;
+    }
+    return decrypted;
+  }
+
+  /**
+   * Decrypts the 'PGP' data with the first private key the session key was encrypted for.
+   *
+   * @param data the binary encrypted data.
+   * @return the decrypted message.
+   */
+  private MimeMessage decryptData(InputStream data)
+      throws IOException, PGPException, MessagingException {
+    JcaPGPObjectFactory factory = new JcaPGPObjectFactory(data);
+    Object object = factory.nextObject();
+    // The encrypted data may be preceded by a marker packet
+    if (!(object instanceof PGPEncryptedDataList)) {
+      object = factory.nextObject();
+    }
+    if (!(object instanceof PGPEncryptedDataList encList)) {
+      throw new PGPException("The data isn't encrypted with PGP.");
+    }
+
+    for (PGPEncryptedData encData : encList) {
+      if (encData instanceof PGPPublicKeyEncryptedData pked) {
+        PGPPrivateKey key = this.findPrivateKey(pked.getKeyIdentifier().getKeyId());
+        if (key != null) {
+          return this.decryptData(pked, key);
+        }
+      }
+    }
+    throw new PGPException("The message isn't encrypted for the secret key.");
+  }
+
+  /**
+   * Decrypts the data encrypted for the given key, through the decryption, decompression and
+   * literal streams. The integrity of the data and the signature are checked once the whole message
+   * has been read; the data without integrity protection is rejected, unless the options accept it.
+   *
+   * @param pked the data encrypted for the key.
+   * @param key the private key.
+   * @return the decrypted message.
+   */
+  private MimeMessage decryptData(PGPPublicKeyEncryptedData pked, PGPPrivateKey key)
+      throws IOException, PGPException, MessagingException {
+    if (!pked.isIntegrityProtected() && !this.options.isAcceptUnprotected()) {
+      throw new PGPException("The encrypted data has no integrity protection.");
+    }
+    JcePublicKeyDataDecryptorFactoryBuilder builder = new JcePublicKeyDataDecryptorFactoryBuilder();
+    if (this.options.getSecurityProvider() != null) {
+      builder.setProvider(this.options.getSecurityProvider());
+    }
+
+    try (InputStream clear = pked.getDataStream(builder.build(key))) {
+      JcaPGPObjectFactory plainFactory = new JcaPGPObjectFactory(clear);
+      Object message = plainFactory.nextObject();
+      if (message instanceof PGPCompressedData compressed) {
+        plainFactory = new JcaPGPObjectFactory(compressed.getDataStream());
+        message = plainFactory.nextObject();
+      }
+      // The one-pass signature of a signed message precedes the literal data
+      PGPOnePassSignature onePass = null;
+      if (message instanceof PGPOnePassSignatureList signatures) {
+        onePass = signatures.get(0);
+        message = plainFactory.nextObject();
+      }
+      if (!(message instanceof PGPLiteralData literal)) {
+        throw new PGPException("The encrypted data has no message.");
+      }
+      onePass = (this.signerKeyRing != null) ? this.initVerification(onePass) : null;
+
+      MimeMessage decrypted = null;
+      try {
+        try (InputStream in =
+            (onePass != null)
+                ? new VerifyingInputStream(literal.getInputStream(), onePass)
+                : literal.getInputStream()) {
+          decrypted = MessageSpool.read(in, this.options);
+          // The signature is computed over the whole literal data
+          in.transferTo(OutputStream.nullOutputStream());
+        }
+
+        // The signature follows the literal data
+        if (onePass != null
+            && (!(plainFactory.nextObject() instanceof PGPSignatureList signatures)
+                || signatures.isEmpty()
+                || !onePass.verify(signatures.get(0)))) {
+          throw new PGPException("The signature of the message isn't valid.");
+        }
+
+        // The integrity check is computed over the whole data, with the signature
+        clear.transferTo(OutputStream.nullOutputStream());
+        if (pked.isIntegrityProtected() && !pked.verify()) {
+          throw new PGPException("The integrity check of the message failed.");
+        }
+        return decrypted;
+      } catch (IOException | PGPException | MessagingException | RuntimeException ex) {
+        // The message isn't returned, e.g. the data was truncated or modified
+        MessageSpool.discard(decrypted, ex);
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Prepares the verification of the one-pass signature with the key of the signer.
+   *
+   * @param onePass the one-pass signature of the message, or null if it isn't signed.
+   * @return the one-pass signature, ready to be updated with the literal data.
+   */
+  private PGPOnePassSignature initVerification(PGPOnePassSignature onePass)
+      throws IOException, PGPException {
+    if (onePass == null) {
+      throw new PGPException("The message isn't signed.");
+    }
+    PGPPublicKey key = this.getSignerKeys().getPublicKey(onePass.getKeyID());
+    if (key == null) {
+      throw new PGPException("The message isn't signed by the signer.");
+    }
+    JcaPGPContentVerifierBuilderProvider verifier = new JcaPGPContentVerifierBuilderProvider();
+    if (this.options.getSecurityProvider() != null) {
+      verifier.setProvider(this.options.getSecurityProvider());
+    }
+    onePass.init(verifier, key);
+    return onePass;
+  }
+
+  /**
+   * Finds and decrypts the private key with the given id.
+   *
+   * @param keyId the id of the key.
+   * @return the private key, or null if the secret key rings don't have it.
+   */
+  private PGPPrivateKey findPrivateKey(long keyId) throws IOException, PGPException {
+    PGPSecretKey secret = this.getSecretKeys().getSecretKey(keyId);
+    return (secret != null)
+        ? KeyLoadManager.INSTANCE.loadPgpPrivateKey(
+            secret, this.passphrase, this.options.getSecurityProvider(), this.options.getListener())
+        : null;
+  }
+
+  /**
+   * Gets the secret key rings, parsing them on the first call.
+   *
+   * @return the secret key rings.
+   */
+  private PGPSecretKeyRingCollection getSecretKeys() throws IOException, PGPException {
+    PGPSecretKeyRingCollection parsed = this.secretKeys;
+    if (parsed == null) {
+      final long start = System.nanoTime();
+      parsed =
+          new PGPSecretKeyRingCollection(
+              PGPUtil.getDecoderStream(new ByteArrayInputStream(this.secretKeyRing)),
+              new JcaKeyFingerprintCalculator());
+      this.secretKeys = parsed;
+      this.options.getListener().onStage(Stage.KEY_LOAD, System.nanoTime() - start);
+    }
+    return parsed;
+  }
+
+  /**
+   * Gets the public key rings of the signer, parsing them on the first call.
+   *
+   * @return the public key rings.
+   */
+  private PGPPublicKeyRingCollection getSignerKeys() throws IOException, PGPException {
+    PGPPublicKeyRingCollection parsed = this.signerKeys;
+    if (parsed == null) {
+      final long start = System.nanoTime();
+      parsed =
+          new PGPPublicKeyRingCollection(
+              PGPUtil.getDecoderStream(new ByteArrayInputStream(this.signerKeyRing)),
+              new JcaKeyFingerprintCalculator());
+      this.signerKeys = parsed;
+      this.options.getListener().onStage(Stage.KEY_LOAD, System.nanoTime() - start);
+    }
+    return parsed;
+  }
+
+  private void discard(MimeMessage received) throws DecryptMailException {
+    try {
+      MessageSpool.discard(received);
+    } catch (IOException ex) {
+      throw new DecryptMailException(ex);
+    }
+  }
+
+  /** Updates the one-pass signature with the literal data that is read. */
+  private static final class VerifyingInputStream extends FilterInputStream {
+    private final PGPOnePassSignature onePass;
+
+    VerifyingInputStream(InputStream in, PGPOnePassSignature onePass) {
+      super(in);
+      this.onePass = onePass;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = this.in.read();
+      if (b >= 0) {
+        this.onePass.update((byte) b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = this.in.read(b, off, len);
+      if (read > 0) {
+        this.onePass.update(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // The skipped data must be signed too
+      return (n > 0) ? Math.max(this.read(new byte[(int) Math.min(n, 8192)]), 0) : 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
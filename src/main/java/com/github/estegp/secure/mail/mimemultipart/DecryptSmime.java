@@ -0,0 +1,224 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import com.github.estegp.secure.mail.exceptions.DecryptMailException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import org.bouncycastle.cms.CMSAuthEnvelopedDataParser;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientId;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.RecipientInformationStore;
+import org.bouncycastle.cms.jcajce.JceKeyTransAuthEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
+
+/**
+ * This class implements the decryption of emails with 'SMIME', i.e. the emails built by {@link
+ * EncryptSmime}. The enveloped data is parsed as a stream, so the encrypted content is never held
+ * in memory. The private key is loaded on the first message, and the key stores are cached by
+ * {@link KeyLoadManager}. The instances are thread safe.
+ */
+public final class DecryptSmime implements DecryptMail {
+  private final byte[] encoded;
+  private final char[] password;
+  private final PrivateKey privateKey;
+  private final EncryptOptions options;
+
+  /** The recipients of the private key, prepared on the first message. */
+  private volatile PreparedKey preparedKey;
+
+  /**
+   * Constructor.
+   *
+   * @param keyStore the PKCS#12 key store with the private key and the certificate.
+   * @param password the password of the key store and of the key.
+   */
+  public DecryptSmime(byte[] keyStore, char[] password) {
+    this(keyStore, password, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor. The decryption uses the streaming mode, the temporary directory, the provider and
+   * the listener of the options.
+   *
+   * @param keyStore the PKCS#12 key store with the private key and the certificate.
+   * @param password the password of the key store and of the key.
+   * @param options the options.
+   */
+  public DecryptSmime(byte[] keyStore, char[] password, EncryptOptions options) {
+    this(keyStore, (password != null) ? password.clone() : new char[0], null, options);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param certificate the certificate of the recipient, PEM or DER encoded.
+   * @param privateKey the private key of the certificate.
+   */
+  public DecryptSmime(byte[] certificate, PrivateKey privateKey) {
+    this(certificate, privateKey, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor. The decryption uses the streaming mode, the temporary directory, the provider and
+   * the listener of the options.
+   *
+   * @param certificate the certificate of the recipient, PEM or DER encoded.
+   * @param privateKey the private key of the certificate.
+   * @param options the options.
+   */
+  public DecryptSmime(byte[] certificate, PrivateKey privateKey, EncryptOptions options) {
+    this(certificate, null, privateKey, options);
+    if (privateKey == null) {
+      throw new IllegalArgumentException("The private key can't be null.");
+    }
+  }
+
+  private DecryptSmime(
+      byte[] encoded, char[] password, PrivateKey privateKey, EncryptOptions options) {
+    if (encoded == null) {
+      throw new IllegalArgumentException("The key can't be null.");
+    }
+    this.encoded = encoded.clone();
+    this.password = password;
+    this.privateKey = privateKey;
+    this.options = options;
+  }
+
+  @Override
+  public MimeMessage decrypt(MimePart encrypted) throws DecryptMailException {
+    try {
+      if (!encrypted.isMimeType("application/pkcs7-mime")
+          && !encrypted.isMimeType("application/x-pkcs7-mime")) {
+        DecryptMailException ex =
+            new DecryptMailException("The message isn't an SMIME encrypted message.");
+        this.options.getListener().onError(ex);
+        throw ex;
+      }
+      PreparedKey prepared = this.getPreparedKey();
+
+      // The authenticated algorithms (i.e. GCM) are sent as authenticated enveloped data
+      // [rfc5083], whose tag is checked when the content has been read
+      boolean authenticated =
+          "authEnveloped-data"
+              .equals(new ContentType(encrypted.getContentType()).getParameter("smime-type"));
+      try (InputStream in = encrypted.getInputStream()) {
+        RecipientInformationStore infos =
+            authenticated
+                ? new CMSAuthEnvelopedDataParser(in).getRecipientInfos()
+                : new CMSEnvelopedDataParser(in).getRecipientInfos();
+        RecipientInformation info = infos.get(prepared.id());
+        if (info == null) {
+          throw new CMSException("The message isn't encrypted for the certificate.");
+        }
+        MimeMessage decrypted = null;
+        try (InputStream content =
+            info.getContentStream(authenticated ? prepared.authEnveloped() : prepared.enveloped())
+                .getContentStream()) {
+          decrypted = MessageSpool.read(content, this.options);
+        } catch (IOException | MessagingException | RuntimeException ex) {
+          // The message isn't returned, e.g. the tag checked when the content is closed is wrong
+          MessageSpool.discard(decrypted, ex);
+          throw ex;
+        }
+        return decrypted;
+      }
+
+    } catch (GeneralSecurityException | CMSException | IOException | MessagingException ex) {
+      this.options.getListener().onError(ex);
+      throw new DecryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
+    }
+  }
+
+  @Override
+  public MimeMessage decrypt(InputStream message) throws DecryptMailException {
+    MimeMessage received;
+    try {
+      received = MessageSpool.read(message, this.options);
+    } catch (IOException | MessagingException ex) {
+      this.options.getListener().onError(ex);
+      throw new DecryptMailException(ex);
+    }
+
+    // The received email is deleted either way, a failure to delete it doesn't hide the error
+    MimeMessage decrypted;
+    try {
+      decrypted = this.decrypt(received);
+    } catch (DecryptMailException | RuntimeException ex) {
+      MessageSpool.discard(received, ex);
+      throw ex;
+    }
+    try {
+      discard(received);
+    } catch (DecryptMailException ex) {
+      MessageSpool.discard(decrypted, ex);
+      throw ex;
+    }
+    return decrypted;
+  }
+
+  /**
+   * Gets the recipients of the private key, preparing them on the first call. The recipients
+   * decrypt the content encryption key with a new cipher every time, so they are shared by all the
+   * messages.
+   *
+   * @return the prepared recipients.
+   */
+  private PreparedKey getPreparedKey() throws GeneralSecurityException, IOException {
+    PreparedKey prepared = this.preparedKey;
+    if (prepared == null) {
+      final EncryptListener listener = this.options.getListener();
+      final long start = System.nanoTime();
+      KeyStore.PrivateKeyEntry entry =
+          (this.privateKey != null)
+              ? null
+              : KeyLoadManager.INSTANCE.loadSmimePrivateKey(this.encoded, this.password, listener);
+      X509Certificate certificate =
+          (entry != null)
+              ? (X509Certificate) entry.getCertificate()
+              : KeyLoadManager.INSTANCE.loadCertificate(this.encoded, listener);
+      PrivateKey key = (entry != null) ? entry.getPrivateKey() : this.privateKey;
+      JceKeyTransRecipient enveloped = new JceKeyTransEnvelopedRecipient(key);
+      JceKeyTransRecipient authEnveloped = new JceKeyTransAuthEnvelopedRecipient(key);
+      if (this.options.getSecurityProvider() != null) {
+        enveloped.setProvider(this.options.getSecurityProvider());
+        authEnveloped.setProvider(this.options.getSecurityProvider());
+      }
+      prepared = new PreparedKey(new JceKeyTransRecipientId(certificate), enveloped, authEnveloped);
+      this.preparedKey = prepared;
+      listener.onStage(Stage.KEY_LOAD, System.nanoTime() - start);
+    }
+    return prepared;
+  }
+
+  private void discard(MimeMessage received) throws DecryptMailException {
+    try {
+      MessageSpool.discard(received);
+    } catch (IOException ex) {
+      throw new DecryptMailException(ex);
+    }
+  }
+
+  /**
+   * The id of the certificate and the recipients that decrypt the content encryption key.
+   *
+   * @param id the id of the certificate in the recipient infos.
+   * @param enveloped the recipient of the enveloped data.
+   * @param authEnveloped the recipient of the authenticated enveloped data.
+   */
+  private record PreparedKey(
+      RecipientId id, JceKeyTransRecipient enveloped, JceKeyTransRecipient authEnveloped) {}
+}
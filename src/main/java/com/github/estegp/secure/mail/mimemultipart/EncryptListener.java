@@ -0,0 +1,53 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+/**
+ * Listener of the metrics of the encryptors, e.g. to publish them with Micrometer or JMX. All the
+ * methods do nothing by default, so only the metrics of interest need to be implemented. The
+ * methods are called on the encrypting threads, so they must be thread safe and fast.
+ *
+ * <p>The stages are only timed when a listener other than {@link #NONE} is set. The 'SMIME'
+ * encryptor only reports the key load, the assembly of the body part and the encryption of the data
+ * into its buffer.
+ */
+public interface EncryptListener {
+  /** The listener that ignores all the metrics, used by default. */
+  EncryptListener NONE = new EncryptListener() {};
+
+  /**
+   * Called when a stage of the encryption of a message has completed.
+   *
+   * @param stage the stage.
+   * @param nanos the time spent in the stage, in nanoseconds.
+   */
+  default void onStage(Stage stage, long nanos) {}
+
+  /**
+   * Called when a message has been encrypted.
+   *
+   * @param bytesIn the size of the serialized message.
+   * @param bytesOut the size of the encrypted data.
+   */
+  default void onMessage(long bytesIn, long bytesOut) {}
+
+  /**
+   * Called when a key of a recipient is looked up in the cache of parsed keys.
+   *
+   * @param hit true if the key was in the cache, false if it had to be parsed.
+   */
+  default void onKeyCache(boolean hit) {}
+
+  /**
+   * Called when a message is encrypted with an expired key, because the key ring of the recipient
+   * has no valid encryption key, see {@link EncryptOptions.Builder#acceptExpiredKeys(boolean)}.
+   *
+   * @param keyId the id of the expired key.
+   */
+  default void onExpiredKey(long keyId) {}
+
+  /**
+   * Called when the encryption of a message has failed.
+   *
+   * @param cause the cause of the failure.
+   */
+  default void onError(Throwable cause) {}
+}
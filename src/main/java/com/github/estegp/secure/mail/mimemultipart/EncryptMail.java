@@ -6,6 +6,15 @@
 package com.github.estegp.secure.mail.mimemultipart;
 
 import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
@@ -30,4 +39,72 @@ public interface EncryptMail {
    * @return a mimebody part with the encrypted data
    */
   MimeBodyPart encryptData(MimeBodyPart msg, MimeMessage message) throws EncryptMailException;
+
+  /**
+   * This method encrypts a multipart email and writes the whole email to be sent, the headers of
+   * the message and the encrypted body, to a stream, e.g. the data of an SMTP transaction or a
+   * spool file. The encrypted data is serialized only once, straight into the stream.
+   *
+   * @param msg the multipart message with the data to encrypt
+   * @param message the message with the headers of the email, e.g. From, To and Subject
+   * @param out the stream where the email is written. It's flushed, but not closed.
+   */
+  default void writeMultiPart(MimeMultipart msg, MimeMessage message, OutputStream out)
+      throws EncryptMailException {
+    MimeBodyPart encrypted = this.encryptMultiPart(msg, message);
+    try {
+      EncryptedMessage.write(encrypted, message, out);
+    } catch (IOException | MessagingException ex) {
+      throw new EncryptMailException(ex);
+    } finally {
+      release(encrypted);
+    }
+  }
+
+  /**
+   * This method encrypts a multipart email and writes the whole email to be sent, the headers of
+   * the message and the encrypted body, to a blocking channel, e.g. a socket or a file channel.
+   *
+   * @param msg the multipart message with the data to encrypt
+   * @param message the message with the headers of the email, e.g. From, To and Subject
+   * @param channel the channel where the email is written. It isn't closed.
+   */
+  default void writeMultiPart(MimeMultipart msg, MimeMessage message, WritableByteChannel channel)
+      throws EncryptMailException {
+    this.writeMultiPart(msg, message, Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Releases the buffers of an encrypted body part right away: the chunks of a pooled {@link
+   * BufferStrategy} go back to the pool, and its mapped files are deleted. Otherwise they are only
+   * released once the body part is garbage collected, which can take long with direct chunks, as
+   * they hardly use the heap. The body part can't be written anymore; the data of the {@link
+   * EncryptedCache} isn't released.
+   *
+   * @param encrypted the encrypted body part, already written for the last time.
+   */
+  static void release(MimeBodyPart encrypted) throws EncryptMailException {
+    try {
+      releaseBuffers(encrypted);
+    } catch (IOException | MessagingException ex) {
+      throw new EncryptMailException(ex);
+    }
+  }
+
+  /**
+   * Releases the buffers of a part and of the body parts of its multipart.
+   *
+   * @param part the part.
+   */
+  private static void releaseBuffers(Part part) throws IOException, MessagingException {
+    DataHandler handler = part.getDataHandler();
+    if (handler.getDataSource() instanceof BufferDataSource buffer) {
+      buffer.release();
+    } else if (new ContentType(handler.getContentType()).match("multipart/*")
+        && handler.getContent() instanceof Multipart multipart) {
+      for (int i = 0; i < multipart.getCount(); i++) {
+        releaseBuffers(multipart.getBodyPart(i));
+      }
+    }
+  }
 }
@@ -5,6 +5,10 @@
 
 package com.github.estegp.secure.mail.mimemultipart;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * Factory that will get the implementation for the email encryption. This will be based on the
  * given certificates.
@@ -29,12 +33,46 @@ public class EncryptMailFactory {
    * @param key the public certificate used to encrypt the emails.
    */
   public EncryptMailFactory(int typeEncryption, byte[] key) {
+    this(typeEncryption, key, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor Sets the email encryption class base on the give type.
+   *
+   * @param typeEncryption the type of encryption.
+   * @param key the public certificate used to encrypt the emails.
+   * @param options the encryption options.
+   */
+  public EncryptMailFactory(int typeEncryption, byte[] key, EncryptOptions options) {
+    this(typeEncryption, asList(key), options);
+  }
+
+  /**
+   * Constructor Sets the email encryption class base on the give type. The emails will be encrypted
+   * once for all the recipients.
+   *
+   * @param typeEncryption the type of encryption.
+   * @param keys the public certificates of the recipients.
+   */
+  public EncryptMailFactory(int typeEncryption, Collection<byte[]> keys) {
+    this(typeEncryption, keys, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor Sets the email encryption class base on the give type. The emails will be encrypted
+   * once for all the recipients.
+   *
+   * @param typeEncryption the type of encryption.
+   * @param keys the public certificates of the recipients.
+   * @param options the encryption options.
+   */
+  public EncryptMailFactory(int typeEncryption, Collection<byte[]> keys, EncryptOptions options) {
     this.typeEncryption = typeEncryption;
 
     if (this.typeEncryption == SMIME) {
-      this.encryptMail = new EncryptSmime(key);
+      this.encryptMail = new EncryptSmime(keys, options);
     } else {
-      this.encryptMail = new EncryptMailPgp(key);
+      this.encryptMail = new EncryptMailPgp(keys, options);
     }
   }
 
@@ -44,29 +82,80 @@ public class EncryptMailFactory {
    * @param key the public certificate used to encrypt the emails.
    */
   public EncryptMailFactory(byte[] key) {
-    this.typeEncryption = this.getTypeEncryption(key);
+    this(key, EncryptOptions.defaults());
+  }
 
-    if (this.typeEncryption == SMIME) {
-      this.encryptMail = new EncryptSmime(key);
-    } else {
-      this.encryptMail = new EncryptMailPgp(key);
-    }
+  /**
+   * Constructor Sets the email encryption class base on the give certificate.
+   *
+   * @param key the public certificate used to encrypt the emails.
+   * @param options the encryption options.
+   */
+  public EncryptMailFactory(byte[] key, EncryptOptions options) {
+    this(asList(key), options);
   }
 
   /**
-   * Gets the type of encryption need to encrypt an email with the given public key.
+   * Constructor Sets the email encryption class base on the give certificates. The emails will be
+   * encrypted once for all the recipients.
    *
-   * @param key the certificate/public key.
+   * @param keys the public certificates of the recipients, all of the same type.
+   */
+  public EncryptMailFactory(Collection<byte[]> keys) {
+    this(keys, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor Sets the email encryption class base on the give certificates. The emails will be
+   * encrypted once for all the recipients.
+   *
+   * @param keys the public certificates of the recipients, all of the same type.
+   * @param options the encryption options.
+   */
+  public EncryptMailFactory(Collection<byte[]> keys, EncryptOptions options) {
+    this(getTypeEncryption(keys), keys, options);
+  }
+
+  /**
+   * Wraps a single key in a list.
+   *
+   * @param key the certificate/public key, can be null.
+   * @return the list with the key, or an empty list if the key is null.
+   */
+  private static List<byte[]> asList(byte[] key) {
+    return (key != null) ? List.of(key) : List.of();
+  }
+
+  /**
+   * Gets the type of encryption need to encrypt an email with the given public keys.
+   *
+   * @param keys the certificates/public keys.
    * @return the identifier of the type of encryption.
    */
-  private int getTypeEncryption(byte[] key) {
-    String keyS = new String(key, java.nio.charset.StandardCharsets.UTF_8);
+  private static int getTypeEncryption(Collection<byte[]> keys) {
+    int type = SMIME;
+    boolean first = true;
 
-    if (keyS.contains("BEGIN PGP PUBLIC KEY BLOCK")) {
-      return PGP;
-    } else {
-      return SMIME;
+    for (byte[] key : keys) {
+      int keyType = getTypeEncryption(key);
+      if (!first && keyType != type) {
+        throw new IllegalArgumentException("All the keys must be of the same type.");
+      }
+      type = keyType;
+      first = false;
     }
+    return type;
+  }
+
+  /**
+   * Gets the type of encryption need to encrypt an email with the given public key. The keys that
+   * aren't recognized are handled as certificates, and fail when they are parsed.
+   *
+   * @param key the certificate/public key.
+   * @return the identifier of the type of encryption.
+   */
+  private static int getTypeEncryption(byte[] key) {
+    return KeyFormat.detect(key).isPgp() ? PGP : SMIME;
   }
 
   /**
@@ -77,4 +166,25 @@ public class EncryptMailFactory {
   public EncryptMail getEncryptor() {
     return this.encryptMail;
   }
+
+  /**
+   * Get an asynchronous version of the encryptor. Every message is encrypted on its own virtual
+   * thread.
+   *
+   * @return the asynchronous encryptor.
+   */
+  public AsyncEncryptMail getAsyncEncryptor() {
+    return this.getAsyncEncryptor(AsyncEncryptor.VIRTUAL_THREAD_PER_MESSAGE);
+  }
+
+  /**
+   * Get an asynchronous version of the encryptor, that encrypts the messages on the given executor.
+   * With a bounded pool, the huge messages may delay the small ones queued behind them.
+   *
+   * @param executor the executor where the messages are encrypted.
+   * @return the asynchronous encryptor.
+   */
+  public AsyncEncryptMail getAsyncEncryptor(Executor executor) {
+    return new AsyncEncryptor(this.encryptMail, executor);
+  }
 }
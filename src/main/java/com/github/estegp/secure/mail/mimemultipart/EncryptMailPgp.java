@@ -6,25 +6,51 @@
 package com.github.estegp.secure.mail.mimemultipart;
 
 import com.github.estegp.secure.mail.exceptions.EncryptMailException;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Provider;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
-import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
 import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 
-/** This class implements the encryption of emails with 'PGP'. */
+/**
+ * This class implements the encryption of emails with 'PGP'. The keys of the recipients are
+ * resolved only once, on the first message, and the instances are thread safe, so a long-lived
+ * encryptor can be shared to encrypt many messages for the same recipients.
+ */
 public class EncryptMailPgp implements EncryptMail {
-  private final byte[] puk;
+  /** The content type of the encrypted data [rfc3156]. */
+  private static final String ENCRYPTED_TYPE = "application/octet-stream; name=\"encrypted.asc\"";
+
+  private final List<byte[]> puks;
+  private final EncryptOptions options;
+
+  /** The encryptors prepared for the recipients, resolved on the first message. */
+  private volatile Recipients recipients;
 
   /**
    * Constructor.
@@ -32,28 +58,148 @@ public class EncryptMailPgp implements EncryptMail {
    * @param puk the public key used to encrypt the emails.
    */
   public EncryptMailPgp(byte[] puk) {
-    this.puk = (puk != null) ? puk.clone() : null;
+    this(puk, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param puk the public key used to encrypt the emails.
+   * @param options the encryption options.
+   */
+  public EncryptMailPgp(byte[] puk, EncryptOptions options) {
+    this((puk != null) ? List.of(puk) : List.of(), options);
+  }
+
+  /**
+   * Constructor. The emails are encrypted only once, and the session key is encrypted with the
+   * public key of every recipient.
+   *
+   * @param puks the public keys of the recipients.
+   */
+  public EncryptMailPgp(Collection<byte[]> puks) {
+    this(puks, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor. The emails are encrypted only once, and the session key is encrypted with the
+   * public key of every recipient.
+   *
+   * @param puks the public keys of the recipients.
+   * @param options the encryption options.
+   */
+  public EncryptMailPgp(Collection<byte[]> puks, EncryptOptions options) {
+    this.puks = puks.stream().map(byte[]::clone).toList();
+    this.options = options;
   }
 
   @Override
   public MimeBodyPart encryptMultiPart(MimeMultipart msg, MimeMessage message)
       throws EncryptMailException {
+    ParallelMultipart parallel = null;
     try {
       // 1. Puts the msg as the message content
-      message.setContent(msg, msg.getContentType());
+      parallel = setContent(msg, message, this.options);
 
-      // 2. Convert the message to a byte array
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      message.writeTo(out);
+      // 2. Encrypt the message
+      DataSource crypt = this.encrypt(message);
 
-      // 3. Encrypt the message
-      byte[] crypt = this.encrypt(out.toByteArray());
-
-      // 4. Build the MimeBodypart from the encrypted message
-      return this.buildMail(new String(crypt, java.nio.charset.StandardCharsets.UTF_8));
+      // 3. Build the MimeBodypart from the encrypted message
+      return this.buildMail(new DataHandler(crypt));
 
     } catch (IOException | PGPException | MessagingException ex) {
+      this.options.getListener().onError(ex);
       throw new EncryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
+    } finally {
+      if (parallel != null) {
+        parallel.close();
+        restore(msg, message);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The headers and the boundaries of the PGP/MIME message are written first, and then the
+   * message is encrypted straight into the stream, encoded with base64 for the binary output, so
+   * the encrypted data is never buffered. If the encryption fails, part of the email has already
+   * been written. With a cache of the encrypted data, the email is written from the cached data
+   * instead.
+   */
+  @Override
+  public void writeMultiPart(MimeMultipart msg, MimeMessage message, OutputStream out)
+      throws EncryptMailException {
+    if (this.options.getEncryptedCache() != null) {
+      EncryptMail.super.writeMultiPart(msg, message, out);
+      return;
+    }
+
+    ParallelMultipart parallel = null;
+    try {
+      // 1. Puts the msg as the message content. The message is saved before its headers are
+      // copied to the email, so both have the same Message-ID
+      parallel = setContent(msg, message, this.options);
+      message.saveChanges();
+
+      // 2. Writes the email; its encrypted part is encrypted while it's written
+      MimeBodyPart encrypted =
+          this.buildMail(new EncryptingDataHandler(message, this.getCompression(message)));
+      EncryptedMessage.write(encrypted, message, out);
+
+    } catch (IOException | MessagingException ex) {
+      this.options.getListener().onError(ex);
+      throw new EncryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
+    } finally {
+      if (parallel != null) {
+        parallel.close();
+        restore(msg, message);
+      }
+    }
+  }
+
+  /**
+   * Puts the msg as the message content. A message already saved doesn't update its headers again,
+   * so the content type is set too. With an encoding pool, the body parts are encoded in parallel
+   * by a multipart that stands in for the msg.
+   *
+   * @param msg the content of the message.
+   * @param message the message.
+   * @param options the encryption options.
+   * @return the multipart that encodes the msg in parallel, to be closed, or null.
+   */
+  private static ParallelMultipart setContent(
+      MimeMultipart msg, MimeMessage message, EncryptOptions options) throws MessagingException {
+    ParallelMultipart parallel = null;
+    MimeMultipart content = msg;
+    if (options.getEncodingPool() != null && msg.getCount() > 1) {
+      parallel = ParallelMultipart.encode(msg, options.getEncodingPool());
+      content = parallel;
+    }
+    message.setContent(content, msg.getContentType());
+    message.setHeader("Content-Type", msg.getContentType());
+    return parallel;
+  }
+
+  /**
+   * Puts back the msg as the message content, in place of the multipart that encoded it.
+   *
+   * @param msg the content of the message.
+   * @param message the message.
+   */
+  private static void restore(MimeMultipart msg, MimeMessage message) {
+    try {
+      message.setContent(msg, msg.getContentType());
+      message.setHeader("Content-Type", msg.getContentType());
+    } catch (MessagingException ex) {
+      // The content of a message in memory can always be set
+      throw new IllegalStateException(ex);
     }
   }
 
@@ -67,19 +213,43 @@ public class EncryptMailPgp implements EncryptMail {
 
       // 1. Puts the msg as the message content
       message.setContent(multipart, msg.getContentType());
+      message.setHeader("Content-Type", multipart.getContentType());
 
-      // 2. Convert the message to a byte array
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      message.writeTo(out);
+      // 2. Encrypt the message
+      DataSource crypt = this.encrypt(message);
 
-      // 3. Encrypt the message
-      byte[] crypt = this.encrypt(out.toByteArray());
+      // 3. Build the MimeBodypart from the encrypted message
+      return this.buildMail(new DataHandler(crypt));
 
-      // 4. Build the MimeBodypart from the encrypted message
-      return this.buildMail(new String(crypt, java.nio.charset.StandardCharsets.UTF_8));
+    } catch (IOException | PGPException | MessagingException ex) {
+      this.options.getListener().onError(ex);
+      throw new EncryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
+    }
+  }
 
+  /**
+   * Encrypts a serialized MIME entity of unknown size, e.g. a message read back from a spool file
+   * or the content of a {@code DataHandler}, into the 'PGP' encrypted data of a PGP/MIME message
+   * [rfc3156]. The entity is read and encrypted incrementally in partial body packets, so the first
+   * encrypted bytes are written after a single buffer of content, and the memory used doesn't
+   * depend on the size of the entity. The entity is compressed with the compression of the options,
+   * as it can't be inspected in advance. Neither stream is closed.
+   *
+   * @param entity the serialized MIME entity (headers and body) to encrypt.
+   * @param out the stream where the encrypted data, armored or binary, is written.
+   */
+  public void encryptStream(InputStream entity, OutputStream out) throws EncryptMailException {
+    try {
+      this.encrypt(out, this.options.getCompression(), entity::transferTo);
     } catch (IOException | PGPException | MessagingException ex) {
+      this.options.getListener().onError(ex);
       throw new EncryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
     }
   }
 
@@ -90,20 +260,26 @@ public class EncryptMailPgp implements EncryptMail {
    * @param content encrypted original message.
    * @return an email with the proper PGP format
    */
-  private MimeBodyPart buildMail(String content) throws MessagingException {
+  private MimeBodyPart buildMail(DataHandler content) throws MessagingException {
+    final long start = System.nanoTime();
 
     // 1. First part, the version and encoding [rfc3156]
     MimeBodyPart part1 = new MimeBodyPart();
-    part1.setContent("Version: 1\r\n", "application/pgp-encrypted");
+    part1.setDataHandler(
+        new DataHandler(
+            new ByteArrayDataSource(
+                "Version: 1\r\n".getBytes(StandardCharsets.US_ASCII),
+                "application/pgp-encrypted")));
     part1.setDescription("PGP/MIME version identification");
     part1.setHeader("Content-transfer-encoding", "8bit");
 
     // 2. Second part, the encrypted data [rfc3156]
     MimeBodyPart part2 = new MimeBodyPart();
-    part2.setContent(content, "application/octet-stream; name = \"encrypted.asc\";");
+    part2.setDataHandler(content);
     part2.setDescription("OpenPGP encrypted message");
     part2.setDisposition("preview; filename=\"encrypted.asc\"");
-    part2.setHeader("Content-transfer-encoding", "8bit");
+    // The armored data is already 7bit text, the binary data is encoded while it's written
+    part2.setHeader("Content-transfer-encoding", this.options.isArmor() ? "8bit" : "base64");
 
     // 3. The two parts are contained in a multipart block [rfc3156] of type
     // multipart/encrypted
@@ -114,52 +290,458 @@ public class EncryptMailPgp implements EncryptMail {
     // 4. Wrap it in a mime body so it can be sent with javax.mail
     MimeBodyPart finalPart = new MimeBodyPart();
     finalPart.setContent(multipart);
+    this.options.getListener().onStage(Stage.ASSEMBLY, System.nanoTime() - start);
     return finalPart;
   }
 
   /**
-   * Encrypts the given data with PGP.
+   * Encrypts the given message with PGP, or gets its encrypted data from the cache of the options.
+   * The index of the cache is computed from the serialized message, so with a cache the message is
+   * serialized once more.
+   *
+   * @param message the message to be encrypted.
+   * @return the encrypted data
+   */
+  private DataSource encrypt(MimeMessage message)
+      throws IOException, PGPException, MessagingException {
+    Compression compression = this.getCompression(message);
+    EncryptedCache cache = this.options.getEncryptedCache();
+    if (cache == null) {
+      return this.encryptMessage(message, compression);
+    }
+
+    String id = EncryptedCache.id(this.getProfile(compression), this.puks, message::writeTo);
+    EncryptedCache.Entry cached = cache.get(id);
+    if (cached != null) {
+      return cached.data();
+    }
+    // The message is encrypted straight into the cache, so the encrypted data isn't copied
+    return cache.put(
+        id,
+        ENCRYPTED_TYPE,
+        List.of(),
+        out -> {
+          try {
+            this.encrypt(message, compression, out);
+          } catch (PGPException ex) {
+            throw new IOException(ex);
+          }
+        },
+        this.options.getTempDirectory());
+  }
+
+  /**
+   * Encrypts the given message with PGP, writing the message straight through the literal,
+   * compression, encryption and armor streams. The size of the message isn't known in advance, so
+   * the literal data is written in partial body packets.
+   *
+   * @param message the message to be encrypted.
+   * @param compression the compression of the message.
+   * @param out the stream where the encrypted data is written.
+   */
+  private void encrypt(MimeMessage message, Compression compression, OutputStream out)
+      throws IOException, PGPException, MessagingException {
+    // The message is written in small chunks (e.g. base64 lines), so they are buffered before
+    // reaching the compressor
+    this.encrypt(
+        out,
+        compression,
+        literalOut -> {
+          try (OutputStream bOut =
+              new PooledBufferedOutputStream(literalOut, this.options.getBufferPool())) {
+            message.writeTo(bOut);
+          }
+        });
+  }
+
+  /**
+   * Encrypts the given content with PGP, through the literal, compression, encryption and armor
+   * streams. The size of the content isn't known in advance: the literal, compressed and encrypted
+   * data are written in partial body packets [rfc4880] of the size of the pooled buffers, so the
+   * encrypted data is output while the content is written, with a bounded memory. The streams are
+   * closed from the innermost to the outermost, so every layer is finished before the next one.
+   * Every layer is metered, to record the compression statistics and to report the metrics. With a
+   * signing key, the literal data is wrapped in a one-pass signature [rfc4880], so the content is
+   * signed while it's written.
+   *
+   * @param out the stream where the encrypted data is written.
+   * @param compression the compression of the content.
+   * @param content writes the content to the literal data stream.
+   */
+  private void encrypt(OutputStream out, Compression compression, Content content)
+      throws IOException, PGPException, MessagingException {
+    // 1. Initializes the encryptor, the signer and the compressor
+    Recipients prepared = this.getRecipients();
+    PGPEncryptedDataGenerator encGen = prepared.newGenerator();
+    PGPSignatureGenerator sigGen = prepared.newSignatureGenerator();
+    PGPCompressedDataGenerator comData = this.iniCompressor(compression);
+    PGPLiteralDataGenerator literal = new PGPLiteralDataGenerator();
+
+    // 2. The armor is a stream that writes AsCii encoded data in the output stream
+    Pipeline pipeline = new Pipeline(out, this.options.getListener() != EncryptListener.NONE);
+    BufferPool pool = this.options.getBufferPool();
+    byte[] encBuffer = pool.acquire();
+    byte[] comBuffer = pool.acquire();
+    byte[] literalBuffer = pool.acquire();
+    try (OutputStream armoureOut = pipeline.armor(this.options.isArmor());
+        OutputStream cOut = pipeline.encryption(encGen.open(armoureOut, encBuffer));
+        OutputStream zOut = pipeline.compression(comData.open(cOut, comBuffer))) {
+      if (sigGen != null) {
+        sigGen.generateOnePassVersion(false).encode(zOut);
+      }
+
+      try (OutputStream pOut =
+          pipeline.literal(
+              literal.open(
+                  zOut,
+                  PGPLiteralData.BINARY,
+                  PGPLiteralData.CONSOLE,
+                  new Date(),
+                  literalBuffer))) {
+        // 3. Writes the content into the encryption pipeline, checking for cancellation
+        content.writeTo(
+            new CooperativeOutputStream(
+                (sigGen != null) ? new SigningOutputStream(pOut, sigGen) : pOut));
+      }
+
+      // 4. The signature follows the literal data
+      if (sigGen != null) {
+        sigGen.generate().encode(zOut);
+      }
+    } finally {
+      pool.release(encBuffer);
+      pool.release(comBuffer);
+      pool.release(literalBuffer);
+    }
+
+    this.options
+        .getCompressionStats()
+        .record(compression, pipeline.getUncompressed(), pipeline.getCompressed());
+    pipeline.report(this.options.getListener());
+  }
+
+  /**
+   * Gets the options that change the encrypted data, to tell apart the messages encrypted with
+   * different options in the cache.
+   *
+   * @param compression the compression of the message.
+   * @return the options, as text.
+   */
+  private String getProfile(Compression compression) {
+    SigningKey signing = this.options.getSigningKey();
+    return String.join(
+        "|",
+        "pgp",
+        this.options.getPgpCipher().name(),
+        String.valueOf(this.options.isIntegrityProtection()),
+        String.valueOf(this.options.isArmor()),
+        compression.name(),
+        String.valueOf(this.options.getCompressionLevel()),
+        (signing != null) ? signing.id() : "");
+  }
+
+  /**
+   * Encrypts the given message with PGP. In streaming mode the message is written straight through
+   * the encryption into a temporary file; otherwise it is encrypted in memory.
+   *
+   * @param message the message to be encrypted.
+   * @param compression the compression of the message.
+   * @return the encrypted data
+   */
+  private DataSource encryptMessage(MimeMessage message, Compression compression)
+      throws IOException, PGPException, MessagingException {
+    if (!this.options.isStreaming()) {
+      return this.encryptBuffered(message, compression);
+    }
+
+    TempFileDataSource target =
+        TempFileDataSource.create(this.options.getTempDirectory(), ENCRYPTED_TYPE, "encrypted.asc");
+    try (OutputStream out =
+        new PooledBufferedOutputStream(target.getOutputStream(), this.options.getBufferPool())) {
+      this.encrypt(message, compression, out);
+    } catch (IOException | PGPException | MessagingException | RuntimeException ex) {
+      target.delete();
+      throw ex;
+    }
+    return target;
+  }
+
+  /**
+   * Encrypts the given message with PGP into a buffer given by the buffer strategy of the options.
+   * The message is written straight through the encryption, so only the encrypted data is buffered;
+   * it's released with {@link EncryptMail#release}, or when the body part is discarded.
    *
-   * @param key the public key used to encrypt the data.
-   * @param data the data ti be encrypted
+   * @param message the message to be encrypted.
+   * @param compression the compression of the message.
    * @return the encrypted data
    */
-  private byte[] encrypt(byte[] data) throws IOException, PGPException {
-    byte[] result = null;
-
-    // 1. Opens the output stream where the encrypted text will be written
-    try (OutputStream outByteStream = new ByteArrayOutputStream();
-        // 2. The armor is a stream that writes AsCii encoded data in the outByteStream
-        OutputStream armoureOut = new ArmoredOutputStream(outByteStream); ) {
-
-      // 3. Initializes the encryptor
-      PGPEncryptedDataGenerator encGen = KeyLoadManager.INSTANCE.iniEncryptorPgp(this.puk);
-
-      // 4. Ini compressor
-      PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-
-      // 5. Initializes compressor
-      try (OutputStream cOut = encGen.open(armoureOut, new byte[1 << 16])) {
-
-        // 6. Encrypts and compresses the data using in-memory processing
-        PGPLiteralDataGenerator litData = new PGPLiteralDataGenerator();
-        try (OutputStream pOut =
-            litData.open(
-                comData.open(cOut),
-                PGPLiteralData.BINARY,
-                PGPLiteralData.CONSOLE,
-                data.length,
-                new Date())) {
-          pOut.write(data);
-        }
-
-      } finally {
-        // Closes all the streams
-        comData.close();
+  private DataSource encryptBuffered(MimeMessage message, Compression compression)
+      throws IOException, PGPException, MessagingException {
+    ChunkedBuffer encrypted =
+        this.options.getBufferStrategy().newBuffer(this.options.getTempDirectory());
+    try {
+      this.encrypt(message, compression, encrypted.getOutputStream());
+    } catch (IOException | PGPException | MessagingException | RuntimeException ex) {
+      encrypted.close();
+      throw ex;
+    }
+    return new BufferDataSource(encrypted, ENCRYPTED_TYPE, "encrypted.asc");
+  }
+
+  /**
+   * Gets the compression of the given message. With the adaptive compression, the messages that are
+   * already compressed aren't compressed again.
+   *
+   * @param message the message to be encrypted.
+   * @return the compression of the message.
+   */
+  private Compression getCompression(MimeMessage message) throws IOException, MessagingException {
+    Compression compression = this.options.getCompression();
+    if (compression != Compression.NONE
+        && this.options.isAdaptiveCompression()
+        && !Compressibility.isCompressible(message)) {
+      return Compression.NONE;
+    }
+    return compression;
+  }
+
+  /**
+   * Initializes the compressor.
+   *
+   * @param compression the compression algorithm.
+   * @return the compressor
+   */
+  private PGPCompressedDataGenerator iniCompressor(Compression compression) {
+    return new PGPCompressedDataGenerator(
+        compression.getAlgorithm(), this.options.getCompressionLevel());
+  }
+
+  /** Prepares the encryptors of the recipients, so they are ready before the first message. */
+  void prepare() throws IOException, PGPException {
+    this.getRecipients();
+  }
+
+  /**
+   * Gets the encryptors prepared for the recipients, preparing them on the first call. Concurrent
+   * first calls may prepare them twice, which is harmless as the result is the same.
+   *
+   * @return the prepared encryptors.
+   */
+  private Recipients getRecipients() throws IOException, PGPException {
+    Recipients prepared = this.recipients;
+    if (prepared == null) {
+      if (this.puks.isEmpty()) {
+        throw new PGPException("At least one public key is needed to encrypt the data.");
+      }
+      final EncryptListener listener = this.options.getListener();
+      final long start = System.nanoTime();
+      final Provider provider = this.options.getSecurityProvider();
+      SigningKey signing = this.options.getSigningKey();
+      PGPKeyPair signingKey = (signing != null) ? signing.loadPgp(provider, listener) : null;
+      JcaPGPContentSignerBuilder signer = null;
+      if (signingKey != null) {
+        signer =
+            new JcaPGPContentSignerBuilder(
+                signingKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256);
+        signer = (provider != null) ? signer.setProvider(provider) : signer;
+      }
+      prepared =
+          new Recipients(
+              KeyLoadManager.INSTANCE.iniDataEncryptorPgp(
+                  this.options.getPgpCipher(),
+                  this.options.isIntegrityProtection(),
+                  provider,
+                  this.options.getSecureRandom()),
+              List.copyOf(
+                  KeyLoadManager.INSTANCE.loadPgpEncMethods(
+                      this.puks,
+                      provider,
+                      this.options.getSecureRandom(),
+                      this.options.isAcceptExpiredKeys(),
+                      listener)),
+              signingKey,
+              signer);
+      this.recipients = prepared;
+      listener.onStage(Stage.KEY_LOAD, System.nanoTime() - start);
+    }
+    return prepared;
+  }
+
+  /**
+   * The data encryptor builder and the key encryption methods of the recipients, and the signing
+   * key. They don't keep any state of the messages, so they are shared by all the messages; only
+   * the generators that hold the session key and the digest are created for every message.
+   */
+  private record Recipients(
+      PGPDataEncryptorBuilder dataEncryptor,
+      List<PGPKeyEncryptionMethodGenerator> methods,
+      PGPKeyPair signingKey,
+      PGPContentSignerBuilder signer) {
+
+    PGPEncryptedDataGenerator newGenerator() {
+      PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(this.dataEncryptor);
+      for (PGPKeyEncryptionMethodGenerator method : this.methods) {
+        encGen.addMethod(method);
       }
+      return encGen;
+    }
+
+    /** Creates the signature generator of a message, or null if the messages aren't signed. */
+    PGPSignatureGenerator newSignatureGenerator() throws PGPException {
+      if (this.signingKey == null) {
+        return null;
+      }
+      PGPSignatureGenerator sigGen =
+          new PGPSignatureGenerator(this.signer, this.signingKey.getPublicKey());
+      sigGen.init(PGPSignature.BINARY_DOCUMENT, this.signingKey.getPrivateKey());
+      return sigGen;
+    }
+  }
+
+  /**
+   * The encrypted data of a message, encrypted while it's written into the email. The message is
+   * only written encrypted, so it can be written once.
+   */
+  private final class EncryptingDataHandler extends DataHandler {
+    private final MimeMessage message;
+    private final Compression compression;
+
+    EncryptingDataHandler(MimeMessage message, Compression compression) {
+      super(message, ENCRYPTED_TYPE);
+      this.message = message;
+      this.compression = compression;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      // The base64 encoder pads the data when it's flushed, it's completed by the body part
+      OutputStream unflushed =
+          new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              this.out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {}
+          };
+      try {
+        EncryptMailPgp.this.encrypt(this.message, this.compression, unflushed);
+      } catch (PGPException | MessagingException ex) {
+        throw new IOException(ex);
+      }
+    }
+  }
+
+  /** Updates the signature with the content written to the literal data. */
+  private static final class SigningOutputStream extends FilterOutputStream {
+    private final PGPSignatureGenerator sigGen;
+
+    SigningOutputStream(OutputStream out, PGPSignatureGenerator sigGen) {
+      super(out);
+      this.sigGen = sigGen;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.sigGen.update((byte) b);
+      this.out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.sigGen.update(b, off, len);
+      this.out.write(b, off, len);
+    }
+  }
+
+  /** Writes the content to be encrypted. */
+  @FunctionalInterface
+  private interface Content {
+    void writeTo(OutputStream out) throws IOException, MessagingException;
+  }
+
+  /**
+   * The metered layers of the 'PGP' streams of a message. The time of every layer is only measured
+   * when there is a listener; the bytes are always counted, for the compression statistics.
+   */
+  private static final class Pipeline {
+    private final boolean timed;
+    private final long start;
+    private final MeteredOutputStream output;
+    private MeteredOutputStream armor;
+    private MeteredOutputStream encryption;
+    private MeteredOutputStream compression;
+    private MeteredOutputStream literal;
+    private long opening;
+
+    Pipeline(OutputStream out, boolean timed) {
+      this.timed = timed;
+      this.start = timed ? System.nanoTime() : 0;
+      // The output stream is closed by the caller
+      this.output = new MeteredOutputStream(out, false, timed, null);
+    }
+
+    OutputStream armor(boolean armored) {
+      if (armored) {
+        OutputStream armorOut = new ArmoredOutputStream(this.output);
+        this.armor = new MeteredOutputStream(armorOut, true, this.timed, this.output);
+      }
+      this.opening = this.timed ? System.nanoTime() : 0;
+      return this.armorOrOutput();
+    }
+
+    OutputStream encryption(OutputStream encrypted) {
+      MeteredOutputStream next = this.armorOrOutput();
+      if (this.timed) {
+        // Opening the encrypted stream encrypts the session key and writes the packet headers
+        this.opening = System.nanoTime() - this.opening - next.getNanos();
+      }
+      this.encryption = new MeteredOutputStream(encrypted, true, this.timed, next);
+      return this.encryption;
+    }
+
+    OutputStream compression(OutputStream compressed) {
+      this.compression = new MeteredOutputStream(compressed, true, this.timed, this.encryption);
+      return this.compression;
+    }
+
+    OutputStream literal(OutputStream literalData) {
+      this.literal = new MeteredOutputStream(literalData, true, false, null);
+      return this.literal;
+    }
+
+    long getUncompressed() {
+      return this.compression.getCount();
+    }
+
+    long getCompressed() {
+      return this.encryption.getCount();
+    }
+
+    void report(EncryptListener listener) {
+      if (!this.timed) {
+        return;
+      }
+      long total = System.nanoTime() - this.start;
+      long encrypting = this.encryption.getOwnNanos() + this.opening;
+      long armoring = (this.armor != null) ? this.armor.getOwnNanos() : 0;
+      long layers =
+          this.compression.getOwnNanos() + encrypting + armoring + this.output.getOwnNanos();
+
+      // The rest of the time was spent writing the message into the literal data
+      listener.onStage(Stage.SERIALIZATION, total - layers);
+      listener.onStage(Stage.COMPRESSION, this.compression.getOwnNanos());
+      listener.onStage(Stage.ENCRYPTION, encrypting);
+      if (this.armor != null) {
+        listener.onStage(Stage.ARMOR, armoring);
+      }
+      listener.onStage(Stage.OUTPUT, this.output.getOwnNanos());
+      listener.onMessage(this.literal.getCount(), this.output.getCount());
+    }
 
-      result = ((ByteArrayOutputStream) outByteStream).toByteArray();
+    private MeteredOutputStream armorOrOutput() {
+      return (this.armor != null) ? this.armor : this.output;
     }
-    return result;
   }
 }
@@ -0,0 +1,678 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.nio.file.Path;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/**
+ * Options used by the email encryptors. The options are immutable, so the same instance can be
+ * shared by several encryptors and threads.
+ */
+public final class EncryptOptions {
+  /** The statistics of the encryptors that don't set their own. */
+  private static final CompressionStats SHARED_STATS = new CompressionStats();
+
+  /** The pool of the encryptors that don't set their own. */
+  private static final BufferPool SHARED_POOL = new BufferPool();
+
+  /** The name of the BouncyCastle provider, used by default. */
+  public static final String BOUNCY_CASTLE = "BC";
+
+  /** The options used when none are given. */
+  private static final EncryptOptions DEFAULTS = builder().build();
+
+  /** Whether the message is streamed through the encryption instead of buffered in memory. */
+  private final boolean streaming;
+
+  /** The directory of the temporary files of the streaming mode and of the mapped buffers. */
+  private final Path tempDirectory;
+
+  /** The pool where the body parts are encoded in parallel, or null. */
+  private final ForkJoinPool encodingPool;
+
+  /** How the messages are buffered when the streaming mode is disabled. */
+  private final BufferStrategy bufferStrategy;
+
+  /** The pool of the working buffers of the 'PGP' streams. */
+  private final BufferPool bufferPool;
+
+  /** Whether the 'PGP' encrypted data is armored, or binary. */
+  private final boolean armor;
+
+  /** The compression algorithm of the 'PGP' encrypted data. */
+  private final Compression compression;
+
+  /** The deflate level of the compression. */
+  private final int compressionLevel;
+
+  /** Whether the compression is skipped for the messages that are already compressed. */
+  private final boolean adaptiveCompression;
+
+  /** The statistics where the compressed sizes are recorded. */
+  private final CompressionStats compressionStats;
+
+  /** The content encryption algorithm of 'SMIME'. */
+  private final SmimeCipher smimeCipher;
+
+  /** The symmetric algorithm of 'PGP'. */
+  private final PgpCipher pgpCipher;
+
+  /** Whether the 'PGP' encrypted data has an integrity protection packet. */
+  private final boolean integrityProtection;
+
+  /** Whether the 'PGP' decryptors accept the encrypted data without integrity protection. */
+  private final boolean acceptUnprotected;
+
+  /** Whether the 'PGP' encryptors use an expired key of a recipient without a valid one. */
+  private final boolean acceptExpiredKeys;
+
+  /** The security provider of the ciphers, or null to use the providers of the JCA. */
+  private final Provider provider;
+
+  /** The source of randomness of the session keys. */
+  private final SecureRandom random;
+
+  /** The key that signs the messages before they are encrypted, or null. */
+  private final SigningKey signingKey;
+
+  /** The cache of the encrypted data of the messages, or null. */
+  private final EncryptedCache encryptedCache;
+
+  /** The listener of the metrics of the encryptors. */
+  private final EncryptListener listener;
+
+  /**
+   * Constructor.
+   *
+   * @param builder the builder with the options.
+   */
+  private EncryptOptions(Builder builder) {
+    this.streaming = builder.streaming;
+    this.tempDirectory = builder.tempDirectory;
+    this.encodingPool = builder.encodingPool;
+    this.bufferStrategy = builder.bufferStrategy;
+    this.bufferPool = builder.bufferPool;
+    this.armor = builder.armor;
+    this.compression = builder.compression;
+    this.compressionLevel = builder.compressionLevel;
+    this.adaptiveCompression = builder.adaptiveCompression;
+    this.compressionStats = builder.compressionStats;
+    this.smimeCipher = builder.smimeCipher;
+    this.pgpCipher = builder.pgpCipher;
+    this.integrityProtection = builder.integrityProtection;
+    this.acceptUnprotected = builder.acceptUnprotected;
+    this.acceptExpiredKeys = builder.acceptExpiredKeys;
+    this.provider = builder.provider;
+    this.random = builder.random;
+    this.signingKey = builder.signingKey;
+    this.encryptedCache = builder.encryptedCache;
+    this.listener = builder.listener;
+  }
+
+  /**
+   * Gets the default options.
+   *
+   * @return the default options.
+   */
+  public static EncryptOptions defaults() {
+    return DEFAULTS;
+  }
+
+  /**
+   * Gets a builder to set the options.
+   *
+   * @return a builder with the default options.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Whether the message is streamed through the encryption instead of buffered in memory.
+   *
+   * @return true if the streaming mode is enabled.
+   */
+  public boolean isStreaming() {
+    return this.streaming;
+  }
+
+  /**
+   * Gets the directory of the temporary files of the streaming mode and of the mapped buffers.
+   *
+   * @return the directory, or null to use the default temporary directory.
+   */
+  public Path getTempDirectory() {
+    return this.tempDirectory;
+  }
+
+  /**
+   * Gets the pool where the body parts of the multipart messages are encoded in parallel.
+   *
+   * @return the pool, or null if the body parts are encoded by the calling thread.
+   */
+  public ForkJoinPool getEncodingPool() {
+    return this.encodingPool;
+  }
+
+  /**
+   * Gets how the encrypted messages are buffered, by 'SMIME' and by 'PGP' when the streaming mode
+   * is disabled.
+   *
+   * @return the buffer strategy.
+   */
+  public BufferStrategy getBufferStrategy() {
+    return this.bufferStrategy;
+  }
+
+  /**
+   * Gets the pool of the working buffers of the 'PGP' streams.
+   *
+   * @return the buffer pool.
+   */
+  public BufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  /**
+   * Whether the 'PGP' encrypted data is armored, or binary.
+   *
+   * @return true if the encrypted data is armored.
+   */
+  public boolean isArmor() {
+    return this.armor;
+  }
+
+  /**
+   * Gets the compression algorithm of the 'PGP' encrypted data.
+   *
+   * @return the compression algorithm.
+   */
+  public Compression getCompression() {
+    return this.compression;
+  }
+
+  /**
+   * Gets the deflate level of the compression.
+   *
+   * @return the level, from 0 to 9, or -1 for the default level.
+   */
+  public int getCompressionLevel() {
+    return this.compressionLevel;
+  }
+
+  /**
+   * Whether the compression is skipped for the messages that are already compressed.
+   *
+   * @return true if the adaptive compression is enabled.
+   */
+  public boolean isAdaptiveCompression() {
+    return this.adaptiveCompression;
+  }
+
+  /**
+   * Gets the statistics where the compressed sizes are recorded.
+   *
+   * @return the compression statistics.
+   */
+  public CompressionStats getCompressionStats() {
+    return this.compressionStats;
+  }
+
+  /**
+   * Gets the content encryption algorithm of 'SMIME'.
+   *
+   * @return the 'SMIME' algorithm.
+   */
+  public SmimeCipher getSmimeCipher() {
+    return this.smimeCipher;
+  }
+
+  /**
+   * Gets the symmetric algorithm of 'PGP'.
+   *
+   * @return the 'PGP' algorithm.
+   */
+  public PgpCipher getPgpCipher() {
+    return this.pgpCipher;
+  }
+
+  /**
+   * Whether the 'PGP' encrypted data has an integrity protection packet.
+   *
+   * @return true if the integrity protection is enabled.
+   */
+  public boolean isIntegrityProtection() {
+    return this.integrityProtection;
+  }
+
+  /**
+   * Whether the 'PGP' decryptors accept the encrypted data without integrity protection packet.
+   *
+   * @return true if the data without integrity protection is decrypted.
+   */
+  public boolean isAcceptUnprotected() {
+    return this.acceptUnprotected;
+  }
+
+  /**
+   * Whether the 'PGP' encryptors use an expired key of a recipient that has no valid one.
+   *
+   * @return true if the expired keys are used.
+   */
+  public boolean isAcceptExpiredKeys() {
+    return this.acceptExpiredKeys;
+  }
+
+  /**
+   * Gets the name of the security provider of the ciphers.
+   *
+   * @return the name of the provider, or null to use the providers installed in the JCA.
+   */
+  public String getProvider() {
+    return (this.provider != null) ? this.provider.getName() : null;
+  }
+
+  /**
+   * Gets the security provider of the ciphers.
+   *
+   * @return the provider, or null to use the providers installed in the JCA.
+   */
+  public Provider getSecurityProvider() {
+    return this.provider;
+  }
+
+  /**
+   * Gets the source of randomness of the session keys, the initialization vectors and the padding
+   * of the encrypted keys.
+   *
+   * @return the thread safe source of randomness.
+   */
+  public SecureRandom getSecureRandom() {
+    return this.random;
+  }
+
+  /**
+   * Gets the key that signs the messages before they are encrypted.
+   *
+   * @return the signing key, or null if the messages aren't signed.
+   */
+  public SigningKey getSigningKey() {
+    return this.signingKey;
+  }
+
+  /**
+   * Gets the cache of the encrypted data of the messages.
+   *
+   * @return the cache, or null if the messages are always encrypted.
+   */
+  public EncryptedCache getEncryptedCache() {
+    return this.encryptedCache;
+  }
+
+  /**
+   * Gets the listener of the metrics of the encryptors.
+   *
+   * @return the listener, {@link EncryptListener#NONE} if none was set.
+   */
+  public EncryptListener getListener() {
+    return this.listener;
+  }
+
+  /** Builder of the encryption options. */
+  public static final class Builder {
+    private boolean streaming;
+    private Path tempDirectory;
+    private ForkJoinPool encodingPool;
+    private BufferStrategy bufferStrategy = BufferStrategy.heap();
+    private BufferPool bufferPool = SHARED_POOL;
+    private boolean armor = true;
+    private Compression compression = Compression.ZIP;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean adaptiveCompression;
+    private CompressionStats compressionStats = SHARED_STATS;
+    private SmimeCipher smimeCipher = SmimeCipher.RC2_CBC;
+    private PgpCipher pgpCipher = PgpCipher.CAST5;
+    private boolean integrityProtection = true;
+    private boolean acceptUnprotected;
+    private boolean acceptExpiredKeys;
+    private Provider provider = Providers.BOUNCY_CASTLE;
+    private SecureRandom random = RandomStrategy.SHARED.getSecureRandom();
+    private SigningKey signingKey;
+    private EncryptedCache encryptedCache;
+    private EncryptListener listener = EncryptListener.NONE;
+
+    private Builder() {}
+
+    /**
+     * Sets the streaming mode. In streaming mode the message is written straight through the
+     * encryption into a temporary file, so the memory used doesn't depend on the size of the
+     * message. The file is deleted once the encrypted body part is no longer referenced.
+     *
+     * @param streaming true to enable the streaming mode.
+     * @return this builder.
+     */
+    public Builder streaming(boolean streaming) {
+      this.streaming = streaming;
+      return this;
+    }
+
+    /**
+     * Sets the directory of the temporary files of the streaming mode and of the mapped buffers.
+     *
+     * @param tempDirectory the directory, or null to use the default temporary directory.
+     * @return this builder.
+     */
+    public Builder tempDirectory(Path tempDirectory) {
+      this.tempDirectory = tempDirectory;
+      return this;
+    }
+
+    /**
+     * Sets the pool where the body parts of the multipart messages given to {@link
+     * EncryptMail#encryptMultiPart} are encoded in parallel, e.g. {@link
+     * ForkJoinPool#commonPool()}. The transfer encoding of the attachments (i.e. base64) is most of
+     * the cost of serializing a message with many big attachments: every body part is encoded into
+     * its own buffer, and the buffers are streamed in order into the encryption as they are ready.
+     * The encrypted message is the same, but the encoded body parts are kept in memory until it's
+     * encrypted. By default the body parts are encoded one after another by the calling thread.
+     *
+     * @param encodingPool the pool, or null to encode the body parts in the calling thread.
+     * @return this builder.
+     */
+    public Builder parallelEncoding(ForkJoinPool encodingPool) {
+      this.encodingPool = encodingPool;
+      return this;
+    }
+
+    /**
+     * Sets how the encrypted messages are buffered, by 'SMIME' and by 'PGP' when the streaming mode
+     * is disabled, {@link BufferStrategy#heap()} by default. The temporary files of {@link
+     * BufferStrategy#mapAbove(long)} are created in the {@link #tempDirectory(Path) temporary
+     * directory}.
+     *
+     * @param bufferStrategy the buffer strategy.
+     * @return this builder.
+     */
+    public Builder bufferStrategy(BufferStrategy bufferStrategy) {
+      if (bufferStrategy == null) {
+        throw new IllegalArgumentException("The buffer strategy can't be null.");
+      }
+      this.bufferStrategy = bufferStrategy;
+      return this;
+    }
+
+    /**
+     * Sets the pool of the working buffers of the 'PGP' streams: the buffers of the encryption and
+     * of the partial packets, and the buffer of the streaming mode. By default the encryptors share
+     * a pool of 64 KB buffers. The size of the buffers sets the size of the partial packets.
+     *
+     * @param bufferPool the buffer pool.
+     * @return this builder.
+     */
+    public Builder bufferPool(BufferPool bufferPool) {
+      if (bufferPool == null) {
+        throw new IllegalArgumentException("The buffer pool can't be null.");
+      }
+      this.bufferPool = bufferPool;
+      return this;
+    }
+
+    /**
+     * Sets whether the 'PGP' encrypted data is armored, true by default. The binary data is a
+     * quarter smaller than the armored data while it's kept in memory or in the temporary file, and
+     * it isn't encoded by the encryption; it's base64 encoded when the email is written.
+     *
+     * @param armor false to keep the encrypted data binary.
+     * @return this builder.
+     */
+    public Builder armor(boolean armor) {
+      this.armor = armor;
+      return this;
+    }
+
+    /**
+     * Sets the compression algorithm of the 'PGP' encrypted data, {@link Compression#ZIP} by
+     * default.
+     *
+     * @param compression the compression algorithm.
+     * @return this builder.
+     */
+    public Builder compression(Compression compression) {
+      if (compression == null) {
+        throw new IllegalArgumentException("The compression algorithm can't be null.");
+      }
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Sets the deflate level of the compression. Lower levels are faster, higher levels are
+     * smaller.
+     *
+     * @param compressionLevel the level, from 0 to 9, or -1 for the default level.
+     * @return this builder.
+     */
+    public Builder compressionLevel(int compressionLevel) {
+      if (compressionLevel < Deflater.DEFAULT_COMPRESSION
+          || compressionLevel > Deflater.BEST_COMPRESSION) {
+        throw new IllegalArgumentException("The compression level must be between -1 and 9.");
+      }
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    /**
+     * Sets the adaptive compression. The messages whose binary parts are all already compressed
+     * (e.g. 'PDF' or 'JPEG' attachments) aren't compressed again, which saves most of the
+     * compression time. The encrypted messages are bigger, as the base64 encoding of those parts
+     * isn't compressed either.
+     *
+     * @param adaptiveCompression true to enable the adaptive compression.
+     * @return this builder.
+     */
+    public Builder adaptiveCompression(boolean adaptiveCompression) {
+      this.adaptiveCompression = adaptiveCompression;
+      return this;
+    }
+
+    /**
+     * Sets the statistics where the compressed sizes are recorded. By default the statistics are
+     * shared with the {@link EncryptOptions#defaults() default options}.
+     *
+     * @param compressionStats the compression statistics.
+     * @return this builder.
+     */
+    public Builder compressionStats(CompressionStats compressionStats) {
+      if (compressionStats == null) {
+        throw new IllegalArgumentException("The compression statistics can't be null.");
+      }
+      this.compressionStats = compressionStats;
+      return this;
+    }
+
+    /**
+     * Sets the content encryption algorithm of 'SMIME', {@link SmimeCipher#RC2_CBC} by default. The
+     * 'AES' algorithms are hardware accelerated on most servers; the 'GCM' ones also authenticate
+     * the data, but some old clients can't read them.
+     *
+     * @param smimeCipher the 'SMIME' algorithm.
+     * @return this builder.
+     */
+    public Builder smimeCipher(SmimeCipher smimeCipher) {
+      if (smimeCipher == null) {
+        throw new IllegalArgumentException("The SMIME algorithm can't be null.");
+      }
+      this.smimeCipher = smimeCipher;
+      return this;
+    }
+
+    /**
+     * Sets the symmetric algorithm of 'PGP', {@link PgpCipher#CAST5} by default. The 'AES'
+     * algorithms are hardware accelerated on most servers.
+     *
+     * @param pgpCipher the 'PGP' algorithm.
+     * @return this builder.
+     */
+    public Builder pgpCipher(PgpCipher pgpCipher) {
+      if (pgpCipher == null) {
+        throw new IllegalArgumentException("The PGP algorithm can't be null.");
+      }
+      this.pgpCipher = pgpCipher;
+      return this;
+    }
+
+    /**
+     * Sets whether the 'PGP' encrypted data has an integrity protection packet, so any change of
+     * the data is detected when it's decrypted. It's enabled by default, as {@link DecryptMailPgp}
+     * rejects the data without it; it's only disabled for the old clients that can't read it.
+     *
+     * @param integrityProtection true to enable the integrity protection.
+     * @return this builder.
+     */
+    public Builder integrityProtection(boolean integrityProtection) {
+      this.integrityProtection = integrityProtection;
+      return this;
+    }
+
+    /**
+     * Sets whether {@link DecryptMailPgp} accepts the encrypted data without integrity protection
+     * packet. Such data can be modified without the change being detected, e.g. to exfiltrate the
+     * plain text of the message (EFAIL), so it's rejected by default. It's only needed to read the
+     * messages of the old clients, or the ones encrypted without {@link
+     * #integrityProtection(boolean)}.
+     *
+     * @param acceptUnprotected true to decrypt the data without integrity protection.
+     * @return this builder.
+     */
+    public Builder acceptUnprotected(boolean acceptUnprotected) {
+      this.acceptUnprotected = acceptUnprotected;
+      return this;
+    }
+
+    /**
+     * Sets whether the 'PGP' encryptors use an expired encryption key of a recipient whose key ring
+     * has no valid one. The key of the recipient may no longer be in use, so the expired keys are
+     * rejected by default; when they are accepted, every use is reported with {@link
+     * EncryptListener#onExpiredKey(long)}. The revoked keys are never used.
+     *
+     * @param acceptExpiredKeys true to encrypt with the expired keys.
+     * @return this builder.
+     */
+    public Builder acceptExpiredKeys(boolean acceptExpiredKeys) {
+      this.acceptExpiredKeys = acceptExpiredKeys;
+      return this;
+    }
+
+    /**
+     * Sets the security provider of the ciphers, {@link #BOUNCY_CASTLE} by default. The provider
+     * must be installed in the JCA; it's looked up once, here. With null, the ciphers are taken
+     * from the providers installed in the JCA in order of preference, e.g. the 'AES' intrinsics of
+     * 'SunJCE'. The algorithms the JDK doesn't have, e.g. {@link PgpCipher#CAST5}, are then taken
+     * from BouncyCastle, which is installed last.
+     *
+     * @param provider the name of the provider, or null to use the providers installed in the JCA.
+     * @return this builder.
+     */
+    public Builder provider(String provider) {
+      this.provider = Providers.resolve(provider);
+      return this;
+    }
+
+    /**
+     * Sets the security provider of the ciphers, e.g. a provider that isn't installed in the JCA or
+     * a hardware one. See {@link #provider(String)}.
+     *
+     * @param provider the provider, or null to use the providers installed in the JCA.
+     * @return this builder.
+     */
+    public Builder securityProvider(Provider provider) {
+      this.provider = provider;
+      return this;
+    }
+
+    /**
+     * Sets the source of randomness of the session keys, {@link RandomStrategy#SHARED} by default.
+     * With many messages encrypted at the same time, {@link RandomStrategy#PER_THREAD_DRBG} avoids
+     * the threads competing for the same generator.
+     *
+     * @param strategy the strategy of the source of randomness.
+     * @return this builder.
+     */
+    public Builder randomStrategy(RandomStrategy strategy) {
+      if (strategy == null) {
+        throw new IllegalArgumentException("The random strategy can't be null.");
+      }
+      this.random = strategy.getSecureRandom();
+      return this;
+    }
+
+    /**
+     * Sets the source of randomness of the session keys, e.g. a DRBG of a certified provider. The
+     * source is shared by all the messages of the encryptors, so it must be thread safe. See {@link
+     * #randomStrategy(RandomStrategy)}.
+     *
+     * @param random the source of randomness.
+     * @return this builder.
+     */
+    public Builder secureRandom(SecureRandom random) {
+      if (random == null) {
+        throw new IllegalArgumentException("The source of randomness can't be null.");
+      }
+      this.random = random;
+      return this;
+    }
+
+    /**
+     * Sets the key that signs the messages before they are encrypted, in the same pass: the message
+     * is serialized once and flows through the signature and the encryption. The key must be of the
+     * type of the encryptor. By default the messages aren't signed.
+     *
+     * @param signingKey the signing key, or null to not sign the messages.
+     * @return this builder.
+     */
+    public Builder signingKey(SigningKey signingKey) {
+      this.signingKey = signingKey;
+      return this;
+    }
+
+    /**
+     * Sets the cache of the encrypted data, so a message sent again with the same content to the
+     * same recipients and with the same options isn't encrypted again. The cache sends the same
+     * encrypted data every time, see {@link EncryptedCache} for what that means before enabling it.
+     * By default the messages are always encrypted.
+     *
+     * @param encryptedCache the cache, or null to always encrypt the messages.
+     * @return this builder.
+     */
+    public Builder encryptedCache(EncryptedCache encryptedCache) {
+      this.encryptedCache = encryptedCache;
+      return this;
+    }
+
+    /**
+     * Sets the listener of the metrics of the encryptors: the time of every stage, the size of the
+     * messages, the hits of the key cache and the errors. By default the metrics aren't collected.
+     *
+     * @param listener the listener of the metrics.
+     * @return this builder.
+     */
+    public Builder listener(EncryptListener listener) {
+      if (listener == null) {
+        throw new IllegalArgumentException("The listener can't be null.");
+      }
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Builds the options.
+     *
+     * @return the options.
+     */
+    public EncryptOptions build() {
+      return new EncryptOptions(this);
+    }
+  }
+}
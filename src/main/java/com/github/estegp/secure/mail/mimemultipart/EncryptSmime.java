@@ -7,20 +7,51 @@ package com.github.estegp.secure.mail.mimemultipart;
 
 import com.github.estegp.secure.mail.exceptions.EncryptMailException;
 import java.io.IOException;
-import java.security.cert.CertificateException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.Session;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.mail.smime.SMIMEAuthEnvelopedGenerator;
 import org.bouncycastle.mail.smime.SMIMEEnvelopedGenerator;
 import org.bouncycastle.mail.smime.SMIMEException;
+import org.bouncycastle.mail.smime.SMIMESignedGenerator;
+import org.bouncycastle.operator.OperatorCreationException;
 
-/** This class implements the encryption of emails with 'SMIME'. */
+/**
+ * This class implements the encryption of emails with 'SMIME'. The certificates of the recipients
+ * are resolved only once, on the first message, and the instances are thread safe, so a long-lived
+ * encryptor can be shared to encrypt many messages for the same recipients.
+ */
 public class EncryptSmime implements EncryptMail {
-  private final byte[] puk;
+  private final List<byte[]> puks;
+  private final EncryptOptions options;
+
+  /** Builds the content encryptor of every message, with a new content encryption key. */
+  private final JceCMSContentEncryptorBuilder contentEncryptor;
+
+  /**
+   * The recipient infos and the signer prepared for the recipients, resolved on the first message.
+   */
+  private volatile Recipients recipients;
 
   /**
    * Constructor.
@@ -28,23 +59,76 @@ public class EncryptSmime implements EncryptMail {
    * @param puk the public key used to encrypt the emails.
    */
   public EncryptSmime(byte[] puk) {
-    this.puk = (puk != null) ? puk.clone() : null;
+    this(puk, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param puk the public key used to encrypt the emails.
+   * @param options the encryption options.
+   */
+  public EncryptSmime(byte[] puk, EncryptOptions options) {
+    this((puk != null) ? List.of(puk) : List.of(), options);
+  }
+
+  /**
+   * Constructor. The emails are encrypted only once, and the content encryption key is encrypted
+   * with the certificate of every recipient.
+   *
+   * @param puks the public certificates of the recipients.
+   */
+  public EncryptSmime(Collection<byte[]> puks) {
+    this(puks, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor. The emails are encrypted only once, and the content encryption key is encrypted
+   * with the certificate of every recipient.
+   *
+   * @param puks the public certificates of the recipients.
+   * @param options the encryption options.
+   */
+  public EncryptSmime(Collection<byte[]> puks, EncryptOptions options) {
+    this.puks = puks.stream().map(byte[]::clone).toList();
+    this.options = options;
+
+    JceCMSContentEncryptorBuilder builder =
+        new JceCMSContentEncryptorBuilder(options.getSmimeCipher().getAlgorithm())
+            .setSecureRandom(options.getSecureRandom());
+    this.contentEncryptor =
+        (options.getSecurityProvider() != null)
+            ? builder.setProvider(options.getSecurityProvider())
+            : builder;
   }
 
   @Override
   public MimeBodyPart encryptMultiPart(MimeMultipart msg, MimeMessage message)
       throws EncryptMailException {
+    ParallelMultipart parallel = null;
     try {
 
-      // 1. Sets the msg inside mimebody part
+      // 1. Sets the msg inside mimebody part. With an encoding pool, the body parts are encoded in
+      // parallel by a multipart that stands in for the msg; it's written when the body part is
+      // encrypted, so it's closed once the encryption is done
       MimeBodyPart mp = new MimeBodyPart();
-      mp.setContent(msg);
+      if (this.options.getEncodingPool() != null && msg.getCount() > 1) {
+        parallel = ParallelMultipart.encode(msg, this.options.getEncodingPool());
+        mp.setContent(parallel);
+      } else {
+        mp.setContent(msg);
+      }
 
       // 2. Encrypts the body part
       return this.encryptData(mp, message);
 
     } catch (MessagingException ex) {
+      this.options.getListener().onError(ex);
       throw new EncryptMailException(ex);
+    } finally {
+      if (parallel != null) {
+        parallel.close();
+      }
     }
   }
 
@@ -52,17 +136,277 @@ public class EncryptSmime implements EncryptMail {
   public MimeBodyPart encryptData(MimeBodyPart msg, MimeMessage message)
       throws EncryptMailException {
     try {
-      // The library Directly encrypts the msg and generates a new body part
-      SMIMEEnvelopedGenerator gen = new SMIMEEnvelopedGenerator();
-
-      gen.addRecipientInfoGenerator(
-          KeyLoadManager.INSTANCE.loadMimeEncKey(this.puk).setProvider("BC"));
+      if (this.puks.isEmpty()) {
+        EncryptMailException ex =
+            new EncryptMailException("At least one certificate is needed to encrypt the data.");
+        this.options.getListener().onError(ex);
+        throw ex;
+      }
 
-      return gen.generate(
-          msg, new JceCMSContentEncryptorBuilder(CMSAlgorithm.RC2_CBC).setProvider("BC").build());
+      EncryptedCache cache = this.options.getEncryptedCache();
+      return (cache != null) ? this.generateCached(msg, cache) : this.generateBuffered(msg);
 
-    } catch (CertificateException | SMIMEException | CMSException | IOException ex) {
+    } catch (GeneralSecurityException
+        | OperatorCreationException
+        | SMIMEException
+        | CMSException
+        | IOException
+        | MessagingException ex) {
+      this.options.getListener().onError(ex);
       throw new EncryptMailException(ex);
+    } catch (RuntimeException ex) {
+      this.options.getListener().onError(ex);
+      throw ex;
+    }
+  }
+
+  /**
+   * Encrypts the body part, and signs it with the signing key of the options. The returned body
+   * part is lazy: the data is only encrypted when it's written, once.
+   *
+   * @param msg the body part to be encrypted.
+   * @return the encrypted body part.
+   */
+  private MimeBodyPart generate(MimeBodyPart msg)
+      throws GeneralSecurityException,
+          IOException,
+          OperatorCreationException,
+          SMIMEException,
+          CMSException {
+    // The library Directly encrypts the msg and generates a new body part. The generator keeps
+    // the state of the message being written, so it can't be shared between messages. The
+    // authenticated algorithms (i.e. GCM) are sent as authenticated enveloped data [rfc5083]
+    SMIMEEnvelopedGenerator gen =
+        this.options.getSmimeCipher().isAuthenticated()
+            ? new SMIMEAuthEnvelopedGenerator()
+            : new SMIMEEnvelopedGenerator();
+
+    Recipients prepared = this.getRecipients();
+    for (RecipientInfoGenerator recipient : prepared.infos()) {
+      gen.addRecipientInfoGenerator(recipient);
+    }
+
+    // The signed data is encapsulated in the envelope, instead of a multipart/signed part, so
+    // the message is only serialized once: it's signed while it's encrypted
+    long start = System.nanoTime();
+    MimeBodyPart content =
+        (prepared.signer() != null)
+            ? this.newSignedGenerator(prepared.signer()).generateEncapsulated(msg)
+            : msg;
+    MimeBodyPart encrypted = gen.generate(content, this.contentEncryptor.build());
+    this.options.getListener().onStage(Stage.ASSEMBLY, System.nanoTime() - start);
+    return encrypted;
+  }
+
+  /**
+   * Encrypts the body part into a buffer given by the buffer strategy of the options. The body part
+   * of the generator is written right away, so the data is encrypted on the calling thread, and the
+   * returned body part can be written many times without any more cipher work.
+   *
+   * @param msg the body part to be encrypted.
+   * @return the encrypted body part.
+   */
+  private MimeBodyPart generateBuffered(MimeBodyPart msg)
+      throws GeneralSecurityException,
+          IOException,
+          OperatorCreationException,
+          SMIMEException,
+          CMSException,
+          MessagingException {
+    MimeBodyPart generated = this.generate(msg);
+    long start = System.nanoTime();
+    ChunkedBuffer encrypted =
+        this.options.getBufferStrategy().newBuffer(this.options.getTempDirectory());
+    try {
+      generated.getDataHandler().writeTo(encrypted.getOutputStream());
+    } catch (IOException | RuntimeException ex) {
+      encrypted.close();
+      throw ex;
+    }
+    this.options.getListener().onStage(Stage.ENCRYPTION, System.nanoTime() - start);
+    return rebuild(
+        new BufferDataSource(encrypted, generated.getContentType(), "smime.p7m"),
+        Collections.list(generated.getAllHeaders()));
+  }
+
+  /**
+   * Gets the encrypted body part from the cache of the options, or encrypts it and adds it to the
+   * cache. The returned body part is rebuilt from the cached data, so it can be written many times.
+   *
+   * @param msg the body part to be encrypted.
+   * @param cache the cache of the encrypted data.
+   * @return the encrypted body part.
+   */
+  private MimeBodyPart generateCached(MimeBodyPart msg, EncryptedCache cache)
+      throws GeneralSecurityException,
+          IOException,
+          OperatorCreationException,
+          SMIMEException,
+          CMSException,
+          MessagingException {
+    SigningKey signing = this.options.getSigningKey();
+    String profile =
+        String.join(
+            "|",
+            "smime",
+            this.options.getSmimeCipher().name(),
+            (signing != null) ? signing.id() : "");
+    updateHeaders(msg);
+    String id = EncryptedCache.id(profile, this.puks, msg::writeTo);
+
+    EncryptedCache.Entry cached = cache.get(id);
+    if (cached != null) {
+      return rebuild(cached.data(), cached.headers());
+    }
+    MimeBodyPart generated = this.generate(msg);
+    List<Header> headers = Collections.list(generated.getAllHeaders());
+    DataSource data =
+        cache.put(
+            id,
+            generated.getContentType(),
+            headers,
+            generated.getDataHandler()::writeTo,
+            this.options.getTempDirectory());
+    return rebuild(data, headers);
+  }
+
+  /**
+   * Sets the content headers of the body part, as the generator does before encrypting it, so the
+   * body part is serialized the same before and after it's encrypted.
+   *
+   * @param msg the body part to be encrypted.
+   */
+  private static void updateHeaders(MimeBodyPart msg) throws MessagingException {
+    MimeMessage wrapper = new MimeMessage((Session) null);
+    wrapper.setDataHandler(msg.getDataHandler());
+    for (Header header : Collections.list(msg.getAllHeaders())) {
+      wrapper.setHeader(header.getName(), header.getValue());
+    }
+    wrapper.saveChanges();
+    for (Header header : Collections.list(wrapper.getAllHeaders())) {
+      if (header.getName().toLowerCase(Locale.ROOT).startsWith("content-")) {
+        msg.setHeader(header.getName(), header.getValue());
+      }
+    }
+  }
+
+  /**
+   * Builds an encrypted body part from its data and its headers.
+   *
+   * @param data the encrypted data, not encoded.
+   * @param headers the headers of the body part.
+   * @return the body part.
+   */
+  private static MimeBodyPart rebuild(DataSource data, List<Header> headers)
+      throws MessagingException {
+    MimeBodyPart part = new MimeBodyPart();
+    // The data handler resets the content type and the encoding, so the headers are set after it
+    part.setDataHandler(new DataHandler(data));
+    for (Header header : headers) {
+      part.setHeader(header.getName(), header.getValue());
+    }
+    return part;
+  }
+
+  /** Prepares the recipient infos and the signer, so they are ready before the first message. */
+  void prepare() throws GeneralSecurityException, IOException {
+    this.getRecipients();
+  }
+
+  /**
+   * Gets the recipient infos prepared for the recipients, preparing them on the first call. The
+   * recipient infos encrypt the content encryption key with a new cipher every time, so they are
+   * shared by all the messages.
+   *
+   * @return the prepared recipient infos and signer.
+   */
+  private Recipients getRecipients() throws GeneralSecurityException, IOException {
+    Recipients prepared = this.recipients;
+    if (prepared == null) {
+      final EncryptListener listener = this.options.getListener();
+      final long start = System.nanoTime();
+      List<RecipientInfoGenerator> loaded = new ArrayList<>(this.puks.size());
+      for (byte[] puk : this.puks) {
+        loaded.add(
+            KeyLoadManager.INSTANCE.loadMimeEncKey(
+                puk, this.options.getSecurityProvider(), this.options.getSecureRandom(), listener));
+      }
+      SigningKey signing = this.options.getSigningKey();
+      prepared =
+          new Recipients(
+              List.copyOf(loaded),
+              (signing != null) ? Signer.of(signing.loadSmime(listener)) : null);
+      this.recipients = prepared;
+      listener.onStage(Stage.KEY_LOAD, System.nanoTime() - start);
+    }
+    return prepared;
+  }
+
+  /**
+   * Creates the generator of the signed data of a message. The signer info keeps the digest of the
+   * message being signed, so it's created for every message.
+   *
+   * @param signer the prepared signer.
+   * @return the generator.
+   */
+  private SMIMESignedGenerator newSignedGenerator(Signer signer)
+      throws OperatorCreationException, GeneralSecurityException, CMSException {
+    JcaSimpleSignerInfoGeneratorBuilder builder = new JcaSimpleSignerInfoGeneratorBuilder();
+    builder =
+        (this.options.getSecurityProvider() != null)
+            ? builder.setProvider(this.options.getSecurityProvider())
+            : builder;
+    SMIMESignedGenerator gen = new SMIMESignedGenerator();
+    gen.addSignerInfoGenerator(
+        builder.build(signer.algorithm(), signer.key(), signer.certificate()));
+    gen.addCertificates(signer.certificates());
+    return gen;
+  }
+
+  /**
+   * The recipient infos of the recipients, and the signer of the messages.
+   *
+   * @param infos the recipient infos.
+   * @param signer the signer, or null if the messages aren't signed.
+   */
+  private record Recipients(List<RecipientInfoGenerator> infos, Signer signer) {}
+
+  /**
+   * The signing key, its certificate chain and the signature algorithm that fits the key.
+   *
+   * @param key the private key.
+   * @param certificate the certificate of the key.
+   * @param certificates the certificate chain, sent with the signature.
+   * @param algorithm the signature algorithm, with SHA-256.
+   */
+  private record Signer(
+      PrivateKey key, X509Certificate certificate, JcaCertStore certificates, String algorithm) {
+
+    static Signer of(KeyStore.PrivateKeyEntry entry) throws GeneralSecurityException {
+      return new Signer(
+          entry.getPrivateKey(),
+          (X509Certificate) entry.getCertificate(),
+          new JcaCertStore(Arrays.asList(entry.getCertificateChain())),
+          algorithm(entry.getPrivateKey()));
+    }
+
+    /** Gets the SHA-256 signature algorithm of the key. */
+    private static String algorithm(PrivateKey key) throws GeneralSecurityException {
+      switch (key.getAlgorithm()) {
+        case "RSA":
+          return "SHA256withRSA";
+        case "EC":
+        case "ECDSA":
+          return "SHA256withECDSA";
+        case "DSA":
+          return "SHA256withDSA";
+        case "Ed25519":
+        case "EdDSA":
+          return "Ed25519";
+        default:
+          throw new GeneralSecurityException(
+              "Unsupported signing key algorithm: " + key.getAlgorithm());
+      }
     }
   }
 }
@@ -0,0 +1,429 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.activation.DataSource;
+import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * Opt-in cache of the encrypted data of the messages, so sending the same content again to the same
+ * recipients, e.g. retrying after a failure of the mail server, doesn't compress and encrypt it
+ * again. It's disabled by default, see {@link EncryptOptions.Builder#encryptedCache}.
+ *
+ * <p>The entries are indexed by the SHA-256 hash of the serialized content, the keys of the
+ * recipients and the options that change the encrypted data (the cipher, the compression, the armor
+ * and the signing key). The content is serialized once more to compute its hash, which is much
+ * cheaper than compressing and encrypting it.
+ *
+ * <p>The semantics of a hit, which the callers must accept before enabling the cache:
+ *
+ * <ul>
+ *   <li>The same encrypted data, with the same session key, is sent again. The recipients can't
+ *       read anything they couldn't read from the first message, but anyone who sees both messages
+ *       can tell they have the same content.
+ *   <li>The encrypted data is only sent to the exact same set of recipient keys; a new, rotated or
+ *       revoked key changes the index of the entry.
+ *   <li>A 'PGP' message is encrypted with its headers, so it's only found again if it's serialized
+ *       byte by byte the same, e.g. the same message object retried, or with the same Message-ID
+ *       and Date headers. An 'SMIME' message only encrypts its body part.
+ *   <li>The signature, if the messages are signed, is the one of the first message.
+ * </ul>
+ *
+ * <p>The entries are kept in memory up to the given size, evicting the least recently used ones.
+ * With a spill directory, the evicted entries and the entries too big for the memory are moved to
+ * files in the directory, up to another size; they only hold encrypted data. Every entry expires
+ * after the time to live. All the methods are thread safe.
+ */
+public final class EncryptedCache {
+  /** Default time to live of the entries of the cache. */
+  public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofHours(1);
+
+  /** The name of the data of the entries. */
+  private static final String NAME = "encrypted";
+
+  /** The cached entries, kept in access order so the eldest entry is the least recently used. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final long maxMemory;
+  private final Path spillDirectory;
+  private final long maxDisk;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private long memorySize;
+  private long diskSize;
+  private long timeToLiveNanos = DEFAULT_TIME_TO_LIVE.toNanos();
+
+  /**
+   * Constructor, the entries are only kept in memory.
+   *
+   * @param maxMemory the maximum size in bytes of the entries kept in memory.
+   */
+  public EncryptedCache(long maxMemory) {
+    this(maxMemory, null, 0);
+  }
+
+  /**
+   * Constructor, the entries that don't fit in memory are moved to files in the spill directory.
+   *
+   * @param maxMemory the maximum size in bytes of the entries kept in memory.
+   * @param spillDirectory the directory of the files, or null to only keep the entries in memory.
+   * @param maxDisk the maximum size in bytes of the entries kept in files.
+   */
+  public EncryptedCache(long maxMemory, Path spillDirectory, long maxDisk) {
+    if (maxMemory < 0 || maxDisk < 0) {
+      throw new IllegalArgumentException("The maximum size of the cache can't be negative.");
+    }
+    this.maxMemory = maxMemory;
+    this.spillDirectory = spillDirectory;
+    this.maxDisk = maxDisk;
+  }
+
+  /**
+   * Sets the time an entry stays in the cache after being added.
+   *
+   * @param timeToLive the time to live of the entries.
+   */
+  public void setTimeToLive(Duration timeToLive) {
+    if (timeToLive.isNegative()) {
+      throw new IllegalArgumentException("The time to live can't be negative.");
+    }
+    synchronized (this.entries) {
+      this.timeToLiveNanos = timeToLive.toNanos();
+    }
+  }
+
+  /**
+   * Computes the index of the encrypted data of a message.
+   *
+   * @param profile the options that change the encrypted data.
+   * @param puks the keys of the recipients, in any order.
+   * @param content writes the serialized content.
+   * @return the hex encoded SHA-256 hash of the options, the recipients and the content.
+   */
+  static String id(String profile, Collection<byte[]> puks, Writer content)
+      throws IOException, MessagingException {
+    MessageDigest digest = newDigest();
+    digest.update(profile.getBytes(StandardCharsets.UTF_8));
+    // The recipients are sorted, so their order doesn't matter
+    for (String puk : puks.stream().map(KeyCache::contentId).sorted().toList()) {
+      digest.update(puk.getBytes(StandardCharsets.US_ASCII));
+    }
+    try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+      content.writeTo(out);
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Gets the encrypted data of a message.
+   *
+   * @param id the index of the message.
+   * @return the entry, or null if it isn't in the cache.
+   */
+  Entry get(String id) {
+    synchronized (this.entries) {
+      Entry entry = this.entries.get(id);
+      if (entry != null && System.nanoTime() - entry.added() > this.timeToLiveNanos) {
+        this.remove(id);
+        this.evictions.increment();
+        entry = null;
+      }
+      if (entry == null) {
+        this.misses.increment();
+      } else {
+        this.hits.increment();
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Writes the encrypted data of a message, and adds it to the cache if it fits. The data is kept
+   * in memory, or in a file once it's bigger than the memory of the cache.
+   *
+   * @param id the index of the message.
+   * @param contentType the content type of the data.
+   * @param headers the headers of the body part of the data.
+   * @param data writes the encrypted data.
+   * @param tempDirectory the directory of the data too big for the cache, if there is no spill
+   *     directory.
+   * @return the written data, whether it was added to the cache or not.
+   */
+  DataSource put(
+      String id, String contentType, List<Header> headers, Writer data, Path tempDirectory)
+      throws IOException, MessagingException {
+    SpillingOutputStream out =
+        new SpillingOutputStream(
+            this.maxMemory,
+            (this.spillDirectory != null) ? this.spillDirectory : tempDirectory,
+            contentType);
+    try (out) {
+      data.writeTo(out);
+    } catch (IOException | MessagingException | RuntimeException ex) {
+      out.discard();
+      throw ex;
+    }
+
+    DataSource source = out.toDataSource();
+    boolean onDisk = out.isSpilled();
+    if (!onDisk || (this.spillDirectory != null && out.size() <= this.maxDisk)) {
+      synchronized (this.entries) {
+        this.remove(id);
+        this.entries.put(
+            id, new Entry(source, List.copyOf(headers), out.size(), onDisk, System.nanoTime()));
+        if (onDisk) {
+          this.diskSize += out.size();
+        } else {
+          this.memorySize += out.size();
+        }
+        this.trim();
+      }
+    }
+    return source;
+  }
+
+  /** Removes all the entries from the cache. */
+  public void invalidateAll() {
+    synchronized (this.entries) {
+      this.entries.clear();
+      this.memorySize = 0;
+      this.diskSize = 0;
+    }
+  }
+
+  /**
+   * Gets the number of entries in the cache, including the expired ones not evicted yet.
+   *
+   * @return the number of entries.
+   */
+  public int size() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  /**
+   * Gets the size of the entries kept in memory.
+   *
+   * @return the size in bytes.
+   */
+  public long getMemorySize() {
+    synchronized (this.entries) {
+      return this.memorySize;
+    }
+  }
+
+  /**
+   * Gets the size of the entries kept in files.
+   *
+   * @return the size in bytes.
+   */
+  public long getDiskSize() {
+    synchronized (this.entries) {
+      return this.diskSize;
+    }
+  }
+
+  /**
+   * Gets the number of messages found in the cache.
+   *
+   * @return the number of hits.
+   */
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Gets the number of messages not found in the cache.
+   *
+   * @return the number of misses.
+   */
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Gets the number of entries removed because the cache was full or they had expired.
+   *
+   * @return the number of evictions.
+   */
+  public long getEvictionCount() {
+    return this.evictions.sum();
+  }
+
+  private void remove(String id) {
+    Entry entry = this.entries.remove(id);
+    if (entry != null && entry.onDisk()) {
+      this.diskSize -= entry.size();
+    } else if (entry != null) {
+      this.memorySize -= entry.size();
+    }
+  }
+
+  /**
+   * Moves the least recently used entries from the memory to the spill directory, or evicts them,
+   * until the cache fits its maximum sizes. The files are deleted once the body parts that use them
+   * are discarded.
+   */
+  private void trim() throws IOException {
+    Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+    while (this.memorySize > this.maxMemory && eldest.hasNext()) {
+      Map.Entry<String, Entry> next = eldest.next();
+      Entry entry = next.getValue();
+      if (entry.onDisk()) {
+        continue;
+      }
+      if (this.spillDirectory != null && entry.size() <= this.maxDisk) {
+        next.setValue(entry.spill(this.spillDirectory));
+        this.memorySize -= entry.size();
+        this.diskSize += entry.size();
+      } else {
+        this.memorySize -= entry.size();
+        eldest.remove();
+        this.evictions.increment();
+      }
+    }
+
+    eldest = this.entries.entrySet().iterator();
+    while (this.diskSize > this.maxDisk && eldest.hasNext()) {
+      Entry entry = eldest.next().getValue();
+      if (entry.onDisk()) {
+        this.diskSize -= entry.size();
+        eldest.remove();
+        this.evictions.increment();
+      }
+    }
+  }
+
+  /** Writes the data of an entry. */
+  @FunctionalInterface
+  interface Writer {
+    void writeTo(OutputStream out) throws IOException, MessagingException;
+  }
+
+  /**
+   * The encrypted data of a message.
+   *
+   * @param data the encrypted data.
+   * @param headers the headers of the body part of the data, empty if it's rebuilt by the
+   *     encryptor.
+   * @param size the size of the data in bytes.
+   * @param onDisk whether the data is kept in a file.
+   * @param added the time the entry was added, in nanoseconds.
+   */
+  record Entry(DataSource data, List<Header> headers, long size, boolean onDisk, long added) {
+
+    /** Moves the data to a file in the given directory. */
+    Entry spill(Path directory) throws IOException {
+      TempFileDataSource file =
+          TempFileDataSource.create(directory, this.data.getContentType(), NAME);
+      try (InputStream in = this.data.getInputStream();
+          OutputStream out = file.getOutputStream()) {
+        in.transferTo(out);
+      } catch (IOException ex) {
+        file.delete();
+        throw ex;
+      }
+      return new Entry(file, this.headers, this.size, true, this.added);
+    }
+  }
+
+  /**
+   * Stream that keeps the data in memory until it's bigger than the given size, and then moves it
+   * to a temporary file.
+   */
+  private static final class SpillingOutputStream extends OutputStream {
+    private final long maxMemory;
+    private final Path directory;
+    private final String contentType;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private TempFileDataSource file;
+    private OutputStream fileOut;
+    private long size;
+
+    SpillingOutputStream(long maxMemory, Path directory, String contentType) {
+      this.maxMemory = maxMemory;
+      this.directory = directory;
+      this.contentType = contentType;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (this.memory != null && this.size + len > this.maxMemory) {
+        this.file = TempFileDataSource.create(this.directory, this.contentType, NAME);
+        this.fileOut = new BufferedOutputStream(this.file.getOutputStream());
+        this.memory.writeTo(this.fileOut);
+        this.memory = null;
+      }
+      if (this.memory != null) {
+        this.memory.write(b, off, len);
+      } else {
+        this.fileOut.write(b, off, len);
+      }
+      this.size += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.fileOut != null) {
+        this.fileOut.close();
+      }
+    }
+
+    long size() {
+      return this.size;
+    }
+
+    boolean isSpilled() {
+      return this.file != null;
+    }
+
+    DataSource toDataSource() {
+      return (this.memory != null)
+          ? new ByteArrayDataSource(this.memory.toByteArray(), this.contentType)
+          : this.file;
+    }
+
+    /** Deletes the file, if the data couldn't be written. */
+    void discard() {
+      if (this.file != null) {
+        this.file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The email sent with the encrypted body part: the headers of the original message (e.g. From, To,
+ * Subject, Message-ID) and the encrypted body part as its content. It's written straight to the
+ * stream of the caller, e.g. the data of an SMTP transaction or a spool file, so the encrypted data
+ * is serialized only once.
+ */
+final class EncryptedMessage extends MimeMessage {
+  /** The headers of the content, given by the encrypted body part instead of the message. */
+  private static final String[] CONTENT_HEADERS = {
+    "Content-Type",
+    "Content-Transfer-Encoding",
+    "Content-Disposition",
+    "Content-Description",
+    "Content-ID",
+    "Content-MD5",
+    "Content-Language"
+  };
+
+  /** The size of the buffer of the stream, the encoders write the data line by line. */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Constructor.
+   *
+   * @param encrypted the encrypted body part.
+   * @param message the message with the headers of the email.
+   */
+  private EncryptedMessage(MimeBodyPart encrypted, MimeMessage message) throws MessagingException {
+    super((Session) null);
+    Enumeration<String> headers = message.getNonMatchingHeaderLines(CONTENT_HEADERS);
+    while (headers.hasMoreElements()) {
+      this.addHeaderLine(headers.nextElement());
+    }
+    Enumeration<String> content = encrypted.getAllHeaderLines();
+    while (content.hasMoreElements()) {
+      this.addHeaderLine(content.nextElement());
+    }
+    this.setDataHandler(encrypted.getDataHandler());
+    this.saveChanges();
+  }
+
+  /**
+   * Writes the email with the encrypted body part and the headers of the message.
+   *
+   * @param encrypted the encrypted body part.
+   * @param message the message with the headers of the email.
+   * @param out the stream where the email is written. It's flushed, but not closed.
+   */
+  static void write(MimeBodyPart encrypted, MimeMessage message, OutputStream out)
+      throws IOException, MessagingException {
+    BufferedOutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+    new EncryptedMessage(encrypted, message).writeTo(buffered);
+    buffered.flush();
+  }
+
+  /** The message keeps the Message-ID of the original message, if it has one. */
+  @Override
+  protected void updateMessageID() throws MessagingException {
+    if (this.getHeader("Message-ID") == null) {
+      super.updateMessageID();
+    }
+  }
+}
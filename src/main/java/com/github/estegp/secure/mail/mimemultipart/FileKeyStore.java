@@ -0,0 +1,325 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+
+/**
+ * Store of the keys of the recipients read from the file system. The source is a directory, whose
+ * files are all loaded, or a single file: a 'PGP' key ring collection, a PKCS#7 bundle or a list of
+ * PEM certificates. The files that aren't keys are skipped.
+ *
+ * <ul>
+ *   <li>A 'PGP' key ring is indexed by the email addresses of its user ids, and by the key id and
+ *       the fingerprint of every key of the ring. The rings without a valid encryption key are
+ *       skipped, see {@link PgpKeyRingReader}.
+ *   <li>A certificate is indexed by the email addresses of its subject and of its alternative
+ *       names, and by its SHA-256 fingerprint.
+ * </ul>
+ *
+ * <p>When two keys have the same email address, the first one is used, reading the files in the
+ * order of their names. The keys are read once and the encryptors prepared when the store is
+ * loaded, so a lookup is a single map access. The store is reloaded by swapping the whole index,
+ * and the encryptors of the keys that didn't change are kept.
+ */
+public final class FileKeyStore implements RecipientKeyStore {
+  /** The type of the email addresses in the alternative names of a certificate. */
+  private static final int RFC822_NAME = 1;
+
+  private final Path source;
+  private final EncryptOptions options;
+
+  /** Serializes the reloads, the lookups never wait for them. */
+  private final Object reloadLock = new Object();
+
+  /** The loaded keys, replaced as a whole when the store is reloaded. */
+  private volatile Snapshot snapshot;
+
+  /**
+   * Constructor, loads the keys with the default encryption options.
+   *
+   * @param source the directory or the file of the keys.
+   */
+  public FileKeyStore(Path source) throws IOException {
+    this(source, EncryptOptions.defaults());
+  }
+
+  /**
+   * Constructor, loads the keys.
+   *
+   * @param source the directory or the file of the keys.
+   * @param options the options of the encryptors.
+   */
+  public FileKeyStore(Path source, EncryptOptions options) throws IOException {
+    if (source == null || options == null) {
+      throw new IllegalArgumentException("The source and the options of the store can't be null.");
+    }
+    this.source = source;
+    this.options = options;
+    this.snapshot = this.load(Snapshot.EMPTY);
+  }
+
+  @Override
+  public EncryptMail getEncryptor(String recipient) {
+    Entry entry = this.find(recipient);
+    return (entry != null) ? entry.encryptor() : null;
+  }
+
+  @Override
+  public EncryptMail getEncryptor(Collection<String> recipients) {
+    List<byte[]> keys = new ArrayList<>(recipients.size());
+    for (String recipient : recipients) {
+      Entry entry = this.find(recipient);
+      if (entry == null) {
+        return null;
+      }
+      keys.add(entry.key());
+    }
+    return new EncryptMailFactory(keys, this.options).getEncryptor();
+  }
+
+  @Override
+  public byte[] getKey(String recipient) {
+    Entry entry = this.find(recipient);
+    return (entry != null) ? entry.key().clone() : null;
+  }
+
+  @Override
+  public int size() {
+    return this.snapshot.byContent().size();
+  }
+
+  @Override
+  public void reload() throws IOException {
+    synchronized (this.reloadLock) {
+      this.snapshot = this.load(this.snapshot);
+    }
+  }
+
+  /**
+   * Reloads the keys if the files were modified, added or removed since they were loaded. It's
+   * cheap enough to be called periodically.
+   *
+   * @return true if the keys were reloaded.
+   */
+  public boolean reloadIfModified() throws IOException {
+    synchronized (this.reloadLock) {
+      if (this.stamp().equals(this.snapshot.stamp())) {
+        return false;
+      }
+      this.snapshot = this.load(this.snapshot);
+      return true;
+    }
+  }
+
+  private Entry find(String recipient) {
+    return (recipient != null)
+        ? this.snapshot.index().get(RecipientIds.normalize(recipient))
+        : null;
+  }
+
+  /**
+   * Lists the files of the source, in the order of their names.
+   *
+   * @return the files of the keys.
+   */
+  private List<Path> files() throws IOException {
+    if (!Files.isDirectory(this.source)) {
+      return List.of(this.source);
+    }
+    try (Stream<Path> files = Files.list(this.source)) {
+      return files.filter(Files::isRegularFile).sorted().toList();
+    }
+  }
+
+  /**
+   * Computes the modification state of the files, to find out whether they have changed.
+   *
+   * @return the names, sizes and modification times of the files.
+   */
+  private String stamp() throws IOException {
+    StringBuilder stamp = new StringBuilder();
+    for (Path file : this.files()) {
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      stamp.append(file).append('|').append(attributes.size()).append('|');
+      stamp.append(attributes.lastModifiedTime()).append('\n');
+    }
+    return stamp.toString();
+  }
+
+  /**
+   * Reads all the keys of the source and prepares their encryptors.
+   *
+   * @param previous the keys loaded before, whose encryptors are kept if the keys didn't change.
+   * @return the loaded keys.
+   */
+  private Snapshot load(Snapshot previous) throws IOException {
+    final String stamp = this.stamp();
+    Map<String, Entry> index = new HashMap<>();
+    Map<String, Entry> byContent = new HashMap<>();
+    for (Path file : this.files()) {
+      try {
+        for (Key key : read(Files.readAllBytes(file))) {
+          String id = KeyCache.contentId(key.encoded());
+          Entry entry = byContent.get(id);
+          if (entry == null) {
+            entry = previous.byContent().get(id);
+            entry = (entry != null) ? entry : this.prepare(key.encoded());
+            byContent.put(id, entry);
+          }
+          for (String name : key.names()) {
+            index.putIfAbsent(name, entry);
+          }
+        }
+      } catch (PGPException | GeneralSecurityException ex) {
+        throw new IOException("Can't read the keys of " + file, ex);
+      }
+    }
+    return new Snapshot(Map.copyOf(index), Map.copyOf(byContent), stamp);
+  }
+
+  /**
+   * Creates the encryptor of a key and prepares it, so it's ready for the first message.
+   *
+   * @param encoded the encoded key.
+   * @return the entry of the key.
+   */
+  private Entry prepare(byte[] encoded) throws PGPException, GeneralSecurityException, IOException {
+    EncryptMail encryptor;
+    if (KeyFormat.detect(encoded).isPgp()) {
+      EncryptMailPgp pgp = new EncryptMailPgp(encoded, this.options);
+      pgp.prepare();
+      encryptor = pgp;
+    } else {
+      EncryptSmime smime = new EncryptSmime(encoded, this.options);
+      smime.prepare();
+      encryptor = smime;
+    }
+    return new Entry(encoded, encryptor);
+  }
+
+  /**
+   * Reads the keys of a file.
+   *
+   * @param content the content of the file.
+   * @return the keys, empty if the file isn't a key.
+   */
+  private static List<Key> read(byte[] content) throws IOException, CertificateException {
+    KeyFormat format = KeyFormat.detect(content);
+    if (format.isPgp()) {
+      return readPgp(content);
+    }
+    if (format != KeyFormat.UNKNOWN) {
+      return readCertificates(content);
+    }
+    return List.of();
+  }
+
+  /**
+   * Reads the key rings of a 'PGP' key ring collection.
+   *
+   * @param content the armored or binary key rings.
+   * @return a key for every key ring with a valid encryption key.
+   */
+  private static List<Key> readPgp(byte[] content) throws IOException {
+    final Instant now = Instant.now();
+    List<Key> keys = new ArrayList<>();
+    for (PGPPublicKeyRing ring : new PgpKeyRingReader(content).readAll()) {
+      if (PgpKeyRingReader.selectEncryptionKey(ring, now) != null) {
+        keys.add(new Key(ring.getEncoded(), RecipientIds.names(ring)));
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Reads the certificates of a file: a certificate, a list of PEM certificates or a PKCS#7 bundle.
+   *
+   * @param content the encoded certificates.
+   * @return a key for every certificate.
+   */
+  private static List<Key> readCertificates(byte[] content)
+      throws CertificateException, IOException {
+    List<Key> keys = new ArrayList<>();
+    for (Certificate cert :
+        CertificateFactory.getInstance("X.509")
+            .generateCertificates(new ByteArrayInputStream(content))) {
+      if (!(cert instanceof X509Certificate x509)) {
+        continue;
+      }
+      Set<String> names = new LinkedHashSet<>();
+      names.add(KeyCache.contentId(x509.getEncoded()).toUpperCase(Locale.ROOT));
+
+      X500Name subject = X500Name.getInstance(x509.getSubjectX500Principal().getEncoded());
+      for (ASN1ObjectIdentifier type : List.of(BCStyle.E, BCStyle.CN)) {
+        for (RDN rdn : subject.getRDNs(type)) {
+          String value = IETFUtils.valueToString(rdn.getFirst().getValue());
+          if (value.indexOf('@') >= 0) {
+            names.add(RecipientIds.normalize(value));
+          }
+        }
+      }
+      Collection<List<?>> altNames = x509.getSubjectAlternativeNames();
+      if (altNames != null) {
+        for (List<?> altName : altNames) {
+          if (Integer.valueOf(RFC822_NAME).equals(altName.get(0))) {
+            names.add(RecipientIds.normalize((String) altName.get(1)));
+          }
+        }
+      }
+      keys.add(new Key(x509.getEncoded(), names));
+    }
+    return keys;
+  }
+
+  /**
+   * A key read from a file.
+   *
+   * @param encoded the encoded key ring or certificate.
+   * @param names the normalized email addresses and ids of the key.
+   */
+  private record Key(byte[] encoded, Set<String> names) {}
+
+  /**
+   * A loaded key and its prepared encryptor.
+   *
+   * @param key the encoded key ring or certificate.
+   * @param encryptor the encryptor of the key.
+   */
+  private record Entry(byte[] key, EncryptMail encryptor) {}
+
+  /**
+   * The keys loaded at once.
+   *
+   * @param index the keys by their email addresses and ids.
+   * @param byContent the keys by their content ids, see {@link KeyCache#contentId(byte[])}.
+   * @param stamp the modification state of the files when they were loaded.
+   */
+  private record Snapshot(Map<String, Entry> index, Map<String, Entry> byContent, String stamp) {
+    static final Snapshot EMPTY = new Snapshot(Map.of(), Map.of(), "");
+  }
+}
@@ -0,0 +1,215 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of parsed keys. The entries are indexed by the SHA-256 hash of the encoded key, so
+ * the same key bytes are only parsed once while they stay in the cache.
+ *
+ * <p>The least recently used entry is evicted when the cache is full, and every entry expires after
+ * the configured time to live. All the methods are thread safe.
+ *
+ * @param <V> the type of the parsed key.
+ */
+public final class KeyCache<V> {
+  /** Default maximum number of entries of the cache. */
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+  /** Default time to live of the entries of the cache. */
+  public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofHours(1);
+
+  /** The cached entries, kept in access order so the eldest entry is the least recently used. */
+  private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private int maxEntries;
+  private long timeToLiveNanos;
+
+  /** Constructor with the default size and time to live. */
+  public KeyCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries the maximum number of keys kept in the cache.
+   * @param timeToLive the time a key stays in the cache after being loaded.
+   */
+  public KeyCache(int maxEntries, Duration timeToLive) {
+    this.setMaxEntries(maxEntries);
+    this.setTimeToLive(timeToLive);
+  }
+
+  /**
+   * Computes the identifier used to index the given encoded key.
+   *
+   * @param encoded the encoded key.
+   * @return the hex encoded SHA-256 hash of the key.
+   */
+  public static String contentId(byte[] encoded) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(encoded));
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Gets a key from the cache.
+   *
+   * @param id the identifier of the key, see {@link #contentId(byte[])}.
+   * @return the parsed key, or null if it is not in the cache or has expired.
+   */
+  public V get(String id) {
+    synchronized (this.entries) {
+      Entry<V> entry = this.entries.get(id);
+      if (entry != null && System.nanoTime() - entry.loaded > this.timeToLiveNanos) {
+        this.entries.remove(id);
+        this.evictions.increment();
+        entry = null;
+      }
+      if (entry == null) {
+        this.misses.increment();
+        return null;
+      }
+      this.hits.increment();
+      return entry.value;
+    }
+  }
+
+  /**
+   * Adds a key to the cache, evicting the least recently used key if the cache is full.
+   *
+   * @param id the identifier of the key, see {@link #contentId(byte[])}.
+   * @param value the parsed key.
+   */
+  public void put(String id, V value) {
+    synchronized (this.entries) {
+      this.entries.put(id, new Entry<>(value, System.nanoTime()));
+      this.trim();
+    }
+  }
+
+  /**
+   * Removes the given key from the cache.
+   *
+   * @param encoded the encoded key.
+   */
+  public void invalidate(byte[] encoded) {
+    this.invalidate(contentId(encoded));
+  }
+
+  /**
+   * Removes the given key from the cache.
+   *
+   * @param id the identifier of the key, see {@link #contentId(byte[])}.
+   */
+  public void invalidate(String id) {
+    synchronized (this.entries) {
+      this.entries.remove(id);
+    }
+  }
+
+  /** Removes all the keys from the cache. */
+  public void invalidateAll() {
+    synchronized (this.entries) {
+      this.entries.clear();
+    }
+  }
+
+  /**
+   * Sets the maximum number of keys kept in the cache.
+   *
+   * @param maxEntries the maximum number of keys, must be positive.
+   */
+  public void setMaxEntries(int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("The size of the cache must be positive.");
+    }
+    synchronized (this.entries) {
+      this.maxEntries = maxEntries;
+      this.trim();
+    }
+  }
+
+  /**
+   * Sets the time a key stays in the cache after being loaded.
+   *
+   * @param timeToLive the time to live of the keys.
+   */
+  public void setTimeToLive(Duration timeToLive) {
+    if (timeToLive.isNegative()) {
+      throw new IllegalArgumentException("The time to live of the cache can't be negative.");
+    }
+    synchronized (this.entries) {
+      this.timeToLiveNanos = timeToLive.toNanos();
+    }
+  }
+
+  /**
+   * Gets the number of keys in the cache, including the expired ones not evicted yet.
+   *
+   * @return the number of keys.
+   */
+  public int size() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  /**
+   * Gets the number of lookups that found the key in the cache.
+   *
+   * @return the number of hits.
+   */
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Gets the number of lookups that didn't find the key in the cache.
+   *
+   * @return the number of misses.
+   */
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Gets the number of keys removed from the cache because it was full or they had expired.
+   *
+   * @return the number of evictions.
+   */
+  public long getEvictionCount() {
+    return this.evictions.sum();
+  }
+
+  /** Evicts the least recently used keys until the cache fits its maximum size. */
+  private void trim() {
+    while (this.entries.size() > this.maxEntries) {
+      Map.Entry<String, Entry<V>> eldest = this.entries.entrySet().iterator().next();
+      this.entries.remove(eldest.getKey());
+      this.evictions.increment();
+    }
+  }
+
+  /**
+   * A cached key, its format and the time it was loaded.
+   *
+   * @param value the parsed key.
+   * @param format the format of the encoded key.
+   * @param loaded the value of {@link System#nanoTime()} when the key was loaded.
+   */
+  private record Entry<V>(V value, long loaded) {}
+}
@@ -0,0 +1,139 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The encoding of a public key or certificate. The format is detected by looking at the first bytes
+ * of the key, without decoding it, so detecting the format of a big certificate bundle is cheap.
+ */
+public enum KeyFormat {
+  /** An ASCII armored 'PGP' public key block [rfc4880]. */
+  ARMORED_PGP(true),
+  /** A binary 'PGP' public key packet [rfc4880]. */
+  BINARY_PGP(true),
+  /** One or more 'PEM' encoded X.509 certificates [rfc7468]. */
+  PEM_X509(false),
+  /** One or more 'DER' encoded X.509 certificates. */
+  DER_X509(false),
+  /** A 'PKCS#7' certificate bundle, 'PEM' or 'DER' encoded [rfc2315]. */
+  PKCS7(false),
+  /** Any other data. */
+  UNKNOWN(false);
+
+  /** The start of a 'PEM' or armor header line. */
+  private static final byte[] BEGIN = ascii("-----BEGIN ");
+
+  /** The labels of the header lines, and the format they stand for. */
+  private static final byte[][] LABELS = {
+    ascii("PGP PUBLIC KEY BLOCK-----"),
+    ascii("CERTIFICATE-----"),
+    ascii("X509 CERTIFICATE-----"),
+    ascii("PKCS7-----"),
+    ascii("CMS-----")
+  };
+
+  private static final KeyFormat[] LABEL_FORMATS = {ARMORED_PGP, PEM_X509, PEM_X509, PKCS7, PKCS7};
+
+  /** The encoded object identifier of the 'PKCS#7' content types, 1.2.840.113549.1.7. */
+  private static final byte[] PKCS7_OID = {
+    0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x07
+  };
+
+  /** The tag of the 'PGP' public key packets. */
+  private static final int PGP_PUBLIC_KEY_TAG = 6;
+
+  /** The tag of the 'DER' sequences. */
+  private static final int DER_SEQUENCE = 0x30;
+
+  private final boolean pgp;
+
+  KeyFormat(boolean pgp) {
+    this.pgp = pgp;
+  }
+
+  /**
+   * Whether the key is a 'PGP' key, or a certificate.
+   *
+   * @return true for the 'PGP' formats.
+   */
+  public boolean isPgp() {
+    return this.pgp;
+  }
+
+  /**
+   * Detects the format of the given key. Only the first bytes are read, unless there is text before
+   * the 'PEM' or armor header line.
+   *
+   * @param key the encoded key or certificate.
+   * @return the format of the key, {@link #UNKNOWN} if it's not recognized.
+   */
+  public static KeyFormat detect(byte[] key) {
+    if (key == null || key.length == 0) {
+      return UNKNOWN;
+    }
+
+    int first = key[0] & 0xFF;
+    if (first == DER_SEQUENCE) {
+      return detectDer(key);
+    }
+    if ((first & 0x80) != 0) {
+      // Old format packets keep the tag in bits 5-2, new format packets in bits 5-0 [rfc4880]
+      int tag = ((first & 0x40) != 0) ? (first & 0x3F) : ((first >> 2) & 0x0F);
+      return (tag == PGP_PUBLIC_KEY_TAG) ? BINARY_PGP : UNKNOWN;
+    }
+    return detectText(key);
+  }
+
+  /**
+   * Detects the format of a 'DER' sequence: a 'PKCS#7' content info starts with its content type, a
+   * certificate with the sequence of the signed data.
+   */
+  private static KeyFormat detectDer(byte[] key) {
+    if (key.length < 2) {
+      return UNKNOWN;
+    }
+    int lengthByte = key[1] & 0xFF;
+    int content = 2 + ((lengthByte & 0x80) != 0 ? lengthByte & 0x7F : 0);
+    if (content >= key.length) {
+      return UNKNOWN;
+    }
+    if (startsWith(key, content, PKCS7_OID)) {
+      return PKCS7;
+    }
+    return ((key[content] & 0xFF) == DER_SEQUENCE) ? DER_X509 : UNKNOWN;
+  }
+
+  /** Detects the format of a text key from its first 'PEM' or armor header line. */
+  private static KeyFormat detectText(byte[] key) {
+    int begin = indexOf(key, BEGIN);
+    if (begin < 0) {
+      return UNKNOWN;
+    }
+    int label = begin + BEGIN.length;
+    for (int i = 0; i < LABELS.length; i++) {
+      if (startsWith(key, label, LABELS[i])) {
+        return LABEL_FORMATS[i];
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private static int indexOf(byte[] data, byte[] target) {
+    for (int i = 0; i <= data.length - target.length; i++) {
+      if (startsWith(data, i, target)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+    return data.length - offset >= prefix.length
+        && Arrays.equals(data, offset, offset + prefix.length, prefix, 0, prefix.length);
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
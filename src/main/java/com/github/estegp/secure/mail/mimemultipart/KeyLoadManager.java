@@ -3,71 +3,191 @@ package com.github.estegp.secure.mail.mimemultipart;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Provider;
 import java.security.SecureRandom;
-import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPublicKey;
-import org.bouncycastle.openpgp.PGPPublicKeyRing;
-import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
 import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.operator.jcajce.JceAsymmetricKeyWrapper;
 
-/** Enum singleton that manages the loading of keys and initialization of encryptors. */
+/**
+ * Enum singleton that manages the loading of keys and initialization of encryptors. The singleton
+ * is thread safe, so it can be used by several encryptors at the same time.
+ */
 public enum KeyLoadManager {
   INSTANCE;
 
+  /** The number of key ring collections whose readers are kept. */
+  private static final int KEY_RING_CACHE_SIZE = 16;
+
+  /** Cache of the parsed 'PGP' encryption keys. */
+  private final KeyCache<PGPPublicKey> pgpKeyCache = new KeyCache<>();
+
+  /** Cache of the readers of the key ring collections, which may be big so few are kept. */
+  private final KeyCache<PgpKeyRingReader> keyRingCache =
+      new KeyCache<>(KEY_RING_CACHE_SIZE, KeyCache.DEFAULT_TIME_TO_LIVE);
+
+  /** Cache of the parsed 'SMIME' certificates. */
+  private final KeyCache<X509Certificate> certificateCache = new KeyCache<>();
+
+  /** Cache of the 'PGP' signing keys, indexed by the key ring and its passphrase. */
+  private final KeyCache<PGPKeyPair> pgpSigningKeyCache = new KeyCache<>();
+
+  /** Cache of the 'PGP' decryption keys, indexed by the secret key and its passphrase. */
+  private final KeyCache<PGPPrivateKey> pgpPrivateKeyCache = new KeyCache<>();
+
+  /** Cache of the 'SMIME' private keys, indexed by the key store and its password. */
+  private final KeyCache<KeyStore.PrivateKeyEntry> smimePrivateKeyCache = new KeyCache<>();
+
   KeyLoadManager() {
-    loadProvider();
+    // Installs BouncyCastle as a security provider once, for the callers that look it up by name
+    Providers.resolve(EncryptOptions.BOUNCY_CASTLE);
   }
 
   /**
    * Loads the public key used to encrypt the emails and initializes the encryptor.
    *
+   * @param puk the public key used to encrypt the emails.
    * @return the encryptor used to encrypt the email.
    */
-  private void loadProvider() {
-    // Add Bouncy castles as a security provider
-    Security.addProvider(new BouncyCastleProvider());
+  public JceKeyTransRecipientInfoGenerator loadMimeEncKey(byte[] puk)
+      throws CertificateException, IOException {
+    return loadMimeEncKey(
+        puk,
+        Providers.BOUNCY_CASTLE,
+        RandomStrategy.SHARED.getSecureRandom(),
+        EncryptListener.NONE);
+  }
 
-    if (Security.getProvider("BC") == null) {
-      Security.addProvider(new BouncyCastleProvider());
-    }
+  /**
+   * Loads the public key used to encrypt the emails and initializes the encryptor.
+   *
+   * @param puk the public key used to encrypt the emails.
+   * @param provider the name of the security provider, or null to use the providers of the JCA.
+   * @return the encryptor used to encrypt the email.
+   */
+  public JceKeyTransRecipientInfoGenerator loadMimeEncKey(byte[] puk, String provider)
+      throws CertificateException, IOException {
+    return loadMimeEncKey(
+        puk,
+        Providers.resolve(provider),
+        RandomStrategy.SHARED.getSecureRandom(),
+        EncryptListener.NONE);
   }
 
   /**
    * Loads the public key used to encrypt the emails and initializes the encryptor.
    *
    * @param puk the public key used to encrypt the emails.
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @param random the source of randomness of the padding of the encrypted key.
+   * @param listener the listener of the hits of the cache.
    * @return the encryptor used to encrypt the email.
    */
-  public JceKeyTransRecipientInfoGenerator loadMimeEncKey(byte[] puk)
+  JceKeyTransRecipientInfoGenerator loadMimeEncKey(
+      byte[] puk, Provider provider, SecureRandom random, EncryptListener listener)
+      throws CertificateException, IOException {
+    X509Certificate certificate = loadCertificate(puk, listener);
+    JceAsymmetricKeyWrapper wrapper =
+        new JceAsymmetricKeyWrapper(certificate).setSecureRandom(random);
+    return new JceKeyTransRecipientInfoGenerator(
+        certificate, (provider != null) ? wrapper.setProvider(provider) : wrapper);
+  }
+
+  /**
+   * Reads the certificate used to encrypt the emails. The parsed certificate is cached, so the same
+   * certificate is only parsed once.
+   *
+   * @param puk the public certificate used to encrypt the emails.
+   * @return the first certificate of the chain
+   */
+  public X509Certificate loadCertificate(byte[] puk) throws CertificateException, IOException {
+    return loadCertificate(puk, EncryptListener.NONE);
+  }
+
+  /**
+   * Reads the certificate used to encrypt the emails, reporting whether it was in the cache.
+   *
+   * @param puk the public certificate used to encrypt the emails.
+   * @param listener the listener of the hits of the cache.
+   * @return the first certificate of the chain
+   */
+  X509Certificate loadCertificate(byte[] puk, EncryptListener listener)
+      throws CertificateException, IOException {
+    String id = KeyCache.contentId(puk);
+    X509Certificate certX = this.certificateCache.get(id);
+    listener.onKeyCache(certX != null);
+
+    if (certX == null) {
+      KeyFormat format = KeyFormat.detect(puk);
+      certX = parseCertificate(puk, format);
+      this.certificateCache.put(id, certX);
+    }
+    return certX;
+  }
+
+  /**
+   * Parses the certificate chain and returns the first certificate.
+   *
+   * @param puk the public certificate used to encrypt the emails.
+   * @param format the format of the certificate.
+   * @return the first certificate of the chain
+   */
+  private X509Certificate parseCertificate(byte[] puk, KeyFormat format)
       throws CertificateException, IOException {
+    if (format.isPgp()) {
+      throw new CertificateException("The key is a PGP key, not a certificate.");
+    }
 
     // Gets certificate chain from byte array
     InputStream bis = new ByteArrayInputStream(puk);
     CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
     ArrayList<Certificate> certs = new ArrayList<>();
 
+    if (format == KeyFormat.PKCS7) {
+      // A bundle is read at once, the certificates are in its signed data
+      certs.addAll(certFactory.generateCertificates(bis));
+    }
     while (bis.available() > 0) {
       certs.add(certFactory.generateCertificate(bis));
     }
 
+    if (certs.isEmpty()) {
+      throw new CertificateException("Can't find a certificate in the given key.");
+    }
+
     // Build certificate
-    X509Certificate certX = (X509Certificate) certs.get(0);
-    return new JceKeyTransRecipientInfoGenerator(certX).setProvider("BC");
+    return (X509Certificate) certs.get(0);
   }
 
   /**
@@ -77,57 +197,490 @@ public enum KeyLoadManager {
    * @return the encryptor
    */
   public PGPEncryptedDataGenerator iniEncryptorPgp(byte[] puk) throws IOException, PGPException {
-    return iniEncryptorPgp(loadPgpKey(puk));
+    return iniEncryptorPgp(List.of(puk));
   }
 
   /**
-   * Initializes the 'PGP' encryptor.
+   * Initializes the 'PGP' encryptor for several recipients. The data is encrypted only once with a
+   * session key, and the session key is encrypted with the public key of every recipient.
    *
-   * @param key the public key that will be used to encrypt the data.
+   * @param puks the public keys that will be used to encrypt the data.
    * @return the encryptor
    */
-  private PGPEncryptedDataGenerator iniEncryptorPgp(PGPPublicKey key) {
+  public PGPEncryptedDataGenerator iniEncryptorPgp(Collection<byte[]> puks)
+      throws IOException, PGPException {
+    if (puks.isEmpty()) {
+      throw new PGPException("At least one public key is needed to encrypt the data.");
+    }
 
-    PGPEncryptedDataGenerator encGen =
-        new PGPEncryptedDataGenerator(new JcePGPDataEncryptorBuilder(PGPEncryptedData.CAST5)
-            .setSecureRandom(new SecureRandom()).setProvider("BC"));
-    encGen.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(key).setProvider("BC"));
+    PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(iniDataEncryptorPgp());
+    for (PGPKeyEncryptionMethodGenerator method : loadPgpEncMethods(puks)) {
+      encGen.addMethod(method);
+    }
 
     return encGen;
   }
 
+  /**
+   * Initializes the builder of the 'PGP' data encryptors. The builder creates a new cipher for
+   * every message, so it can be shared by several threads.
+   *
+   * @return the builder of the data encryptors.
+   */
+  public PGPDataEncryptorBuilder iniDataEncryptorPgp() {
+    return iniDataEncryptorPgp(
+        PgpCipher.CAST5, false, Providers.BOUNCY_CASTLE, RandomStrategy.SHARED.getSecureRandom());
+  }
+
+  /**
+   * Initializes the builder of the 'PGP' data encryptors. The builder creates a new cipher for
+   * every message, so it can be shared by several threads.
+   *
+   * @param cipher the symmetric algorithm.
+   * @param integrityProtection whether the encrypted data has an integrity protection packet.
+   * @param provider the name of the security provider, or null to use the providers of the JCA.
+   * @return the builder of the data encryptors.
+   */
+  public PGPDataEncryptorBuilder iniDataEncryptorPgp(
+      PgpCipher cipher, boolean integrityProtection, String provider) {
+    return iniDataEncryptorPgp(
+        cipher,
+        integrityProtection,
+        Providers.resolve(provider),
+        RandomStrategy.SHARED.getSecureRandom());
+  }
+
+  /**
+   * Initializes the builder of the 'PGP' data encryptors.
+   *
+   * @param cipher the symmetric algorithm.
+   * @param integrityProtection whether the encrypted data has an integrity protection packet.
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @param random the source of randomness of the session keys.
+   * @return the builder of the data encryptors.
+   */
+  PGPDataEncryptorBuilder iniDataEncryptorPgp(
+      PgpCipher cipher, boolean integrityProtection, Provider provider, SecureRandom random) {
+    JcePGPDataEncryptorBuilder builder =
+        new JcePGPDataEncryptorBuilder(cipher.getAlgorithm())
+            .setWithIntegrityPacket(integrityProtection)
+            .setSecureRandom(random);
+    return (provider != null) ? builder.setProvider(provider) : builder;
+  }
+
+  /**
+   * Loads the methods that encrypt the session key with the public key of every recipient. The
+   * methods create a new cipher for every message, so they can be shared by several threads.
+   *
+   * @param puks the public keys of the recipients.
+   * @return the key encryption method of every recipient.
+   */
+  public List<PGPKeyEncryptionMethodGenerator> loadPgpEncMethods(Collection<byte[]> puks)
+      throws IOException, PGPException {
+    return loadPgpEncMethods(
+        puks,
+        Providers.BOUNCY_CASTLE,
+        RandomStrategy.SHARED.getSecureRandom(),
+        false,
+        EncryptListener.NONE);
+  }
+
+  /**
+   * Loads the methods that encrypt the session key with the public key of every recipient. The
+   * methods create a new cipher for every message, so they can be shared by several threads.
+   *
+   * @param puks the public keys of the recipients.
+   * @param provider the name of the security provider, or null to use the providers of the JCA.
+   * @return the key encryption method of every recipient.
+   */
+  public List<PGPKeyEncryptionMethodGenerator> loadPgpEncMethods(
+      Collection<byte[]> puks, String provider) throws IOException, PGPException {
+    return loadPgpEncMethods(
+        puks,
+        Providers.resolve(provider),
+        RandomStrategy.SHARED.getSecureRandom(),
+        false,
+        EncryptListener.NONE);
+  }
+
+  /**
+   * Loads the methods that encrypt the session key with the public key of every recipient.
+   *
+   * @param puks the public keys of the recipients.
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @param random the source of randomness of the padding of the encrypted session keys.
+   * @param acceptExpired whether an expired key is used if a recipient has no valid one.
+   * @param listener the listener of the hits of the cache and of the expired keys.
+   * @return the key encryption method of every recipient.
+   */
+  List<PGPKeyEncryptionMethodGenerator> loadPgpEncMethods(
+      Collection<byte[]> puks,
+      Provider provider,
+      SecureRandom random,
+      boolean acceptExpired,
+      EncryptListener listener)
+      throws IOException, PGPException {
+    List<PGPKeyEncryptionMethodGenerator> methods = new ArrayList<>(puks.size());
+    for (byte[] puk : puks) {
+      JcePublicKeyKeyEncryptionMethodGenerator method =
+          new JcePublicKeyKeyEncryptionMethodGenerator(loadPgpKey(puk, acceptExpired, listener))
+              .setSecureRandom(random);
+      methods.add((provider != null) ? method.setProvider(provider) : method);
+    }
+    return methods;
+  }
+
   /**
    * Reads the public key / certificate and saves it into a 'PGPPublicKey' so it can be used to
-   * encrypt the emails.
+   * encrypt the emails. The parsed key is cached, so the same key ring is only parsed once.
+   *
+   * <p>The key is the newest valid encryption key of the first key ring that has one, see {@link
+   * PgpKeyRingReader}. The revoked and expired keys aren't used.
    *
    * @param puk the public key used to encrypt the emails.
    * @return the PGPPublicKey object
    */
   public PGPPublicKey loadPgpKey(byte[] puk) throws IOException, PGPException {
+    return loadPgpKey(puk, false, EncryptListener.NONE);
+  }
 
-    InputStream keyIn = new ByteArrayInputStream(puk);
-    // ByteArrayOutputStream Close() method does nothing, no need to call it
+  /**
+   * Reads the public key used to encrypt the emails, reporting whether it was in the cache. Only
+   * the valid keys are cached: a cached key that has expired since is parsed again, and an expired
+   * key that is accepted is reported every time it's used.
+   *
+   * @param puk the public key used to encrypt the emails.
+   * @param acceptExpired whether an expired key is used if no key ring has a valid one.
+   * @param listener the listener of the hits of the cache and of the expired keys.
+   * @return the PGPPublicKey object
+   */
+  PGPPublicKey loadPgpKey(byte[] puk, boolean acceptExpired, EncryptListener listener)
+      throws IOException, PGPException {
+    String id = KeyCache.contentId(puk);
+    PGPPublicKey key = this.pgpKeyCache.get(id);
+    if (key != null && !PgpKeyRingReader.isValid(key, Instant.now())) {
+      this.pgpKeyCache.invalidate(id);
+      key = null;
+    }
+    listener.onKeyCache(key != null);
 
-    // Initializes reader
-    PGPPublicKeyRingCollection pgpPub = new PGPPublicKeyRingCollection(
-        PGPUtil.getDecoderStream(keyIn), new JcaKeyFingerprintCalculator());
+    if (key == null) {
+      KeyFormat format = KeyFormat.detect(puk);
+      key = parsePgpKey(puk, format, acceptExpired, listener);
+    }
+    return key;
+  }
 
-    // Reads each key in the input stream until it finds the encryption key
-    Iterator<PGPPublicKeyRing> keyRingIter = pgpPub.getKeyRings();
-    while (keyRingIter.hasNext()) {
-      PGPPublicKeyRing keyRing = (PGPPublicKeyRing) keyRingIter.next();
+  /**
+   * Reads the encryption key of a recipient from a key ring collection. The collection is parsed
+   * lazily, only until the key ring of the recipient is found, and its reader is cached, so the
+   * next recipients of the same collection continue from there.
+   *
+   * @param puk the key ring collection.
+   * @param recipient the email address or the key id / fingerprint of the recipient.
+   * @return the newest valid encryption key of the recipient.
+   */
+  public PGPPublicKey loadPgpKey(byte[] puk, String recipient) throws IOException, PGPException {
+    KeyFormat format = KeyFormat.detect(puk);
+    checkPgpKey(format);
+    String id = KeyCache.contentId(puk);
+    PgpKeyRingReader reader = this.keyRingCache.get(id);
+    if (reader == null) {
+      reader = new PgpKeyRingReader(puk);
+      this.keyRingCache.put(id, reader);
+    }
 
-      Iterator<PGPPublicKey> keyIter = keyRing.getPublicKeys();
-      while (keyIter.hasNext()) {
+    PGPPublicKey key = reader.findEncryptionKey(recipient);
+    if (key == null) {
+      throw new IllegalArgumentException("Can't find encryption key of the recipient in key ring.");
+    }
+    return key;
+  }
 
-        PGPPublicKey key = (PGPPublicKey) keyIter.next();
+  /**
+   * Parses the key ring and returns the first valid encryption key, which is cached.
+   *
+   * @param puk the public key used to encrypt the emails.
+   * @param format the format of the key.
+   * @param acceptExpired whether an expired key is used if no key ring has a valid one.
+   * @param listener the listener of the expired keys.
+   * @return the PGPPublicKey object
+   */
+  private PGPPublicKey parsePgpKey(
+      byte[] puk, KeyFormat format, boolean acceptExpired, EncryptListener listener)
+      throws IOException, PGPException {
+    checkPgpKey(format);
+
+    // Reads the key rings until one has a valid encryption key
+    PgpKeyRingReader reader = new PgpKeyRingReader(puk);
+    PGPPublicKey key = reader.findEncryptionKey();
+    if (key != null) {
+      this.pgpKeyCache.put(KeyCache.contentId(puk), key);
+      return key;
+    }
+
+    // The expired keys are only used if the options accept them, never a revoked key
+    key = acceptExpired ? reader.findEncryptionKey(Instant.MIN) : null;
+    if (key == null) {
+      throw new IllegalArgumentException("Can't find a valid encryption key in key ring.");
+    }
+    listener.onExpiredKey(key.getKeyID());
+    return key;
+  }
+
+  /**
+   * Checks that the key isn't a certificate.
+   *
+   * @param format the format of the key.
+   */
+  private static void checkPgpKey(KeyFormat format) throws PGPException {
+    if (format != KeyFormat.UNKNOWN && !format.isPgp()) {
+      throw new PGPException("The key is a certificate, not a PGP key.");
+    }
+  }
+
+  /**
+   * Reads the private key that signs the emails from a 'PGP' secret key ring, and decrypts it. The
+   * decrypted key is cached, so the passphrase is only derived once.
+   *
+   * @param secretKeyRing the armored or binary secret key ring.
+   * @param passphrase the passphrase of the secret key.
+   * @return the public and private signing key.
+   */
+  public PGPKeyPair loadPgpSigningKey(byte[] secretKeyRing, char[] passphrase)
+      throws IOException, PGPException {
+    return loadPgpSigningKey(
+        secretKeyRing, passphrase, Providers.BOUNCY_CASTLE, EncryptListener.NONE);
+  }
+
+  /**
+   * Reads the private key that signs the emails, reporting whether it was in the cache.
+   *
+   * @param secretKeyRing the armored or binary secret key ring.
+   * @param passphrase the passphrase of the secret key.
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @param listener the listener of the hits of the cache.
+   * @return the public and private signing key.
+   */
+  PGPKeyPair loadPgpSigningKey(
+      byte[] secretKeyRing, char[] passphrase, Provider provider, EncryptListener listener)
+      throws IOException, PGPException {
+    String id = secretId(secretKeyRing, passphrase);
+    PGPKeyPair key = this.pgpSigningKeyCache.get(id);
+    listener.onKeyCache(key != null);
+
+    if (key == null) {
+      key = parsePgpSigningKey(secretKeyRing, passphrase, provider);
+      this.pgpSigningKeyCache.put(id, key);
+    }
+    return key;
+  }
+
+  /**
+   * Parses the secret key rings and decrypts the signing key of the first one that has one.
+   *
+   * @param secretKeyRing the armored or binary secret key ring.
+   * @param passphrase the passphrase of the secret key.
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @return the public and private signing key.
+   */
+  private PGPKeyPair parsePgpSigningKey(byte[] secretKeyRing, char[] passphrase, Provider provider)
+      throws IOException, PGPException {
+    PGPSecretKeyRingCollection rings =
+        new PGPSecretKeyRingCollection(
+            PGPUtil.getDecoderStream(new ByteArrayInputStream(secretKeyRing)),
+            new JcaKeyFingerprintCalculator());
 
-        if (key.isEncryptionKey()) {
-          return key;
+    Instant now = Instant.now();
+    Iterator<PGPSecretKeyRing> ringIter = rings.getKeyRings();
+    while (ringIter.hasNext()) {
+      PGPSecretKey secret = PgpKeyRingReader.selectSigningKey(ringIter.next(), now);
+      if (secret != null) {
+        JcePBESecretKeyDecryptorBuilder decryptor = new JcePBESecretKeyDecryptorBuilder();
+        if (provider != null) {
+          decryptor.setProvider(provider);
         }
+        return new PGPKeyPair(
+            secret.getPublicKey(), secret.extractPrivateKey(decryptor.build(passphrase)));
+      }
+    }
+
+    throw new IllegalArgumentException("Can't find signing key in key ring.");
+  }
+
+  /**
+   * Decrypts the private key of a 'PGP' secret key, used to decrypt the emails. The decrypted key
+   * is cached, so the passphrase is only derived once.
+   *
+   * @param secretKey the secret key.
+   * @param passphrase the passphrase of the secret key.
+   * @return the private key.
+   */
+  public PGPPrivateKey loadPgpPrivateKey(PGPSecretKey secretKey, char[] passphrase)
+      throws IOException, PGPException {
+    return loadPgpPrivateKey(secretKey, passphrase, Providers.BOUNCY_CASTLE, EncryptListener.NONE);
+  }
+
+  /**
+   * Decrypts the private key of a 'PGP' secret key, reporting whether it was in the cache.
+   *
+   * @param secretKey the secret key.
+   * @param passphrase the passphrase of the secret key.
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @param listener the listener of the hits of the cache.
+   * @return the private key.
+   */
+  PGPPrivateKey loadPgpPrivateKey(
+      PGPSecretKey secretKey, char[] passphrase, Provider provider, EncryptListener listener)
+      throws IOException, PGPException {
+    String id = secretId(secretKey.getEncoded(), passphrase);
+    PGPPrivateKey key = this.pgpPrivateKeyCache.get(id);
+    listener.onKeyCache(key != null);
+
+    if (key == null) {
+      JcePBESecretKeyDecryptorBuilder decryptor = new JcePBESecretKeyDecryptorBuilder();
+      if (provider != null) {
+        decryptor.setProvider(provider);
       }
+      key = secretKey.extractPrivateKey(decryptor.build(passphrase));
+      this.pgpPrivateKeyCache.put(id, key);
     }
+    return key;
+  }
 
-    throw new IllegalArgumentException("Can't find encryption key in key ring.");
+  /**
+   * Reads the private key that signs or decrypts the emails and its certificate chain from a
+   * PKCS#12 key store. The key is cached, so the key store is only decrypted once.
+   *
+   * @param keyStore the PKCS#12 key store.
+   * @param password the password of the key store and of the key.
+   * @return the private key and its certificate chain.
+   */
+  public KeyStore.PrivateKeyEntry loadSmimePrivateKey(byte[] keyStore, char[] password)
+      throws GeneralSecurityException, IOException {
+    return loadSmimePrivateKey(keyStore, password, EncryptListener.NONE);
+  }
+
+  /**
+   * Reads the private key of a PKCS#12 key store, reporting whether it was in the cache.
+   *
+   * @param keyStore the PKCS#12 key store.
+   * @param password the password of the key store and of the key.
+   * @param listener the listener of the hits of the cache.
+   * @return the private key and its certificate chain.
+   */
+  KeyStore.PrivateKeyEntry loadSmimePrivateKey(
+      byte[] keyStore, char[] password, EncryptListener listener)
+      throws GeneralSecurityException, IOException {
+    String id = secretId(keyStore, password);
+    KeyStore.PrivateKeyEntry entry = this.smimePrivateKeyCache.get(id);
+    listener.onKeyCache(entry != null);
+
+    if (entry == null) {
+      KeyStore store = KeyStore.getInstance("PKCS12");
+      store.load(new ByteArrayInputStream(keyStore), password);
+      for (String alias : Collections.list(store.aliases())) {
+        if (store.isKeyEntry(alias)
+            && store.getEntry(alias, new KeyStore.PasswordProtection(password))
+                instanceof KeyStore.PrivateKeyEntry key) {
+          entry = key;
+          break;
+        }
+      }
+      if (entry == null) {
+        throw new KeyStoreException("Can't find a private key in the key store.");
+      }
+      this.smimePrivateKeyCache.put(id, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Computes the identifier of a private key and its passphrase, so a key is only found in the
+   * cache with the passphrase it was decrypted with.
+   *
+   * @param encoded the encoded private key.
+   * @param passphrase the passphrase of the key.
+   * @return the hex encoded SHA-256 hash of the key and the passphrase.
+   */
+  private static String secretId(byte[] encoded, char[] passphrase) {
+    ByteBuffer secret = StandardCharsets.UTF_8.encode(CharBuffer.wrap(passphrase));
+    byte[] data = Arrays.copyOf(encoded, encoded.length + secret.remaining());
+    secret.get(data, encoded.length, secret.remaining());
+    try {
+      return KeyCache.contentId(data);
+    } finally {
+      Arrays.fill(data, (byte) 0);
+      Arrays.fill(secret.array(), (byte) 0);
+    }
+  }
+
+  /**
+   * Removes the given key from the caches, so it is parsed again the next time it is used.
+   *
+   * @param puk the public key / certificate to remove.
+   */
+  public void invalidate(byte[] puk) {
+    String id = KeyCache.contentId(puk);
+    this.pgpKeyCache.invalidate(id);
+    this.keyRingCache.invalidate(id);
+    this.certificateCache.invalidate(id);
+  }
+
+  /** Removes all the keys from the caches. */
+  public void invalidateAll() {
+    this.pgpKeyCache.invalidateAll();
+    this.keyRingCache.invalidateAll();
+    this.certificateCache.invalidateAll();
+    this.pgpSigningKeyCache.invalidateAll();
+    this.pgpPrivateKeyCache.invalidateAll();
+    this.smimePrivateKeyCache.invalidateAll();
+  }
+
+  /**
+   * Gets the cache of the parsed 'PGP' keys, so it can be configured and monitored.
+   *
+   * @return the cache of 'PGP' keys.
+   */
+  public KeyCache<PGPPublicKey> getPgpKeyCache() {
+    return this.pgpKeyCache;
+  }
+
+  /**
+   * Gets the cache of the parsed 'SMIME' certificates, so it can be configured and monitored.
+   *
+   * @return the cache of 'SMIME' certificates.
+   */
+  public KeyCache<X509Certificate> getCertificateCache() {
+    return this.certificateCache;
+  }
+
+  /**
+   * Gets the cache of the decrypted 'PGP' signing keys, so it can be configured and monitored.
+   *
+   * @return the cache of 'PGP' signing keys.
+   */
+  public KeyCache<PGPKeyPair> getPgpSigningKeyCache() {
+    return this.pgpSigningKeyCache;
+  }
+
+  /**
+   * Gets the cache of the decrypted 'PGP' keys that decrypt the emails, so it can be configured and
+   * monitored.
+   *
+   * @return the cache of 'PGP' private keys.
+   */
+  public KeyCache<PGPPrivateKey> getPgpPrivateKeyCache() {
+    return this.pgpPrivateKeyCache;
+  }
+
+  /**
+   * Gets the cache of the 'SMIME' private keys read from key stores, used to sign and to decrypt
+   * the emails, so it can be configured and monitored.
+   *
+   * @return the cache of 'SMIME' private keys.
+   */
+  public KeyCache<KeyStore.PrivateKeyEntry> getSmimePrivateKeyCache() {
+    return this.smimePrivateKeyCache;
   }
 }
@@ -0,0 +1,101 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Parses the messages read by the decryptors. In streaming mode the message is written to a
+ * temporary file and parsed from a shared stream, so the parts are read from the file when they are
+ * used and the message is never held in memory; otherwise it's parsed straight from the stream.
+ */
+final class MessageSpool {
+  /** The session of the parsed messages, they are never sent. */
+  private static final Session SESSION = Session.getInstance(new Properties());
+
+  private MessageSpool() {}
+
+  /**
+   * Parses a message, writing it to a temporary file first in streaming mode.
+   *
+   * @param in the stream of the message, read to its end.
+   * @param options the options with the streaming mode and the temporary directory.
+   * @return the message.
+   */
+  static MimeMessage read(InputStream in, EncryptOptions options)
+      throws IOException, MessagingException {
+    if (!options.isStreaming()) {
+      return new MimeMessage(SESSION, in);
+    }
+
+    TempFileDataSource spool =
+        TempFileDataSource.create(options.getTempDirectory(), "message/rfc822", "message.eml");
+    try {
+      try (OutputStream out =
+          new PooledBufferedOutputStream(spool.getOutputStream(), options.getBufferPool())) {
+        in.transferTo(out);
+      }
+      return new SpooledMessage(spool);
+    } catch (IOException | MessagingException | RuntimeException ex) {
+      spool.delete();
+      throw ex;
+    }
+  }
+
+  /**
+   * Deletes the temporary file of a message right away, once it isn't needed anymore. Otherwise the
+   * file is deleted when the message is no longer referenced.
+   *
+   * @param message the message read by {@link #read(InputStream, EncryptOptions)}.
+   */
+  static void discard(MimeMessage message) throws IOException {
+    if (message instanceof SpooledMessage spooled) {
+      spooled.discard();
+    }
+  }
+
+  /**
+   * Deletes the temporary file of a message that won't be returned because of a failure. If the
+   * file can't be deleted, the error is added to the failure instead of hiding it.
+   *
+   * @param message the message read by {@link #read(InputStream, EncryptOptions)}, or null.
+   * @param failure the failure that is being thrown.
+   */
+  static void discard(MimeMessage message, Exception failure) {
+    try {
+      discard(message);
+    } catch (IOException ex) {
+      failure.addSuppressed(ex);
+    }
+  }
+
+  /** A message parsed from a temporary file, which is kept as long as the message. */
+  private static final class SpooledMessage extends MimeMessage {
+    private final TempFileDataSource spool;
+    private final SharedFileInputStream file;
+
+    SpooledMessage(TempFileDataSource spool) throws IOException, MessagingException {
+      this(spool, new SharedFileInputStream(spool.getFile().toFile()));
+    }
+
+    private SpooledMessage(TempFileDataSource spool, SharedFileInputStream file)
+        throws MessagingException {
+      super(SESSION, file);
+      this.spool = spool;
+      this.file = file;
+    }
+
+    void discard() throws IOException {
+      try {
+        this.file.close();
+      } finally {
+        this.spool.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that counts the bytes written to the wrapped stream and, optionally, the time spent
+ * writing them. It's placed between the layers of the 'PGP' streams; the time spent in the next
+ * metered layer is subtracted, so every layer only accounts for its own work.
+ */
+final class MeteredOutputStream extends FilterOutputStream {
+  private final boolean owner;
+  private final boolean timed;
+  private final MeteredOutputStream next;
+  private long count;
+  private long nanos;
+  private long ownNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param out the wrapped stream.
+   * @param owner whether closing this stream closes the wrapped stream, or only flushes it.
+   * @param timed whether the time spent writing is measured.
+   * @param next the metered stream the wrapped stream writes to, or null if there is none.
+   */
+  MeteredOutputStream(OutputStream out, boolean owner, boolean timed, MeteredOutputStream next) {
+    super(out);
+    this.owner = owner;
+    this.timed = timed;
+    this.next = next;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (!this.timed) {
+      this.out.write(b);
+    } else {
+      long start = this.start();
+      this.out.write(b);
+      this.stop(start);
+    }
+    this.count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (!this.timed) {
+      this.out.write(b, off, len);
+    } else {
+      long start = this.start();
+      this.out.write(b, off, len);
+      this.stop(start);
+    }
+    this.count += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (!this.timed) {
+      this.out.flush();
+    } else {
+      long start = this.start();
+      this.out.flush();
+      this.stop(start);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!this.owner) {
+      this.flush();
+    } else if (!this.timed) {
+      this.out.close();
+    } else {
+      long start = this.start();
+      this.out.close();
+      this.stop(start);
+    }
+  }
+
+  private long start() {
+    // The time of the next layer is taken before, so it can be subtracted
+    this.ownNanos += (this.next != null) ? this.next.nanos : 0;
+    return System.nanoTime();
+  }
+
+  private void stop(long start) {
+    long elapsed = System.nanoTime() - start;
+    this.nanos += elapsed;
+    this.ownNanos += elapsed - ((this.next != null) ? this.next.nanos : 0);
+  }
+
+  /**
+   * Gets the number of bytes written.
+   *
+   * @return the number of bytes written.
+   */
+  long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Gets the time spent writing, including the time of the next layers.
+   *
+   * @return the time in nanoseconds, or 0 if the stream isn't timed.
+   */
+  long getNanos() {
+    return this.nanos;
+  }
+
+  /**
+   * Gets the time spent writing in this layer only, i.e. without the time of the next layer.
+   *
+   * @return the time in nanoseconds, or 0 if the stream isn't timed.
+   */
+  long getOwnNanos() {
+    return this.ownNanos;
+  }
+}
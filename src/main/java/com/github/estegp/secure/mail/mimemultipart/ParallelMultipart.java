@@ -0,0 +1,184 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Multipart whose body parts are serialized in parallel. Serializing a body part runs its transfer
+ * encoding (e.g. base64 for the attachments), which is most of the cost of serializing a message
+ * with many big attachments. Every body part is encoded into its own buffer on a fork-join pool,
+ * and the multipart is written in order as the buffers are ready, so it streams into the encryption
+ * while the next body parts are still being encoded.
+ *
+ * <p>The multipart is written byte by byte like the multipart it encodes: same boundary, preamble
+ * and body parts. It only stands in for it while the message is encrypted; the body parts are read
+ * from it, and it isn't modified. The buffers are kept until the multipart is closed, so it can be
+ * written more than once.
+ */
+final class ParallelMultipart extends MimeMultipart implements Closeable {
+  /** The line separator of the multipart. */
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private final MimeMultipart source;
+  private final List<CompletableFuture<ChunkedBuffer>> parts;
+  private volatile boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param source the multipart to encode.
+   */
+  private ParallelMultipart(MimeMultipart source) throws MessagingException {
+    super();
+    this.source = source;
+    this.contentType = source.getContentType();
+    this.parts = new ArrayList<>(source.getCount());
+  }
+
+  /**
+   * Starts encoding the body parts of the multipart on the pool. The headers of the body parts are
+   * updated first, as saving the message would.
+   *
+   * @param source the multipart to encode.
+   * @param pool the pool where the body parts are encoded.
+   * @return the multipart that writes the encoded body parts.
+   */
+  static ParallelMultipart encode(MimeMultipart source, ForkJoinPool pool)
+      throws MessagingException {
+    Part parent = source.getParent();
+    MimeMessage holder = new MimeMessage((Session) null);
+    holder.setContent(source);
+    holder.saveChanges();
+    source.setParent(parent);
+
+    ParallelMultipart multipart = new ParallelMultipart(source);
+    for (int i = 0; i < source.getCount(); i++) {
+      BodyPart part = source.getBodyPart(i);
+      multipart.parts.add(CompletableFuture.supplyAsync(() -> multipart.encode(part), pool));
+    }
+    return multipart;
+  }
+
+  /**
+   * Encodes a body part into a buffer, unless the multipart was already closed.
+   *
+   * @param part the body part.
+   * @return the buffer, or null if the multipart was closed.
+   */
+  private ChunkedBuffer encode(BodyPart part) {
+    if (this.closed) {
+      return null;
+    }
+    ChunkedBuffer buffer = new ChunkedBuffer(BufferStrategy.heap(), null);
+    try {
+      part.writeTo(buffer.getOutputStream());
+      return buffer;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } catch (MessagingException ex) {
+      throw new CompletionException(ex);
+    }
+  }
+
+  @Override
+  public synchronized void writeTo(OutputStream os) throws IOException, MessagingException {
+    byte[] boundary =
+        ("--" + new ContentType(this.contentType).getParameter("boundary"))
+            .getBytes(StandardCharsets.US_ASCII);
+    String preamble = this.source.getPreamble();
+    if (preamble != null) {
+      byte[] bytes = preamble.getBytes(StandardCharsets.US_ASCII);
+      os.write(bytes);
+      // The preamble ends with a new line
+      if (bytes.length > 0 && bytes[bytes.length - 1] != '\r' && bytes[bytes.length - 1] != '\n') {
+        os.write(CRLF);
+      }
+    }
+
+    for (CompletableFuture<ChunkedBuffer> part : this.parts) {
+      os.write(boundary);
+      os.write(CRLF);
+      join(part).writeTo(os);
+      os.write(CRLF);
+    }
+    os.write(boundary);
+    os.write(new byte[] {'-', '-'});
+    os.write(CRLF);
+  }
+
+  /**
+   * Waits until a body part is encoded.
+   *
+   * @param part the encoding of the body part.
+   * @return the buffer of the body part.
+   */
+  private ChunkedBuffer join(CompletableFuture<ChunkedBuffer> part)
+      throws IOException, MessagingException {
+    if (this.closed) {
+      throw new IOException("The multipart is closed.");
+    }
+    try {
+      return part.join();
+    } catch (CompletionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof UncheckedIOException unchecked) {
+        throw unchecked.getCause();
+      }
+      if (cause instanceof MessagingException messaging) {
+        throw messaging;
+      }
+      throw ex;
+    }
+  }
+
+  @Override
+  public int getCount() throws MessagingException {
+    return this.source.getCount();
+  }
+
+  @Override
+  public BodyPart getBodyPart(int index) throws MessagingException {
+    return this.source.getBodyPart(index);
+  }
+
+  /** The headers of the body parts were updated before they were encoded. */
+  @Override
+  protected void updateHeaders() {
+    // Nothing to update
+  }
+
+  /** Releases the buffers of the body parts, the ones still being encoded once they are done. */
+  @Override
+  public void close() {
+    this.closed = true;
+    for (CompletableFuture<ChunkedBuffer> part : this.parts) {
+      part.thenAccept(ParallelMultipart::release);
+    }
+  }
+
+  private static void release(ChunkedBuffer buffer) {
+    try {
+      if (buffer != null) {
+        buffer.close();
+      }
+    } catch (IOException ex) {
+      // The heap buffers have no file to close
+      throw new UncheckedIOException(ex);
+    }
+  }
+}
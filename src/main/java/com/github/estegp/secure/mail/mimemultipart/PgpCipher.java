@@ -0,0 +1,28 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import org.bouncycastle.openpgp.PGPEncryptedData;
+
+/** The symmetric algorithms of the 'PGP' encrypted data [rfc4880]. */
+public enum PgpCipher {
+  /** CAST5, the default, kept for the old clients. It isn't hardware accelerated. */
+  CAST5(PGPEncryptedData.CAST5),
+  /** AES with a 128 bits key. */
+  AES_128(PGPEncryptedData.AES_128),
+  /** AES with a 256 bits key. */
+  AES_256(PGPEncryptedData.AES_256);
+
+  private final int algorithm;
+
+  PgpCipher(int algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Gets the 'PGP' identifier of the algorithm.
+   *
+   * @return the identifier of the algorithm.
+   */
+  int getAlgorithm() {
+    return this.algorithm;
+  }
+}
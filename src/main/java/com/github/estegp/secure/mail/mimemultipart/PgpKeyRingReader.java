@@ -0,0 +1,247 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+
+/**
+ * Lazy reader of a 'PGP' key ring collection. The key rings are parsed one by one, only until the
+ * one looked up is found, and indexed by the email addresses of their user ids and by the ids and
+ * fingerprints of their keys, so the next lookups of a parsed key ring don't read it again.
+ *
+ * <p>The encryption key of a key ring is its newest encryption subkey that is neither revoked nor
+ * expired; the master key is only used if it's an encryption key and there is no valid subkey. The
+ * key rings whose master key is revoked or expired are skipped. The revocations aren't verified,
+ * the key rings are expected to come from a trusted source. The reader is thread safe.
+ */
+public final class PgpKeyRingReader {
+  private final PGPObjectFactory factory;
+
+  /** The key rings parsed so far, in the order of the collection. */
+  private final List<PGPPublicKeyRing> rings = new ArrayList<>();
+
+  /** The parsed key rings by their normalized ids. */
+  private final Map<String, List<PGPPublicKeyRing>> index = new HashMap<>();
+
+  private boolean exhausted;
+
+  /**
+   * Constructor. The key rings aren't parsed until they are looked up.
+   *
+   * @param keyRings the armored or binary key ring collection.
+   */
+  public PgpKeyRingReader(byte[] keyRings) throws IOException {
+    this.factory =
+        new PGPObjectFactory(
+            PGPUtil.getDecoderStream(new ByteArrayInputStream(keyRings.clone())),
+            new JcaKeyFingerprintCalculator());
+  }
+
+  /**
+   * Selects the encryption key of a key ring.
+   *
+   * @param ring the key ring.
+   * @param now the time at which the keys must be valid.
+   * @return the newest valid encryption key, or null if the key ring has none.
+   */
+  public static PGPPublicKey selectEncryptionKey(PGPPublicKeyRing ring, Instant now) {
+    PGPPublicKey master = ring.getPublicKey();
+    if (!isValid(master, now)) {
+      return null;
+    }
+
+    PGPPublicKey selected = null;
+    Iterator<PGPPublicKey> keys = ring.getPublicKeys();
+    while (keys.hasNext()) {
+      PGPPublicKey key = keys.next();
+      if (!key.isMasterKey()
+          && key.isEncryptionKey()
+          && isValid(key, now)
+          && (selected == null || key.getCreationTime().after(selected.getCreationTime()))) {
+        selected = key;
+      }
+    }
+    return (selected == null && master.isEncryptionKey()) ? master : selected;
+  }
+
+  /**
+   * Selects the signing key of a secret key ring: its master key, or the newest valid signing
+   * subkey if the master key can't sign.
+   *
+   * @param ring the secret key ring.
+   * @param now the time at which the keys must be valid.
+   * @return the signing key, or null if the key ring has none.
+   */
+  public static PGPSecretKey selectSigningKey(PGPSecretKeyRing ring, Instant now) {
+    PGPSecretKey master = ring.getSecretKey();
+    if (!isValid(master.getPublicKey(), now)) {
+      return null;
+    }
+    if (master.isSigningKey() && !master.isPrivateKeyEmpty()) {
+      return master;
+    }
+
+    PGPSecretKey selected = null;
+    Iterator<PGPSecretKey> keys = ring.getSecretKeys();
+    while (keys.hasNext()) {
+      PGPSecretKey key = keys.next();
+      if (!key.isMasterKey()
+          && key.isSigningKey()
+          && !key.isPrivateKeyEmpty()
+          && isValid(key.getPublicKey(), now)
+          && (selected == null
+              || key.getPublicKey()
+                  .getCreationTime()
+                  .after(selected.getPublicKey().getCreationTime()))) {
+        selected = key;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Whether the key is neither revoked nor expired.
+   *
+   * @param key the key.
+   * @param now the time at which the key must be valid.
+   * @return true if the key is valid.
+   */
+  static boolean isValid(PGPPublicKey key, Instant now) {
+    if (key.hasRevocation()) {
+      return false;
+    }
+    long validSeconds = key.getValidSeconds();
+    return validSeconds <= 0
+        || key.getCreationTime().toInstant().plusSeconds(validSeconds).isAfter(now);
+  }
+
+  /**
+   * Finds the encryption key of the first key ring that has a valid one.
+   *
+   * @return the encryption key, or null if no key ring has a valid encryption key.
+   */
+  public PGPPublicKey findEncryptionKey() throws IOException {
+    return this.findEncryptionKey(Instant.now());
+  }
+
+  /**
+   * Finds the encryption key of the first key ring that has one valid at the given time.
+   *
+   * @param now the time at which the key must be valid, {@link Instant#MIN} to ignore the expiry.
+   * @return the encryption key, or null if no key ring has a valid encryption key.
+   */
+  public synchronized PGPPublicKey findEncryptionKey(Instant now) throws IOException {
+    for (PGPPublicKeyRing ring : this.rings) {
+      PGPPublicKey key = selectEncryptionKey(ring, now);
+      if (key != null) {
+        return key;
+      }
+    }
+    for (PGPPublicKeyRing ring = this.next(); ring != null; ring = this.next()) {
+      PGPPublicKey key = selectEncryptionKey(ring, now);
+      if (key != null) {
+        return key;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the encryption key of a recipient. If several key rings of the recipient were parsed, the
+   * newest valid encryption key of all of them is used.
+   *
+   * @param recipient the email address or the key id / fingerprint of the recipient.
+   * @return the encryption key, or null if the recipient has no valid encryption key.
+   */
+  public PGPPublicKey findEncryptionKey(String recipient) throws IOException {
+    PGPPublicKeyRing ring = this.findKeyRing(recipient);
+    return (ring != null) ? selectEncryptionKey(ring, Instant.now()) : null;
+  }
+
+  /**
+   * Finds the key ring of a recipient with a valid encryption key.
+   *
+   * @param recipient the email address or the key id / fingerprint of the recipient.
+   * @return the key ring, or null if the recipient has no valid encryption key.
+   */
+  public synchronized PGPPublicKeyRing findKeyRing(String recipient) throws IOException {
+    final String id = RecipientIds.normalize(recipient);
+    final Instant now = Instant.now();
+    PGPPublicKeyRing found = null;
+    PGPPublicKey newest = null;
+    for (PGPPublicKeyRing ring : this.index.getOrDefault(id, List.of())) {
+      PGPPublicKey key = selectEncryptionKey(ring, now);
+      if (key != null
+          && (newest == null || key.getCreationTime().after(newest.getCreationTime()))) {
+        found = ring;
+        newest = key;
+      }
+    }
+
+    while (found == null) {
+      PGPPublicKeyRing ring = this.next();
+      if (ring == null) {
+        return null;
+      }
+      if (RecipientIds.names(ring).contains(id) && selectEncryptionKey(ring, now) != null) {
+        found = ring;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Parses all the remaining key rings.
+   *
+   * @return all the key rings of the collection.
+   */
+  public synchronized List<PGPPublicKeyRing> readAll() throws IOException {
+    PGPPublicKeyRing ring = this.next();
+    while (ring != null) {
+      ring = this.next();
+    }
+    return List.copyOf(this.rings);
+  }
+
+  /**
+   * Gets the number of key rings parsed so far.
+   *
+   * @return the number of parsed key rings.
+   */
+  public synchronized int getParsedCount() {
+    return this.rings.size();
+  }
+
+  /**
+   * Parses the next key ring and indexes it. The other objects of the collection are skipped.
+   *
+   * @return the key ring, or null at the end of the collection.
+   */
+  private PGPPublicKeyRing next() throws IOException {
+    while (!this.exhausted) {
+      Object object = this.factory.nextObject();
+      if (object == null) {
+        this.exhausted = true;
+      } else if (object instanceof PGPPublicKeyRing ring) {
+        this.rings.add(ring);
+        for (String name : RecipientIds.names(ring)) {
+          this.index.computeIfAbsent(name, key -> new ArrayList<>(1)).add(ring);
+        }
+        return ring;
+      }
+    }
+    return null;
+  }
+}
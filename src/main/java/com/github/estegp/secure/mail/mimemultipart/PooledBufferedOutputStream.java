@@ -0,0 +1,83 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output stream whose buffer is taken from a {@link BufferPool}, and given back when the
+ * stream is closed.
+ */
+final class PooledBufferedOutputStream extends FilterOutputStream {
+  private final BufferPool pool;
+  private byte[] buffer;
+  private int count;
+
+  /**
+   * Constructor.
+   *
+   * @param out the wrapped stream, closed with this stream.
+   * @param pool the pool of the buffer.
+   */
+  PooledBufferedOutputStream(OutputStream out, BufferPool pool) {
+    super(out);
+    this.pool = pool;
+    this.buffer = pool.acquire();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (this.count == this.buffer().length) {
+      this.flushBuffer();
+    }
+    this.buffer[this.count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len >= this.buffer().length) {
+      // Bigger than the buffer, it's written straight away
+      this.flushBuffer();
+      this.out.write(b, off, len);
+      return;
+    }
+    if (len > this.buffer.length - this.count) {
+      this.flushBuffer();
+    }
+    System.arraycopy(b, off, this.buffer, this.count, len);
+    this.count += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    this.flushBuffer();
+    this.out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.buffer == null) {
+      return;
+    }
+    try {
+      super.close();
+    } finally {
+      this.pool.release(this.buffer);
+      this.buffer = null;
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (this.count > 0) {
+      this.out.write(this.buffer(), 0, this.count);
+      this.count = 0;
+    }
+  }
+
+  private byte[] buffer() throws IOException {
+    if (this.buffer == null) {
+      throw new IOException("The stream is closed.");
+    }
+    return this.buffer;
+  }
+}
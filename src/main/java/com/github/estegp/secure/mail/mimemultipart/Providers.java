@@ -0,0 +1,53 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.security.Provider;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Resolves the security providers of the encryptors. The providers are resolved once, when the
+ * options are built, and the encryptors hand the {@link Provider} instance to the BouncyCastle
+ * builders: a provider given by its name is looked up in the provider list of the JCA, which is
+ * synchronized, every time a cipher is created.
+ */
+final class Providers {
+  /** The BouncyCastle provider, installed in the JCA the first time it's used. */
+  static final Provider BOUNCY_CASTLE = install();
+
+  private Providers() {}
+
+  /**
+   * Installs the BouncyCastle provider, unless it's already installed. When another thread or
+   * library installs it at the same time, the first installed instance is used.
+   *
+   * @return the installed provider.
+   */
+  private static Provider install() {
+    Provider installed = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+    if (installed == null) {
+      Security.addProvider(new BouncyCastleProvider());
+      installed = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+    }
+    return installed;
+  }
+
+  /**
+   * Resolves a provider by its name.
+   *
+   * @param name the name of the provider, or null.
+   * @return the provider, or null to use the providers installed in the JCA.
+   */
+  static Provider resolve(String name) {
+    if (name == null) {
+      return null;
+    }
+    if (BouncyCastleProvider.PROVIDER_NAME.equals(name)) {
+      return BOUNCY_CASTLE;
+    }
+    Provider provider = Security.getProvider(name);
+    if (provider == null) {
+      throw new IllegalArgumentException("The security provider " + name + " isn't installed.");
+    }
+    return provider;
+  }
+}
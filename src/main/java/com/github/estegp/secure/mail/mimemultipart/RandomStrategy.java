@@ -0,0 +1,193 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+/**
+ * The source of randomness of the session keys, the initialization vectors and the padding of the
+ * encrypted messages. Every strategy is created once and shared by all the encryptors that use it,
+ * so a message never seeds a new generator.
+ *
+ * <p>The DRBGs are 'CTR_DRBG' with 'AES-256' [SP 800-90A]. They are seeded from a single pool of
+ * entropy, the shared {@link SecureRandom} of the JDK, which is seeded once by the operating
+ * system; creating or reseeding a DRBG doesn't read the entropy of the system, which may block on a
+ * fresh container.
+ */
+public enum RandomStrategy {
+  /** A {@link SecureRandom} of the JDK shared by all the threads. The default. */
+  SHARED {
+    @Override
+    public SecureRandom getSecureRandom() {
+      return Entropy.POOL;
+    }
+  },
+
+  /**
+   * A DRBG shared by all the threads. It's synchronized, so the threads compete for it when many
+   * messages are encrypted at the same time.
+   */
+  SHARED_DRBG {
+    @Override
+    public SecureRandom getSecureRandom() {
+      return SharedDrbg.RANDOM;
+    }
+  },
+
+  /**
+   * A DRBG per thread, so the threads don't compete for the same generator. The DRBGs are split in
+   * stripes picked by the id of the thread, as the {@link BufferPool}, and created the first time a
+   * stripe is used: there are a few per processor, even with a virtual thread per message.
+   */
+  PER_THREAD_DRBG {
+    @Override
+    public SecureRandom getSecureRandom() {
+      return StripedDrbg.RANDOM;
+    }
+  };
+
+  /**
+   * Gets the source of randomness of the strategy, shared by all the callers.
+   *
+   * @return the thread safe source of randomness.
+   */
+  public abstract SecureRandom getSecureRandom();
+
+  /**
+   * Creates a DRBG seeded from the pool of entropy.
+   *
+   * @return the DRBG.
+   */
+  private static SecureRandom newDrbg() {
+    byte[] nonce = new byte[16];
+    Entropy.POOL.nextBytes(nonce);
+    return new SP800SecureRandomBuilder(Entropy::source)
+        .buildCTR(AESEngine.newInstance(), 256, nonce, false);
+  }
+
+  /** The pool of entropy of the DRBGs. */
+  private static final class Entropy {
+    static final SecureRandom POOL = new SecureRandom();
+
+    private Entropy() {}
+
+    /**
+     * Gets a source of the entropy of a DRBG, read from the pool.
+     *
+     * @param bits the bits of entropy of every seed.
+     * @return the source of the seeds.
+     */
+    static EntropySource source(int bits) {
+      return new EntropySource() {
+        @Override
+        public boolean isPredictionResistant() {
+          return false;
+        }
+
+        @Override
+        public byte[] getEntropy() {
+          byte[] seed = new byte[(bits + 7) / 8];
+          POOL.nextBytes(seed);
+          return seed;
+        }
+
+        @Override
+        public int entropySize() {
+          return bits;
+        }
+      };
+    }
+  }
+
+  /** The DRBG shared by all the threads, created the first time it's used. */
+  private static final class SharedDrbg {
+    static final SecureRandom RANDOM = newDrbg();
+
+    private SharedDrbg() {}
+  }
+
+  /** The DRBGs of the stripes of threads, created the first time they are used. */
+  private static final class StripedDrbg {
+    static final SecureRandom RANDOM = new StripedRandom();
+
+    private StripedDrbg() {}
+  }
+
+  /**
+   * A {@link SecureRandom} that hands every call to the DRBG of the stripe of the calling thread.
+   * The calls aren't synchronized here, unlike a {@link SecureRandom} of a provider that isn't
+   * marked as thread safe; every DRBG is synchronized on its own.
+   */
+  private static final class StripedRandom extends SecureRandom {
+    private static final long serialVersionUID = 1L;
+
+    private static final int STRIPES =
+        Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+
+    private static final AtomicReferenceArray<SecureRandom> DRBGS =
+        new AtomicReferenceArray<>(STRIPES);
+
+    StripedRandom() {
+      super(new Spi(), null);
+    }
+
+    /**
+     * Gets the DRBG of the stripe of the calling thread, creating it if it's the first use.
+     *
+     * @return the DRBG.
+     */
+    static SecureRandom current() {
+      int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+      SecureRandom drbg = DRBGS.get(stripe);
+      if (drbg == null) {
+        // Two threads may create the DRBG of a stripe at the same time, the first one is kept
+        DRBGS.compareAndSet(stripe, null, newDrbg());
+        drbg = DRBGS.get(stripe);
+      }
+      return drbg;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return "CTR_DRBG";
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+      current().nextBytes(bytes);
+    }
+
+    @Override
+    public byte[] generateSeed(int numBytes) {
+      return current().generateSeed(numBytes);
+    }
+
+    @Override
+    public void setSeed(byte[] seed) {
+      current().setSeed(seed);
+    }
+
+    /** The service of the calls that aren't handed over directly. */
+    private static final class Spi extends SecureRandomSpi {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void engineSetSeed(byte[] seed) {
+        current().setSeed(seed);
+      }
+
+      @Override
+      protected void engineNextBytes(byte[] bytes) {
+        current().nextBytes(bytes);
+      }
+
+      @Override
+      protected byte[] engineGenerateSeed(int numBytes) {
+        return current().generateSeed(numBytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+
+/**
+ * The ids used to look up the keys of the recipients: email addresses, key ids and fingerprints.
+ */
+final class RecipientIds {
+
+  private RecipientIds() {}
+
+  /**
+   * Normalizes an email address or a key id, so it can be looked up in an index.
+   *
+   * @param recipient the email address or the key id / fingerprint.
+   * @return the lower case email address, or the upper case hex id.
+   */
+  static String normalize(String recipient) {
+    String id = recipient.strip();
+    int open = id.lastIndexOf('<');
+    int close = id.lastIndexOf('>');
+    if (open >= 0 && close > open) {
+      id = id.substring(open + 1, close).strip();
+    }
+    if (id.indexOf('@') >= 0) {
+      return id.toLowerCase(Locale.ROOT);
+    }
+    id = id.replace(" ", "").replace(":", "");
+    if (id.startsWith("0x") || id.startsWith("0X")) {
+      id = id.substring(2);
+    }
+    return id.toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * Gets the normalized ids of a 'PGP' key ring: the email addresses of its user ids, and the key
+   * id and the fingerprint of every key of the ring.
+   *
+   * @param ring the key ring.
+   * @return the ids of the key ring.
+   */
+  static Set<String> names(PGPPublicKeyRing ring) {
+    Set<String> names = new LinkedHashSet<>();
+    Iterator<PGPPublicKey> keys = ring.getPublicKeys();
+    while (keys.hasNext()) {
+      PGPPublicKey key = keys.next();
+      names.add(String.format("%016X", key.getKeyID()));
+      names.add(HexFormat.of().withUpperCase().formatHex(key.getFingerprint()));
+    }
+    Iterator<String> userIds = ring.getPublicKey().getUserIDs();
+    while (userIds.hasNext()) {
+      String userId = userIds.next();
+      if (userId.indexOf('@') >= 0) {
+        names.add(normalize(userId));
+      }
+    }
+    return names;
+  }
+}
@@ -0,0 +1,55 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Store of the keys of the recipients, indexed by their email addresses and by the ids of their
+ * keys. The store keeps an encryptor ready for every key, so a message can be encrypted without
+ * reading or parsing the key again. The implementations are thread safe, and can be reloaded while
+ * they are used.
+ *
+ * <p>A recipient is looked up by its email address, also in the form {@code Name <email>}, or by
+ * the hex encoded id or fingerprint of its key; the case, the spaces and the {@code 0x} prefix of
+ * the ids are ignored.
+ */
+public interface RecipientKeyStore {
+
+  /**
+   * Gets the encryptor of the given recipient.
+   *
+   * @param recipient the email address or the key id / fingerprint of the recipient.
+   * @return the encryptor, or null if the store has no key for the recipient.
+   */
+  EncryptMail getEncryptor(String recipient);
+
+  /**
+   * Gets an encryptor that encrypts the messages once for all the given recipients. The keys of the
+   * recipients must be of the same type.
+   *
+   * @param recipients the email addresses or the key ids / fingerprints of the recipients.
+   * @return the encryptor, or null if the store has no key for one of the recipients.
+   */
+  EncryptMail getEncryptor(Collection<String> recipients);
+
+  /**
+   * Gets the encoded key of the given recipient.
+   *
+   * @param recipient the email address or the key id / fingerprint of the recipient.
+   * @return a copy of the encoded key, or null if the store has no key for the recipient.
+   */
+  byte[] getKey(String recipient);
+
+  /**
+   * Gets the number of keys in the store.
+   *
+   * @return the number of keys.
+   */
+  int size();
+
+  /**
+   * Loads the keys again. The lookups keep using the previous keys until the new ones are loaded;
+   * if the keys can't be loaded, the previous keys are kept.
+   */
+  void reload() throws IOException;
+}
@@ -0,0 +1,139 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.Certificate;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+
+/**
+ * The private key that signs the emails before they are encrypted. The key is parsed once, when the
+ * encryptor prepares its recipients, and cached by {@link KeyLoadManager} like the public keys.
+ *
+ * <ul>
+ *   <li>{@link #pgp(byte[], char[])}: a 'PGP' secret key ring. The message is signed with a
+ *       one-pass signature inside the encrypted data.
+ *   <li>{@link #pkcs12(byte[], char[])} and {@link #smime(byte[], PrivateKey)}: an 'SMIME' key and
+ *       certificate. The message is signed with an encapsulated signature inside the envelope.
+ * </ul>
+ *
+ * <p>The messages are signed with SHA-256. The key and its passphrase are kept in memory as long as
+ * the signing key is referenced.
+ */
+public final class SigningKey {
+  private final boolean pgp;
+  private final byte[] encoded;
+  private final char[] passphrase;
+  private final PrivateKey privateKey;
+
+  /**
+   * Constructor.
+   *
+   * @param pgp whether the key is a 'PGP' key.
+   * @param encoded the secret key ring, the key store or the certificate.
+   * @param passphrase the passphrase of the key, or null.
+   * @param privateKey the private key of the certificate, or null.
+   */
+  private SigningKey(boolean pgp, byte[] encoded, char[] passphrase, PrivateKey privateKey) {
+    if (encoded == null) {
+      throw new IllegalArgumentException("The signing key can't be null.");
+    }
+    this.pgp = pgp;
+    this.encoded = encoded.clone();
+    this.passphrase = (passphrase != null) ? passphrase.clone() : new char[0];
+    this.privateKey = privateKey;
+  }
+
+  /**
+   * Gets a 'PGP' signing key. The signing key is the master key of the first key ring, or its
+   * newest valid signing subkey if the master key can't sign.
+   *
+   * @param secretKeyRing the armored or binary secret key ring.
+   * @param passphrase the passphrase of the secret key.
+   * @return the signing key.
+   */
+  public static SigningKey pgp(byte[] secretKeyRing, char[] passphrase) {
+    return new SigningKey(true, secretKeyRing, passphrase, null);
+  }
+
+  /**
+   * Gets an 'SMIME' signing key from a PKCS#12 key store. The first private key of the key store
+   * and its certificate chain are used.
+   *
+   * @param keyStore the PKCS#12 key store.
+   * @param password the password of the key store and of the key.
+   * @return the signing key.
+   */
+  public static SigningKey pkcs12(byte[] keyStore, char[] password) {
+    return new SigningKey(false, keyStore, password, null);
+  }
+
+  /**
+   * Gets an 'SMIME' signing key.
+   *
+   * @param certificate the certificate of the signer, PEM or DER encoded.
+   * @param privateKey the private key of the certificate.
+   * @return the signing key.
+   */
+  public static SigningKey smime(byte[] certificate, PrivateKey privateKey) {
+    if (privateKey == null) {
+      throw new IllegalArgumentException("The private key can't be null.");
+    }
+    return new SigningKey(false, certificate, null, privateKey);
+  }
+
+  /**
+   * Whether the key is a 'PGP' key, or an 'SMIME' key.
+   *
+   * @return true if the key is a 'PGP' key.
+   */
+  public boolean isPgp() {
+    return this.pgp;
+  }
+
+  /**
+   * Gets the identifier of the key, to tell the messages signed with different keys apart.
+   *
+   * @return the content id of the encoded key, see {@link KeyCache#contentId(byte[])}.
+   */
+  String id() {
+    return KeyCache.contentId(this.encoded);
+  }
+
+  /**
+   * Loads the 'PGP' signing key.
+   *
+   * @param provider the security provider, or null to use the providers of the JCA.
+   * @param listener the listener of the hits of the cache.
+   * @return the public and private signing key.
+   */
+  PGPKeyPair loadPgp(Provider provider, EncryptListener listener) throws IOException, PGPException {
+    if (!this.pgp) {
+      throw new PGPException("The signing key is an SMIME key, not a PGP key.");
+    }
+    return KeyLoadManager.INSTANCE.loadPgpSigningKey(
+        this.encoded, this.passphrase, provider, listener);
+  }
+
+  /**
+   * Loads the 'SMIME' signing key.
+   *
+   * @param listener the listener of the hits of the cache.
+   * @return the private key and its certificate chain.
+   */
+  KeyStore.PrivateKeyEntry loadSmime(EncryptListener listener)
+      throws GeneralSecurityException, IOException {
+    if (this.pgp) {
+      throw new GeneralSecurityException("The signing key is a PGP key, not an SMIME key.");
+    }
+    if (this.privateKey == null) {
+      return KeyLoadManager.INSTANCE.loadSmimePrivateKey(this.encoded, this.passphrase, listener);
+    }
+    return new KeyStore.PrivateKeyEntry(
+        this.privateKey,
+        new Certificate[] {KeyLoadManager.INSTANCE.loadCertificate(this.encoded, listener)});
+  }
+}
@@ -0,0 +1,45 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.cms.CMSAlgorithm;
+
+/** The content encryption algorithms of the 'SMIME' encrypted data [rfc8551]. */
+public enum SmimeCipher {
+  /** RC2 in CBC mode, the default, kept for the old clients. It isn't hardware accelerated. */
+  RC2_CBC(CMSAlgorithm.RC2_CBC, false),
+  /** AES-128 in CBC mode, enveloped data. */
+  AES128_CBC(CMSAlgorithm.AES128_CBC, false),
+  /** AES-256 in CBC mode, enveloped data. */
+  AES256_CBC(CMSAlgorithm.AES256_CBC, false),
+  /** AES-128 in GCM mode, authenticated enveloped data [rfc5083]. */
+  AES128_GCM(CMSAlgorithm.AES128_GCM, true),
+  /** AES-256 in GCM mode, authenticated enveloped data [rfc5083]. */
+  AES256_GCM(CMSAlgorithm.AES256_GCM, true);
+
+  private final ASN1ObjectIdentifier algorithm;
+  private final boolean authenticated;
+
+  SmimeCipher(ASN1ObjectIdentifier algorithm, boolean authenticated) {
+    this.algorithm = algorithm;
+    this.authenticated = authenticated;
+  }
+
+  /**
+   * Gets the 'CMS' identifier of the algorithm.
+   *
+   * @return the identifier of the algorithm.
+   */
+  ASN1ObjectIdentifier getAlgorithm() {
+    return this.algorithm;
+  }
+
+  /**
+   * Whether the algorithm encrypts and authenticates the data, so it's sent as authenticated
+   * enveloped data.
+   *
+   * @return true for the authenticated algorithms.
+   */
+  boolean isAuthenticated() {
+    return this.authenticated;
+  }
+}
@@ -0,0 +1,19 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+/** The stages of the encryption of an email, timed by the {@link EncryptListener}. */
+public enum Stage {
+  /** Loading the keys of the recipients and the signing key, done once by every encryptor. */
+  KEY_LOAD,
+  /** Serializing the message, i.e. {@code MimeMessage.writeTo}, and the literal data packet. */
+  SERIALIZATION,
+  /** Compressing the message. */
+  COMPRESSION,
+  /** Encrypting the compressed message and the session key. */
+  ENCRYPTION,
+  /** Armoring the encrypted data. */
+  ARMOR,
+  /** Writing the encrypted data to memory or to the temporary file. */
+  OUTPUT,
+  /** Assembling the encrypted body part. */
+  ASSEMBLY
+}
@@ -0,0 +1,101 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.activation.DataSource;
+
+/**
+ * Data source backed by a temporary file. The file is deleted when the data source is no longer
+ * referenced, i.e. when the body part that contains it has been discarded.
+ */
+final class TempFileDataSource implements DataSource {
+  /** Deletes the files of the unreachable data sources. */
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private final Path file;
+  private final String contentType;
+  private final String name;
+  private final Cleaner.Cleanable cleanable;
+
+  /**
+   * Constructor.
+   *
+   * @param file the temporary file with the data.
+   * @param contentType the content type of the data.
+   * @param name the name of the data.
+   */
+  private TempFileDataSource(Path file, String contentType, String name) {
+    this.file = file;
+    this.contentType = contentType;
+    this.name = name;
+    this.cleanable = CLEANER.register(this, new Deleter(file));
+  }
+
+  /**
+   * Creates an empty temporary file and its data source.
+   *
+   * @param directory the directory of the file, or null to use the default temporary directory.
+   * @param contentType the content type of the data.
+   * @param name the name of the data.
+   * @return the data source.
+   */
+  static TempFileDataSource create(Path directory, String contentType, String name)
+      throws IOException {
+    Path file =
+        (directory != null)
+            ? Files.createTempFile(directory, "secure-mail", ".tmp")
+            : Files.createTempFile("secure-mail", ".tmp");
+    return new TempFileDataSource(file, contentType, name);
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return Files.newInputStream(this.file);
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return Files.newOutputStream(this.file);
+  }
+
+  @Override
+  public String getContentType() {
+    return this.contentType;
+  }
+
+  @Override
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * Gets the temporary file.
+   *
+   * @return the path of the file.
+   */
+  Path getFile() {
+    return this.file;
+  }
+
+  /** Deletes the file right away, e.g. when the encryption has failed. */
+  void delete() {
+    this.cleanable.clean();
+  }
+
+  /** Deletes the file, it can't reference the data source or it would never become unreachable. */
+  private record Deleter(Path file) implements Runnable {
+    @Override
+    public void run() {
+      try {
+        Files.deleteIfExists(this.file);
+      } catch (IOException ex) {
+        // The file may still be open, try again when the JVM exits
+        this.file.toFile().deleteOnExit();
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package com.github.estegp.secure.mail.batch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.EncryptListener;
+import com.github.estegp.secure.mail.mimemultipart.EncryptOptions;
+import com.github.estegp.secure.mail.mimemultipart.Stage;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.mail.MessagingException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class BatchEncryptorTest {
+
+  private static KeyBuilder.PgpKeys keys = null;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    BatchEncryptorTest.keys = KeyBuilder.pgp("to <to@mail.com>");
+  }
+
+  private static EncryptJob job(byte[] key) {
+    try {
+      return new EncryptJob(MailBuilder.buildContent(), MailBuilder.setGeneralData(), key);
+    } catch (MessagingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @Test
+  public void encryptsInOrder() throws Exception {
+    List<EncryptResult> results = new ArrayList<>();
+    try (BatchEncryptor batch = BatchEncryptor.builder().fixedPool(4).maxInFlight(8).build()) {
+      long count =
+          batch.encryptAll(
+              IntStream.range(0, 40).mapToObj(i -> job(BatchEncryptorTest.keys.publicKey())),
+              results::add);
+      assertEquals(40, count);
+    }
+
+    assertEquals(40, results.size());
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(i, results.get(i).getSequence());
+      assertTrue(results.get(i).isSuccess());
+    }
+    assertEquals(
+        "subject",
+        MailReader.decryptPgp(results.get(0).getPart(), BatchEncryptorTest.keys.secretKey())
+            .getSubject());
+  }
+
+  @Test
+  public void encryptsSmimeOnTheExecutor() throws Exception {
+    KeyBuilder.SmimeKeys smime = KeyBuilder.smime("to@mail.com");
+    Set<Thread> encrypting = ConcurrentHashMap.newKeySet();
+    EncryptListener listener =
+        new EncryptListener() {
+          @Override
+          public void onStage(Stage stage, long nanos) {
+            if (stage == Stage.ENCRYPTION) {
+              encrypting.add(Thread.currentThread());
+            }
+          }
+        };
+
+    List<EncryptResult> results = new ArrayList<>();
+    try (BatchEncryptor batch =
+        BatchEncryptor.builder()
+            .fixedPool(4)
+            .options(EncryptOptions.builder().listener(listener).build())
+            .build()) {
+      batch.encryptAll(IntStream.range(0, 8).mapToObj(i -> job(smime.certificate())), results::add);
+    }
+
+    // The data is encrypted by the jobs, not when the consumer writes the parts
+    assertFalse(encrypting.isEmpty());
+    assertFalse(encrypting.contains(Thread.currentThread()));
+    assertEquals(8, results.size());
+    for (EncryptResult result : results) {
+      assertTrue(result.isSuccess());
+      assertNotNull(MailReader.decryptSmime(result.getPart(), smime).getContent());
+    }
+  }
+
+  @Test
+  public void failedJobsDontStopTheBatch() throws Exception {
+    List<EncryptResult> results = new ArrayList<>();
+    try (BatchEncryptor batch =
+        BatchEncryptor.builder().virtualThreads().ordered(false).maxInFlight(2).build()) {
+      batch.encryptAll(
+          Stream.of(
+              job(BatchEncryptorTest.keys.publicKey()),
+              job("-----BEGIN PGP PUBLIC KEY BLOCK-----\nnot a key".getBytes()),
+              job(BatchEncryptorTest.keys.publicKey())),
+          results::add);
+    }
+
+    assertEquals(3, results.size());
+    assertEquals(2, results.stream().filter(EncryptResult::isSuccess).count());
+    EncryptResult failed =
+        results.stream().filter(result -> !result.isSuccess()).findFirst().orElseThrow();
+    assertEquals(1, failed.getSequence());
+    assertNotNull(failed.getError());
+    assertNull(failed.getPart());
+  }
+
+  @Test
+  public void boundsJobsInFlight() throws Exception {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try (BatchEncryptor batch =
+        BatchEncryptor.builder()
+            .executor(
+                task -> {
+                  maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                  executor.execute(task);
+                })
+            .maxInFlight(3)
+            .build()) {
+      batch.encryptAll(
+          IntStream.range(0, 20).mapToObj(i -> job(BatchEncryptorTest.keys.publicKey())),
+          result -> {
+            inFlight.decrementAndGet();
+            assertTrue(result.isSuccess());
+          });
+    } finally {
+      executor.close();
+    }
+    assertEquals(3, maxInFlight.get());
+  }
+}
@@ -0,0 +1,197 @@
+package com.github.estegp.secure.mail.batch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.DecryptMailPgp;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EncryptSpoolTest {
+
+  private static KeyBuilder.PgpKeys keys = null;
+
+  @TempDir Path directory;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    EncryptSpoolTest.keys = KeyBuilder.pgp("to <to@mail.com>");
+  }
+
+  private static EncryptJob job(byte[] key) throws Exception {
+    return new EncryptJob(MailBuilder.buildContent(), MailBuilder.setGeneralData(), key);
+  }
+
+  private static EncryptJob job(byte[] key, int size) throws Exception {
+    return new EncryptJob(MailBuilder.buildContent(size), MailBuilder.setGeneralData(), key);
+  }
+
+  private static long files(Path directory, String prefix) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().startsWith(prefix)).count();
+    }
+  }
+
+  @Test
+  public void encryptsTheSpooledMessages() throws Exception {
+    List<Long> ids = new ArrayList<>();
+    List<MimeMessage> decrypted = new ArrayList<>();
+    DecryptMailPgp decryptor =
+        new DecryptMailPgp(EncryptSpoolTest.keys.secretKey(), KeyBuilder.PASSPHRASE);
+    try (EncryptSpool spool =
+        EncryptSpool.builder().directory(this.directory).workers(2).segmentSize(1 << 16).build()) {
+      // The segments are smaller than a message, every message rolls the log
+      for (int i = 0; i < 10; i++) {
+        ids.add(spool.submit(job(EncryptSpoolTest.keys.publicKey(), 100_000)));
+      }
+      assertTrue(spool.awaitCompletion(Duration.ofMinutes(1)));
+      assertEquals(0, spool.getPendingCount());
+
+      long count =
+          spool.drain(
+              mail -> {
+                assertTrue(mail.isSuccess());
+                assertNull(mail.getError());
+                assertTrue(ids.contains(mail.getId()));
+                try {
+                  decrypted.add(decryptor.decrypt(mail.getInputStream()));
+                } catch (Exception ex) {
+                  throw new IllegalStateException(ex);
+                }
+              });
+      assertEquals(10, count);
+      assertEquals(0, spool.drain(mail -> fail("Drained twice")));
+    }
+
+    assertEquals(10, decrypted.size());
+    for (MimeMessage message : decrypted) {
+      assertEquals("subject", message.getSubject());
+      assertEquals(2, ((MimeMultipart) message.getContent()).getCount());
+    }
+    // Only the active segment of the log is left
+    assertEquals(1, files(this.directory, "pending-"));
+    assertEquals(0, files(this.directory, "encrypted-"));
+  }
+
+  @Test
+  public void failedMessagesAreCompleted() throws Exception {
+    List<SpooledMail> failed = new ArrayList<>();
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(1).build()) {
+      spool.submit(job("-----BEGIN PGP PUBLIC KEY BLOCK-----\nnot a key".getBytes()));
+      spool.submit(job(EncryptSpoolTest.keys.publicKey()));
+      assertTrue(spool.awaitCompletion(Duration.ofMinutes(1)));
+      spool.drain(
+          mail -> {
+            if (!mail.isSuccess()) {
+              assertNotNull(mail.getError());
+              assertNull(mail.getInputStream());
+              failed.add(mail);
+            }
+          });
+    }
+    assertEquals(1, failed.size());
+  }
+
+  @Test
+  public void drainsWhileSubmitting() throws Exception {
+    Set<Long> ids = ConcurrentHashMap.newKeySet();
+    List<Long> drained = new ArrayList<>();
+    try (EncryptSpool spool =
+        EncryptSpool.builder().directory(this.directory).workers(2).segmentSize(1 << 16).build()) {
+      Thread submitter =
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    try {
+                      for (int i = 0; i < 40; i++) {
+                        ids.add(spool.submit(job(EncryptSpoolTest.keys.publicKey())));
+                      }
+                    } catch (Exception ex) {
+                      throw new IllegalStateException(ex);
+                    }
+                  });
+      long deadline = System.nanoTime() + Duration.ofMinutes(1).toNanos();
+      while (drained.size() < 40 && System.nanoTime() < deadline) {
+        spool.drain(mail -> drained.add(mail.getId()));
+      }
+      submitter.join();
+    }
+
+    assertEquals(40, drained.size());
+    assertEquals(ids, new HashSet<>(drained));
+  }
+
+  @Test
+  public void resumesAfterRestart() throws Exception {
+    Set<Long> ids = new HashSet<>();
+    Set<Long> drained = new HashSet<>();
+    int[] count = {0};
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(1).build()) {
+      for (int i = 0; i < 20; i++) {
+        ids.add(spool.submit(job(EncryptSpoolTest.keys.publicKey())));
+      }
+      // Closed with the backlog still pending, only the current message is finished
+    }
+
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(2).build()) {
+      assertTrue(spool.awaitCompletion(Duration.ofMinutes(1)));
+      spool.drain(
+          mail -> {
+            assertTrue(mail.isSuccess());
+            drained.add(mail.getId());
+            count[0]++;
+          });
+    }
+
+    assertEquals(20, count[0]);
+    assertEquals(ids, drained);
+  }
+
+  @Test
+  public void keepsTheIdsOfUndrainedEmails() throws Exception {
+    List<Long> ids = new ArrayList<>();
+    List<Long> drained = new ArrayList<>();
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(1).build()) {
+      ids.add(spool.submit(job(EncryptSpoolTest.keys.publicKey())));
+      assertTrue(spool.awaitCompletion(Duration.ofMinutes(1)));
+    }
+    // The finished log is deleted when the spool is opened, only the encrypted emails are left
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(1).build()) {
+      assertEquals(0, spool.getPendingCount());
+    }
+    assertEquals(0, files(this.directory, "pending-"));
+    assertEquals(1, files(this.directory, "encrypted-"));
+
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(1).build()) {
+      ids.add(spool.submit(job(EncryptSpoolTest.keys.publicKey())));
+      assertTrue(spool.awaitCompletion(Duration.ofMinutes(1)));
+    }
+    assertNotEquals(ids.get(0), ids.get(1));
+
+    // The new message isn't marked as done by the emails of the first run
+    try (EncryptSpool spool = EncryptSpool.builder().directory(this.directory).workers(1).build()) {
+      assertTrue(spool.awaitCompletion(Duration.ofMinutes(1)));
+      spool.drain(
+          mail -> {
+            assertTrue(mail.isSuccess());
+            drained.add(mail.getId());
+          });
+    }
+    drained.sort(null);
+    ids.sort(null);
+    assertEquals(ids, drained);
+  }
+}
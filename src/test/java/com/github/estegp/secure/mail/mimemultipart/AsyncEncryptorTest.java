@@ -0,0 +1,178 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import com.github.estegp.secure.mail.mimemultipart.helper.RecordingListener;
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class AsyncEncryptorTest {
+
+  private static KeyBuilder.PgpKeys keys = null;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    AsyncEncryptorTest.keys = KeyBuilder.pgp("to <to@mail.com>");
+  }
+
+  @Test
+  public void encryptOnVirtualThreads() throws Exception {
+    AsyncEncryptMail instance =
+        new EncryptMailFactory(AsyncEncryptorTest.keys.publicKey()).getAsyncEncryptor();
+    List<CompletableFuture<MimeBodyPart>> bodies = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      bodies.add(
+          instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+    }
+    bodies.add(instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData()));
+
+    for (CompletableFuture<MimeBodyPart> body : bodies) {
+      assertEquals(
+          "subject",
+          MailReader.decryptPgp(body.get(30, TimeUnit.SECONDS), AsyncEncryptorTest.keys.secretKey())
+              .getSubject());
+    }
+  }
+
+  @Test
+  public void smimeIsEncryptedBeforeTheFutureCompletes() throws Exception {
+    KeyBuilder.SmimeKeys smime = KeyBuilder.smime("to@mail.com");
+    RecordingListener listener = new RecordingListener();
+    MimeBodyPart body =
+        new EncryptMailFactory(
+                smime.certificate(), EncryptOptions.builder().listener(listener).build())
+            .getAsyncEncryptor()
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData())
+            .get(30, TimeUnit.SECONDS);
+    assertTrue(listener.getStages().containsKey(Stage.ENCRYPTION));
+    assertInstanceOf(BufferDataSource.class, body.getDataHandler().getDataSource());
+
+    // A lazy body part would encrypt the content key again, with a new padding, on every write
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    body.writeTo(first);
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    body.writeTo(second);
+    assertArrayEquals(first.toByteArray(), second.toByteArray());
+    assertNotNull(MailReader.decryptSmime(body, smime).getContent());
+  }
+
+  @Test
+  public void cancelBeforeStart() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    EncryptMailFactory factory =
+        new EncryptMailFactory(
+            AsyncEncryptorTest.keys.publicKey(),
+            EncryptOptions.builder().listener(listener).build());
+    CountDownLatch release = new CountDownLatch(1);
+    try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+      executor.execute(
+          () -> {
+            try {
+              release.await();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+          });
+      CompletableFuture<MimeBodyPart> body =
+          factory
+              .getAsyncEncryptor(executor)
+              .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+      assertTrue(body.cancel(false));
+      release.countDown();
+      assertThrows(CancellationException.class, body::join);
+    }
+    assertEquals(0, listener.getMessages());
+  }
+
+  @Test
+  public void cancelInterruptsTheEncryption() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    EncryptMail blocking =
+        new EncryptMail() {
+          @Override
+          public MimeBodyPart encryptMultiPart(MimeMultipart msg, MimeMessage message)
+              throws EncryptMailException {
+            started.countDown();
+            try {
+              Thread.sleep(Long.MAX_VALUE);
+              return null;
+            } catch (InterruptedException ex) {
+              interrupted.countDown();
+              throw new EncryptMailException(ex);
+            }
+          }
+
+          @Override
+          public MimeBodyPart encryptData(MimeBodyPart msg, MimeMessage message) {
+            throw new UnsupportedOperationException();
+          }
+        };
+
+    CompletableFuture<MimeBodyPart> body =
+        new AsyncEncryptor(blocking, AsyncEncryptor.VIRTUAL_THREAD_PER_MESSAGE)
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertTrue(started.await(30, TimeUnit.SECONDS));
+    assertTrue(body.cancel(true));
+    assertTrue(interrupted.await(30, TimeUnit.SECONDS));
+    assertTrue(body.isCancelled());
+  }
+
+  @Test
+  public void interruptedEncryptionFails() throws Exception {
+    EncryptMailPgp instance = new EncryptMailPgp(AsyncEncryptorTest.keys.publicKey());
+    Thread.currentThread().interrupt();
+    try {
+      EncryptMailException ex =
+          assertThrows(
+              EncryptMailException.class,
+              () ->
+                  instance.encryptMultiPart(
+                      MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+      assertInstanceOf(InterruptedIOException.class, ex.getCause());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void failuresCompleteTheFuture() throws Exception {
+    AsyncEncryptMail invalid =
+        new EncryptMailFactory(EncryptMailFactory.PGP, "not a key".getBytes()).getAsyncEncryptor();
+    ExecutionException ex =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                invalid
+                    .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData())
+                    .get(30, TimeUnit.SECONDS));
+    assertInstanceOf(EncryptMailException.class, ex.getCause());
+
+    ExecutorService closed = Executors.newSingleThreadExecutor();
+    closed.close();
+    CompletableFuture<MimeBodyPart> rejected =
+        new EncryptMailFactory(AsyncEncryptorTest.keys.publicKey())
+            .getAsyncEncryptor(closed)
+            .encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+    assertTrue(rejected.isCompletedExceptionally());
+  }
+}
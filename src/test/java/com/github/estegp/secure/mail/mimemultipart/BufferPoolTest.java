@@ -0,0 +1,94 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.mail.internet.MimeBodyPart;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BufferPoolTest {
+
+  @TempDir Path directory;
+
+  @Test
+  public void reuseClearedBuffers() {
+    BufferPool pool = new BufferPool(1024);
+    byte[] buffer = pool.acquire();
+    assertEquals(1024, buffer.length);
+    Arrays.fill(buffer, (byte) 1);
+    pool.release(buffer);
+
+    byte[] reused = pool.acquire();
+    assertSame(buffer, reused);
+    assertArrayEquals(new byte[1024], reused);
+    assertEquals(2, pool.getAcquireCount());
+    assertEquals(1, pool.getAllocationCount());
+  }
+
+  @Test
+  public void dropBuffersWhenFull() {
+    BufferPool pool = new BufferPool(1024);
+    for (int i = 0; i < 9; i++) {
+      pool.release(new byte[1024]);
+    }
+    assertEquals(1, pool.getDropCount());
+  }
+
+  @Test
+  public void rejectSmallBuffers() {
+    assertThrows(IllegalArgumentException.class, () -> new BufferPool(511));
+    assertThrows(
+        IllegalArgumentException.class, () -> EncryptOptions.builder().bufferPool(null).build());
+  }
+
+  @Test
+  public void bufferTheStreamInPooledArrays() throws Exception {
+    BufferPool pool = new BufferPool(1024);
+    byte[] data = new byte[10_000];
+    Arrays.fill(data, (byte) 7);
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    try (OutputStream out = new PooledBufferedOutputStream(target, pool)) {
+      out.write(data, 0, 100);
+      out.write(data[100]);
+      out.write(data, 101, 9_899);
+    }
+    assertArrayEquals(data, target.toByteArray());
+    // The buffer is given back when the stream is closed
+    pool.acquire();
+    assertEquals(1, pool.getAllocationCount());
+  }
+
+  @Test
+  public void encryptWithPooledBuffers() throws Exception {
+    KeyBuilder.PgpKeys keys = KeyBuilder.pgp("to <to@mail.com>");
+    BufferPool pool = new BufferPool(4096);
+    for (boolean streaming : new boolean[] {false, true}) {
+      EncryptMailPgp instance =
+          new EncryptMailPgp(
+              keys.publicKey(),
+              EncryptOptions.builder()
+                  .bufferPool(pool)
+                  .streaming(streaming)
+                  .tempDirectory(this.directory)
+                  .build());
+      for (int i = 0; i < 10; i++) {
+        MimeBodyPart body =
+            instance.encryptMultiPart(
+                MailBuilder.buildContent(1 << 16), MailBuilder.setGeneralData());
+        assertEquals("subject", MailReader.decryptPgp(body, keys.secretKey()).getSubject());
+      }
+    }
+
+    // The buffers of the first message are reused by the next ones: the literal, compressed and
+    // encrypted packets, and the buffered streams of the message and of the temporary file
+    assertTrue(pool.getAcquireCount() >= 40);
+    assertTrue(pool.getAllocationCount() <= 5);
+  }
+}
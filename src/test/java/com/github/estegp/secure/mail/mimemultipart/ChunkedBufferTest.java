@@ -0,0 +1,160 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import javax.mail.internet.MimeBodyPart;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChunkedBufferTest {
+
+  @TempDir Path directory;
+
+  private static byte[] write(ChunkedBuffer buffer, int size) throws Exception {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    OutputStream out = buffer.getOutputStream();
+    // Mixes single bytes and arrays of several sizes, like the serialization of a message
+    int written = 0;
+    while (written < size) {
+      if (written % 7 == 0) {
+        out.write(data[written++]);
+      } else {
+        int length = Math.min(size - written, 1 + written % 5_000);
+        out.write(data, written, length);
+        written += length;
+      }
+    }
+    return data;
+  }
+
+  private static byte[] read(ChunkedBuffer buffer) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    try (InputStream in = buffer.getInputStream()) {
+      assertArrayEquals(out.toByteArray(), in.readAllBytes());
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void keepTheDataOfEveryStrategy() throws Exception {
+    for (BufferStrategy strategy :
+        List.of(
+            BufferStrategy.heap(),
+            BufferStrategy.pooledDirect(1 << 12, 4),
+            BufferStrategy.pooledDirect(1 << 12, 64).mapAbove(50_000),
+            BufferStrategy.heap().mapAbove(0))) {
+      for (int size : new int[] {0, 1, 4096, 100_000}) {
+        try (ChunkedBuffer buffer = strategy.newBuffer(this.directory)) {
+          byte[] data = write(buffer, size);
+          assertEquals(size, buffer.size());
+          assertArrayEquals(data, read(buffer));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void closeDeletesTheFile() throws Exception {
+    ChunkedBuffer buffer = BufferStrategy.heap().mapAbove(1_000).newBuffer(this.directory);
+    write(buffer, 10_000);
+    try (Stream<Path> files = Files.list(this.directory)) {
+      assertEquals(1, files.count());
+    }
+    buffer.close();
+    try (Stream<Path> files = Files.list(this.directory)) {
+      assertEquals(0, files.count());
+    }
+    assertThrows(Exception.class, () -> buffer.getOutputStream().write(1));
+  }
+
+  @Test
+  public void encryptWithPooledAndMappedBuffers() throws Exception {
+    KeyBuilder.PgpKeys keys = KeyBuilder.pgp("to <to@mail.com>");
+    // The pool is smaller than the messages in flight, the missing chunks come from the heap
+    BufferStrategy strategy = BufferStrategy.pooledDirect(1 << 14, 8).mapAbove(1 << 17);
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            keys.publicKey(),
+            EncryptOptions.builder()
+                .bufferStrategy(strategy)
+                .tempDirectory(this.directory)
+                .build());
+
+    List<Future<MimeBodyPart>> bodies = new ArrayList<>();
+    try (ExecutorService executor = Executors.newFixedThreadPool(4)) {
+      for (int i = 0; i < 8; i++) {
+        int size = (i % 2 == 0) ? 1 << 10 : 1 << 18;
+        bodies.add(
+            executor.submit(
+                () ->
+                    instance.encryptMultiPart(
+                        MailBuilder.buildContent(size), MailBuilder.setGeneralData())));
+      }
+    }
+
+    for (Future<MimeBodyPart> body : bodies) {
+      assertEquals("subject", MailReader.decryptPgp(body.get(), keys.secretKey()).getSubject());
+    }
+  }
+
+  @Test
+  public void releaseGivesTheChunksBack() throws Exception {
+    KeyBuilder.PgpKeys pgp = KeyBuilder.pgp("to <to@mail.com>");
+    KeyBuilder.SmimeKeys smime = KeyBuilder.smime("to@mail.com");
+    // Every message needs more chunks than the pool has
+    BufferStrategy strategy = BufferStrategy.pooledDirect(1 << 12, 8);
+    EncryptOptions options = EncryptOptions.builder().bufferStrategy(strategy).build();
+    List<EncryptMail> encryptors =
+        List.of(
+            new EncryptMailPgp(pgp.publicKey(), options),
+            new EncryptSmime(smime.certificate(), options));
+
+    try (ExecutorService executor = Executors.newFixedThreadPool(4)) {
+      List<Future<?>> sent = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        EncryptMail encryptor = encryptors.get(i % 2);
+        sent.add(
+            executor.submit(
+                () -> {
+                  MimeBodyPart body =
+                      encryptor.encryptMultiPart(
+                          MailBuilder.buildContent(1 << 16), MailBuilder.setGeneralData());
+                  body.writeTo(OutputStream.nullOutputStream());
+                  EncryptMail.release(body);
+                  assertThrows(
+                      IOException.class, () -> body.writeTo(OutputStream.nullOutputStream()));
+                  return null;
+                }));
+      }
+      for (Future<?> message : sent) {
+        message.get();
+      }
+    }
+
+    // The pool is full again, without waiting for the garbage collector
+    List<ByteBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < strategy.getPoolSize(); i++) {
+      chunks.add(strategy.acquire(i));
+    }
+    assertTrue(chunks.stream().allMatch(ByteBuffer::isDirect));
+  }
+}
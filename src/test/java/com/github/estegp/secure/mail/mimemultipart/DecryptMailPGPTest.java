@@ -0,0 +1,277 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.exceptions.DecryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import com.github.estegp.secure.mail.mimemultipart.helper.RecordingListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DecryptMailPGPTest {
+
+  private static KeyBuilder.PgpKeys keys = null;
+
+  @TempDir Path directory;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    DecryptMailPGPTest.keys = KeyBuilder.pgp("to <to@mail.com>");
+  }
+
+  /**
+   * The messages are encrypted with integrity protection, the decryptors reject them without it.
+   */
+  private static final EncryptOptions PROTECTED =
+      EncryptOptions.builder().integrityProtection(true).build();
+
+  private static String html(MimeMessage message) throws Exception {
+    return (String) ((MimeMultipart) message.getContent()).getBodyPart(0).getContent();
+  }
+
+  private static long countFiles(Path directory) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  public void decryptEncryptedPart() throws Exception {
+    for (boolean armor : new boolean[] {true, false}) {
+      for (boolean streaming : new boolean[] {false, true}) {
+        MimeBodyPart body =
+            new EncryptMailPgp(
+                    DecryptMailPGPTest.keys.publicKey(),
+                    EncryptOptions.builder().armor(armor).integrityProtection(true).build())
+                .encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+        DecryptMail decryptor =
+            new DecryptMailPgp(
+                DecryptMailPGPTest.keys.secretKey(),
+                KeyBuilder.PASSPHRASE,
+                EncryptOptions.builder().streaming(streaming).build());
+
+        // Both the built body part and the received email are decrypted
+        assertEquals("<H1>Email</H1>", html(decryptor.decrypt(body)));
+        MimeMessage decrypted = decryptor.decrypt(MailReader.reparse(body));
+        assertEquals("subject", decrypted.getSubject());
+        assertEquals("<H1>Email</H1>", html(decrypted));
+      }
+    }
+  }
+
+  @Test
+  public void decryptRawMessage() throws Exception {
+    MimeBodyPart body =
+        new EncryptMailPgp(DecryptMailPGPTest.keys.publicKey(), PROTECTED)
+            .encryptMultiPart(MailBuilder.buildContent(1 << 18), MailBuilder.setGeneralData());
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    MailReader.reparse(body).writeTo(raw);
+
+    DecryptMail decryptor =
+        new DecryptMailPgp(
+            DecryptMailPGPTest.keys.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            EncryptOptions.builder().streaming(true).tempDirectory(this.directory).build());
+    MimeMessage decrypted = decryptor.decrypt(new ByteArrayInputStream(raw.toByteArray()));
+    assertEquals("subject", decrypted.getSubject());
+    // The received email is deleted once decrypted, only the decrypted message is kept in a file
+    assertEquals(1, countFiles(this.directory));
+    assertEquals(2, ((MimeMultipart) decrypted.getContent()).getCount());
+  }
+
+  @Test
+  public void decryptSignedMessage() throws Exception {
+    KeyBuilder.PgpKeys signer = KeyBuilder.pgp("from <from@mail.com>");
+    MimeBodyPart body =
+        new EncryptMailPgp(
+                DecryptMailPGPTest.keys.publicKey(),
+                EncryptOptions.builder()
+                    .integrityProtection(true)
+                    .signingKey(SigningKey.pgp(signer.secretKey(), KeyBuilder.PASSPHRASE))
+                    .build())
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+    MimeMessage decrypted =
+        new DecryptMailPgp(DecryptMailPGPTest.keys.secretKey(), KeyBuilder.PASSPHRASE)
+            .decrypt(body);
+    assertEquals("subject", decrypted.getSubject());
+  }
+
+  @Test
+  public void cachePrivateKeys() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    EncryptMailPgp encryptor = new EncryptMailPgp(DecryptMailPGPTest.keys.publicKey(), PROTECTED);
+    DecryptMail decryptor =
+        new DecryptMailPgp(
+            DecryptMailPGPTest.keys.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            EncryptOptions.builder().listener(listener).build());
+    KeyLoadManager.INSTANCE.getPgpPrivateKeyCache().invalidateAll();
+    final long hits = KeyLoadManager.INSTANCE.getPgpPrivateKeyCache().getHitCount();
+    for (int i = 0; i < 3; i++) {
+      MimeBodyPart body =
+          encryptor.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+      assertEquals("subject", decryptor.decrypt(body).getSubject());
+    }
+    // The secret key is decrypted by the first message, the next ones find it in the cache
+    assertEquals(3, listener.getKeyLookups());
+    assertTrue(listener.getStages().containsKey(Stage.KEY_LOAD));
+    assertEquals(hits + 2, KeyLoadManager.INSTANCE.getPgpPrivateKeyCache().getHitCount());
+  }
+
+  @Test
+  public void verifySignedMessage() throws Exception {
+    KeyBuilder.PgpKeys signer = KeyBuilder.pgp("from <from@mail.com>");
+    KeyBuilder.PgpKeys other = KeyBuilder.pgp("other <other@mail.com>");
+    // The default options of the encryptor and the decryptor work together
+    MimeBodyPart signed =
+        new EncryptMailPgp(
+                DecryptMailPGPTest.keys.publicKey(),
+                EncryptOptions.builder()
+                    .signingKey(SigningKey.pgp(signer.secretKey(), KeyBuilder.PASSPHRASE))
+                    .build())
+            .encryptMultiPart(MailBuilder.buildContent(1 << 18), MailBuilder.setGeneralData());
+    MimeBodyPart unsigned =
+        new EncryptMailPgp(DecryptMailPGPTest.keys.publicKey())
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+    DecryptMail verifying =
+        new DecryptMailPgp(
+            DecryptMailPGPTest.keys.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            signer.publicKey(),
+            EncryptOptions.defaults());
+    assertEquals("subject", verifying.decrypt(signed).getSubject());
+    assertThrows(DecryptMailException.class, () -> verifying.decrypt(unsigned));
+
+    DecryptMail otherSigner =
+        new DecryptMailPgp(
+            DecryptMailPGPTest.keys.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            other.publicKey(),
+            EncryptOptions.defaults());
+    assertThrows(DecryptMailException.class, () -> otherSigner.decrypt(signed));
+  }
+
+  @Test
+  public void rejectUnprotectedData() throws Exception {
+    MimeBodyPart body =
+        new EncryptMailPgp(
+                DecryptMailPGPTest.keys.publicKey(),
+                EncryptOptions.builder().integrityProtection(false).build())
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+    // The data without integrity protection could have been modified
+    DecryptMail decryptor =
+        new DecryptMailPgp(DecryptMailPGPTest.keys.secretKey(), KeyBuilder.PASSPHRASE);
+    assertThrows(DecryptMailException.class, () -> decryptor.decrypt(body));
+
+    DecryptMail legacy =
+        new DecryptMailPgp(
+            DecryptMailPGPTest.keys.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            EncryptOptions.builder().acceptUnprotected(true).build());
+    assertEquals("subject", legacy.decrypt(body).getSubject());
+  }
+
+  @Test
+  public void deleteBrokenMessages() throws Exception {
+    KeyBuilder.PgpKeys signer = KeyBuilder.pgp("from <from@mail.com>");
+    PGPKeyPair signingKey =
+        KeyLoadManager.INSTANCE.loadPgpSigningKey(signer.secretKey(), KeyBuilder.PASSPHRASE);
+    PGPSignatureGenerator sigGen =
+        new PGPSignatureGenerator(
+            new JcaPGPContentSignerBuilder(
+                signingKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+            signingKey.getPublicKey());
+    sigGen.init(PGPSignature.BINARY_DOCUMENT, signingKey.getPrivateKey());
+    MimeMessage mail = MailBuilder.setGeneralData();
+    mail.setContent(MailBuilder.buildContent());
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    mail.writeTo(message);
+
+    // The whole message is read, but a broken packet stands in for its signature
+    PGPEncryptedDataGenerator encGen =
+        new PGPEncryptedDataGenerator(
+            KeyLoadManager.INSTANCE.iniDataEncryptorPgp(PgpCipher.AES_256, true, null));
+    KeyLoadManager.INSTANCE
+        .loadPgpEncMethods(List.of(DecryptMailPGPTest.keys.publicKey()))
+        .forEach(encGen::addMethod);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (OutputStream enc = encGen.open(data, new byte[1 << 12])) {
+      sigGen.generateOnePassVersion(false).encode(enc);
+      try (OutputStream literal =
+          new PGPLiteralDataGenerator()
+              .open(enc, PGPLiteralData.BINARY, "", new Date(), new byte[1 << 12])) {
+        literal.write(message.toByteArray());
+      }
+      enc.write(new byte[] {0, 0, 0});
+    }
+
+    MimeBodyPart body =
+        new EncryptMailPgp(DecryptMailPGPTest.keys.publicKey(), PROTECTED)
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    MimeMultipart multipart = (MimeMultipart) body.getContent();
+    MimeBodyPart broken = new MimeBodyPart();
+    broken.setDataHandler(
+        new DataHandler(new ByteArrayDataSource(data.toByteArray(), "application/octet-stream")));
+    multipart.removeBodyPart(1);
+    multipart.addBodyPart(broken);
+
+    DecryptMail decryptor =
+        new DecryptMailPgp(
+            DecryptMailPGPTest.keys.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            signer.publicKey(),
+            EncryptOptions.builder().streaming(true).tempDirectory(this.directory).build());
+    assertThrows(DecryptMailException.class, () -> decryptor.decrypt(body));
+    // The decrypted message isn't returned, its file is deleted right away
+    assertEquals(0, countFiles(this.directory));
+  }
+
+  @Test
+  public void rejectOtherMessages() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    KeyBuilder.PgpKeys other = KeyBuilder.pgp("other <other@mail.com>");
+    DecryptMail decryptor =
+        new DecryptMailPgp(
+            other.secretKey(),
+            KeyBuilder.PASSPHRASE,
+            EncryptOptions.builder().listener(listener).build());
+
+    MimeBodyPart body =
+        new EncryptMailPgp(DecryptMailPGPTest.keys.publicKey(), PROTECTED)
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertThrows(DecryptMailException.class, () -> decryptor.decrypt(body));
+    assertThrows(DecryptMailException.class, () -> decryptor.decrypt(MailBuilder.buildPart()));
+    assertEquals(2, listener.getErrors().size());
+
+    DecryptMail wrongPassphrase =
+        new DecryptMailPgp(DecryptMailPGPTest.keys.secretKey(), "wrong".toCharArray());
+    assertThrows(DecryptMailException.class, () -> wrongPassphrase.decrypt(body));
+  }
+}
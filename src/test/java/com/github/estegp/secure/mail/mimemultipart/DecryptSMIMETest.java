@@ -0,0 +1,102 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.exceptions.DecryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Properties;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class DecryptSMIMETest {
+
+  private static KeyBuilder.SmimeKeys keys = null;
+  private static byte[] pkcs12 = null;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    DecryptSMIMETest.keys = KeyBuilder.smime("to@mail.com");
+
+    KeyStore store = KeyStore.getInstance("PKCS12");
+    store.load(null, null);
+    store.setKeyEntry(
+        "to",
+        DecryptSMIMETest.keys.privateKey(),
+        KeyBuilder.PASSPHRASE,
+        new Certificate[] {DecryptSMIMETest.keys.x509()});
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.store(out, KeyBuilder.PASSPHRASE);
+    DecryptSMIMETest.pkcs12 = out.toByteArray();
+  }
+
+  /** Sends the encrypted part as a whole email, and serializes it as the server would. */
+  private static byte[] send(MimeBodyPart encrypted) throws Exception {
+    MimeMessage sent = new MimeMessage(Session.getInstance(new Properties()));
+    sent.setSubject("subject");
+    sent.setContent(encrypted.getContent(), encrypted.getContentType());
+    sent.setHeader("Content-Transfer-Encoding", "base64");
+    sent.saveChanges();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sent.writeTo(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void decryptWithEveryCipher() throws Exception {
+    for (SmimeCipher cipher : SmimeCipher.values()) {
+      for (boolean streaming : new boolean[] {false, true}) {
+        // The enveloped data is generated while the body part is written, so it's read once
+        MimeBodyPart body =
+            new EncryptSmime(
+                    DecryptSMIMETest.keys.certificate(),
+                    EncryptOptions.builder().smimeCipher(cipher).build())
+                .encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+        DecryptMail decryptor =
+            new DecryptSmime(
+                DecryptSMIMETest.pkcs12,
+                KeyBuilder.PASSPHRASE,
+                EncryptOptions.builder().streaming(streaming).build());
+        assertEquals(
+            "<H1>Email</H1>", decryptor.decrypt(body).getContent(), cipher + " " + streaming);
+      }
+    }
+  }
+
+  @Test
+  public void decryptRawMessage() throws Exception {
+    MimeBodyPart body =
+        new EncryptSmime(DecryptSMIMETest.keys.certificate())
+            .encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+    DecryptMail decryptor =
+        new DecryptSmime(
+            DecryptSMIMETest.keys.certificate(),
+            DecryptSMIMETest.keys.privateKey(),
+            EncryptOptions.builder().streaming(true).build());
+
+    MimeMessage decrypted = decryptor.decrypt(new ByteArrayInputStream(send(body)));
+    assertEquals("<H1>Email</H1>", decrypted.getContent());
+  }
+
+  @Test
+  public void rejectOtherMessages() throws Exception {
+    KeyBuilder.SmimeKeys other = KeyBuilder.smime("other@mail.com");
+    MimeBodyPart body =
+        new EncryptSmime(other.certificate())
+            .encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+    DecryptMail decryptor = new DecryptSmime(DecryptSMIMETest.pkcs12, KeyBuilder.PASSPHRASE);
+
+    assertThrows(DecryptMailException.class, () -> decryptor.decrypt(body));
+    assertThrows(DecryptMailException.class, () -> decryptor.decrypt(MailBuilder.buildPart()));
+    assertThrows(
+        DecryptMailException.class,
+        () -> new DecryptSmime(DecryptSMIMETest.pkcs12, "wrong".toCharArray()).decrypt(body));
+  }
+}
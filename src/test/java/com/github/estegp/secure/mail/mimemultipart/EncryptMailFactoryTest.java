@@ -5,6 +5,7 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.List;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -56,4 +57,22 @@ class EncryptMailFactoryTest {
     EncryptMail instance = new EncryptMailFactory(EncryptMailFactoryTest.pgpKey).getEncryptor();
     assertInstanceOf(EncryptMailPgp.class, instance);
   }
+
+  @Test
+  public void TestGetPGPBySeveralKeys() {
+    EncryptMail instance =
+        new EncryptMailFactory(
+                List.of(EncryptMailFactoryTest.pgpKey, EncryptMailFactoryTest.pgpKey))
+            .getEncryptor();
+    assertInstanceOf(EncryptMailPgp.class, instance);
+  }
+
+  @Test
+  public void TestGetByMixedKeys() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new EncryptMailFactory(
+                List.of(EncryptMailFactoryTest.pgpKey, EncryptMailFactoryTest.smimeKey)));
+  }
 }
@@ -3,15 +3,37 @@ package com.github.estegp.secure.mail.mimemultipart;
 import static org.junit.jupiter.api.Assertions.*;
 
 import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
 import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import com.github.estegp.secure.mail.mimemultipart.helper.RecordingListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -22,19 +44,29 @@ public class EncryptMailPGPTest {
   private static MimeMessage message = null;
   private static MimeMultipart msg = null;
   private static MimeBodyPart bodyPart = null;
+  private static KeyBuilder.PgpKeys keys = null;
 
   @BeforeAll
-  public static void SetUp() throws IOException, URISyntaxException, MessagingException {
+  public static void SetUp()
+      throws IOException,
+          URISyntaxException,
+          MessagingException,
+          GeneralSecurityException,
+          PGPException {
     URL keyFileURL = EncryptMailPGPTest.class.getClassLoader().getResource("for_testing_only.pgp");
     if (keyFileURL == null) return;
     File dir = new File(keyFileURL.toURI());
     try (InputStream stream = new FileInputStream(dir)) {
       EncryptMailPGPTest.pgpKey = stream.readAllBytes();
     }
-    EncryptMailPGPTest.encryptor = new EncryptMailPgp(EncryptMailPGPTest.pgpKey);
+    // The key for testing has expired
+    EncryptMailPGPTest.encryptor =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.pgpKey, EncryptOptions.builder().acceptExpiredKeys(true).build());
     EncryptMailPGPTest.message = MailBuilder.setGeneralData();
     EncryptMailPGPTest.msg = MailBuilder.buildContent();
     EncryptMailPGPTest.bodyPart = MailBuilder.buildPart();
+    EncryptMailPGPTest.keys = KeyBuilder.pgp("to <to@mail.com>");
   }
 
   @Test
@@ -64,4 +96,425 @@ public class EncryptMailPGPTest {
       fail("Unexpected Exception");
     }
   }
+
+  @Test
+  public void encryptMultiPartRoundTrip() throws Exception {
+    EncryptMailPgp instance = new EncryptMailPgp(EncryptMailPGPTest.keys.publicKey());
+    MimeBodyPart body =
+        instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+    MimeMessage received = MailReader.reparse(body);
+    assertTrue(received.isMimeType("multipart/encrypted"));
+    MimeMultipart parts = (MimeMultipart) received.getContent();
+    assertTrue(parts.getBodyPart(0).isMimeType("application/pgp-encrypted"));
+    assertTrue(parts.getBodyPart(1).isMimeType("application/octet-stream"));
+
+    MimeMessage decrypted = MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey());
+    assertEquals("subject", decrypted.getSubject());
+    assertTrue(decrypted.isMimeType("multipart/related"));
+  }
+
+  @Test
+  public void signAndEncrypt() throws Exception {
+    KeyBuilder.PgpKeys signer = KeyBuilder.pgp("from <from@mail.com>");
+    for (boolean streaming : new boolean[] {false, true}) {
+      EncryptMailPgp instance =
+          new EncryptMailPgp(
+              EncryptMailPGPTest.keys.publicKey(),
+              EncryptOptions.builder()
+                  .streaming(streaming)
+                  .signingKey(SigningKey.pgp(signer.secretKey(), KeyBuilder.PASSPHRASE))
+                  .build());
+      MimeBodyPart body =
+          instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+      MimeMessage decrypted =
+          MailReader.decryptAndVerifyPgp(
+              body, EncryptMailPGPTest.keys.secretKey(), signer.publicKey());
+      assertEquals("subject", decrypted.getSubject());
+      // The signature is checked against the signer, not against any key
+      assertThrows(
+          PGPException.class,
+          () ->
+              MailReader.decryptAndVerifyPgp(
+                  body, EncryptMailPGPTest.keys.secretKey(), EncryptMailPGPTest.keys.publicKey()));
+    }
+  }
+
+  @Test
+  public void signWithWrongPassphrase() throws Exception {
+    KeyBuilder.PgpKeys signer = KeyBuilder.pgp("from <from@mail.com>");
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.keys.publicKey(),
+            EncryptOptions.builder()
+                .signingKey(SigningKey.pgp(signer.secretKey(), "wrong".toCharArray()))
+                .build());
+    assertThrows(
+        EncryptMailException.class,
+        () -> instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+
+    // The key is decrypted once, and cached by its content and passphrase
+    PGPKeyPair key =
+        KeyLoadManager.INSTANCE.loadPgpSigningKey(signer.secretKey(), KeyBuilder.PASSPHRASE);
+    assertSame(
+        key, KeyLoadManager.INSTANCE.loadPgpSigningKey(signer.secretKey(), KeyBuilder.PASSPHRASE));
+  }
+
+  @Test
+  public void encryptDataStreaming() throws Exception {
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.keys.publicKey(), EncryptOptions.builder().streaming(true).build());
+    MimeBodyPart body = instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+
+    MimeMessage decrypted = MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey());
+    MimeMultipart content = (MimeMultipart) decrypted.getContent();
+    assertEquals("<H1>Email</H1>", content.getBodyPart(0).getContent());
+  }
+
+  @Test
+  public void encryptMultiPartStreamingAttachment() throws Exception {
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.keys.publicKey(), EncryptOptions.builder().streaming(true).build());
+    MimeBodyPart attachment = MailBuilder.buildAttachment(5 << 20);
+    MimeMultipart content = MailBuilder.buildContent();
+    content.addBodyPart(attachment);
+    MimeBodyPart body = instance.encryptMultiPart(content, MailBuilder.setGeneralData());
+
+    MimeMessage decrypted = MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey());
+    MimeMultipart parts = (MimeMultipart) decrypted.getContent();
+    // BASE64DecoderStream doesn't support readAllBytes, it stops when asked for zero bytes
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    attachment.getInputStream().transferTo(expected);
+    parts.getBodyPart(1).getInputStream().transferTo(actual);
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void encryptStreamOfUnknownSize() throws Exception {
+    EncryptMailPgp instance = new EncryptMailPgp(EncryptMailPGPTest.keys.publicKey());
+    MimeMessage message = MailBuilder.setGeneralData();
+    MimeMultipart content = MailBuilder.buildContent();
+    content.addBodyPart(MailBuilder.buildAttachment(4 << 20));
+    message.setContent(content);
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    message.writeTo(serialized);
+    byte[] entity = serialized.toByteArray();
+
+    // The encrypted data is written while the entity is still being read
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long[] written = new long[1];
+    InputStream in =
+        new FilterInputStream(new ByteArrayInputStream(entity)) {
+          private long read;
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            this.read += Math.max(n, 0);
+            if (written[0] == 0 && this.read > entity.length / 2) {
+              written[0] = out.size();
+            }
+            return n;
+          }
+        };
+    instance.encryptStream(in, out);
+    assertTrue(written[0] > 0);
+
+    assertArrayEquals(
+        entity, MailReader.decryptPgp(out.toByteArray(), EncryptMailPGPTest.keys.secretKey()));
+  }
+
+  @Test
+  public void encryptMultiPartSeveralRecipients() throws Exception {
+    KeyBuilder.PgpKeys other = KeyBuilder.pgp("other <other@mail.com>");
+    EncryptMailPgp instance =
+        new EncryptMailPgp(List.of(EncryptMailPGPTest.keys.publicKey(), other.publicKey()));
+    MimeBodyPart body =
+        instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+    assertEquals(2, MailReader.countPgpRecipients(body));
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+    assertEquals("subject", MailReader.decryptPgp(body, other.secretKey()).getSubject());
+  }
+
+  @Test
+  public void encryptWithoutRecipients() {
+    EncryptMailPgp instance = new EncryptMailPgp(List.of());
+    assertThrows(
+        EncryptMailException.class,
+        () -> instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+  }
+
+  @Test
+  public void encryptorSharedBetweenThreads() throws Exception {
+    EncryptMailPgp instance = new EncryptMailPgp(EncryptMailPGPTest.keys.publicKey());
+    List<Future<MimeBodyPart>> bodies = new ArrayList<>();
+    try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+      for (int i = 0; i < 32; i++) {
+        bodies.add(
+            executor.submit(
+                () ->
+                    instance.encryptMultiPart(
+                        MailBuilder.buildContent(), MailBuilder.setGeneralData())));
+      }
+    }
+
+    for (Future<MimeBodyPart> body : bodies) {
+      assertEquals(
+          "subject",
+          MailReader.decryptPgp(body.get(), EncryptMailPGPTest.keys.secretKey()).getSubject());
+    }
+  }
+
+  @Test
+  public void encryptWithEveryCompression() throws Exception {
+    for (Compression compression : Compression.values()) {
+      CompressionStats stats = new CompressionStats();
+      EncryptMailPgp instance =
+          new EncryptMailPgp(
+              EncryptMailPGPTest.keys.publicKey(),
+              EncryptOptions.builder()
+                  .compression(compression)
+                  .compressionLevel(1)
+                  .compressionStats(stats)
+                  .build());
+      MimeBodyPart body =
+          instance.encryptMultiPart(
+              MailBuilder.buildContent(100_000), MailBuilder.setGeneralData());
+
+      assertEquals(
+          "subject", MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+      assertEquals(1, stats.getMessageCount(compression));
+      assertTrue(stats.getBytesIn(compression) > 100_000);
+      if (compression == Compression.NONE) {
+        assertTrue(stats.getBytesSaved(compression) <= 0);
+      } else {
+        // The attachment is random, only its base64 encoding is compressed
+        assertTrue(stats.getBytesSaved(compression) > 20_000);
+      }
+    }
+  }
+
+  @Test
+  public void adaptiveCompressionSkipsCompressedAttachments() throws Exception {
+    CompressionStats stats = new CompressionStats();
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.keys.publicKey(),
+            EncryptOptions.builder().adaptiveCompression(true).compressionStats(stats).build());
+
+    MimeMultipart withPdf = MailBuilder.buildContent();
+    withPdf.addBodyPart(MailBuilder.buildAttachment(1 << 16));
+    MimeBodyPart body = instance.encryptMultiPart(withPdf, MailBuilder.setGeneralData());
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+    assertEquals(1, stats.getMessageCount(Compression.NONE));
+    assertEquals(0, stats.getMessageCount(Compression.ZIP));
+
+    instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(1, stats.getMessageCount(Compression.ZIP));
+  }
+
+  @Test
+  public void adaptiveCompressionSamplesUnknownTypes() throws Exception {
+    CompressionStats stats = new CompressionStats();
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.keys.publicKey(),
+            EncryptOptions.builder().adaptiveCompression(true).compressionStats(stats).build());
+
+    MimeBodyPart repetitive = new MimeBodyPart();
+    repetitive.setDataHandler(
+        new DataHandler(new ByteArrayDataSource(new byte[1 << 16], "application/octet-stream")));
+    MimeMultipart content = MailBuilder.buildContent();
+    content.addBodyPart(repetitive);
+    instance.encryptMultiPart(content, MailBuilder.setGeneralData());
+    assertEquals(1, stats.getMessageCount(Compression.ZIP));
+
+    MimeBodyPart random = MailBuilder.buildAttachment(1 << 16);
+    random.setDataHandler(
+        new DataHandler(
+            new ByteArrayDataSource(
+                random.getInputStream().readNBytes(1 << 16), "application/octet-stream")));
+    content = MailBuilder.buildContent();
+    content.addBodyPart(random);
+    instance.encryptMultiPart(content, MailBuilder.setGeneralData());
+    assertEquals(1, stats.getMessageCount(Compression.NONE));
+  }
+
+  @Test
+  public void encryptBinary() throws Exception {
+    for (boolean streaming : new boolean[] {false, true}) {
+      EncryptMailPgp instance =
+          new EncryptMailPgp(
+              EncryptMailPGPTest.keys.publicKey(),
+              EncryptOptions.builder().armor(false).streaming(streaming).build());
+      MimeBodyPart body =
+          instance.encryptMultiPart(
+              MailBuilder.buildContent(1 << 16), MailBuilder.setGeneralData());
+
+      MimeMultipart parts = (MimeMultipart) MailReader.reparse(body).getContent();
+      assertEquals("base64", ((MimeBodyPart) parts.getBodyPart(1)).getEncoding());
+      MimeMessage decrypted = MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey());
+      assertEquals("subject", decrypted.getSubject());
+      assertEquals(2, ((MimeMultipart) decrypted.getContent()).getCount());
+    }
+  }
+
+  @Test
+  public void encryptWithAesAndIntegrity() throws Exception {
+    for (PgpCipher cipher : List.of(PgpCipher.AES_128, PgpCipher.AES_256)) {
+      for (String provider : new String[] {EncryptOptions.BOUNCY_CASTLE, null}) {
+        EncryptMailPgp instance =
+            new EncryptMailPgp(
+                EncryptMailPGPTest.keys.publicKey(),
+                EncryptOptions.builder()
+                    .pgpCipher(cipher)
+                    .integrityProtection(true)
+                    .provider(provider)
+                    .build());
+        MimeBodyPart body =
+            instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+        assertEquals(
+            "subject",
+            MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+      }
+    }
+  }
+
+  @Test
+  public void encryptWithProviderInstance() throws Exception {
+    // The provider is used directly, it doesn't need to be installed in the JCA
+    BouncyCastleProvider provider = new BouncyCastleProvider();
+    EncryptOptions options =
+        EncryptOptions.builder()
+            .pgpCipher(PgpCipher.AES_256)
+            .integrityProtection(true)
+            .securityProvider(provider)
+            .build();
+    assertSame(provider, options.getSecurityProvider());
+    MimeBodyPart body =
+        new EncryptMailPgp(EncryptMailPGPTest.keys.publicKey(), options)
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+
+    // The providers given by their names are resolved once, when the options are built
+    assertSame(
+        Security.getProvider(EncryptOptions.BOUNCY_CASTLE),
+        EncryptOptions.defaults().getSecurityProvider());
+    assertThrows(
+        IllegalArgumentException.class, () -> EncryptOptions.builder().provider("Unknown"));
+  }
+
+  @Test
+  public void encryptWithRandomStrategy() throws Exception {
+    for (RandomStrategy strategy : RandomStrategy.values()) {
+      EncryptMailPgp instance =
+          new EncryptMailPgp(
+              EncryptMailPGPTest.keys.publicKey(),
+              EncryptOptions.builder().randomStrategy(strategy).build());
+      List<Thread> threads = new ArrayList<>();
+      List<MimeBodyPart> bodies = Collections.synchronizedList(new ArrayList<>());
+      for (int i = 0; i < 4; i++) {
+        threads.add(
+            Thread.ofPlatform()
+                .start(
+                    () -> {
+                      try {
+                        bodies.add(
+                            instance.encryptMultiPart(
+                                MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+                      } catch (Exception ex) {
+                        throw new IllegalStateException(ex);
+                      }
+                    }));
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      assertEquals(4, bodies.size(), strategy.name());
+      for (MimeBodyPart body : bodies) {
+        assertEquals(
+            "subject",
+            MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+      }
+    }
+    assertSame(
+        RandomStrategy.PER_THREAD_DRBG.getSecureRandom(),
+        RandomStrategy.PER_THREAD_DRBG.getSecureRandom());
+  }
+
+  @Test
+  public void encryptWithSecureRandom() throws Exception {
+    // The session keys are taken from the given source
+    AtomicInteger calls = new AtomicInteger();
+    SecureRandom random =
+        new SecureRandom() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          public void nextBytes(byte[] bytes) {
+            calls.incrementAndGet();
+            super.nextBytes(bytes);
+          }
+        };
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            EncryptMailPGPTest.keys.publicKey(),
+            EncryptOptions.builder().secureRandom(random).build());
+    MimeBodyPart body =
+        instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+
+    assertTrue(calls.get() > 0);
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, EncryptMailPGPTest.keys.secretKey()).getSubject());
+    assertThrows(IllegalArgumentException.class, () -> EncryptOptions.builder().secureRandom(null));
+  }
+
+  @Test
+  public void reportMetrics() throws Exception {
+    for (boolean armor : new boolean[] {true, false}) {
+      RecordingListener listener = new RecordingListener();
+      EncryptMailPgp instance =
+          new EncryptMailPgp(
+              EncryptMailPGPTest.keys.publicKey(),
+              EncryptOptions.builder().armor(armor).listener(listener).build());
+      instance.encryptMultiPart(MailBuilder.buildContent(1 << 16), MailBuilder.setGeneralData());
+      instance.encryptMultiPart(MailBuilder.buildContent(1 << 16), MailBuilder.setGeneralData());
+
+      Map<Stage, Long> stages = listener.getStages();
+      for (Stage stage : Stage.values()) {
+        assertEquals(stage != Stage.ARMOR || armor, stages.containsKey(stage), stage.name());
+      }
+      assertTrue(stages.get(Stage.ENCRYPTION) > 0);
+      assertEquals(2, listener.getMessages());
+      assertTrue(listener.getBytesIn() > 2 * (1 << 16));
+      assertTrue(listener.getBytesOut() > 0);
+      // The recipients are prepared once and shared by the messages
+      assertEquals(1, listener.getKeyLookups());
+      assertTrue(listener.getErrors().isEmpty());
+    }
+  }
+
+  @Test
+  public void reportErrors() {
+    RecordingListener listener = new RecordingListener();
+    EncryptMailPgp instance =
+        new EncryptMailPgp(
+            "not a key".getBytes(), EncryptOptions.builder().listener(listener).build());
+    // A key ring without an encryption key is rejected as an invalid argument
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+    assertEquals(1, listener.getErrors().size());
+    assertEquals(0, listener.getMessages());
+  }
 }
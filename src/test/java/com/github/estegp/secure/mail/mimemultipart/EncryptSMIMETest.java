@@ -3,17 +3,30 @@ package com.github.estegp.secure.mail.mimemultipart;
 import static org.junit.jupiter.api.Assertions.*;
 
 import com.github.estegp.secure.mail.exceptions.EncryptMailException;
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
 import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import com.github.estegp.secure.mail.mimemultipart.helper.RecordingListener;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import org.bouncycastle.cms.CMSException;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -66,4 +79,166 @@ public class EncryptSMIMETest {
       fail("Unexpected Exception");
     }
   }
+
+  @Test
+  public void encryptWithRandomStrategy() throws Exception {
+    KeyBuilder.SmimeKeys keys = KeyBuilder.smime("to@mail.com");
+    for (RandomStrategy strategy : RandomStrategy.values()) {
+      EncryptSmime instance =
+          new EncryptSmime(
+              keys.certificate(),
+              EncryptOptions.builder()
+                  .smimeCipher(SmimeCipher.AES256_GCM)
+                  .randomStrategy(strategy)
+                  .build());
+      MimeBodyPart body =
+          instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+      assertEquals(
+          "<H1>Email</H1>", MailReader.decryptSmime(body, keys).getContent(), strategy.name());
+    }
+  }
+
+  @Test
+  public void encryptDataSeveralRecipients() throws Exception {
+    KeyBuilder.SmimeKeys first = KeyBuilder.smime("to@mail.com");
+    KeyBuilder.SmimeKeys second = KeyBuilder.smime("other@mail.com");
+    EncryptSmime instance = new EncryptSmime(List.of(first.certificate(), second.certificate()));
+    MimeBodyPart body = instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+
+    assertEquals(2, MailReader.countSmimeRecipients(body));
+    assertEquals("<H1>Email</H1>", MailReader.decryptSmime(body, first).getContent());
+    assertEquals("<H1>Email</H1>", MailReader.decryptSmime(body, second).getContent());
+  }
+
+  @Test
+  public void signAndEncrypt() throws Exception {
+    KeyBuilder.SmimeKeys keys = KeyBuilder.smime("to@mail.com");
+    KeyBuilder.SmimeKeys signer = KeyBuilder.smime("from@mail.com");
+
+    KeyStore store = KeyStore.getInstance("PKCS12");
+    store.load(null, null);
+    store.setKeyEntry(
+        "signer", signer.privateKey(), KeyBuilder.PASSPHRASE, new Certificate[] {signer.x509()});
+    ByteArrayOutputStream pkcs12 = new ByteArrayOutputStream();
+    store.store(pkcs12, KeyBuilder.PASSPHRASE);
+
+    for (SigningKey signingKey :
+        List.of(
+            SigningKey.smime(signer.certificate(), signer.privateKey()),
+            SigningKey.pkcs12(pkcs12.toByteArray(), KeyBuilder.PASSPHRASE))) {
+      EncryptSmime instance =
+          new EncryptSmime(
+              keys.certificate(), EncryptOptions.builder().signingKey(signingKey).build());
+      MimeBodyPart body =
+          instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+
+      MimeBodyPart signed = MailReader.decryptSmime(body, keys);
+      assertTrue(signed.getContentType().contains("signed-data"));
+      assertEquals("<H1>Email</H1>", MailReader.verifySmime(signed, signer.x509()).getContent());
+      assertThrows(CMSException.class, () -> MailReader.verifySmime(signed, keys.x509()));
+    }
+
+    // A 'PGP' key can't sign the 'SMIME' messages
+    EncryptSmime instance =
+        new EncryptSmime(
+            keys.certificate(),
+            EncryptOptions.builder()
+                .signingKey(SigningKey.pgp(keys.certificate(), KeyBuilder.PASSPHRASE))
+                .build());
+    assertThrows(
+        EncryptMailException.class,
+        () -> instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData()));
+  }
+
+  @Test
+  public void encryptWithoutRecipients() {
+    EncryptSmime instance = new EncryptSmime(List.of());
+    assertThrows(
+        EncryptMailException.class,
+        () -> instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData()));
+  }
+
+  @Test
+  public void encryptorSharedBetweenThreads() throws Exception {
+    KeyBuilder.SmimeKeys keys = KeyBuilder.smime("to@mail.com");
+    EncryptSmime instance = new EncryptSmime(keys.certificate());
+    // The content is encrypted when the part is written, so the parts are decrypted in the threads
+    List<Future<Object>> contents = new ArrayList<>();
+    try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+      for (int i = 0; i < 32; i++) {
+        contents.add(
+            executor.submit(
+                () ->
+                    MailReader.decryptSmime(
+                            instance.encryptData(
+                                MailBuilder.buildPart(), MailBuilder.setGeneralData()),
+                            keys)
+                        .getContent()));
+      }
+    }
+
+    for (Future<Object> content : contents) {
+      assertEquals("<H1>Email</H1>", content.get());
+    }
+  }
+
+  @Test
+  public void encryptWithEveryCipher() throws Exception {
+    KeyBuilder.SmimeKeys keys = KeyBuilder.smime("to@mail.com");
+    for (SmimeCipher cipher : SmimeCipher.values()) {
+      for (String provider : new String[] {EncryptOptions.BOUNCY_CASTLE, null}) {
+        EncryptSmime instance =
+            new EncryptSmime(
+                keys.certificate(),
+                EncryptOptions.builder().smimeCipher(cipher).provider(provider).build());
+        MimeBodyPart body =
+            instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+
+        assertEquals("<H1>Email</H1>", MailReader.decryptSmime(body, keys).getContent());
+        assertEquals(
+            cipher.isAuthenticated(), body.getContentType().contains("authEnveloped-data"));
+      }
+    }
+  }
+
+  @Test
+  public void writeAuthenticatedPartTwice() throws Exception {
+    KeyBuilder.SmimeKeys keys = KeyBuilder.smime("to@mail.com");
+    for (SmimeCipher cipher : new SmimeCipher[] {SmimeCipher.AES128_GCM, SmimeCipher.AES256_GCM}) {
+      EncryptSmime instance =
+          new EncryptSmime(
+              keys.certificate(), EncryptOptions.builder().smimeCipher(cipher).build());
+      MimeBodyPart body =
+          instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+
+      // e.g. a retry or a size check before the message is sent
+      ByteArrayOutputStream first = new ByteArrayOutputStream();
+      body.writeTo(first);
+      ByteArrayOutputStream second = new ByteArrayOutputStream();
+      body.writeTo(second);
+      assertArrayEquals(first.toByteArray(), second.toByteArray());
+      assertEquals("<H1>Email</H1>", MailReader.decryptSmime(body, keys).getContent());
+    }
+  }
+
+  @Test
+  public void reportMetrics() throws Exception {
+    KeyBuilder.SmimeKeys keys = KeyBuilder.smime("to@mail.com");
+    RecordingListener listener = new RecordingListener();
+    EncryptSmime instance =
+        new EncryptSmime(keys.certificate(), EncryptOptions.builder().listener(listener).build());
+    instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+    instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+
+    assertEquals(
+        Set.of(Stage.KEY_LOAD, Stage.ASSEMBLY, Stage.ENCRYPTION), listener.getStages().keySet());
+    assertEquals(1, listener.getKeyLookups());
+
+    EncryptSmime empty =
+        new EncryptSmime(List.of(), EncryptOptions.builder().listener(listener).build());
+    assertThrows(
+        EncryptMailException.class,
+        () -> empty.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData()));
+    assertEquals(1, listener.getErrors().size());
+  }
 }
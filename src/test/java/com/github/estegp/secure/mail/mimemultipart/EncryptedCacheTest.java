@@ -0,0 +1,233 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EncryptedCacheTest {
+
+  private static KeyBuilder.PgpKeys alice = null;
+  private static KeyBuilder.PgpKeys bob = null;
+  private static KeyBuilder.SmimeKeys carol = null;
+
+  @TempDir Path directory;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    EncryptedCacheTest.alice = KeyBuilder.pgp("Alice <alice@mail.com>");
+    EncryptedCacheTest.bob = KeyBuilder.pgp("Bob <bob@mail.com>");
+    EncryptedCacheTest.carol = KeyBuilder.smime("carol@mail.com");
+  }
+
+  private static EncryptOptions options(EncryptedCache cache) {
+    return EncryptOptions.builder().encryptedCache(cache).build();
+  }
+
+  private static byte[] encoded(MimeBodyPart part) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    part.writeTo(out);
+    return out.toByteArray();
+  }
+
+  private static long files(Path directory) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  public void disabledByDefault() {
+    assertNull(EncryptOptions.defaults().getEncryptedCache());
+  }
+
+  @Test
+  public void retryPgpMessage() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024 * 1024);
+    EncryptMailPgp encryptor =
+        new EncryptMailPgp(EncryptedCacheTest.alice.publicKey(), options(cache));
+    MimeMultipart content = MailBuilder.buildContent();
+    MimeMessage message = MailBuilder.setGeneralData();
+
+    MimeBodyPart first = encryptor.encryptMultiPart(content, message);
+    MimeBodyPart retry = encryptor.encryptMultiPart(content, message);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.size());
+    assertTrue(cache.getMemorySize() > 0);
+
+    // The same encrypted data is sent again, and it can still be decrypted
+    MimeMultipart sent = (MimeMultipart) first.getContent();
+    MimeMultipart resent = (MimeMultipart) retry.getContent();
+    assertArrayEquals(
+        encoded((MimeBodyPart) sent.getBodyPart(1)), encoded((MimeBodyPart) resent.getBodyPart(1)));
+    assertEquals(
+        "subject", MailReader.decryptPgp(retry, EncryptedCacheTest.alice.secretKey()).getSubject());
+
+    // Another message is encrypted again
+    encryptor.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void missOtherRecipients() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024 * 1024);
+    MimeMultipart content = MailBuilder.buildContent();
+    MimeMessage message = MailBuilder.setGeneralData();
+
+    new EncryptMailPgp(EncryptedCacheTest.alice.publicKey(), options(cache))
+        .encryptMultiPart(content, message);
+    MimeBodyPart body =
+        new EncryptMailPgp(EncryptedCacheTest.bob.publicKey(), options(cache))
+            .encryptMultiPart(content, message);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, EncryptedCacheTest.bob.secretKey()).getSubject());
+
+    // The order of the recipients doesn't matter, the options do
+    List<byte[]> both =
+        List.of(EncryptedCacheTest.alice.publicKey(), EncryptedCacheTest.bob.publicKey());
+    new EncryptMailPgp(both, options(cache)).encryptMultiPart(content, message);
+    new EncryptMailPgp(both.reversed(), options(cache)).encryptMultiPart(content, message);
+    assertEquals(1, cache.getHitCount());
+    new EncryptMailPgp(
+            both,
+            EncryptOptions.builder().encryptedCache(cache).compression(Compression.NONE).build())
+        .encryptMultiPart(content, message);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(4, cache.size());
+  }
+
+  @Test
+  public void missLeavesNoTempFile() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024 * 1024);
+    EncryptMailPgp encryptor =
+        new EncryptMailPgp(
+            EncryptedCacheTest.alice.publicKey(),
+            EncryptOptions.builder()
+                .encryptedCache(cache)
+                .streaming(true)
+                .tempDirectory(this.directory)
+                .build());
+
+    // The message is encrypted straight into the cache, no temporary file is left behind
+    MimeBodyPart body =
+        encryptor.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, files(this.directory));
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, EncryptedCacheTest.alice.secretKey()).getSubject());
+  }
+
+  @Test
+  public void reuseSmimeBodyPart() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024 * 1024);
+    EncryptSmime encryptor =
+        new EncryptSmime(
+            EncryptedCacheTest.carol.certificate(),
+            EncryptOptions.builder()
+                .encryptedCache(cache)
+                .smimeCipher(SmimeCipher.AES128_GCM)
+                .build());
+    MimeBodyPart part = MailBuilder.buildPart();
+
+    MimeBodyPart first = encryptor.encryptData(part, MailBuilder.setGeneralData());
+    MimeBodyPart second = encryptor.encryptData(part, MailBuilder.setGeneralData());
+    assertEquals(1, cache.getHitCount());
+    assertArrayEquals(encoded(first), encoded(second));
+    // The body part is rebuilt from the cached data, so it can be read more than once
+    assertEquals(
+        "<H1>Email</H1>", MailReader.decryptSmime(second, EncryptedCacheTest.carol).getContent());
+    assertEquals(
+        "<H1>Email</H1>", MailReader.decryptSmime(second, EncryptedCacheTest.carol).getContent());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024);
+    EncryptMailPgp encryptor =
+        new EncryptMailPgp(EncryptedCacheTest.alice.publicKey(), options(cache));
+    MimeMultipart content = MailBuilder.buildContent();
+    MimeMessage message = MailBuilder.setGeneralData();
+    encryptor.encryptMultiPart(content, message);
+    long size = cache.getMemorySize();
+
+    for (int i = 0; i < 1024 / size + 1; i++) {
+      encryptor.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    }
+    assertTrue(cache.getMemorySize() <= 1024);
+    assertTrue(cache.getEvictionCount() > 0);
+    encryptor.encryptMultiPart(content, message);
+    assertEquals(0, cache.getHitCount());
+
+    // The messages bigger than the cache are encrypted, but not cached
+    MimeBodyPart big =
+        encryptor.encryptMultiPart(MailBuilder.buildContent(4096), MailBuilder.setGeneralData());
+    assertNotNull(MailReader.decryptPgp(big, EncryptedCacheTest.alice.secretKey()));
+    assertTrue(cache.getMemorySize() <= 1024);
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getMemorySize());
+  }
+
+  @Test
+  public void spillToDisk() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024, this.directory, 64 * 1024);
+    EncryptMailPgp encryptor =
+        new EncryptMailPgp(EncryptedCacheTest.alice.publicKey(), options(cache));
+    MimeMultipart content = MailBuilder.buildContent();
+    MimeMessage message = MailBuilder.setGeneralData();
+    encryptor.encryptMultiPart(content, message);
+
+    // The big message goes to a file, the small ones are moved to files when the memory is full
+    MimeMultipart big = MailBuilder.buildContent(4096);
+    MimeMessage bigMessage = MailBuilder.setGeneralData();
+    encryptor.encryptMultiPart(big, bigMessage);
+    assertTrue(cache.getDiskSize() > 4096);
+    for (int i = 0; i < 4; i++) {
+      encryptor.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    }
+    assertTrue(cache.getMemorySize() <= 1024);
+    assertTrue(files(this.directory) >= 2);
+    assertEquals(0, cache.getEvictionCount());
+
+    MimeBodyPart retry = encryptor.encryptMultiPart(content, message);
+    MimeBodyPart bigRetry = encryptor.encryptMultiPart(big, bigMessage);
+    assertEquals(2, cache.getHitCount());
+    assertEquals(
+        "subject", MailReader.decryptPgp(retry, EncryptedCacheTest.alice.secretKey()).getSubject());
+    assertEquals(
+        "subject",
+        MailReader.decryptPgp(bigRetry, EncryptedCacheTest.alice.secretKey()).getSubject());
+  }
+
+  @Test
+  public void expireEntries() throws Exception {
+    EncryptedCache cache = new EncryptedCache(1024 * 1024);
+    cache.setTimeToLive(Duration.ZERO);
+    EncryptMailPgp encryptor =
+        new EncryptMailPgp(EncryptedCacheTest.alice.publicKey(), options(cache));
+    MimeMultipart content = MailBuilder.buildContent();
+    MimeMessage message = MailBuilder.setGeneralData();
+    encryptor.encryptMultiPart(content, message);
+    encryptor.encryptMultiPart(content, message);
+
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getEvictionCount());
+    assertThrows(IllegalArgumentException.class, () -> new EncryptedCache(-1));
+  }
+}
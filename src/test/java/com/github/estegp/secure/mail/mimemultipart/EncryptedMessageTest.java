@@ -0,0 +1,139 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.SmtpSink;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.stream.Stream;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EncryptedMessageTest {
+
+  private static KeyBuilder.PgpKeys alice = null;
+  private static KeyBuilder.SmimeKeys carol = null;
+
+  @TempDir Path directory;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    EncryptedMessageTest.alice = KeyBuilder.pgp("Alice <alice@mail.com>");
+    EncryptedMessageTest.carol = KeyBuilder.smime("carol@mail.com");
+  }
+
+  private static MimeMessage parse(InputStream in) throws Exception {
+    return new MimeMessage(Session.getInstance(new Properties()), in);
+  }
+
+  @Test
+  public void writePgpToSmtp() throws Exception {
+    EncryptMail encryptor = new EncryptMailPgp(EncryptedMessageTest.alice.publicKey());
+    MimeMultipart content = MailBuilder.buildContent(1 << 20);
+    MimeMessage message = MailBuilder.setGeneralData();
+
+    byte[] received;
+    try (SmtpSink sink = new SmtpSink()) {
+      received = sink.send(out -> encryptor.writeMultiPart(content, message, out));
+    }
+
+    // The headers of the message are sent with the PGP/MIME envelope [rfc3156]
+    MimeMessage sent = parse(new ByteArrayInputStream(received));
+    assertEquals("subject", sent.getSubject());
+    assertEquals("to@mail.com", sent.getRecipients(MimeMessage.RecipientType.TO)[0].toString());
+    assertEquals(message.getMessageID(), sent.getMessageID());
+    assertTrue(sent.isMimeType("multipart/encrypted"));
+
+    MimeMessage decrypted =
+        new DecryptMailPgp(EncryptedMessageTest.alice.secretKey(), KeyBuilder.PASSPHRASE)
+            .decrypt(new ByteArrayInputStream(received));
+    assertEquals("subject", decrypted.getSubject());
+    assertEquals(2, ((MimeMultipart) decrypted.getContent()).getCount());
+  }
+
+  @Test
+  public void writePgpWithoutBuffering() throws Exception {
+    for (boolean armor : new boolean[] {true, false}) {
+      // Any buffer of the encrypted data would be moved to the directory
+      EncryptMail encryptor =
+          new EncryptMailPgp(
+              EncryptedMessageTest.alice.publicKey(),
+              EncryptOptions.builder()
+                  .armor(armor)
+                  .bufferStrategy(BufferStrategy.heap().mapAbove(0))
+                  .tempDirectory(this.directory)
+                  .build());
+      MimeMessage message = MailBuilder.setGeneralData();
+
+      ByteArrayOutputStream received = new ByteArrayOutputStream();
+      encryptor.writeMultiPart(
+          MailBuilder.buildContent(1 << 20),
+          message,
+          new FilterOutputStream(received) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              try (Stream<Path> files = Files.list(EncryptedMessageTest.this.directory)) {
+                assertEquals(0, files.count());
+              }
+              this.out.write(b, off, len);
+            }
+          });
+
+      MimeMessage sent = parse(new ByteArrayInputStream(received.toByteArray()));
+      assertEquals(message.getMessageID(), sent.getMessageID());
+      assertTrue(sent.isMimeType("multipart/encrypted"));
+      MimeMessage decrypted =
+          new DecryptMailPgp(EncryptedMessageTest.alice.secretKey(), KeyBuilder.PASSPHRASE)
+              .decrypt(new ByteArrayInputStream(received.toByteArray()));
+      assertEquals("subject", decrypted.getSubject());
+      // BASE64DecoderStream doesn't support readAllBytes
+      ByteArrayOutputStream attachment = new ByteArrayOutputStream();
+      try (InputStream in =
+          ((MimeMultipart) decrypted.getContent()).getBodyPart(1).getInputStream()) {
+        in.transferTo(attachment);
+      }
+      assertEquals(1 << 20, attachment.size());
+    }
+  }
+
+  @Test
+  public void writeSmimeToChannel() throws Exception {
+    EncryptMail encryptor = new EncryptSmime(EncryptedMessageTest.carol.certificate());
+    MimeMessage message = MailBuilder.setGeneralData();
+    Path spool = this.directory.resolve("message.eml");
+
+    try (FileChannel channel =
+        FileChannel.open(spool, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      encryptor.writeMultiPart(MailBuilder.buildContent(), message, channel);
+    }
+
+    try (InputStream in = Files.newInputStream(spool)) {
+      MimeMessage sent = parse(in);
+      assertEquals("subject", sent.getSubject());
+      assertNotNull(sent.getMessageID());
+      assertTrue(sent.isMimeType("application/pkcs7-mime"));
+    }
+    try (InputStream in = Files.newInputStream(spool)) {
+      MimeMessage decrypted =
+          new DecryptSmime(
+                  EncryptedMessageTest.carol.certificate(), EncryptedMessageTest.carol.privateKey())
+              .decrypt(in);
+      MimeMultipart parts = (MimeMultipart) decrypted.getContent();
+      assertEquals("<H1>Email</H1>", parts.getBodyPart(0).getContent());
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateFactory;
+import java.util.HexFormat;
+import java.util.List;
+import javax.mail.internet.MimeBodyPart;
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileKeyStoreTest {
+
+  private static KeyBuilder.PgpKeys alice = null;
+  private static KeyBuilder.PgpKeys bob = null;
+  private static KeyBuilder.SmimeKeys carol = null;
+  private static KeyBuilder.SmimeKeys dave = null;
+
+  @TempDir Path directory;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    FileKeyStoreTest.alice = KeyBuilder.pgp("Alice <alice@mail.com>");
+    FileKeyStoreTest.bob = KeyBuilder.pgp("Bob <bob@mail.com>");
+    FileKeyStoreTest.carol = KeyBuilder.smime("carol@mail.com");
+    FileKeyStoreTest.dave = KeyBuilder.smime("dave@mail.com");
+  }
+
+  private static byte[] dearmor(byte[] armored) throws IOException {
+    try (InputStream in = new ArmoredInputStream(new ByteArrayInputStream(armored))) {
+      return in.readAllBytes();
+    }
+  }
+
+  private static String subject(MimeBodyPart body, KeyBuilder.PgpKeys keys) throws Exception {
+    return MailReader.decryptPgp(body, keys.secretKey()).getSubject();
+  }
+
+  @Test
+  public void loadDirectory() throws Exception {
+    Files.write(this.directory.resolve("alice.asc"), FileKeyStoreTest.alice.publicKey());
+    Files.write(this.directory.resolve("carol.pem"), FileKeyStoreTest.carol.certificate());
+    Files.writeString(this.directory.resolve("README.txt"), "Keys of the recipients");
+    FileKeyStore store = new FileKeyStore(this.directory);
+    assertEquals(2, store.size());
+
+    EncryptMail pgp = store.getEncryptor("Alice <ALICE@mail.com>");
+    assertInstanceOf(EncryptMailPgp.class, pgp);
+    assertSame(pgp, store.getEncryptor("alice@mail.com"));
+    MimeBodyPart body =
+        pgp.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals("subject", subject(body, FileKeyStoreTest.alice));
+
+    EncryptMail smime = store.getEncryptor("carol@mail.com");
+    body = smime.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+    assertEquals(
+        "<H1>Email</H1>", MailReader.decryptSmime(body, FileKeyStoreTest.carol).getContent());
+    // The SHA-256 fingerprint, as printed by the certificate tools
+    String fingerprint =
+        HexFormat.ofDelimiter(":")
+            .formatHex(
+                HexFormat.of()
+                    .parseHex(KeyCache.contentId(FileKeyStoreTest.carol.x509().getEncoded())));
+    assertSame(smime, store.getEncryptor(fingerprint));
+
+    assertNull(store.getEncryptor("bob@mail.com"));
+    assertNull(store.getKey("bob@mail.com"));
+  }
+
+  @Test
+  public void loadKeyRingCollection() throws Exception {
+    ByteArrayOutputStream rings = new ByteArrayOutputStream();
+    rings.write(dearmor(FileKeyStoreTest.alice.publicKey()));
+    rings.write(dearmor(FileKeyStoreTest.bob.publicKey()));
+    Path file = this.directory.resolve("pubring.gpg");
+    Files.write(file, rings.toByteArray());
+    FileKeyStore store = new FileKeyStore(file);
+    assertEquals(2, store.size());
+
+    PGPPublicKey key = KeyLoadManager.INSTANCE.loadPgpKey(FileKeyStoreTest.bob.publicKey());
+    EncryptMail bob = store.getEncryptor("bob@mail.com");
+    assertSame(bob, store.getEncryptor(String.format("0x%016x", key.getKeyID())));
+    assertSame(bob, store.getEncryptor(HexFormat.of().formatHex(key.getFingerprint())));
+    assertNotSame(bob, store.getEncryptor("alice@mail.com"));
+
+    // The message is encrypted once for both recipients
+    MimeBodyPart body =
+        store
+            .getEncryptor(List.of("alice@mail.com", "bob@mail.com"))
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals("subject", subject(body, FileKeyStoreTest.alice));
+    assertEquals("subject", subject(body, FileKeyStoreTest.bob));
+    assertNull(store.getEncryptor(List.of("alice@mail.com", "unknown@mail.com")));
+  }
+
+  @Test
+  public void loadPkcs7Bundle() throws Exception {
+    Path file = this.directory.resolve("bundle.p7b");
+    Files.write(
+        file,
+        CertificateFactory.getInstance("X.509")
+            .generateCertPath(List.of(FileKeyStoreTest.carol.x509(), FileKeyStoreTest.dave.x509()))
+            .getEncoded("PKCS7"));
+    FileKeyStore store = new FileKeyStore(file);
+
+    assertEquals(2, store.size());
+    assertArrayEquals(FileKeyStoreTest.dave.x509().getEncoded(), store.getKey("dave@mail.com"));
+    assertInstanceOf(EncryptSmime.class, store.getEncryptor("carol@mail.com"));
+  }
+
+  @Test
+  public void reloadModifiedFiles() throws Exception {
+    Files.write(this.directory.resolve("alice.asc"), FileKeyStoreTest.alice.publicKey());
+    FileKeyStore store = new FileKeyStore(this.directory);
+    EncryptMail alice = store.getEncryptor("alice@mail.com");
+    assertFalse(store.reloadIfModified());
+
+    Files.write(this.directory.resolve("bob.asc"), FileKeyStoreTest.bob.publicKey());
+    assertTrue(store.reloadIfModified());
+    assertNotNull(store.getEncryptor("bob@mail.com"));
+    // The encryptors of the keys that didn't change are kept
+    assertSame(alice, store.getEncryptor("alice@mail.com"));
+
+    Files.delete(this.directory.resolve("alice.asc"));
+    store.reload();
+    assertNull(store.getEncryptor("alice@mail.com"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void keepTheKeysWhenTheReloadFails() throws Exception {
+    Files.write(this.directory.resolve("alice.asc"), FileKeyStoreTest.alice.publicKey());
+    FileKeyStore store = new FileKeyStore(this.directory);
+
+    Files.writeString(
+        this.directory.resolve("broken.pem"),
+        "-----BEGIN CERTIFICATE-----\nbroken\n-----END CERTIFICATE-----\n");
+    assertThrows(IOException.class, store::reload);
+    assertNotNull(store.getEncryptor("alice@mail.com"));
+    assertThrows(IOException.class, () -> new FileKeyStore(this.directory));
+  }
+}
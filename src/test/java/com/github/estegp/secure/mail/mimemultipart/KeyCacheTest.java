@@ -0,0 +1,100 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class KeyCacheTest {
+
+  private static byte[] pgpKey = null;
+  private static byte[] smimeKey = null;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    // The key for testing has expired, and only the valid keys are cached
+    KeyCacheTest.pgpKey = KeyBuilder.pgp("to <to@mail.com>").publicKey();
+
+    URL keyFileURL = KeyCacheTest.class.getClassLoader().getResource("for_testing_only.smime");
+    File dir = new File(keyFileURL.toURI());
+    try (InputStream stream = new FileInputStream(dir)) {
+      KeyCacheTest.smimeKey = stream.readAllBytes();
+    }
+  }
+
+  @Test
+  public void hitsAndMisses() {
+    KeyCache<String> cache = new KeyCache<>();
+    String id = KeyCache.contentId(new byte[] {1, 2, 3});
+
+    assertNull(cache.get(id));
+    cache.put(id, "key");
+    assertEquals("key", cache.get(id));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    KeyCache<String> cache = new KeyCache<>(2, Duration.ofHours(1));
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.get("a");
+    cache.put("c", "c");
+
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertEquals("a", cache.get("a"));
+    assertEquals("c", cache.get("c"));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void expiresEntries() {
+    KeyCache<String> cache = new KeyCache<>(2, Duration.ZERO);
+    cache.put("a", "a");
+
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void invalidatesEntries() {
+    KeyCache<String> cache = new KeyCache<>();
+    byte[] key = new byte[] {1, 2, 3};
+    cache.put(KeyCache.contentId(key), "key");
+    cache.put("other", "other");
+
+    cache.invalidate(key);
+    assertNull(cache.get(KeyCache.contentId(key)));
+    assertEquals(1, cache.size());
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void reusesParsedPgpKey() throws Exception {
+    PGPPublicKey first = KeyLoadManager.INSTANCE.loadPgpKey(KeyCacheTest.pgpKey);
+    PGPPublicKey second = KeyLoadManager.INSTANCE.loadPgpKey(KeyCacheTest.pgpKey.clone());
+    assertSame(first, second);
+
+    KeyLoadManager.INSTANCE.invalidate(KeyCacheTest.pgpKey);
+    assertNotSame(first, KeyLoadManager.INSTANCE.loadPgpKey(KeyCacheTest.pgpKey));
+  }
+
+  @Test
+  public void reusesParsedCertificate() throws Exception {
+    X509Certificate first = KeyLoadManager.INSTANCE.loadCertificate(KeyCacheTest.smimeKey);
+    X509Certificate second = KeyLoadManager.INSTANCE.loadCertificate(KeyCacheTest.smimeKey);
+    assertSame(first, second);
+  }
+}
@@ -0,0 +1,132 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+import java.util.List;
+import javax.mail.internet.MimeBodyPart;
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.openpgp.PGPException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class KeyFormatTest {
+
+  private static KeyBuilder.PgpKeys pgp = null;
+  private static KeyBuilder.SmimeKeys smime = null;
+  private static byte[] binaryPgp = null;
+  private static byte[] pkcs7 = null;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    KeyFormatTest.pgp = KeyBuilder.pgp("to <to@mail.com>");
+    KeyFormatTest.smime = KeyBuilder.smime("to@mail.com");
+    try (InputStream in =
+        new ArmoredInputStream(new ByteArrayInputStream(KeyFormatTest.pgp.publicKey()))) {
+      KeyFormatTest.binaryPgp = in.readAllBytes();
+    }
+    KeyFormatTest.pkcs7 =
+        CertificateFactory.getInstance("X.509")
+            .generateCertPath(List.of(KeyFormatTest.smime.x509()))
+            .getEncoded("PKCS7");
+  }
+
+  @Test
+  public void detectPgp() {
+    assertEquals(KeyFormat.ARMORED_PGP, KeyFormat.detect(KeyFormatTest.pgp.publicKey()));
+    assertEquals(KeyFormat.BINARY_PGP, KeyFormat.detect(KeyFormatTest.binaryPgp));
+    assertTrue(KeyFormat.detect(KeyFormatTest.binaryPgp).isPgp());
+  }
+
+  @Test
+  public void detectCertificates() throws Exception {
+    assertEquals(KeyFormat.PEM_X509, KeyFormat.detect(KeyFormatTest.smime.certificate()));
+    assertEquals(KeyFormat.DER_X509, KeyFormat.detect(KeyFormatTest.smime.x509().getEncoded()));
+    assertEquals(KeyFormat.PKCS7, KeyFormat.detect(KeyFormatTest.pkcs7));
+
+    String pem =
+        "Bag Attributes\n-----BEGIN PKCS7-----\n"
+            + Base64.getMimeEncoder().encodeToString(KeyFormatTest.pkcs7)
+            + "\n-----END PKCS7-----\n";
+    assertEquals(KeyFormat.PKCS7, KeyFormat.detect(pem.getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  @Test
+  public void detectUnknown() {
+    assertEquals(KeyFormat.UNKNOWN, KeyFormat.detect(null));
+    assertEquals(KeyFormat.UNKNOWN, KeyFormat.detect(new byte[0]));
+    assertEquals(KeyFormat.UNKNOWN, KeyFormat.detect("not a key".getBytes(StandardCharsets.UTF_8)));
+    assertEquals(
+        KeyFormat.UNKNOWN,
+        KeyFormat.detect("-----BEGIN PGP MESSAGE-----".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(KeyFormat.UNKNOWN, KeyFormat.detect(new byte[] {0x30}));
+    assertFalse(KeyFormat.UNKNOWN.isPgp());
+  }
+
+  @Test
+  public void encryptWithBinaryPgpKey() throws Exception {
+    EncryptMail instance = new EncryptMailFactory(KeyFormatTest.binaryPgp).getEncryptor();
+    assertInstanceOf(EncryptMailPgp.class, instance);
+
+    MimeBodyPart body =
+        instance.encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, KeyFormatTest.pgp.secretKey()).getSubject());
+  }
+
+  @Test
+  public void encryptWithPkcs7Bundle() throws Exception {
+    EncryptMail instance = new EncryptMailFactory(KeyFormatTest.pkcs7).getEncryptor();
+    assertInstanceOf(EncryptSmime.class, instance);
+
+    MimeBodyPart body = instance.encryptData(MailBuilder.buildPart(), MailBuilder.setGeneralData());
+    assertEquals("<H1>Email</H1>", MailReader.decryptSmime(body, KeyFormatTest.smime).getContent());
+    assertNotNull(
+        KeyLoadManager.INSTANCE.getCertificateCache().get(KeyCache.contentId(KeyFormatTest.pkcs7)));
+  }
+
+  @Test
+  public void selectTheEncryptionWithoutTheCaches() throws Exception {
+    KeyCache<?> certificates = KeyLoadManager.INSTANCE.getCertificateCache();
+    byte[] other = KeyBuilder.smime("other@mail.com").certificate();
+    certificates.invalidateAll();
+    certificates.setMaxEntries(2);
+    try {
+      KeyLoadManager.INSTANCE.loadCertificate(KeyFormatTest.smime.certificate());
+      KeyLoadManager.INSTANCE.loadCertificate(KeyFormatTest.pkcs7);
+
+      // The format is read from the first bytes of the keys, loaded or not, so the factory doesn't
+      // make the first certificate the most recently used one
+      assertInstanceOf(
+          EncryptSmime.class,
+          new EncryptMailFactory(KeyFormatTest.smime.certificate()).getEncryptor());
+      assertInstanceOf(
+          EncryptMailPgp.class,
+          new EncryptMailFactory(KeyFormatTest.pgp.publicKey()).getEncryptor());
+      KeyLoadManager.INSTANCE.loadCertificate(other);
+
+      assertNull(certificates.get(KeyCache.contentId(KeyFormatTest.smime.certificate())));
+      assertNotNull(certificates.get(KeyCache.contentId(KeyFormatTest.pkcs7)));
+    } finally {
+      certificates.setMaxEntries(KeyCache.DEFAULT_MAX_ENTRIES);
+    }
+  }
+
+  @Test
+  public void rejectKeysOfTheOtherType() {
+    assertThrows(
+        CertificateException.class,
+        () -> KeyLoadManager.INSTANCE.loadCertificate(KeyFormatTest.pgp.publicKey()));
+    assertThrows(
+        PGPException.class,
+        () -> KeyLoadManager.INSTANCE.loadPgpKey(KeyFormatTest.smime.certificate()));
+  }
+}
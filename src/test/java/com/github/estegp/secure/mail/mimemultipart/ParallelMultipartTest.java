@@ -0,0 +1,115 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class ParallelMultipartTest {
+
+  private static KeyBuilder.PgpKeys alice = null;
+  private static KeyBuilder.SmimeKeys carol = null;
+  private static ForkJoinPool pool = null;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    ParallelMultipartTest.alice = KeyBuilder.pgp("Alice <alice@mail.com>");
+    ParallelMultipartTest.carol = KeyBuilder.smime("carol@mail.com");
+    ParallelMultipartTest.pool = new ForkJoinPool(4);
+  }
+
+  @AfterAll
+  public static void TearDown() {
+    ParallelMultipartTest.pool.shutdown();
+  }
+
+  private static MimeMultipart attachments() throws Exception {
+    MimeMultipart content = MailBuilder.buildContent();
+    content.setPreamble("This is a multipart message");
+    for (int i = 1; i <= 4; i++) {
+      content.addBodyPart(MailBuilder.buildAttachment(i * 100_000));
+    }
+    return content;
+  }
+
+  private static byte[] encoded(MimeMessage message) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    message.writeTo(out);
+    return out.toByteArray();
+  }
+
+  private static byte[] decoded(MimeBodyPart part) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    part.getDataHandler().writeTo(out);
+    return out.toByteArray();
+  }
+
+  private static EncryptOptions options() {
+    return EncryptOptions.builder().parallelEncoding(ParallelMultipartTest.pool).build();
+  }
+
+  @Test
+  public void disabledByDefault() {
+    assertNull(EncryptOptions.defaults().getEncodingPool());
+  }
+
+  @Test
+  public void writeSameMessage() throws Exception {
+    MimeMultipart content = attachments();
+    MimeMessage message = MailBuilder.setGeneralData();
+    message.setContent(content);
+    message.saveChanges();
+    byte[] expected = encoded(message);
+
+    try (ParallelMultipart parallel =
+        ParallelMultipart.encode(content, ParallelMultipartTest.pool)) {
+      message.setContent(parallel, content.getContentType());
+      message.setHeader("Content-Type", content.getContentType());
+      assertArrayEquals(expected, encoded(message));
+      // The buffers are kept, so it can be written again
+      assertArrayEquals(expected, encoded(message));
+      assertEquals(content.getCount(), parallel.getCount());
+      assertSame(content.getBodyPart(2), parallel.getBodyPart(2));
+    }
+  }
+
+  @Test
+  public void encryptPgpMessage() throws Exception {
+    MimeMultipart content = attachments();
+    MimeMessage message = MailBuilder.setGeneralData();
+    MimeBodyPart body =
+        new EncryptMailPgp(ParallelMultipartTest.alice.publicKey(), options())
+            .encryptMultiPart(content, message);
+
+    MimeMessage decrypted = MailReader.decryptPgp(body, ParallelMultipartTest.alice.secretKey());
+    MimeMultipart parts = (MimeMultipart) decrypted.getContent();
+    assertEquals(content.getCount(), parts.getCount());
+    assertEquals(400_000, decoded((MimeBodyPart) parts.getBodyPart(4)).length);
+
+    // The msg is put back as the message content
+    assertSame(content, message.getContent());
+  }
+
+  @Test
+  public void encryptSmimeMessage() throws Exception {
+    MimeMultipart content = attachments();
+    MimeBodyPart body =
+        new EncryptSmime(ParallelMultipartTest.carol.certificate(), options())
+            .encryptMultiPart(content, MailBuilder.setGeneralData());
+
+    MimeBodyPart decrypted = MailReader.decryptSmime(body, ParallelMultipartTest.carol);
+    MimeMultipart parts = (MimeMultipart) decrypted.getContent();
+    assertEquals(content.getCount(), parts.getCount());
+    assertEquals("<H1>Email</H1>", parts.getBodyPart(0).getContent());
+    assertEquals(300_000, decoded((MimeBodyPart) parts.getBodyPart(3)).length);
+  }
+}
@@ -0,0 +1,219 @@
+package com.github.estegp.secure.mail.mimemultipart;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.estegp.secure.mail.mimemultipart.helper.KeyBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailBuilder;
+import com.github.estegp.secure.mail.mimemultipart.helper.MailReader;
+import com.github.estegp.secure.mail.mimemultipart.helper.RecordingListener;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import javax.mail.internet.MimeBodyPart;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class PgpKeyRingReaderTest {
+
+  private static KeyPairGenerator generator = null;
+
+  /** The key ring of alice, with expired, revoked and valid encryption subkeys. */
+  private static PGPPublicKeyRing alice = null;
+
+  private static byte[] aliceSecret = null;
+
+  /** The id of the newest valid encryption subkey of alice. */
+  private static long aliceKeyId = 0;
+
+  @BeforeAll
+  public static void SetUp() throws Exception {
+    PgpKeyRingReaderTest.generator = KeyPairGenerator.getInstance("RSA");
+    PgpKeyRingReaderTest.generator.initialize(1024);
+
+    PGPKeyPair master = keyPair(PGPPublicKey.RSA_SIGN, 30);
+    PGPKeyPair revoked = keyPair(PGPPublicKey.RSA_GENERAL, 5);
+    PGPKeyPair newest = keyPair(PGPPublicKey.RSA_GENERAL, 10);
+    PGPKeyRingGenerator ringGen = ringGenerator(master, "Alice <alice@mail.com>");
+    ringGen.addSubKey(keyPair(PGPPublicKey.RSA_GENERAL, 20), expiresIn(Duration.ofDays(1)), null);
+    ringGen.addSubKey(keyPair(PGPPublicKey.RSA_GENERAL, 15));
+    ringGen.addSubKey(newest);
+    ringGen.addSubKey(revoked);
+
+    PgpKeyRingReaderTest.alice = revoke(ringGen.generatePublicKeyRing(), master, revoked);
+    PgpKeyRingReaderTest.aliceSecret = ringGen.generateSecretKeyRing().getEncoded();
+    PgpKeyRingReaderTest.aliceKeyId = newest.getKeyID();
+  }
+
+  private static PGPKeyPair keyPair(int algorithm, int daysAgo) throws Exception {
+    KeyPair keys = PgpKeyRingReaderTest.generator.generateKeyPair();
+    return new JcaPGPKeyPair(
+        algorithm, keys, Date.from(Instant.now().minus(Duration.ofDays(daysAgo))));
+  }
+
+  private static PGPKeyRingGenerator ringGenerator(PGPKeyPair master, String userId)
+      throws Exception {
+    return new PGPKeyRingGenerator(
+        PGPSignature.POSITIVE_CERTIFICATION,
+        master,
+        userId,
+        new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1),
+        null,
+        null,
+        new JcaPGPContentSignerBuilder(
+            master.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+        new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256).build(KeyBuilder.PASSPHRASE));
+  }
+
+  private static PGPSignatureSubpacketVector expiresIn(Duration duration) {
+    PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+    subpackets.setKeyExpirationTime(false, duration.toSeconds());
+    return subpackets.generate();
+  }
+
+  private static PGPPublicKeyRing revoke(PGPPublicKeyRing ring, PGPKeyPair master, PGPKeyPair key)
+      throws Exception {
+    PGPSignatureGenerator sigGen =
+        new PGPSignatureGenerator(
+            new JcaPGPContentSignerBuilder(
+                master.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+            master.getPublicKey());
+    sigGen.init(PGPSignature.SUBKEY_REVOCATION, master.getPrivateKey());
+    PGPSignature revocation =
+        sigGen.generateCertification(master.getPublicKey(), ring.getPublicKey(key.getKeyID()));
+    return PGPPublicKeyRing.insertPublicKey(
+        ring, PGPPublicKey.addCertification(ring.getPublicKey(key.getKeyID()), revocation));
+  }
+
+  /** Key rings with a single encryption master key, for the given user. */
+  private static PGPPublicKeyRing simpleRing(String userId, int daysAgo) throws Exception {
+    PGPKeyPair master = keyPair(PGPPublicKey.RSA_GENERAL, daysAgo);
+    return ringGenerator(master, userId).generatePublicKeyRing();
+  }
+
+  private static byte[] collection(PGPPublicKeyRing... rings) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (PGPPublicKeyRing ring : rings) {
+      ring.encode(out);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void selectNewestValidSubkey() {
+    PGPPublicKey key =
+        PgpKeyRingReader.selectEncryptionKey(PgpKeyRingReaderTest.alice, Instant.now());
+    assertEquals(PgpKeyRingReaderTest.aliceKeyId, key.getKeyID());
+    assertFalse(key.isMasterKey());
+  }
+
+  @Test
+  public void parseOnlyUntilTheRecipient() throws Exception {
+    PGPPublicKeyRing[] rings = new PGPPublicKeyRing[6];
+    rings[0] = PgpKeyRingReaderTest.alice;
+    for (int i = 1; i < rings.length; i++) {
+      rings[i] = simpleRing("User " + i + " <user" + i + "@mail.com>", i);
+    }
+    PgpKeyRingReader reader = new PgpKeyRingReader(collection(rings));
+
+    PGPPublicKey key = reader.findEncryptionKey("Alice <ALICE@mail.com>");
+    assertEquals(PgpKeyRingReaderTest.aliceKeyId, key.getKeyID());
+    assertEquals(1, reader.getParsedCount());
+
+    long userKeyId = rings[3].getPublicKey().getKeyID();
+    assertEquals(
+        userKeyId, reader.findEncryptionKey(String.format("0x%016x", userKeyId)).getKeyID());
+    assertEquals(4, reader.getParsedCount());
+    // The parsed key rings are found in the index
+    assertEquals(
+        rings[0].getPublicKey().getKeyID(),
+        reader.findKeyRing("alice@mail.com").getPublicKey().getKeyID());
+    assertEquals(4, reader.getParsedCount());
+
+    assertNull(reader.findEncryptionKey("unknown@mail.com"));
+    assertEquals(6, reader.getParsedCount());
+    assertEquals(6, reader.readAll().size());
+  }
+
+  @Test
+  public void skipRevokedKeyRings() throws Exception {
+    PGPKeyPair master = keyPair(PGPPublicKey.RSA_SIGN, 20);
+    PGPKeyPair subkey = keyPair(PGPPublicKey.RSA_GENERAL, 20);
+    PGPKeyRingGenerator ringGen = ringGenerator(master, "Bob <bob@mail.com>");
+    ringGen.addSubKey(subkey);
+    PGPPublicKeyRing revoked = revoke(ringGen.generatePublicKeyRing(), master, subkey);
+    PGPPublicKeyRing current = simpleRing("Bob <bob@mail.com>", 1);
+
+    // The first key ring of bob has no valid encryption key, the second one is used
+    byte[] keyRings = collection(revoked, current);
+    assertEquals(
+        current.getPublicKey().getKeyID(),
+        KeyLoadManager.INSTANCE.loadPgpKey(keyRings, "bob@mail.com").getKeyID());
+    assertEquals(
+        current.getPublicKey().getKeyID(), KeyLoadManager.INSTANCE.loadPgpKey(keyRings).getKeyID());
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> KeyLoadManager.INSTANCE.loadPgpKey(revoked.getEncoded()));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> KeyLoadManager.INSTANCE.loadPgpKey(keyRings, "alice@mail.com"));
+  }
+
+  @Test
+  public void encryptWithTheSelectedSubkey() throws Exception {
+    byte[] key = PgpKeyRingReaderTest.alice.getEncoded();
+    assertEquals(
+        PgpKeyRingReaderTest.aliceKeyId, KeyLoadManager.INSTANCE.loadPgpKey(key).getKeyID());
+
+    MimeBodyPart body =
+        new EncryptMailPgp(key)
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(
+        "subject", MailReader.decryptPgp(body, PgpKeyRingReaderTest.aliceSecret).getSubject());
+  }
+
+  @Test
+  public void rejectExpiredKeysByDefault() throws Exception {
+    PGPKeyPair master = keyPair(PGPPublicKey.RSA_SIGN, 20);
+    PGPKeyPair expired = keyPair(PGPPublicKey.RSA_GENERAL, 20);
+    PGPKeyRingGenerator ringGen = ringGenerator(master, "Carol <carol@mail.com>");
+    ringGen.addSubKey(expired, expiresIn(Duration.ofDays(1)), null);
+    byte[] key = ringGen.generatePublicKeyRing().getEncoded();
+
+    assertThrows(IllegalArgumentException.class, () -> KeyLoadManager.INSTANCE.loadPgpKey(key));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new EncryptMailPgp(key)
+                .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData()));
+
+    // The expired key is only used when the options accept it, and it's reported
+    RecordingListener listener = new RecordingListener();
+    MimeBodyPart body =
+        new EncryptMailPgp(
+                key, EncryptOptions.builder().acceptExpiredKeys(true).listener(listener).build())
+            .encryptMultiPart(MailBuilder.buildContent(), MailBuilder.setGeneralData());
+    assertEquals(List.of(expired.getKeyID()), listener.getExpiredKeys());
+    assertEquals(
+        "subject",
+        MailReader.decryptPgp(body, ringGen.generateSecretKeyRing().getEncoded()).getSubject());
+  }
+}
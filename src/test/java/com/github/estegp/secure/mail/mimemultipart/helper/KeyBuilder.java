@@ -0,0 +1,132 @@
+package com.github.estegp.secure.mail.mimemultipart.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/** Generates throw-away keys so the tests can decrypt what the library encrypts. */
+public final class KeyBuilder {
+
+  /** The passphrase of the generated 'PGP' secret keys. */
+  public static final char[] PASSPHRASE = "for_testing_only".toCharArray();
+
+  private KeyBuilder() {}
+
+  /**
+   * A generated 'PGP' key ring.
+   *
+   * @param publicKey the armored public key ring.
+   * @param secretKey the binary secret key ring, protected with {@link #PASSPHRASE}.
+   */
+  public record PgpKeys(byte[] publicKey, byte[] secretKey) {}
+
+  /**
+   * Generates a 'PGP' key ring with an RSA signing master key and an RSA encryption subkey.
+   *
+   * @param userId the user id of the key ring.
+   * @return the public and secret key rings.
+   */
+  public static PgpKeys pgp(String userId)
+      throws NoSuchAlgorithmException, PGPException, IOException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    Date now = new Date();
+
+    PGPKeyPair master =
+        new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(), now);
+    KeyPair encKeys = generator.generateKeyPair();
+    PGPKeyPair subkey = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, encKeys, now);
+
+    PGPKeyRingGenerator ringGen =
+        new PGPKeyRingGenerator(
+            PGPSignature.POSITIVE_CERTIFICATION,
+            master,
+            userId,
+            new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1),
+            null,
+            null,
+            new JcaPGPContentSignerBuilder(
+                master.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+            new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256).build(PASSPHRASE));
+    ringGen.addSubKey(subkey);
+
+    ByteArrayOutputStream pub = new ByteArrayOutputStream();
+    try (ArmoredOutputStream armored = new ArmoredOutputStream(pub)) {
+      ringGen.generatePublicKeyRing().encode(armored);
+    }
+    return new PgpKeys(pub.toByteArray(), ringGen.generateSecretKeyRing().getEncoded());
+  }
+
+  /**
+   * A generated 'SMIME' key pair.
+   *
+   * @param certificate the PEM encoded self-signed certificate.
+   * @param x509 the parsed certificate.
+   * @param privateKey the private key of the certificate.
+   */
+  public record SmimeKeys(byte[] certificate, X509Certificate x509, PrivateKey privateKey) {}
+
+  /**
+   * Generates an RSA key pair and a self-signed certificate for the given email.
+   *
+   * @param email the email address of the certificate.
+   * @return the certificate and its private key.
+   */
+  public static SmimeKeys smime(String email)
+      throws NoSuchAlgorithmException,
+          OperatorCreationException,
+          CertificateException,
+          IOException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keys = generator.generateKeyPair();
+
+    X500Name name = new X500Name("CN=" + email + ", E=" + email);
+    long now = System.currentTimeMillis();
+    X509CertificateHolder holder =
+        new JcaX509v3CertificateBuilder(
+                name,
+                BigInteger.valueOf(now),
+                new Date(now - 60_000L),
+                new Date(now + 86_400_000L),
+                name,
+                keys.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate()));
+    X509Certificate cert = new JcaX509CertificateConverter().getCertificate(holder);
+
+    StringWriter pem = new StringWriter();
+    try (JcaPEMWriter writer = new JcaPEMWriter(pem)) {
+      writer.writeObject(cert);
+    }
+    return new SmimeKeys(
+        pem.toString().getBytes(StandardCharsets.US_ASCII), cert, keys.getPrivate());
+  }
+}
@@ -1,6 +1,8 @@
 package com.github.estegp.secure.mail.mimemultipart.helper;
 
 import java.util.Properties;
+import java.util.Random;
+import javax.activation.DataHandler;
 import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -9,6 +11,7 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
 
 public final class MailBuilder {
   /**
@@ -54,4 +57,31 @@ public final class MailBuilder {
     messageBodyPart.setContent(htmlText, "text/html");
     return messageBodyPart;
   }
+
+  /**
+   * Builds the content of the message with a binary attachment
+   *
+   * @param size the size of the attachment in bytes
+   * @return the multipart content of the email to be sent
+   */
+  public static MimeMultipart buildContent(int size) throws MessagingException {
+    MimeMultipart multipart = buildContent();
+    multipart.addBodyPart(buildAttachment(size));
+    return multipart;
+  }
+
+  /**
+   * Builds a body part with a binary attachment of random data
+   *
+   * @param size the size of the attachment in bytes
+   * @return the body part with the attachment
+   */
+  public static MimeBodyPart buildAttachment(int size) throws MessagingException {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    MimeBodyPart attachment = new MimeBodyPart();
+    attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/pdf")));
+    attachment.setFileName("attachment.pdf");
+    return attachment;
+  }
 }
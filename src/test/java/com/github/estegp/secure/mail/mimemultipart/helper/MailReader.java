@@ -0,0 +1,281 @@
+package com.github.estegp.secure.mail.mimemultipart.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.RecipientInformationStore;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMEAuthEnveloped;
+import org.bouncycastle.mail.smime.SMIMEEnveloped;
+import org.bouncycastle.mail.smime.SMIMEException;
+import org.bouncycastle.mail.smime.SMIMESigned;
+import org.bouncycastle.mail.smime.SMIMEUtil;
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPOnePassSignature;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+
+/** Decrypts the emails generated by the library, so the tests can check their content. */
+public final class MailReader {
+
+  static {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  private MailReader() {}
+
+  /**
+   * Decrypts an email with the 'PGP' format defined in rfc3156. The email is serialized and parsed
+   * again first, as the recipient would receive it.
+   *
+   * @param encrypted the encrypted email.
+   * @param secretKey the secret key ring of the recipient.
+   * @return the decrypted message.
+   */
+  public static MimeMessage decryptPgp(MimeBodyPart encrypted, byte[] secretKey)
+      throws MessagingException, IOException, PGPException {
+    return decryptAndVerifyPgp(encrypted, secretKey, null);
+  }
+
+  /**
+   * Decrypts an email with the 'PGP' format defined in rfc3156, and verifies its one-pass
+   * signature.
+   *
+   * @param encrypted the encrypted email.
+   * @param secretKey the secret key ring of the recipient.
+   * @param signerKey the public key ring of the signer, or null to skip the verification.
+   * @return the decrypted message.
+   */
+  public static MimeMessage decryptAndVerifyPgp(
+      MimeBodyPart encrypted, byte[] secretKey, byte[] signerKey)
+      throws MessagingException, IOException, PGPException {
+    MimeMultipart multipart = (MimeMultipart) reparse(encrypted).getContent();
+    // BASE64DecoderStream doesn't support readAllBytes, it stops when asked for zero bytes
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream in = multipart.getBodyPart(1).getInputStream()) {
+      in.transferTo(data);
+      byte[] plain = decryptPgp(data.toByteArray(), secretKey, signerKey);
+      return new MimeMessage(
+          Session.getInstance(System.getProperties()), new ByteArrayInputStream(plain));
+    }
+  }
+
+  /**
+   * Decrypts the given 'PGP' message, armored or binary.
+   *
+   * @param data the encrypted data.
+   * @param secretKey the secret key ring of the recipient.
+   * @return the decrypted data.
+   */
+  public static byte[] decryptPgp(byte[] data, byte[] secretKey) throws IOException, PGPException {
+    return decryptPgp(data, secretKey, null);
+  }
+
+  /**
+   * Decrypts the given 'PGP' message, armored or binary, and verifies its one-pass signature.
+   *
+   * @param data the encrypted data.
+   * @param secretKey the secret key ring of the recipient.
+   * @param signerKey the public key ring of the signer, or null to skip the verification.
+   * @return the decrypted data.
+   */
+  public static byte[] decryptPgp(byte[] data, byte[] secretKey, byte[] signerKey)
+      throws IOException, PGPException {
+    JcaPGPObjectFactory factory =
+        new JcaPGPObjectFactory(PGPUtil.getDecoderStream(new ByteArrayInputStream(data)));
+    Object object = factory.nextObject();
+    if (!(object instanceof PGPEncryptedDataList)) {
+      object = factory.nextObject();
+    }
+
+    PGPSecretKeyRingCollection secret =
+        new PGPSecretKeyRingCollection(
+            PGPUtil.getDecoderStream(new ByteArrayInputStream(secretKey)),
+            new JcaKeyFingerprintCalculator());
+
+    for (PGPEncryptedData encData : (PGPEncryptedDataList) object) {
+      PGPPublicKeyEncryptedData pked = (PGPPublicKeyEncryptedData) encData;
+      PGPSecretKey key = secret.getSecretKey(pked.getKeyIdentifier().getKeyId());
+      if (key == null) {
+        continue;
+      }
+      PGPPrivateKey privateKey =
+          key.extractPrivateKey(
+              new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(KeyBuilder.PASSPHRASE));
+      InputStream clear =
+          pked.getDataStream(
+              new JcePublicKeyDataDecryptorFactoryBuilder().setProvider("BC").build(privateKey));
+
+      JcaPGPObjectFactory plainFactory = new JcaPGPObjectFactory(clear);
+      Object message = plainFactory.nextObject();
+      if (message instanceof PGPCompressedData compressed) {
+        plainFactory = new JcaPGPObjectFactory(compressed.getDataStream());
+        message = plainFactory.nextObject();
+      }
+      PGPOnePassSignature onePass = null;
+      if (message instanceof PGPOnePassSignatureList signatures) {
+        onePass = signatures.get(0);
+        message = plainFactory.nextObject();
+      }
+      byte[] plain = ((PGPLiteralData) message).getInputStream().readAllBytes();
+      if (signerKey != null) {
+        verifyPgp(onePass, plain, (PGPSignatureList) plainFactory.nextObject(), signerKey);
+      }
+      if (pked.isIntegrityProtected() && !pked.verify()) {
+        throw new PGPException("Integrity check failed.");
+      }
+      return plain;
+    }
+    throw new PGPException("The message is not encrypted for the given key.");
+  }
+
+  private static void verifyPgp(
+      PGPOnePassSignature onePass, byte[] plain, PGPSignatureList signatures, byte[] signerKey)
+      throws IOException, PGPException {
+    if (onePass == null) {
+      throw new PGPException("The message is not signed.");
+    }
+    PGPPublicKey key =
+        new PGPPublicKeyRingCollection(
+                PGPUtil.getDecoderStream(new ByteArrayInputStream(signerKey)),
+                new JcaKeyFingerprintCalculator())
+            .getPublicKey(onePass.getKeyID());
+    if (key == null) {
+      throw new PGPException("The message is not signed with the given key.");
+    }
+    onePass.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), key);
+    onePass.update(plain);
+    if (!onePass.verify(signatures.get(0))) {
+      throw new PGPException("The signature is not valid.");
+    }
+  }
+
+  /**
+   * Counts the recipients of an email with the 'PGP' format defined in rfc3156.
+   *
+   * @param encrypted the encrypted email.
+   * @return the number of recipients the session key was encrypted for.
+   */
+  public static int countPgpRecipients(MimeBodyPart encrypted)
+      throws MessagingException, IOException {
+    MimeMultipart multipart = (MimeMultipart) reparse(encrypted).getContent();
+    try (InputStream in = PGPUtil.getDecoderStream(multipart.getBodyPart(1).getInputStream())) {
+      JcaPGPObjectFactory factory = new JcaPGPObjectFactory(in);
+      Object object = factory.nextObject();
+      if (!(object instanceof PGPEncryptedDataList)) {
+        object = factory.nextObject();
+      }
+      return ((PGPEncryptedDataList) object).size();
+    }
+  }
+
+  /**
+   * Decrypts an email encrypted with 'SMIME'. The email is serialized and parsed again first, as
+   * the recipient would receive it.
+   *
+   * @param encrypted the encrypted email.
+   * @param keys the certificate and private key of the recipient.
+   * @return the decrypted body part.
+   */
+  public static MimeBodyPart decryptSmime(MimeBodyPart encrypted, KeyBuilder.SmimeKeys keys)
+      throws MessagingException, IOException, CMSException, SMIMEException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encrypted.writeTo(out);
+    MimeBodyPart received = new MimeBodyPart(new ByteArrayInputStream(out.toByteArray()));
+    RecipientInformationStore recipients =
+        received.getContentType().contains("authEnveloped-data")
+            ? new SMIMEAuthEnveloped(received).getRecipientInfos()
+            : new SMIMEEnveloped(received).getRecipientInfos();
+
+    RecipientInformation recipient = recipients.get(new JceKeyTransRecipientId(keys.x509()));
+    if (recipient == null) {
+      throw new CMSException("The message is not encrypted for the given certificate.");
+    }
+    return SMIMEUtil.toMimeBodyPart(
+        recipient.getContent(
+            new JceKeyTransEnvelopedRecipient(keys.privateKey()).setProvider("BC")));
+  }
+
+  /**
+   * Verifies the encapsulated signature of a decrypted 'SMIME' body part.
+   *
+   * @param signed the signed body part, as returned by {@link #decryptSmime}.
+   * @param signer the certificate of the signer.
+   * @return the signed content.
+   */
+  public static MimeBodyPart verifySmime(MimeBodyPart signed, X509Certificate signer)
+      throws MessagingException, CMSException, SMIMEException, OperatorCreationException {
+    SMIMESigned content = new SMIMESigned(signed);
+    for (SignerInformation info : content.getSignerInfos().getSigners()) {
+      if (!info.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(signer))) {
+        throw new CMSException("The signature is not valid.");
+      }
+    }
+    if (content.getSignerInfos().size() == 0) {
+      throw new CMSException("The body part is not signed.");
+    }
+    return content.getContent();
+  }
+
+  /**
+   * Counts the recipients of an email encrypted with 'SMIME'.
+   *
+   * @param encrypted the encrypted email.
+   * @return the number of recipients.
+   */
+  public static int countSmimeRecipients(MimeBodyPart encrypted)
+      throws MessagingException, CMSException {
+    return new SMIMEEnveloped(encrypted).getRecipientInfos().size();
+  }
+
+  /**
+   * Sends the given part as the content of a new email, serializing it and parsing it again.
+   *
+   * @param part the part to send.
+   * @return the received email.
+   */
+  public static MimeMessage reparse(MimeBodyPart part) throws MessagingException, IOException {
+    Session session = Session.getInstance(System.getProperties());
+    MimeMessage sent = new MimeMessage(session);
+    sent.setContent((Multipart) part.getContent());
+    sent.saveChanges();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sent.writeTo(out);
+    return new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+  }
+}
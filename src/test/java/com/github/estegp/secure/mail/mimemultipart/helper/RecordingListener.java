@@ -0,0 +1,79 @@
+package com.github.estegp.secure.mail.mimemultipart.helper;
+
+import com.github.estegp.secure.mail.mimemultipart.EncryptListener;
+import com.github.estegp.secure.mail.mimemultipart.Stage;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps the metrics reported by the encryptors, so the tests can check them. */
+public final class RecordingListener implements EncryptListener {
+  private final Map<Stage, Long> stages = new EnumMap<>(Stage.class);
+  private final List<Throwable> errors = new ArrayList<>();
+  private long messages;
+  private long bytesIn;
+  private long bytesOut;
+  private long hits;
+  private long misses;
+  private final List<Long> expiredKeys = new ArrayList<>();
+
+  @Override
+  public synchronized void onStage(Stage stage, long nanos) {
+    this.stages.merge(stage, nanos, Long::sum);
+  }
+
+  @Override
+  public synchronized void onMessage(long bytesIn, long bytesOut) {
+    this.messages++;
+    this.bytesIn += bytesIn;
+    this.bytesOut += bytesOut;
+  }
+
+  @Override
+  public synchronized void onKeyCache(boolean hit) {
+    if (hit) {
+      this.hits++;
+    } else {
+      this.misses++;
+    }
+  }
+
+  @Override
+  public synchronized void onExpiredKey(long keyId) {
+    this.expiredKeys.add(keyId);
+  }
+
+  @Override
+  public synchronized void onError(Throwable cause) {
+    this.errors.add(cause);
+  }
+
+  public synchronized Map<Stage, Long> getStages() {
+    return new EnumMap<>(this.stages);
+  }
+
+  public synchronized List<Throwable> getErrors() {
+    return new ArrayList<>(this.errors);
+  }
+
+  public synchronized long getMessages() {
+    return this.messages;
+  }
+
+  public synchronized long getBytesIn() {
+    return this.bytesIn;
+  }
+
+  public synchronized long getBytesOut() {
+    return this.bytesOut;
+  }
+
+  public synchronized long getKeyLookups() {
+    return this.hits + this.misses;
+  }
+
+  public synchronized List<Long> getExpiredKeys() {
+    return new ArrayList<>(this.expiredKeys);
+  }
+}
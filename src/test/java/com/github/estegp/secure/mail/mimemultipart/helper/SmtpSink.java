@@ -0,0 +1,117 @@
+package com.github.estegp.secure.mail.mimemultipart.helper;
+
+import com.sun.mail.smtp.SMTPOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A local SMTP server that accepts a single message and keeps it, to check what a client writes to
+ * the data of an SMTP transaction.
+ */
+public final class SmtpSink implements AutoCloseable {
+  private final ServerSocket server;
+  private final CompletableFuture<byte[]> received;
+
+  /** Starts the server on a free port of the loopback address. */
+  public SmtpSink() throws IOException {
+    this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    this.received = CompletableFuture.supplyAsync(this::accept);
+  }
+
+  /**
+   * Sends a message to the server: the client opens the transaction and the given writer writes the
+   * message to the data, dot-stuffed as SMTP does.
+   *
+   * @param data writes the message.
+   * @return the message received by the server, without the dot-stuffing.
+   */
+  public byte[] send(Data data) throws Exception {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.server.getLocalPort());
+        BufferedReader in =
+            new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+      OutputStream out = socket.getOutputStream();
+      reply(in, "220");
+      command(out, in, "EHLO localhost", "250");
+      command(out, in, "MAIL FROM:<from@mail.com>", "250");
+      command(out, in, "RCPT TO:<to@mail.com>", "250");
+      command(out, in, "DATA", "354");
+      SMTPOutputStream smtp = new SMTPOutputStream(out);
+      data.writeTo(smtp);
+      smtp.ensureAtBOL();
+      command(out, in, ".", "250");
+      command(out, in, "QUIT", "221");
+    }
+    return this.received.get();
+  }
+
+  private static void command(OutputStream out, BufferedReader in, String line, String code)
+      throws IOException {
+    out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    reply(in, code);
+  }
+
+  private static void reply(BufferedReader in, String code) throws IOException {
+    String line = in.readLine();
+    if (line == null || !line.startsWith(code)) {
+      throw new IOException("Unexpected reply: " + line);
+    }
+  }
+
+  private byte[] accept() {
+    try (Socket socket = this.server.accept();
+        BufferedReader in =
+            new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        PrintStream out =
+            new PrintStream(socket.getOutputStream(), true, StandardCharsets.US_ASCII)) {
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      out.print("220 localhost\r\n");
+      boolean data = false;
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (data) {
+          if (".".equals(line)) {
+            data = false;
+            out.print("250 OK\r\n");
+          } else {
+            String unstuffed = line.startsWith(".") ? line.substring(1) : line;
+            message.write((unstuffed + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+          }
+        } else if (line.startsWith("DATA")) {
+          data = true;
+          out.print("354 Go ahead\r\n");
+        } else if (line.startsWith("QUIT")) {
+          out.print("221 Bye\r\n");
+          break;
+        } else {
+          out.print("250 OK\r\n");
+        }
+      }
+      return message.toByteArray();
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.server.close();
+  }
+
+  /** Writes the data of the message. */
+  @FunctionalInterface
+  public interface Data {
+    void writeTo(OutputStream out) throws Exception;
+  }
+}